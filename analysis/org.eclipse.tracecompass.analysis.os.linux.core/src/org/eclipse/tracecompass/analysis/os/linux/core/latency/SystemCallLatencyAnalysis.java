@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2015 EfficiOS Inc., Ericsson
+ * Copyright (c) 2015, 2016 EfficiOS Inc., Ericsson
  *
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
@@ -13,9 +13,12 @@ import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -28,6 +31,7 @@ import org.eclipse.tracecompass.analysis.os.linux.core.trace.IKernelTrace;
 import org.eclipse.tracecompass.analysis.timing.core.segmentstore.AbstractSegmentStoreAnalysisModule;
 import org.eclipse.tracecompass.segmentstore.core.ISegment;
 import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+import org.eclipse.tracecompass.segmentstore.core.mappedfile.ISegmentSerializer;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
 import org.eclipse.tracecompass.tmf.core.segment.ISegmentAspect;
 
@@ -74,6 +78,11 @@ public class SystemCallLatencyAnalysis extends AbstractSegmentStoreAnalysisModul
         return checkNotNull((Object[]) ois.readObject());
     }
 
+    @Override
+    protected ISegmentSerializer<ISegment> getSegmentSerializer() {
+        return ISegmentSerializer.forType(SystemCall.class, SystemCallSerializer.INSTANCE);
+    }
+
     private static class SyscallLatencyAnalysisRequest extends AbstractSegmentStoreAnalysisRequest {
 
         private final Map<Integer, SystemCall.InitialInfo> fOngoingSystemCalls = new HashMap<>();
@@ -146,6 +155,64 @@ public class SystemCallLatencyAnalysis extends AbstractSegmentStoreAnalysisModul
         }
     }
 
+    /**
+     * Writes the name, arguments and return value of the system calls in the
+     * segment store file
+     */
+    private static class SystemCallSerializer implements ISegmentSerializer<SystemCall> {
+        public static final ISegmentSerializer<SystemCall> INSTANCE = new SystemCallSerializer();
+
+        private SystemCallSerializer() { }
+
+        @Override
+        public int getSerializedSize(SystemCall syscall) {
+            int size = getSize(syscall.getName()) + 4 + 4;
+            for (Map.Entry<String, String> arg : syscall.getArguments().entrySet()) {
+                size += getSize(arg.getKey()) + getSize(arg.getValue());
+            }
+            return size;
+        }
+
+        @Override
+        public void writeSegment(SystemCall syscall, ByteBuffer buffer) {
+            putString(buffer, syscall.getName());
+            buffer.putInt(syscall.getArguments().size());
+            for (Map.Entry<String, String> arg : syscall.getArguments().entrySet()) {
+                putString(buffer, arg.getKey());
+                putString(buffer, arg.getValue());
+            }
+            buffer.putInt(syscall.getReturnValue());
+        }
+
+        @Override
+        public SystemCall readSegment(long start, long end, ByteBuffer buffer) {
+            String name = getString(buffer);
+            int nbArgs = buffer.getInt();
+            Map<String, String> args = new LinkedHashMap<>();
+            for (int i = 0; i < nbArgs; i++) {
+                args.put(getString(buffer), getString(buffer));
+            }
+            int ret = buffer.getInt();
+            return new SystemCall(new SystemCall.InitialInfo(start, name, args), end, ret);
+        }
+
+        private static int getSize(String string) {
+            return 4 + string.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        private static void putString(ByteBuffer buffer, String string) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private static String getString(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
     private static class SyscallNameAspect implements ISegmentAspect {
         public static final ISegmentAspect INSTANCE = new SyscallNameAspect();
 
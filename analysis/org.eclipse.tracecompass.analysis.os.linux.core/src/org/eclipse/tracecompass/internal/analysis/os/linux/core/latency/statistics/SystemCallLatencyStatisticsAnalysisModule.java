@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2015 Ericsson
+ * Copyright (c) 2015, 2016 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -22,6 +22,7 @@ import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.analysis.os.linux.core.latency.SystemCall;
 import org.eclipse.tracecompass.analysis.os.linux.core.latency.SystemCallLatencyAnalysis;
 import org.eclipse.tracecompass.internal.analysis.timing.core.segmentstore.statistics.SegmentStoreStatistics;
+import org.eclipse.tracecompass.internal.analysis.timing.core.segmentstore.statistics.SegmentStoreStatisticsTimeline;
 import org.eclipse.tracecompass.segmentstore.core.ISegment;
 import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
 import org.eclipse.tracecompass.tmf.core.analysis.IAnalysisModule;
@@ -44,7 +45,7 @@ public class SystemCallLatencyStatisticsAnalysisModule extends TmfAbstractAnalys
 
     private @Nullable SystemCallLatencyAnalysis fLatencyModule;
 
-    private @Nullable SegmentStoreStatistics fTotalStats;
+    private @Nullable SegmentStoreStatisticsTimeline fTotalStats;
 
     private @Nullable Map<String, SegmentStoreStatistics> fPerSyscallStats;
 
@@ -73,36 +74,17 @@ public class SystemCallLatencyStatisticsAnalysisModule extends TmfAbstractAnalys
         ISegmentStore<ISegment> segStore = latency.getSegmentStore();
 
         if (segStore != null) {
-
-            boolean result = calculateTotalManual(segStore, monitor);
-
-            if (!result) {
-                return false;
-            }
-
-            result = calculateTotalPerSyscall(segStore, monitor);
-            if (!result) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private boolean calculateTotalManual(ISegmentStore<ISegment> store, IProgressMonitor monitor) {
-        SegmentStoreStatistics total = new SegmentStoreStatistics();
-        Iterator<ISegment> iter = store.iterator();
-        while (iter.hasNext()) {
-            if (monitor.isCanceled()) {
-                return false;
-            }
-            ISegment segment = iter.next();
-            total.update(checkNotNull(segment));
+            return calculateStats(segStore, monitor);
         }
-        fTotalStats = total;
         return true;
     }
 
-    private boolean calculateTotalPerSyscall(ISegmentStore<ISegment> store, IProgressMonitor monitor) {
+    /*
+     * Compute the total statistics, by time bucket, and the per syscall
+     * statistics in a single pass over the segments
+     */
+    private boolean calculateStats(ISegmentStore<ISegment> store, IProgressMonitor monitor) {
+        SegmentStoreStatisticsTimeline total = new SegmentStoreStatisticsTimeline();
         Map<String, SegmentStoreStatistics> perSyscallStats = new HashMap<>();
 
         Iterator<ISegment> iter = store.iterator();
@@ -110,17 +92,19 @@ public class SystemCallLatencyStatisticsAnalysisModule extends TmfAbstractAnalys
             if (monitor.isCanceled()) {
                 return false;
             }
-            ISegment segment = iter.next();
+            ISegment segment = checkNotNull(iter.next());
+            total.update(segment);
             if (segment instanceof SystemCall) {
                 SystemCall syscall = (SystemCall) segment;
                 SegmentStoreStatistics values = perSyscallStats.get(syscall.getName());
                 if (values == null) {
                     values = new SegmentStoreStatistics();
+                    perSyscallStats.put(syscall.getName(), values);
                 }
                 values.update(segment);
-                perSyscallStats.put(syscall.getName(), values);
             }
         }
+        fTotalStats = total;
         fPerSyscallStats = perSyscallStats;
         return true;
     }
@@ -135,7 +119,28 @@ public class SystemCallLatencyStatisticsAnalysisModule extends TmfAbstractAnalys
      * @return the total statistics
      */
     public @Nullable SegmentStoreStatistics getTotalStats() {
-        return fTotalStats;
+        SegmentStoreStatisticsTimeline totalStats = fTotalStats;
+        return (totalStats == null ? null : totalStats.getTotal());
+    }
+
+    /**
+     * The total statistics of the system calls starting in a time range,
+     * merged from the statistics of the time buckets in this range
+     *
+     * @param start
+     *            the start of the range
+     * @param end
+     *            the end of the range, inclusive
+     * @return the statistics of the range, or null if they are not computed
+     */
+    public @Nullable SegmentStoreStatistics getTotalStatsForRange(long start, long end) {
+        SegmentStoreStatisticsTimeline totalStats = fTotalStats;
+        SystemCallLatencyAnalysis latency = fLatencyModule;
+        @Nullable ISegmentStore<ISegment> store = (latency == null ? null : latency.getSegmentStore());
+        if (totalStats == null || store == null) {
+            return null;
+        }
+        return totalStats.getStatistics(store, start, end);
     }
 
     /**
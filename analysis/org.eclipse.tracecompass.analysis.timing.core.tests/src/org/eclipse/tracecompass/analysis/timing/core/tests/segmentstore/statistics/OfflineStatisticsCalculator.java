@@ -9,6 +9,7 @@
 
 package org.eclipse.tracecompass.analysis.timing.core.tests.segmentstore.statistics;
 
+import java.util.Arrays;
 import java.util.Collection;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -92,4 +93,22 @@ public class OfflineStatisticsCalculator {
         }
         return Math.sqrt(totalVariance);
     }
+
+    /**
+     * Get a quantile of the durations, using the nearest rank method
+     *
+     * @param quantile
+     *            the quantile, between 0 and 1
+     * @return the duration at this quantile
+     */
+    public long getQuantile(double quantile) {
+        long[] durations = new long[fSs.size()];
+        int i = 0;
+        for (ISegment interval : fSs) {
+            durations[i++] = interval.getLength();
+        }
+        Arrays.sort(durations);
+        int rank = Math.max(1, (int) Math.ceil(quantile * durations.length));
+        return durations[rank - 1];
+    }
 }
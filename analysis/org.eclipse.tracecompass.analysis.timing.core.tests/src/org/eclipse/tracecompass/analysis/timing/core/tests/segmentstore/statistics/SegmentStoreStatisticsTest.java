@@ -10,6 +10,7 @@
 package org.eclipse.tracecompass.analysis.timing.core.tests.segmentstore.statistics;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -41,6 +42,9 @@ public class SegmentStoreStatisticsTest {
 
     private static final double NO_ERROR = 0.0;
     private static final double ERROR = 0.000001;
+    /* Relative error of the quantile estimates */
+    private static final double QUANTILE_ERROR = 0.016;
+    private static final double[] QUANTILES = { 0.0, 0.5, 0.9, 0.99, 0.999, 1.0 };
 
     private static void testOnlineVsOffline(List<@NonNull SystemCall> fixture) {
         SegmentStoreStatistics sss = getSegStoreStat(fixture);
@@ -49,6 +53,17 @@ public class SegmentStoreStatisticsTest {
         assertEquals("Standard Deviation", osc.getStdDev(), sss.getStdDev(), ERROR);
         assertEquals("Min", osc.getMin(), sss.getMin());
         assertEquals("Max", osc.getMax(), sss.getMax());
+        for (double quantile : QUANTILES) {
+            long expected = osc.getQuantile(quantile);
+            assertEquals("Quantile " + quantile, expected, sss.getQuantile(quantile), expected * QUANTILE_ERROR);
+        }
+        long[] histogram = sss.getLogHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        assertEquals("Histogram", fixture.size(), total);
+        assertEquals("Histogram max", Long.SIZE - Long.numberOfLeadingZeros(osc.getMax()), histogram.length - 1);
     }
 
     /**
@@ -150,6 +165,48 @@ public class SegmentStoreStatisticsTest {
         testOnlineVsOffline(fixture);
     }
 
+    /**
+     * Test that merging statistics gives the same result as computing them
+     * on all the segments
+     */
+    @Test
+    public void mergeTest() {
+        Random rnd = new Random();
+        rnd.setSeed(5678);
+        List<@NonNull SystemCall> fixture = new ArrayList<>();
+        SegmentStoreStatistics first = new SegmentStoreStatistics();
+        SegmentStoreStatistics second = new SegmentStoreStatistics();
+        for (int i = 1; i <= MEDIUM_AMOUNT_OF_SEGMENTS * 100; i++) {
+            int start = Math.abs(rnd.nextInt(100000000));
+            int end = start + Math.abs(rnd.nextInt(1000000));
+            SystemCall syscall = createAnonSyscall(start, end);
+            fixture.add(syscall);
+            (i % 3 == 0 ? first : second).update(syscall);
+        }
+        SegmentStoreStatistics empty = new SegmentStoreStatistics();
+        empty.merge(first);
+        empty.merge(second);
+        empty.merge(new SegmentStoreStatistics());
+
+        SegmentStoreStatistics sss = getSegStoreStat(fixture);
+        assertEquals("Count", sss.getNbSegments(), empty.getNbSegments());
+        assertEquals("Average", sss.getAverage(), empty.getAverage(), ERROR);
+        assertEquals("Standard Deviation", sss.getStdDev(), empty.getStdDev(), ERROR);
+        assertEquals("Min", sss.getMin(), empty.getMin());
+        assertEquals("Max", sss.getMax(), empty.getMax());
+        for (double quantile : QUANTILES) {
+            assertEquals("Quantile " + quantile, sss.getQuantile(quantile), empty.getQuantile(quantile), NO_ERROR);
+        }
+    }
+
+    /**
+     * Test the quantiles without segments
+     */
+    @Test
+    public void emptyQuantileTest() {
+        assertTrue(Double.isNaN(new SegmentStoreStatistics().getQuantile(0.5)));
+    }
+
     private static @NonNull SystemCall createAnonSyscall(int start, int end) {
         return new SystemCall(new InitialInfo(start, "", Collections.EMPTY_MAP), end, 0);
     }
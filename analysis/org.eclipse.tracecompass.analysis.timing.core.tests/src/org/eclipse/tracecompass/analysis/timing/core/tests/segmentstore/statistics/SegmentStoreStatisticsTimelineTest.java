@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.analysis.timing.core.tests.segmentstore.statistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.analysis.os.linux.core.latency.SystemCall;
+import org.eclipse.tracecompass.analysis.os.linux.core.latency.SystemCall.InitialInfo;
+import org.eclipse.tracecompass.internal.analysis.timing.core.segmentstore.statistics.SegmentStoreStatistics;
+import org.eclipse.tracecompass.internal.analysis.timing.core.segmentstore.statistics.SegmentStoreStatisticsTimeline;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+import org.eclipse.tracecompass.segmentstore.core.sortedarray.SortedArrayStore;
+import org.junit.Test;
+
+/**
+ * Test the statistics by time range, which must be the same as the statistics
+ * computed on the segments of the range.
+ */
+public class SegmentStoreStatisticsTimelineTest {
+
+    private static final int NB_SEGMENTS = 100000;
+    private static final int MAX_BUCKETS = 64;
+    private static final double ERROR = 0.000001;
+
+    /**
+     * Test random time ranges
+     */
+    @Test
+    public void testRanges() {
+        Random rnd = new Random();
+        rnd.setSeed(1234);
+        List<@NonNull SystemCall> fixture = new ArrayList<>();
+        ISegmentStore<ISegment> store = new SortedArrayStore<>();
+        SegmentStoreStatisticsTimeline timeline = new SegmentStoreStatisticsTimeline(MAX_BUCKETS);
+        for (int i = 0; i < NB_SEGMENTS; i++) {
+            int start = rnd.nextInt(100000000);
+            int end = start + rnd.nextInt(1000) * rnd.nextInt(1000);
+            SystemCall syscall = createAnonSyscall(start, end);
+            fixture.add(syscall);
+            store.add(syscall);
+            timeline.update(syscall);
+        }
+        assertTrue(timeline.getBucketWidth() >= 100000000 / MAX_BUCKETS);
+        assertEquals(NB_SEGMENTS, timeline.getTotal().getNbSegments());
+
+        for (int i = 0; i < 50; i++) {
+            long start = rnd.nextInt(110000000) - 5000000;
+            long end = start + (i % 5 == 0 ? rnd.nextInt(1000) : rnd.nextInt(50000000));
+            List<@NonNull SystemCall> range = new ArrayList<>();
+            for (SystemCall syscall : fixture) {
+                if (syscall.getStart() >= start && syscall.getStart() <= end) {
+                    range.add(syscall);
+                }
+            }
+            assertStats(range, timeline.getStatistics(store, start, end));
+        }
+        assertStats(fixture, timeline.getStatistics(store, Long.MIN_VALUE, Long.MAX_VALUE));
+        store.dispose();
+    }
+
+    private static void assertStats(List<@NonNull SystemCall> expected, SegmentStoreStatistics actual) {
+        SegmentStoreStatistics sss = new SegmentStoreStatistics();
+        for (ISegment segment : expected) {
+            sss.update(segment);
+        }
+        assertEquals("Count", sss.getNbSegments(), actual.getNbSegments());
+        assertEquals("Min", sss.getMin(), actual.getMin());
+        assertEquals("Max", sss.getMax(), actual.getMax());
+        assertEquals("Average", sss.getAverage(), actual.getAverage(), ERROR);
+        if (expected.size() > 2) {
+            assertEquals("Standard Deviation", sss.getStdDev(), actual.getStdDev(), ERROR);
+            assertEquals("99th percentile", sss.getQuantile(0.99), actual.getQuantile(0.99), 0.0);
+        }
+    }
+
+    private static @NonNull SystemCall createAnonSyscall(int start, int end) {
+        return new SystemCall(new InitialInfo(start, "", Collections.EMPTY_MAP), end, 0);
+    }
+}
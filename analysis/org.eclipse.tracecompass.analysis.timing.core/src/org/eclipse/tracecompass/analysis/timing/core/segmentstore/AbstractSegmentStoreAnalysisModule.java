@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2015 Ericsson
+ * Copyright (c) 2015, 2016 Ericsson
  *
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
@@ -25,7 +25,9 @@ import org.eclipse.core.runtime.ListenerList;
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.segmentstore.core.ISegment;
 import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
-import org.eclipse.tracecompass.segmentstore.core.treemap.TreeMapStore;
+import org.eclipse.tracecompass.segmentstore.core.mappedfile.ISegmentSerializer;
+import org.eclipse.tracecompass.segmentstore.core.mappedfile.MappedFileStore;
+import org.eclipse.tracecompass.segmentstore.core.sortedarray.SortedArrayStore;
 import org.eclipse.tracecompass.tmf.core.analysis.TmfAbstractAnalysisModule;
 import org.eclipse.tracecompass.tmf.core.event.ITmfEvent;
 import org.eclipse.tracecompass.tmf.core.exceptions.TmfAnalysisException;
@@ -113,6 +115,18 @@ public abstract class AbstractSegmentStoreAnalysisModule extends TmfAbstractAnal
      */
     protected abstract Object[] readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException;
 
+    /**
+     * Returns the serializer of the segments of this analysis. If the analysis
+     * also has a data file, the segments are written to that file as they are
+     * found and read back from it through memory mappings, instead of being
+     * kept in memory. The file is then reopened without reading the segments.
+     *
+     * @return The serializer, or null to keep the segments in memory
+     */
+    protected @Nullable ISegmentSerializer<ISegment> getSegmentSerializer() {
+        return null;
+    }
+
     @Override
     public @Nullable ISegmentStore<ISegment> getSegmentStore() {
         return fSegmentStore;
@@ -140,40 +154,46 @@ public abstract class AbstractSegmentStoreAnalysisModule extends TmfAbstractAnal
         ITmfTrace trace = checkNotNull(getTrace());
 
         final @Nullable String dataFileName = getDataFileName();
+        final @Nullable ISegmentSerializer<ISegment> serializer = getSegmentSerializer();
+        @Nullable Path file = null;
         if (dataFileName != null) {
+            /*
+             * The store of a previous run still maps the data file, release it
+             * before the file is reopened or overwritten
+             */
+            ISegmentStore<ISegment> previous = fSegmentStore;
+            if (previous != null) {
+                fSegmentStore = null;
+                previous.dispose();
+            }
+
             /* See if the data file already exists on disk */
             String dir = TmfTraceManager.getSupplementaryFileDir(trace);
-            final Path file = Paths.get(dir, dataFileName);
+            file = Paths.get(dir, dataFileName);
 
             if (Files.exists(file)) {
                 /* Attempt to read the existing file */
-                try (ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(file))) {
-                    Object[] segmentArray = readObject(ois);
-                    final ISegmentStore<ISegment> store = new TreeMapStore<>();
-                    for (Object element : segmentArray) {
-                        if (element instanceof ISegment) {
-                            ISegment segment = (ISegment) element;
-                            store.add(segment);
-                        }
-                    }
+                final @Nullable ISegmentStore<ISegment> store = (serializer != null ?
+                        openMappedFile(file, serializer) :
+                        readSerializedFile(file));
+                if (store != null) {
                     fSegmentStore = store;
                     for (IAnalysisProgressListener listener : getListeners()) {
                         listener.onComplete(this, store);
                     }
                     return true;
-                } catch (IOException | ClassNotFoundException | ClassCastException e) {
-                    /*
-                     * We did not manage to read the file successfully, we will
-                     * just fall-through to rebuild a new one.
-                     */
-                    try {
-                        Files.delete(file);
-                    } catch (IOException e1) {
-                    }
+                }
+                /*
+                 * We did not manage to read the file successfully, we will
+                 * just fall-through to rebuild a new one.
+                 */
+                try {
+                    Files.delete(file);
+                } catch (IOException e1) {
                 }
             }
         }
-        ISegmentStore<ISegment> segmentStore = new TreeMapStore<>();
+        ISegmentStore<ISegment> segmentStore = createSegmentStore(file, serializer);
 
         /* Cancel an ongoing request */
         ITmfEventRequest req = fOngoingRequest;
@@ -193,16 +213,24 @@ public abstract class AbstractSegmentStoreAnalysisModule extends TmfAbstractAnal
 
         /* Do not process the results if the request was cancelled */
         if (req.isCancelled() || req.isFailed()) {
+            segmentStore.dispose();
             return false;
         }
 
         /* The request will fill 'syscalls' */
         fSegmentStore = segmentStore;
 
-        if (dataFileName != null) {
-            String dir = TmfTraceManager.getSupplementaryFileDir(trace);
-            final Path file = Paths.get(dir, dataFileName);
-
+        if (segmentStore instanceof MappedFileStore) {
+            /* Write the index, so the file can be reopened next time */
+            try {
+                ((MappedFileStore<ISegment>) segmentStore).finish();
+            } catch (IOException e) {
+                /*
+                 * Didn't work, the unfinished file will be deleted and we will
+                 * just re-read the trace next time
+                 */
+            }
+        } else if (file != null) {
             /* Serialize the collections to disk for future usage */
             try (ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(file))) {
                 oos.writeObject(segmentStore.toArray());
@@ -221,6 +249,46 @@ public abstract class AbstractSegmentStoreAnalysisModule extends TmfAbstractAnal
         return true;
     }
 
+    /**
+     * Create the store to fill. The segments are written to a mapped file if
+     * the analysis has a data file and a serializer, otherwise they are kept
+     * in memory and sorted and indexed in bulk, at the first query once the
+     * analysis is done.
+     */
+    private static ISegmentStore<ISegment> createSegmentStore(@Nullable Path file, @Nullable ISegmentSerializer<ISegment> serializer) {
+        if (file != null && serializer != null) {
+            try {
+                return MappedFileStore.create(file, serializer);
+            } catch (IOException e) {
+                /* Keep the segments in memory then */
+            }
+        }
+        return new SortedArrayStore<>();
+    }
+
+    private static @Nullable ISegmentStore<ISegment> openMappedFile(Path file, ISegmentSerializer<ISegment> serializer) {
+        try {
+            return MappedFileStore.open(file, serializer);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private @Nullable ISegmentStore<ISegment> readSerializedFile(Path file) {
+        try (ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(file))) {
+            Object[] segmentArray = readObject(ois);
+            List<ISegment> segments = new ArrayList<>(segmentArray.length);
+            for (Object element : segmentArray) {
+                if (element instanceof ISegment) {
+                    segments.add((ISegment) element);
+                }
+            }
+            return new SortedArrayStore<>(segments);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            return null;
+        }
+    }
+
     /**
      * Abstract event request to fill a a segment store
      */
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+package org.eclipse.tracecompass.internal.analysis.timing.core.segmentstore.statistics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+
+/**
+ * Segment store statistics kept per time bucket, by start time of the
+ * segments, so that the statistics of a time range are obtained by merging the
+ * buckets of that range instead of reading all its segments.
+ * <p>
+ * The buckets have a width that is a power of two. When the segments span
+ * more than the maximum number of buckets, the width is doubled and pairs of
+ * buckets are merged, so the buckets adapt to the time range of the segments
+ * without knowing it beforehand.
+ */
+public class SegmentStoreStatisticsTimeline {
+
+    private static final int DEFAULT_MAX_BUCKETS = 256;
+
+    private final int fMaxBuckets;
+    private final SegmentStoreStatistics fTotal = new SegmentStoreStatistics();
+    /* Statistics per bucket, by bucket index: start time >> fWidthShift */
+    private TreeMap<Long, SegmentStoreStatistics> fBuckets = new TreeMap<>();
+    private int fWidthShift = 0;
+
+    /**
+     * Constructor
+     */
+    public SegmentStoreStatisticsTimeline() {
+        this(DEFAULT_MAX_BUCKETS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxBuckets
+     *            the maximum number of buckets covering the segments
+     */
+    public SegmentStoreStatisticsTimeline(int maxBuckets) {
+        if (maxBuckets < 2) {
+            throw new IllegalArgumentException("Invalid number of buckets " + maxBuckets); //$NON-NLS-1$
+        }
+        fMaxBuckets = maxBuckets;
+    }
+
+    /**
+     * Update the statistics based on a given segment
+     *
+     * @param segment
+     *            the segment used for the update
+     */
+    public void update(ISegment segment) {
+        fTotal.update(segment);
+        Long key = segment.getStart() >> fWidthShift;
+        SegmentStoreStatistics bucket = fBuckets.get(key);
+        if (bucket == null) {
+            bucket = new SegmentStoreStatistics();
+            fBuckets.put(key, bucket);
+        }
+        bucket.update(segment);
+        while (fBuckets.lastKey() - fBuckets.firstKey() >= fMaxBuckets) {
+            doubleWidth();
+        }
+    }
+
+    private void doubleWidth() {
+        TreeMap<Long, SegmentStoreStatistics> buckets = new TreeMap<>();
+        for (Map.Entry<Long, SegmentStoreStatistics> entry : fBuckets.entrySet()) {
+            Long key = entry.getKey() >> 1;
+            SegmentStoreStatistics bucket = buckets.get(key);
+            if (bucket == null) {
+                buckets.put(key, entry.getValue());
+            } else {
+                bucket.merge(entry.getValue());
+            }
+        }
+        fBuckets = buckets;
+        fWidthShift++;
+    }
+
+    /**
+     * Get the statistics of all the segments
+     *
+     * @return the total statistics
+     */
+    public SegmentStoreStatistics getTotal() {
+        return fTotal;
+    }
+
+    /**
+     * Get the current width of the buckets
+     *
+     * @return the width, in the time unit of the segments
+     */
+    public long getBucketWidth() {
+        return 1L << fWidthShift;
+    }
+
+    /**
+     * Get the statistics of the segments starting in a time range. The
+     * buckets completely in the range are merged, and only the segments of
+     * the partially covered buckets at the edges of the range are read from
+     * the segment store.
+     *
+     * @param store
+     *            the segment store whose segments were passed to
+     *            {@link #update}
+     * @param start
+     *            the start of the range
+     * @param end
+     *            the end of the range, inclusive
+     * @return the statistics of the segments starting in the range
+     */
+    public SegmentStoreStatistics getStatistics(ISegmentStore<ISegment> store, long start, long end) {
+        SegmentStoreStatistics stats = new SegmentStoreStatistics();
+        if (end < start) {
+            return stats;
+        }
+
+        /* Index of the first and last buckets completely in the range */
+        long first = start >> fWidthShift;
+        if (getBucketStart(first) != start) {
+            first++;
+        }
+        long last = end >> fWidthShift;
+        if (getBucketStart(last + 1) - 1 != end) {
+            last--;
+        }
+
+        if (first > last) {
+            addSegments(stats, store, start, end);
+            return stats;
+        }
+        for (SegmentStoreStatistics bucket : fBuckets.subMap(first, true, last, true).values()) {
+            stats.merge(bucket);
+        }
+        if (start < getBucketStart(first)) {
+            addSegments(stats, store, start, getBucketStart(first) - 1);
+        }
+        if (end > getBucketStart(last + 1) - 1) {
+            addSegments(stats, store, getBucketStart(last + 1), end);
+        }
+        return stats;
+    }
+
+    private long getBucketStart(long index) {
+        return index << fWidthShift;
+    }
+
+    private static void addSegments(SegmentStoreStatistics stats, ISegmentStore<ISegment> store, long start, long end) {
+        for (ISegment segment : store.getIntersectingElements(start, end)) {
+            if (segment.getStart() >= start && segment.getStart() <= end) {
+                stats.update(segment);
+            }
+        }
+    }
+}
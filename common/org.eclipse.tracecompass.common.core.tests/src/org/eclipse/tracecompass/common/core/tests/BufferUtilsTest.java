@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.common.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.eclipse.tracecompass.common.core.BufferUtils;
+import org.junit.Test;
+
+/**
+ * Unit tests for the BufferUtils class.
+ */
+public class BufferUtilsTest {
+
+    /**
+     * Test that a file can be truncated and deleted once its mapping is
+     * released
+     *
+     * @throws IOException
+     *             if the temporary file cannot be written
+     */
+    @Test
+    public void testUnmap() throws IOException {
+        File file = File.createTempFile("buffer-utils", ".bin");
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel();) {
+            buffer = channel.map(MapMode.READ_WRITE, 0, 4096);
+            buffer.putInt(0, 42);
+            assertEquals(42, buffer.getInt(0));
+        }
+        assertTrue(BufferUtils.unmap(buffer));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");) {
+            raf.setLength(0);
+        }
+        assertTrue(file.delete());
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.common.core;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Utility methods for NIO buffers.
+ *
+ * @since 2.0
+ */
+public final class BufferUtils {
+
+    /* Unsafe.invokeCleaner(ByteBuffer), on Java 9 and later */
+    private static final @Nullable Object UNSAFE;
+    private static final @Nullable Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe"); //$NON-NLS-1$
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class); //$NON-NLS-1$
+            Field field = unsafeClass.getDeclaredField("theUnsafe"); //$NON-NLS-1$
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            /* Java 8, the cleaner of the buffer is used instead */
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private BufferUtils() {}
+
+    /**
+     * Release the mapping of a memory-mapped buffer now, instead of when the
+     * buffer is garbage collected. The file of a mapped buffer cannot be
+     * deleted or truncated on some platforms, and each mapping holds address
+     * space until it is released.
+     * <p>
+     * The buffer, and any duplicate or slice of it, must not be accessed
+     * anymore after this call, since this would access unmapped memory. The
+     * caller must make sure that no other thread is still reading it.
+     *
+     * @param buffer
+     *            The buffer returned by a call to
+     *            {@link java.nio.channels.FileChannel#map}, not a duplicate
+     *            or a slice of it
+     * @return true if the buffer was unmapped, false if it is not supported
+     *         by this runtime, in which case the mapping is released when the
+     *         buffer is garbage collected
+     */
+    public static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            Method invokeCleaner = INVOKE_CLEANER;
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(UNSAFE, buffer);
+                return true;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner"); //$NON-NLS-1$
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            Method clean = cleaner.getClass().getMethod("clean"); //$NON-NLS-1$
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+}
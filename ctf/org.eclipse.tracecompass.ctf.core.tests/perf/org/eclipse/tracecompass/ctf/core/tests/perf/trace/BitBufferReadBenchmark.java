@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.ctf.core.tests.perf.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.test.performance.Dimension;
+import org.eclipse.test.performance.Performance;
+import org.eclipse.test.performance.PerformanceMeter;
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
+import org.eclipse.tracecompass.ctf.core.event.types.Encoding;
+import org.eclipse.tracecompass.ctf.core.event.types.StringDeclaration;
+import org.junit.Test;
+
+/**
+ * Benchmark of the reads of the bit buffer, for the field sizes and alignments
+ * found in traces, without the cost of the definitions of a trace read
+ */
+public class BitBufferReadBenchmark {
+
+    private static final String TEST_SUITE_NAME = "CTF BitBuffer Read Benchmark";
+    private static final String TEST_ID = "org.eclipse.linuxtools#" + TEST_SUITE_NAME;
+    private static final int LOOP_COUNT = 25;
+    private static final int BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final int STRING_LENGTH = 24;
+
+    /**
+     * Benchmark reading byte-aligned 8, 16, 32 and 64-bit integers, the most
+     * common fields of kernel traces
+     */
+    @Test
+    public void testAlignedIntegers() {
+        readIntegers("aligned-integers", new int[] { 8, 16, 32, 64 }, true);
+    }
+
+    /**
+     * Benchmark reading integers of various sizes that are not byte-aligned,
+     * like bit fields and compact event headers
+     */
+    @Test
+    public void testUnalignedIntegers() {
+        readIntegers("unaligned-integers", new int[] { 5, 27, 3, 13, 17, 7 }, false);
+    }
+
+    /**
+     * Benchmark reading null-terminated strings
+     */
+    @Test
+    public void testStrings() {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + "#strings");
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ":strings", Dimension.CPU_TIME);
+
+        byte[] bytes = new byte[BUFFER_SIZE];
+        Random random = new Random(0);
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (i % STRING_LENGTH == STRING_LENGTH - 1) ? 0 : (byte) ('a' + random.nextInt(26));
+        }
+        int nbStrings = BUFFER_SIZE / STRING_LENGTH;
+        StringDeclaration declaration = StringDeclaration.getStringDeclaration(Encoding.UTF8);
+        for (int loop = 0; loop < LOOP_COUNT; loop++) {
+            BitBuffer input = createBuffer(bytes, ByteOrder.BIG_ENDIAN);
+            pm.start();
+            try {
+                for (int i = 0; i < nbStrings; i++) {
+                    declaration.createDefinition(null, "s", input);
+                }
+            } catch (CTFException e) {
+                fail("Test failed at iteration " + loop + ':' + e.getMessage());
+            }
+            pm.stop();
+            assertEquals((long) nbStrings * STRING_LENGTH * Byte.SIZE, input.position());
+        }
+        pm.commit();
+    }
+
+    private static void readIntegers(String testName, int[] lengths, boolean aligned) {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + '#' + testName);
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ':' + testName, Dimension.CPU_TIME);
+
+        byte[] bytes = new byte[BUFFER_SIZE];
+        new Random(0).nextBytes(bytes);
+        int bitsPerRound = 0;
+        for (int length : lengths) {
+            bitsPerRound += length;
+        }
+        int nbRounds = (BUFFER_SIZE * Byte.SIZE - Long.SIZE) / bitsPerRound;
+        for (int loop = 0; loop < LOOP_COUNT; loop++) {
+            BitBuffer input = createBuffer(bytes, (loop % 2 == 0) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            long sum = 0;
+            pm.start();
+            try {
+                for (int i = 0; i < nbRounds; i++) {
+                    for (int length : lengths) {
+                        sum += input.get(length, !aligned);
+                    }
+                }
+            } catch (CTFException e) {
+                fail("Test failed at iteration " + loop + ':' + e.getMessage());
+            }
+            pm.stop();
+            assertEquals((long) nbRounds * bitsPerRound, input.position());
+            /* Use the values so the reads are not optimized away */
+            if (sum == 0) {
+                fail("Unexpected values read");
+            }
+        }
+        pm.commit();
+    }
+
+    private static @NonNull BitBuffer createBuffer(byte[] bytes, ByteOrder order) {
+        /* Trace packets are memory-mapped, so use a direct buffer */
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return new BitBuffer(buffer, order);
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2014 Ericsson
+ * Copyright (c) 2013, 2016 Ericsson
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -207,4 +207,36 @@ public class BitBufferTest {
         String actual = new String(data);
         assertEquals("world", actual);
     }
-}
\ No newline at end of file
+
+    /**
+     * Test reading null-terminated bytes from a heap and a direct buffer
+     *
+     * @throws CTFException
+     *             won't happen, the bytes are null-terminated
+     */
+    @Test
+    public void testGetNullTerminatedBytes() throws CTFException {
+        byte[] bytes = "hello\0\0world\0".getBytes();
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        for (ByteBuffer bb : new ByteBuffer[] { ByteBuffer.wrap(bytes), direct }) {
+            fixture = new BitBuffer(Util.testMemory(bb));
+            assertEquals("hello", new String(fixture.getNullTerminatedBytes()));
+            assertEquals(0, fixture.getNullTerminatedBytes().length);
+            assertEquals("world", new String(fixture.getNullTerminatedBytes()));
+            assertEquals(bytes.length * 8, fixture.position());
+        }
+    }
+
+    /**
+     * Test reading bytes that are not null-terminated
+     *
+     * @throws CTFException
+     *             expected, there is no null byte
+     */
+    @Test(expected = CTFException.class)
+    public void testGetNullTerminatedBytesNoNull() throws CTFException {
+        fixture = new BitBuffer(Util.testMemory(ByteBuffer.wrap("hello".getBytes())));
+        fixture.getNullTerminatedBytes();
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2015 Ericsson
+ * Copyright (c) 2015, 2016 Ericsson
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -17,6 +17,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -27,6 +29,7 @@ import org.eclipse.tracecompass.ctf.core.CTFStrings;
 import org.eclipse.tracecompass.ctf.core.event.IEventDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
 import org.eclipse.tracecompass.ctf.core.event.scope.ILexicalScope;
+import org.eclipse.tracecompass.ctf.core.event.types.Encoding;
 import org.eclipse.tracecompass.ctf.core.event.types.IntegerDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.IntegerDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDeclaration;
@@ -226,4 +229,59 @@ public class CTFPacketReaderTest {
         assertFalse(cpr.hasMoreEvents());
     }
 
+    /**
+     * Test a packet with event ids in the header, and events whose fields are
+     * decoded when they are read or with the event when they do not fill
+     * whole bytes
+     *
+     * @throws CTFException
+     *             won't happen
+     */
+    @Test
+    public void testPacketWithIds() throws CTFException {
+        // step 1: create in memory CTF trace
+        byte[] bytes = { (byte) 0x00, (byte) 0x01, (byte) 0x34, (byte) 0x12, (byte) 0x01, (byte) 0x02, (byte) 0x07, (byte) 0xff, (byte) 0x00, (byte) 0x03, (byte) 0xff, (byte) 0xff };
+        BitBuffer input = createBitBuffer(bytes);
+        // step 2, create the packet context
+        ICTFPacketDescriptor packetContext = new StreamInputPacketIndexEntry(0, EMPTY_STRUCT.createDefinition(null, ILexicalScope.TRACE, new BitBuffer()), bytes.length, 0, 0);
+        // step 3 create the event header
+        StructDeclaration eventHeaderDeclaration = new StructDeclaration(8);
+        eventHeaderDeclaration.addField("id", IntegerDeclaration.UINT_8_DECL);
+        eventHeaderDeclaration.addField("timestamp", IntegerDeclaration.INT_8_DECL);
+        // step 4 create the event declarations, one of them with 12 bits of fields
+        final EventDeclaration eventDec = new EventDeclaration();
+        eventDec.setName("Hello");
+        eventDec.setId(0);
+        StructDeclaration fields = new StructDeclaration(8);
+        fields.addField("field", IntegerDeclaration.UINT_16L_DECL);
+        eventDec.setFields(fields);
+        final EventDeclaration bitsEventDec = new EventDeclaration();
+        bitsEventDec.setName("Bits");
+        bitsEventDec.setId(1);
+        StructDeclaration bitsFields = new StructDeclaration(8);
+        bitsFields.addField("byte", IntegerDeclaration.UINT_8_DECL);
+        bitsFields.addField("nibble", IntegerDeclaration.createDeclaration(4, false, 10, ByteOrder.LITTLE_ENDIAN, Encoding.NONE, "", 1));
+        bitsEventDec.setFields(bitsFields);
+        List<@Nullable IEventDeclaration> declarations = Arrays.asList(eventDec, bitsEventDec);
+        CTFTrace trace = new CTFTrace();
+        CTFPacketReader cpr = new CTFPacketReader(input, packetContext, declarations, eventHeaderDeclaration, null, null, trace);
+        assertTrue(cpr.hasMoreEvents());
+        EventDefinition event = cpr.readNextEvent();
+        assertEquals("Hello", event.getDeclaration().getName());
+        assertEquals(1L, event.getTimestamp());
+        assertEquals(0x1234L, ((IntegerDefinition) event.getFields().getDefinition("field")).getValue());
+        assertTrue(cpr.hasMoreEvents());
+        event = cpr.readNextEvent();
+        assertEquals("Bits", event.getDeclaration().getName());
+        assertEquals(2L, event.getTimestamp());
+        assertEquals(7L, ((IntegerDefinition) event.getFields().getDefinition("byte")).getValue());
+        assertEquals(15L, ((IntegerDefinition) event.getFields().getDefinition("nibble")).getValue());
+        assertTrue(cpr.hasMoreEvents());
+        EventDefinition lastEvent = cpr.readNextEvent();
+        assertFalse(cpr.hasMoreEvents());
+        assertEquals("Hello", lastEvent.getDeclaration().getName());
+        assertEquals(3L, lastEvent.getTimestamp());
+        assertEquals(0xffffL, ((IntegerDefinition) lastEvent.getFields().getDefinition("field")).getValue());
+        assertEquals(lastEvent.getFields(), lastEvent.lookupDefinition("fields"));
+    }
 }
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.ctf.core.tests.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.event.IEventDefinition;
+import org.eclipse.tracecompass.ctf.core.tests.shared.CtfTestTraceUtils;
+import org.eclipse.tracecompass.ctf.core.trace.CTFStreamInput;
+import org.eclipse.tracecompass.ctf.core.trace.CTFTrace;
+import org.eclipse.tracecompass.ctf.core.trace.CTFTraceReader;
+import org.eclipse.tracecompass.ctf.core.trace.ICTFStream;
+import org.eclipse.tracecompass.testtraces.ctf.CtfTestTrace;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the packet index file of a trace, which must give the same index as
+ * reading the packet headers of the stream files.
+ */
+public class CTFTracePacketIndexTest {
+
+    private static final CtfTestTrace TEST_TRACE = CtfTestTrace.KERNEL;
+    private static final int NB_EVENTS = 10000;
+
+    private File fIndexFile;
+
+    /**
+     * Create the name of the index file
+     *
+     * @throws IOException
+     *             if the temporary file cannot be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        fIndexFile = File.createTempFile("packet_index", ".idx");
+        Files.delete(fIndexFile.toPath());
+    }
+
+    /**
+     * Delete the index file
+     *
+     * @throws IOException
+     *             if the file cannot be deleted
+     */
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(fIndexFile.toPath());
+    }
+
+    /**
+     * Test that the index saved from a trace is loaded in another instance of
+     * the trace, which then reads the same events
+     *
+     * @throws CTFException
+     *             if the trace cannot be read
+     */
+    @Test
+    public void testSaveAndLoad() throws CTFException {
+        CTFTrace trace = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        try (CTFTraceReader reader = new CTFTraceReader(trace)) {
+            reader.populateIndex();
+        }
+        assertTrue(trace.savePacketIndex(fIndexFile));
+        assertFalse(trace.savePacketIndex(fIndexFile));
+
+        CTFTrace reloaded = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        assertTrue(reloaded.loadPacketIndex(fIndexFile) > 0);
+        assertEquals(trace.getCurrentStartTime(), reloaded.getCurrentStartTime());
+        assertEquals(trace.getCurrentEndTime(), reloaded.getCurrentEndTime());
+        assertSameEvents(reloaded);
+        assertFalse(reloaded.savePacketIndex(fIndexFile));
+    }
+
+    /**
+     * Test that a partial index is completed by reading the remaining packet
+     * headers
+     *
+     * @throws CTFException
+     *             if the trace cannot be read
+     */
+    @Test
+    public void testPartialIndex() throws CTFException {
+        CTFTrace trace = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        int nbStreamInputs = 0;
+        for (ICTFStream stream : trace.getStreams()) {
+            for (CTFStreamInput streamInput : stream.getStreamInputs()) {
+                streamInput.addPacketHeaderIndex();
+                nbStreamInputs++;
+            }
+        }
+        assertTrue(trace.savePacketIndex(fIndexFile));
+
+        CTFTrace reloaded = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        assertEquals(nbStreamInputs, reloaded.loadPacketIndex(fIndexFile));
+        assertSameEvents(reloaded);
+    }
+
+    /**
+     * Test that indexing the stream inputs in parallel gives the same index as
+     * indexing them one after the other, and that a cancelled indexing can be
+     * completed while reading
+     *
+     * @throws Exception
+     *             if the trace cannot be read
+     */
+    @Test
+    public void testParallelIndex() throws Exception {
+        CTFTrace serial = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        assertTrue(serial.indexPackets(1, new NullProgressMonitor()));
+        assertTrue(serial.savePacketIndex(fIndexFile));
+        int expected = CtfTestTraceUtils.getTrace(TEST_TRACE).loadPacketIndex(fIndexFile);
+
+        CTFTrace parallel = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        assertTrue(parallel.indexPackets(4, new NullProgressMonitor()));
+        assertTrue(parallel.savePacketIndex(fIndexFile));
+        assertEquals(expected, CtfTestTraceUtils.getTrace(TEST_TRACE).loadPacketIndex(fIndexFile));
+        assertSameEvents(parallel);
+
+        CTFTrace cancelled = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        IProgressMonitor monitor = new NullProgressMonitor();
+        monitor.setCanceled(true);
+        assertFalse(cancelled.indexPackets(4, monitor));
+        assertSameEvents(cancelled);
+    }
+
+    /**
+     * Test reading a trace while its packets are indexed in the background,
+     * as done by the trace indexing job once the trace is opened
+     *
+     * @throws Exception
+     *             if the trace cannot be read
+     */
+    @Test
+    public void testReadWhileIndexing() throws Exception {
+        CTFTrace trace = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> indexing = executor.submit(() -> trace.indexPackets(4, new NullProgressMonitor()));
+            assertSameEvents(trace);
+            assertTrue(indexing.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertSameEvents(trace);
+    }
+
+    /**
+     * Test a missing index file and an invalid one
+     *
+     * @throws Exception
+     *             if the file cannot be written
+     */
+    @Test(expected = CTFException.class)
+    public void testInvalidFile() throws Exception {
+        CTFTrace trace = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        assertEquals(0, trace.loadPacketIndex(fIndexFile));
+        Files.write(fIndexFile.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        trace.loadPacketIndex(fIndexFile);
+    }
+
+    private static void assertSameEvents(CTFTrace trace) throws CTFException {
+        try (CTFTraceReader expected = new CTFTraceReader(CtfTestTraceUtils.getTrace(TEST_TRACE));
+                CTFTraceReader actual = new CTFTraceReader(trace);) {
+            for (int i = 0; i < NB_EVENTS && expected.hasMoreEvents(); i++) {
+                assertTrue(actual.hasMoreEvents());
+                IEventDefinition expectedEvent = expected.getCurrentEventDef();
+                IEventDefinition actualEvent = actual.getCurrentEventDef();
+                assertEquals(expectedEvent.getTimestamp(), actualEvent.getTimestamp());
+                assertEquals(expectedEvent.getCPU(), actualEvent.getCPU());
+                assertEquals(expectedEvent.getDeclaration().getName(), actualEvent.getDeclaration().getName());
+                expected.advance();
+                actual.advance();
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2014 Ericsson
+ * Copyright (c) 2013, 2016 Ericsson
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -298,6 +298,42 @@ public class CTFTraceReaderTest {
         assertTrue(result);
     }
 
+    /**
+     * Test that the events of all the streams are merged in timestamp order,
+     * from the start of the trace and after a seek
+     *
+     * @throws CTFException
+     *             error
+     */
+    @Test
+    public void testAdvance_order() throws CTFException {
+        long count = assertOrdered();
+        assertTrue(count > 0);
+        assertTrue(fixture.seek(0));
+        for (long i = 0; i < count / 2; i++) {
+            fixture.advance();
+        }
+        long middle = fixture.getCurrentEventDef().getTimestamp();
+        assertTrue(fixture.seek(middle));
+        assertEquals(middle, fixture.getCurrentEventDef().getTimestamp());
+        long countAfterSeek = assertOrdered();
+        assertTrue(countAfterSeek > 0 && countAfterSeek < count);
+    }
+
+    private long assertOrdered() throws CTFException {
+        long count = 0;
+        long previous = Long.MIN_VALUE;
+        while (fixture.hasMoreEvents()) {
+            long timestamp = fixture.getCurrentEventDef().getTimestamp();
+            assertTrue(timestamp >= previous);
+            previous = timestamp;
+            count++;
+            fixture.advance();
+        }
+        assertFalse(fixture.advance());
+        return count;
+    }
+
     /**
      * @return
      */
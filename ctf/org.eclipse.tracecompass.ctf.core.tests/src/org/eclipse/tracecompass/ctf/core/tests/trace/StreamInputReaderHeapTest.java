@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.ctf.core.tests.trace;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.ctf.core.CTFException;
+import org.eclipse.tracecompass.ctf.core.tests.shared.CtfTestTraceUtils;
+import org.eclipse.tracecompass.ctf.core.trace.CTFStreamInput;
+import org.eclipse.tracecompass.ctf.core.trace.CTFStreamInputReader;
+import org.eclipse.tracecompass.ctf.core.trace.CTFTrace;
+import org.eclipse.tracecompass.internal.ctf.core.event.EventDeclaration;
+import org.eclipse.tracecompass.internal.ctf.core.event.EventDefinition;
+import org.eclipse.tracecompass.internal.ctf.core.trace.StreamInputReaderHeap;
+import org.eclipse.tracecompass.testtraces.ctf.CtfTestTrace;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the heap merging the stream input readers of a trace reader, with
+ * readers whose current events are set by the test.
+ *
+ * The readers are closed after each test, not by the heap or the test methods.
+ */
+@SuppressWarnings("resource")
+public class StreamInputReaderHeapTest {
+
+    private static final CtfTestTrace TEST_TRACE = CtfTestTrace.KERNEL;
+
+    private CTFStreamInput fStreamInput;
+    private final List<@NonNull CTFStreamInputReader> fReaders = new ArrayList<>();
+    private StreamInputReaderHeap fHeap;
+
+    /**
+     * Get a stream input of the test trace, and create an empty heap
+     */
+    @Before
+    public void setUp() {
+        CTFTrace trace = CtfTestTraceUtils.getTrace(TEST_TRACE);
+        fStreamInput = trace.getStream((long) 0).getStreamInputs().iterator().next();
+        fHeap = new StreamInputReaderHeap(2);
+    }
+
+    /**
+     * Close the readers created by the test
+     *
+     * @throws IOException
+     *             if a reader cannot be closed
+     */
+    @After
+    public void tearDown() throws IOException {
+        for (CTFStreamInputReader reader : fReaders) {
+            reader.close();
+        }
+        fReaders.clear();
+    }
+
+    /**
+     * Create a reader of the stream input, at an event of a given timestamp
+     */
+    private @NonNull CTFStreamInputReader createReader(long timestamp) throws CTFException {
+        CTFStreamInputReader reader = createReaderWithoutEvent();
+        setTimestamp(reader, timestamp);
+        return reader;
+    }
+
+    private @NonNull CTFStreamInputReader createReaderWithoutEvent() throws CTFException {
+        CTFStreamInputReader reader = new CTFStreamInputReader(checkNotNull(fStreamInput));
+        fReaders.add(reader);
+        reader.setCurrentEvent(null);
+        return reader;
+    }
+
+    private static void setTimestamp(CTFStreamInputReader reader, long timestamp) {
+        reader.setCurrentEvent(new EventDefinition(new EventDeclaration(), 0, timestamp, null, null, null, null, null, null));
+    }
+
+    private void assertRemovedInOrder(CTFStreamInputReader... expected) {
+        for (CTFStreamInputReader reader : expected) {
+            assertSame(reader, fHeap.peek());
+            fHeap.removeTop();
+        }
+        assertEquals(0, fHeap.size());
+        assertNull(fHeap.peek());
+    }
+
+    /**
+     * Test that the readers are removed in the order of their timestamps
+     *
+     * @throws CTFException
+     *             if a reader cannot be created
+     */
+    @Test
+    public void testOrder() throws CTFException {
+        CTFStreamInputReader r1 = createReader(1);
+        CTFStreamInputReader r3 = createReader(3);
+        CTFStreamInputReader r5 = createReader(5);
+        CTFStreamInputReader r9 = createReader(9);
+        fHeap.add(r5);
+        fHeap.add(r3);
+        fHeap.add(r9);
+        fHeap.add(r1);
+        assertEquals(4, fHeap.size());
+        assertRemovedInOrder(r1, r3, r5, r9);
+    }
+
+    /**
+     * Test that the heap grows beyond its initial size
+     *
+     * @throws CTFException
+     *             if a reader cannot be created
+     */
+    @Test
+    public void testGrowth() throws CTFException {
+        int nbReaders = 40;
+        for (int i = nbReaders - 1; i >= 0; i--) {
+            fHeap.add(createReader(i));
+        }
+        assertEquals(nbReaders, fHeap.size());
+        /* The readers were created from the latest to the earliest */
+        List<@NonNull CTFStreamInputReader> expected = new ArrayList<>(fReaders);
+        Collections.reverse(expected);
+        assertRemovedInOrder(expected.toArray(new CTFStreamInputReader[nbReaders]));
+    }
+
+    /**
+     * Test that the readers with the same timestamp are removed in the order
+     * in which they were added
+     *
+     * @throws CTFException
+     *             if a reader cannot be created
+     */
+    @Test
+    public void testTies() throws CTFException {
+        CTFStreamInputReader first = createReader(10);
+        CTFStreamInputReader second = createReader(10);
+        CTFStreamInputReader third = createReader(10);
+        CTFStreamInputReader earlier = createReader(5);
+        fHeap.add(first);
+        fHeap.add(second);
+        fHeap.add(third);
+        fHeap.add(earlier);
+        assertRemovedInOrder(earlier, first, second, third);
+    }
+
+    /**
+     * Test that a reader without a current event is after all the others,
+     * and that the timestamps are compared as unsigned values
+     *
+     * @throws CTFException
+     *             if a reader cannot be created
+     */
+    @Test
+    public void testReaderWithoutEvent() throws CTFException {
+        CTFStreamInputReader noEvent = createReaderWithoutEvent();
+        CTFStreamInputReader unsigned = createReader(Long.MIN_VALUE);
+        CTFStreamInputReader small = createReader(2);
+        fHeap.add(noEvent);
+        fHeap.add(unsigned);
+        fHeap.add(small);
+        assertRemovedInOrder(small, unsigned, noEvent);
+    }
+
+    /**
+     * Test that the top reader is moved when its next event is after the one
+     * of another reader, and stays at the top otherwise
+     *
+     * @throws CTFException
+     *             if a reader cannot be created
+     */
+    @Test
+    public void testUpdateTop() throws CTFException {
+        CTFStreamInputReader a = createReader(1);
+        CTFStreamInputReader b = createReader(4);
+        CTFStreamInputReader c = createReader(6);
+        fHeap.add(a);
+        fHeap.add(b);
+        fHeap.add(c);
+
+        setTimestamp(a, 3);
+        fHeap.updateTop();
+        assertSame(a, fHeap.peek());
+
+        setTimestamp(a, 5);
+        fHeap.updateTop();
+        assertSame(b, fHeap.peek());
+
+        /* A reader waiting for events goes to the bottom */
+        b.setCurrentEvent(null);
+        fHeap.updateTop();
+        assertRemovedInOrder(a, c, b);
+    }
+
+    /**
+     * Test removing from an empty heap, clearing the heap and getting its
+     * readers
+     *
+     * @throws CTFException
+     *             if a reader cannot be created
+     */
+    @Test
+    public void testRemoveAndClear() throws CTFException {
+        fHeap.removeTop();
+        fHeap.updateTop();
+        assertNull(fHeap.peek());
+        assertTrue(fHeap.getReaders().isEmpty());
+
+        CTFStreamInputReader a = createReader(1);
+        CTFStreamInputReader b = createReader(2);
+        fHeap.add(a);
+        fHeap.add(b);
+        assertEquals(new HashSet<>(fReaders), new HashSet<>(fHeap.getReaders()));
+
+        fHeap.clear();
+        assertEquals(0, fHeap.size());
+        assertNull(fHeap.peek());
+        assertTrue(fHeap.getReaders().isEmpty());
+    }
+}
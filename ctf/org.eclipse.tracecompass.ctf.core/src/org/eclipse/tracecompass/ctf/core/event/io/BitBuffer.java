@@ -1,5 +1,5 @@
 /*******************************************************************************.
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -149,6 +149,12 @@ public final class BitBuffer {
         if (length > BIT_LONG) {
             throw new CTFException("Cannot read a long longer than 64 bits. Rquested: " + length); //$NON-NLS-1$
         }
+        if (length == BIT_LONG && (fPosition & (BIT_CHAR - 1)) == 0 && canRead(BIT_LONG)) {
+            /* Fast read of a byte-aligned long, the sign does not matter */
+            long retVal = fBuffer.getLong((int) (fPosition / BIT_CHAR));
+            fPosition += BIT_LONG;
+            return retVal;
+        }
         if (length > BIT_INT) {
             final int highShift = length - BIT_INT;
             long a = getInt();
@@ -191,6 +197,56 @@ public final class BitBuffer {
         fPosition += dst.length * BIT_CHAR;
     }
 
+    /**
+     * Relative <i>get</i> method for reading a null-terminated sequence of
+     * bytes, such as a string.
+     *
+     * <p>
+     * Reads the bytes from the current position, which must be byte-aligned,
+     * until a null byte. The current position is increased past the null
+     * byte.
+     *
+     * @return the bytes read, without the null byte
+     * @throws CTFException
+     *             If the position is not byte-aligned, or if there is no null
+     *             byte before the end of the buffer
+     * @since 2.0
+     */
+    public byte @NonNull [] getNullTerminatedBytes() throws CTFException {
+        if ((fPosition & (BIT_CHAR - 1)) != 0) {
+            throw new CTFException("Cannot read a null-terminated sequence at an unaligned position: " + fPosition); //$NON-NLS-1$
+        }
+        int start = (int) (fPosition / BIT_CHAR);
+        int end = (int) (fBitCapacity / BIT_CHAR);
+        int nullIndex = -1;
+        if (fBuffer.hasArray()) {
+            /* Scan the backing array directly */
+            byte[] array = fBuffer.array();
+            int offset = fBuffer.arrayOffset();
+            for (int i = start + offset; i < end + offset; i++) {
+                if (array[i] == 0) {
+                    nullIndex = i - offset;
+                    break;
+                }
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                if (fBuffer.get(i) == 0) {
+                    nullIndex = i;
+                    break;
+                }
+            }
+        }
+        if (nullIndex == -1) {
+            throw new CTFException("Cannot read the null-terminated sequence, " + //$NON-NLS-1$
+                    "there is no null byte before the end of the buffer."); //$NON-NLS-1$
+        }
+        byte[] bytes = new byte[nullIndex - start];
+        get(bytes);
+        fPosition += BIT_CHAR;
+        return bytes;
+    }
+
     /**
      * Relative <i>get</i> method for reading integer of <i>length</i> bits.
      *
@@ -267,7 +323,10 @@ public final class BitBuffer {
         /* When not byte-aligned, fall-back to a general decoder. */
         if (!gotIt) {
             // Nothing read yet: use longer methods
-            if (fByteOrder == ByteOrder.LITTLE_ENDIAN) {
+            int startByte = (int) (fPosition / BIT_CHAR);
+            if (startByte + Long.BYTES <= fBitCapacity / BIT_CHAR) {
+                val = getIntFromLong(startByte, (int) (fPosition & (BIT_CHAR - 1)), length, signed);
+            } else if (fByteOrder == ByteOrder.LITTLE_ENDIAN) {
                 val = getIntLE(fPosition, length, signed);
             } else {
                 val = getIntBE(fPosition, length, signed);
@@ -278,6 +337,20 @@ public final class BitBuffer {
         return val;
     }
 
+    /**
+     * Read an integer of at most 32 bits from the long starting at a byte, so
+     * that its bytes are not read one by one. The bits of a little-endian
+     * integer start from the least significant bit of the long, those of a
+     * big-endian integer from the most significant bit.
+     */
+    private int getIntFromLong(int startByte, int bitOffset, int length, boolean signed) {
+        long word = fBuffer.getLong(startByte);
+        int shift = (fByteOrder == ByteOrder.LITTLE_ENDIAN) ? bitOffset : BIT_LONG - bitOffset - length;
+        long value = word << (BIT_LONG - length - shift);
+        value = signed ? (value >> (BIT_LONG - length)) : (value >>> (BIT_LONG - length));
+        return (int) value;
+    }
+
     private int getIntBE(long index, int length, boolean signed) {
         if ((length <= 0) || (length > BIT_INT)) {
             throw new IllegalArgumentException("Length must be between 1-32 bits"); //$NON-NLS-1$
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -12,9 +12,10 @@
 
 package org.eclipse.tracecompass.ctf.core.event.types;
 
+import java.nio.charset.StandardCharsets;
+
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
-import org.eclipse.tracecompass.common.core.NonNullUtils;
 import org.eclipse.tracecompass.ctf.core.CTFException;
 import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
 import org.eclipse.tracecompass.ctf.core.event.scope.IDefinitionScope;
@@ -132,13 +133,9 @@ public class StringDeclaration extends Declaration {
         /* Offset the buffer position wrt the current alignment */
         alignRead(input);
 
-        StringBuilder sb = new StringBuilder();
-        char c = (char) input.get(BITS_PER_BYTE, false);
-        while (c != 0) {
-            sb.append(c);
-            c = (char) input.get(BITS_PER_BYTE, false);
-        }
-        return NonNullUtils.checkNotNull(sb.toString());
+        /* Each byte is one character, as ISO-8859-1 decodes them */
+        byte[] bytes = input.getNullTerminatedBytes();
+        return new String(bytes, StandardCharsets.ISO_8859_1);
     }
 
     @Override
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -15,7 +15,6 @@ package org.eclipse.tracecompass.ctf.core.event.types;
 import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +28,8 @@ import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
 import org.eclipse.tracecompass.ctf.core.event.scope.IDefinitionScope;
 import org.eclipse.tracecompass.ctf.core.event.scope.ILexicalScope;
 
+import com.google.common.collect.ImmutableList;
+
 /**
  * A CTF structure declaration.
  *
@@ -49,6 +50,13 @@ public class StructDeclaration extends Declaration {
     /** linked list of field names. So fieldName->fieldValue */
     private final @NonNull Map<@NonNull String, IDeclaration> fFieldMap = new LinkedHashMap<>();
 
+    /**
+     * The field names and declarations in order, copied from the map when a
+     * field is added so that reading a definition does not copy them
+     */
+    private @NonNull List<@NonNull String> fFieldNames = checkNotNull(ImmutableList.of());
+    private IDeclaration[] fFieldDeclarations = new IDeclaration[0];
+
     /** maximum bit alignment */
     private long fMaxAlign;
 
@@ -111,7 +119,7 @@ public class StructDeclaration extends Declaration {
      * @return the field list.
      */
     public @NonNull Iterable<@NonNull String> getFieldsList() {
-        return fFieldMap.keySet();
+        return fFieldNames;
     }
 
     @Override
@@ -136,7 +144,7 @@ public class StructDeclaration extends Declaration {
     public StructDefinition createDefinition(IDefinitionScope definitionScope,
             String fieldName, BitBuffer input) throws CTFException {
         alignRead(input);
-        final Definition[] myFields = new Definition[fFieldMap.size()];
+        final Definition[] myFields = new Definition[fFieldDeclarations.length];
         StructDefinition structDefinition = null;
         if (definitionScope == null) {
             InternalDef localDefinitionScope = new InternalDef(null, null);
@@ -168,10 +176,10 @@ public class StructDeclaration extends Declaration {
     public StructDefinition createDefinition(IDefinitionScope definitionScope,
             ILexicalScope fieldScope, @NonNull BitBuffer input) throws CTFException {
         alignRead(input);
-        final Definition[] myFields = new Definition[fFieldMap.size()];
+        final Definition[] myFields = new Definition[fFieldDeclarations.length];
 
         StructDefinition structDefinition = new StructDefinition(this, definitionScope,
-                fieldScope, fieldScope.getName(), checkNotNull(fFieldMap.keySet()), myFields);
+                fieldScope, fieldScope.getName(), fFieldNames, myFields);
         fillStruct(input, myFields, structDefinition);
         return structDefinition;
     }
@@ -186,16 +194,16 @@ public class StructDeclaration extends Declaration {
      */
     public void addField(@NonNull String name, @NonNull IDeclaration declaration) {
         fFieldMap.put(name, declaration);
+        fFieldNames = checkNotNull(ImmutableList.copyOf(fFieldMap.keySet()));
+        fFieldDeclarations = fFieldMap.values().toArray(new IDeclaration[fFieldMap.size()]);
         fMaxAlign = Math.max(fMaxAlign, declaration.getAlignment());
     }
 
     private void fillStruct(@NonNull BitBuffer input, final Definition[] myFields, StructDefinition structDefinition) throws CTFException {
-        Iterator<Map.Entry<String, IDeclaration>> iter = fFieldMap.entrySet().iterator();
-        for (int i = 0; i < fFieldMap.size(); i++) {
-            Map.Entry<String, IDeclaration> entry = iter.next();
-            /* We should not have inserted null keys... */
-            String key = checkNotNull(entry.getKey());
-            myFields[i] = entry.getValue().createDefinition(structDefinition, key, input);
+        final List<@NonNull String> fieldNames = fFieldNames;
+        final IDeclaration[] fieldDeclarations = fFieldDeclarations;
+        for (int i = 0; i < fieldDeclarations.length; i++) {
+            myFields[i] = fieldDeclarations[i].createDefinition(structDefinition, fieldNames.get(i), input);
         }
     }
 
@@ -217,13 +225,13 @@ public class StructDeclaration extends Declaration {
      */
     public StructDefinition createFieldDefinition(ICompositeDefinition eventHeaderDef, IDefinitionScope definitionScope, ILexicalScope fields, @NonNull BitBuffer input) throws CTFException {
         alignRead(input);
-        final Definition[] myFields = new Definition[fFieldMap.size()];
+        final Definition[] myFields = new Definition[fFieldDeclarations.length];
         IDefinitionScope merged = definitionScope;
         if (eventHeaderDef != null) {
             merged = new InternalDef(definitionScope, eventHeaderDef);
         }
         StructDefinition structDefinition = new StructDefinition(this, merged,
-                fields, fields.getName(), checkNotNull(fFieldMap.keySet()), myFields);
+                fields, fields.getName(), fFieldNames, myFields);
         if (merged instanceof InternalDef) {
             InternalDef internalDef = (InternalDef) merged;
             internalDef.setDefinition(structDefinition);
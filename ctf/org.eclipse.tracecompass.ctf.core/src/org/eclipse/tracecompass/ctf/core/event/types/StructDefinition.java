@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -130,6 +130,22 @@ public final class StructDefinition extends ScopedDefinition implements IComposi
         return fDefinitionsMap.get(fieldName);
     }
 
+    /**
+     * Gets the definition of a field by its index in the field names, which
+     * is the index of the field in the declaration of the structure. This
+     * avoids looking up the name of the field.
+     *
+     * @param index
+     *            the index of the field
+     * @return the definition of the field
+     * @throws IndexOutOfBoundsException
+     *             if there is no field at this index
+     * @since 2.0
+     */
+    public Definition getDefinition(int index) {
+        return fDefinitions[index];
+    }
+
     @Override
     public @NonNull List<@NonNull String> getFieldNames() {
         return fFieldNames;
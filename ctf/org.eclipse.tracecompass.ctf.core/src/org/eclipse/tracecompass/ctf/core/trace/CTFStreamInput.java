@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -18,8 +18,10 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.UUID;
 
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.ctf.core.CTFException;
@@ -71,7 +73,7 @@ public class CTFStreamInput implements IDefinitionScope {
      */
     private final StreamInputPacketIndex fIndex;
 
-    private long fTimestampEnd;
+    private volatile long fTimestampEnd;
 
     /**
      * Definition of trace packet header
@@ -218,57 +220,110 @@ public class CTFStreamInput implements IDefinitionScope {
      * @throws CTFException
      *             If there was a problem reading the packed header
      */
-    public boolean addPacketHeaderIndex() throws CTFException {
-        long currentPosBits = 0L;
-        if (!fIndex.isEmpty()) {
-            ICTFPacketDescriptor pos = fIndex.lastElement();
-            if (pos == null) {
-                throw new IllegalStateException("Index contains null packet entries"); //$NON-NLS-1$
-            }
-            currentPosBits = pos.getOffsetBits() + pos.getPacketSizeBits();
-        }
+    public synchronized boolean addPacketHeaderIndex() throws CTFException {
+        long currentPosBits = getNextPacketOffsetBits();
         if (currentPosBits < getStreamSizeBits()) {
-            fIndex.append(createPacketIndexEntry(currentPosBits));
+            try (FileChannel fc = FileChannel.open(fFile.toPath(), StandardOpenOption.READ)) {
+                fIndex.append(createPacketIndexEntry(fc, currentPosBits));
+            } catch (IOException e) {
+                throw new CTFException("Failed to create packet index entry", e); //$NON-NLS-1$
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * Adds the index entries of all the packets of a stream input that are
+     * not indexed yet. The file is opened once for all the packets, and other
+     * threads can still read the packets that are already indexed.
+     *
+     * @param monitor
+     *            the progress monitor, which is only checked for cancellation
+     * @return false if the indexing was cancelled before the last packet
+     * @throws CTFException
+     *             If there was a problem reading a packet header
+     * @since 2.0
+     */
+    public boolean addAllPacketHeaderIndexes(IProgressMonitor monitor) throws CTFException {
+        try (FileChannel fc = FileChannel.open(fFile.toPath(), StandardOpenOption.READ)) {
+            long sizeBits = fc.size() * Byte.SIZE;
+            while (!monitor.isCanceled()) {
+                synchronized (this) {
+                    long currentPosBits = getNextPacketOffsetBits();
+                    if (currentPosBits >= sizeBits) {
+                        return true;
+                    }
+                    fIndex.append(createPacketIndexEntry(fc, currentPosBits));
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            throw new CTFException("Failed to create packet index entry", e); //$NON-NLS-1$
+        }
+    }
+
+    private long getNextPacketOffsetBits() {
+        if (fIndex.isEmpty()) {
+            return 0L;
+        }
+        ICTFPacketDescriptor pos = fIndex.lastElement();
+        if (pos == null) {
+            throw new IllegalStateException("Index contains null packet entries"); //$NON-NLS-1$
+        }
+        return pos.getOffsetBits() + pos.getPacketSizeBits();
+    }
+
+    /**
+     * Adds the packet index entries of this stream input that were computed
+     * before, for example read from a packet index file, instead of reading
+     * their packet headers. The entries must start at the first packet of the
+     * stream, and the index must still be empty.
+     *
+     * @param entries
+     *            the packet index entries, in offset order
+     * @return true if the entries were added
+     */
+    synchronized boolean addPacketIndexEntries(List<ICTFPacketDescriptor> entries) {
+        if (!fIndex.isEmpty() || entries.isEmpty()) {
+            return false;
+        }
+        fIndex.appendAll(entries);
+        for (ICTFPacketDescriptor entry : entries) {
+            fLostSoFar += entry.getLostEvents();
+        }
+        setTimestampEnd(fIndex.lastElement().getTimestampEnd());
+        return true;
+    }
+
     private long getStreamSizeBits() {
         return fFile.length() * Byte.SIZE;
     }
 
-    private ICTFPacketDescriptor createPacketIndexEntry(long dataOffsetbits)
-            throws CTFException {
+    private ICTFPacketDescriptor createPacketIndexEntry(FileChannel fc, long dataOffsetbits)
+            throws CTFException, IOException {
 
-        try (FileChannel fc = FileChannel.open(fFile.toPath(), StandardOpenOption.READ)) {
-            if (fc == null) {
-                throw new IOException("Failed to create FileChannel"); //$NON-NLS-1$
-            }
-            BitBuffer bitBuffer = createBitBufferForPacketHeader(fc, dataOffsetbits);
-            /*
-             * Read the trace packet header if it exists.
-             */
-            parseTracePacketHeader(bitBuffer);
-
-            /*
-             * Read the stream packet context if it exists.
-             */
-            long size = fc.size();
-            ICTFPacketDescriptor packetIndex = parsePacketContext(dataOffsetbits, size, bitBuffer);
-
-            /* Basic validation */
-            if (packetIndex.getContentSizeBits() > packetIndex.getPacketSizeBits()) {
-                throw new CTFException("Content size > packet size"); //$NON-NLS-1$
-            }
+        BitBuffer bitBuffer = createBitBufferForPacketHeader(fc, dataOffsetbits);
+        /*
+         * Read the trace packet header if it exists.
+         */
+        parseTracePacketHeader(bitBuffer);
 
-            if (packetIndex.getPacketSizeBits() > ((size * Byte.SIZE - packetIndex.getOffsetBits()))) {
-                throw new CTFException("Not enough data remaining in the file for the size of this packet"); //$NON-NLS-1$
-            }
-            return packetIndex;
-        } catch (IOException e) {
-            throw new CTFException("Failed to create packet index entry", e); //$NON-NLS-1$
+        /*
+         * Read the stream packet context if it exists.
+         */
+        long size = fc.size();
+        ICTFPacketDescriptor packetIndex = parsePacketContext(dataOffsetbits, size, bitBuffer);
+
+        /* Basic validation */
+        if (packetIndex.getContentSizeBits() > packetIndex.getPacketSizeBits()) {
+            throw new CTFException("Content size > packet size"); //$NON-NLS-1$
         }
+
+        if (packetIndex.getPacketSizeBits() > ((size * Byte.SIZE - packetIndex.getOffsetBits()))) {
+            throw new CTFException("Not enough data remaining in the file for the size of this packet"); //$NON-NLS-1$
+        }
+        return packetIndex;
     }
 
     private BitBuffer createBitBufferForPacketHeader(FileChannel fc, long dataOffsetbits) throws CTFException, IOException {
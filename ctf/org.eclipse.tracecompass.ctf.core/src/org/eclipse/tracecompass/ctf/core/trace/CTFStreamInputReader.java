@@ -328,14 +328,16 @@ public class CTFStreamInputReader implements AutoCloseable {
         fPacketIndex++;
         // did we already index the packet?
         while (getPacketSize() < (fPacketIndex + 1)) {
-            // go to the next packet if there is one, index it at the same time
-            if (fStreamInput.addPacketHeaderIndex()) {
-                fPacketIndex = getPacketSize() - 1;
-            } else {
+            /*
+             * Go to the next packet if there is one, index it at the same
+             * time. The indexing job of the trace can index packets
+             * meanwhile, so the size is checked again instead of assuming
+             * this is the packet just added.
+             */
+            if (!fStreamInput.addPacketHeaderIndex() && getPacketSize() < (fPacketIndex + 1)) {
                 fPacketReader = NullPacketReader.INSTANCE;
                 return;
             }
-
         }
         ICTFPacketDescriptor packet = getPacket();
         fPacketReader = getCurrentPacketReader(packet);
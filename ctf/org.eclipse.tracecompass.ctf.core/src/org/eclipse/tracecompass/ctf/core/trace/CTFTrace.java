@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -23,15 +23,23 @@ import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.tracecompass.ctf.core.CTFException;
 import org.eclipse.tracecompass.ctf.core.CTFStrings;
@@ -51,6 +59,8 @@ import org.eclipse.tracecompass.internal.ctf.core.SafeMappedByteBuffer;
 import org.eclipse.tracecompass.internal.ctf.core.event.metadata.MetadataStrings;
 import org.eclipse.tracecompass.internal.ctf.core.event.metadata.ParseException;
 import org.eclipse.tracecompass.internal.ctf.core.trace.CTFStream;
+import org.eclipse.tracecompass.internal.ctf.core.trace.StreamInputPacketIndex;
+import org.eclipse.tracecompass.internal.ctf.core.trace.StreamInputPacketIndexFile;
 import org.eclipse.tracecompass.internal.ctf.core.trace.Utils;
 
 import com.google.common.collect.ImmutableMap;
@@ -135,6 +145,12 @@ public class CTFTrace implements IDefinitionScope {
      */
     private final Map<String, CTFClock> fClocks = new HashMap<>();
 
+    /**
+     * Number of packets in the packet index file that was last loaded or
+     * saved
+     */
+    private int fNbSavedPackets = 0;
+
     /** Handlers for the metadata files */
     private static final FileFilter METADATA_FILE_FILTER = new MetadataFileFilter();
     private static final Comparator<File> METADATA_COMPARATOR = new MetadataComparator();
@@ -729,6 +745,170 @@ public class CTFTrace implements IDefinitionScope {
         return timestampCyclesToNanos(currentEnd);
     }
 
+    /**
+     * Index the packets of all the stream inputs of the trace, the stream
+     * inputs being indexed in parallel on a bounded pool of threads. The
+     * largest stream files are indexed first, so that the threads finish at
+     * about the same time. The packets that are already indexed are not read
+     * again.
+     *
+     * @param nbThreads
+     *            the maximum number of threads, 1 to index the stream inputs
+     *            one after the other in the calling thread
+     * @param monitor
+     *            the progress monitor, one unit of work per stream input. The
+     *            indexing stops, with a partial index, when it is cancelled.
+     * @return false if the indexing was cancelled
+     * @throws CTFException
+     *             if a packet header cannot be read
+     * @since 2.0
+     */
+    public boolean indexPackets(int nbThreads, IProgressMonitor monitor) throws CTFException {
+        List<CTFStreamInput> streamInputs = new ArrayList<>(getStreamInputsByFile().values());
+        streamInputs.sort(Comparator.comparingLong((CTFStreamInput streamInput) -> streamInput.getFile().length()).reversed());
+        monitor.beginTask("Indexing packets", streamInputs.size()); //$NON-NLS-1$
+        try {
+            if (nbThreads <= 1 || streamInputs.size() <= 1) {
+                for (CTFStreamInput streamInput : streamInputs) {
+                    if (!streamInput.addAllPacketHeaderIndexes(monitor)) {
+                        return false;
+                    }
+                    monitor.worked(1);
+                }
+                return true;
+            }
+            return indexPacketsInParallel(streamInputs, Math.min(nbThreads, streamInputs.size()), monitor);
+        } finally {
+            monitor.done();
+        }
+    }
+
+    private static boolean indexPacketsInParallel(List<CTFStreamInput> streamInputs, int nbThreads, @NonNull IProgressMonitor monitor) throws CTFException {
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads, runnable -> {
+            Thread thread = new Thread(runnable, "CTF packet indexer"); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (CTFStreamInput streamInput : streamInputs) {
+                results.add(executor.submit(() -> {
+                    boolean done = streamInput.addAllPacketHeaderIndexes(monitor);
+                    if (done) {
+                        /* Progress monitors are not thread safe */
+                        synchronized (monitor) {
+                            monitor.worked(1);
+                        }
+                    }
+                    return done;
+                }));
+            }
+            boolean done = true;
+            for (Future<Boolean> result : results) {
+                done &= result.get();
+            }
+            return done;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CTFException) {
+                throw (CTFException) cause;
+            }
+            throw new CTFException("Failed to index packets", cause); //$NON-NLS-1$
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CTFException("Interrupted while indexing packets", e); //$NON-NLS-1$
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Load the packet indexes of the stream inputs from a packet index file
+     * written by {@link #savePacketIndex(File)}, instead of reading their
+     * packet headers. The indexes of stream files whose size or last
+     * modification time changed are ignored, and those stream inputs are
+     * indexed from their files as usual. This must be called before reading
+     * the trace.
+     *
+     * @param indexFile
+     *            the packet index file
+     * @return the number of packets loaded, 0 if the file does not exist
+     * @throws CTFException
+     *             if the file cannot be read or is not a packet index file
+     * @since 2.0
+     */
+    public int loadPacketIndex(File indexFile) throws CTFException {
+        if (!indexFile.isFile()) {
+            return 0;
+        }
+        Map<File, CTFStreamInput> streamInputs = getStreamInputsByFile();
+        Map<File, @NonNull List<@NonNull ICTFPacketDescriptor>> indexes;
+        try {
+            indexes = StreamInputPacketIndexFile.read(indexFile, streamInputs.keySet());
+        } catch (IOException e) {
+            throw new CTFException("Cannot read packet index file " + indexFile, e); //$NON-NLS-1$
+        }
+        int nbPackets = 0;
+        for (Entry<File, CTFStreamInput> entry : streamInputs.entrySet()) {
+            List<@NonNull ICTFPacketDescriptor> index = indexes.get(entry.getKey());
+            if (index != null && entry.getValue().addPacketIndexEntries(index)) {
+                nbPackets += index.size();
+            }
+        }
+        fNbSavedPackets = nbPackets;
+        return nbPackets;
+    }
+
+    /**
+     * Save the packet indexes of the stream inputs to a packet index file, to
+     * be loaded by {@link #loadPacketIndex(File)} when the trace is opened
+     * again. The packets that were indexed so far are saved, the rest of the
+     * stream files will be indexed as usual. Nothing is written if no packet
+     * was indexed since the file was last loaded or saved.
+     *
+     * @param indexFile
+     *            the packet index file
+     * @return true if the file was written
+     * @throws CTFException
+     *             if the file cannot be written
+     * @since 2.0
+     */
+    public boolean savePacketIndex(File indexFile) throws CTFException {
+        Map<File, List<ICTFPacketDescriptor>> indexes = new HashMap<>();
+        int nbPackets = 0;
+        for (CTFStreamInput streamInput : getStreamInputsByFile().values()) {
+            StreamInputPacketIndex index = streamInput.getIndex();
+            List<ICTFPacketDescriptor> entries = new ArrayList<>(index.size());
+            for (int i = 0; i < index.size(); i++) {
+                entries.add(index.getElement(i));
+            }
+            if (!entries.isEmpty()) {
+                indexes.put(streamInput.getFile(), entries);
+                nbPackets += entries.size();
+            }
+        }
+        if (nbPackets == fNbSavedPackets) {
+            return false;
+        }
+        try {
+            StreamInputPacketIndexFile.write(indexFile, indexes);
+        } catch (IOException e) {
+            throw new CTFException("Cannot write packet index file " + indexFile, e); //$NON-NLS-1$
+        }
+        fNbSavedPackets = nbPackets;
+        return true;
+    }
+
+    private Map<File, CTFStreamInput> getStreamInputsByFile() {
+        Map<File, CTFStreamInput> streamInputs = new HashMap<>();
+        for (ICTFStream stream : fStreams.values()) {
+            for (CTFStreamInput streamInput : stream.getStreamInputs()) {
+                streamInputs.put(streamInput.getFile(), streamInput);
+            }
+        }
+        return streamInputs;
+    }
+
     /**
      * Does the trace need to time scale?
      *
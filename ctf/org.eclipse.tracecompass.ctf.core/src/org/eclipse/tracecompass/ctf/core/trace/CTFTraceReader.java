@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -20,14 +20,16 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Set;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.tracecompass.ctf.core.CTFException;
 import org.eclipse.tracecompass.ctf.core.event.IEventDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.IEventDefinition;
 import org.eclipse.tracecompass.internal.ctf.core.Activator;
-import org.eclipse.tracecompass.internal.ctf.core.trace.StreamInputReaderTimestampComparator;
+import org.eclipse.tracecompass.internal.ctf.core.trace.StreamInputReaderHeap;
 
 /**
  * A CTF trace reader. Reads the events of a trace.
@@ -57,9 +59,9 @@ public class CTFTraceReader implements AutoCloseable {
     private final List<CTFStreamInputReader> fStreamInputReaders = Collections.synchronizedList(new ArrayList<CTFStreamInputReader>());
 
     /**
-     * Priority queue to order the trace file readers by timestamp.
+     * Heap to order the trace file readers by timestamp.
      */
-    private PriorityQueue<CTFStreamInputReader> fPrio;
+    private StreamInputReaderHeap fPrio;
 
     /**
      * Array to count the number of event per trace file.
@@ -178,15 +180,6 @@ public class CTFTraceReader implements AutoCloseable {
         fEndTime = endTime;
     }
 
-    /**
-     * Get the priority queue of this trace reader.
-     *
-     * @return The priority queue of input readers
-     */
-    protected PriorityQueue<CTFStreamInputReader> getPrio() {
-        return fPrio;
-    }
-
     // ------------------------------------------------------------------------
     // Operations
     // ------------------------------------------------------------------------
@@ -239,7 +232,7 @@ public class CTFTraceReader implements AutoCloseable {
      *             An error occured
      */
     public void update() throws CTFException {
-        Set<CTFStreamInputReader> readers = new HashSet<>();
+        Set<@NonNull CTFStreamInputReader> readers = new HashSet<>();
         for (ICTFStream stream : fTrace.getStreams()) {
             Set<CTFStreamInput> streamInputs = stream.getStreamInputs();
             for (CTFStreamInput streamInput : streamInputs) {
@@ -291,18 +284,15 @@ public class CTFTraceReader implements AutoCloseable {
      */
     private void populateStreamInputReaderHeap() throws CTFException {
         if (fStreamInputReaders.isEmpty()) {
-            fPrio = new PriorityQueue<>(MIN_PRIO_SIZE,
-                    new StreamInputReaderTimestampComparator());
+            fPrio = new StreamInputReaderHeap(MIN_PRIO_SIZE);
             return;
         }
 
         /*
-         * Create the priority queue with a size twice as bigger as the number
-         * of reader in order to avoid constant resizing.
+         * Create the heap with a size twice as bigger as the number of reader
+         * in order to avoid constant resizing.
          */
-        fPrio = new PriorityQueue<>(
-                Math.max(fStreamInputReaders.size() * 2, MIN_PRIO_SIZE),
-                new StreamInputReaderTimestampComparator());
+        fPrio = new StreamInputReaderHeap(Math.max(fStreamInputReaders.size() * 2, MIN_PRIO_SIZE));
 
         int pos = 0;
 
@@ -343,27 +333,37 @@ public class CTFTraceReader implements AutoCloseable {
      * @throws CTFException
      *             if an error occurs
      */
+    @SuppressWarnings("resource")
     public boolean advance() throws CTFException {
         /*
-         * Remove the reader from the top of the priority queue.
+         * Get the reader at the top of the heap, it stays there while it is
+         * read. The readers removed from the heap are closed by close().
          */
-        CTFStreamInputReader top = fPrio.poll();
+        CTFStreamInputReader top = fPrio.peek();
 
         /*
-         * If the queue was empty.
+         * If the heap was empty.
          */
         if (top == null) {
             return false;
         }
         /*
-         * Read the next event of this reader.
+         * Read the next event of this reader. A reader that cannot be read is
+         * removed.
          */
-        switch (top.readNextEvent()) {
+        CTFResponse response;
+        try {
+            response = top.readNextEvent();
+        } catch (CTFException e) {
+            fPrio.removeTop();
+            throw e;
+        }
+        switch (response) {
         case OK: {
             /*
-             * Add it back in the queue.
+             * Move it down the heap if it is no longer the earliest.
              */
-            fPrio.add(top);
+            fPrio.updateTop();
             /*
              * We're in OK, there's a guaranteed top#getCurrentEvent() unless another
              * thread does something bad.
@@ -376,14 +376,16 @@ public class CTFTraceReader implements AutoCloseable {
             break;
         }
         case WAIT: {
-            fPrio.add(top);
+            fPrio.updateTop();
             break;
         }
         case FINISH:
+            fPrio.removeTop();
             break;
         case ERROR:
         default:
             // something bad happend
+            fPrio.removeTop();
         }
         /*
          * If there is no reader in the queue, it means the trace reader reached
@@ -520,7 +522,7 @@ public class CTFTraceReader implements AutoCloseable {
      *            whether the trace is live
      */
     public void setLive(boolean live) {
-        for (CTFStreamInputReader s : fPrio) {
+        for (CTFStreamInputReader s : fPrio.getReaders()) {
             s.setLive(live);
         }
     }
@@ -595,10 +597,34 @@ public class CTFTraceReader implements AutoCloseable {
      * @since 1.0
      */
     public void populateIndex() throws CTFException {
-        for (CTFStreamInputReader sir : fPrio) {
-            sir.goToLastEvent();
+        populateIndex(1, new NullProgressMonitor());
+    }
+
+    /**
+     * This will read the entire trace and populate all the indexes, the
+     * packet headers of the stream files being read in parallel. The reader
+     * will then be reset to the first event in the trace.
+     *
+     * Do not call in the fast path.
+     *
+     * @param nbThreads
+     *            the maximum number of threads reading the packet headers
+     * @param monitor
+     *            the progress monitor of the packet indexing. If it is
+     *            cancelled, the index is left partial and the reader is not
+     *            moved.
+     * @throws CTFException
+     *             A trace reading error occurred
+     * @since 2.0
+     */
+    public void populateIndex(int nbThreads, IProgressMonitor monitor) throws CTFException {
+        /*
+         * Indexing the packets reads every packet header once, the stream
+         * input readers do not need to go through the packets again.
+         */
+        if (!fTrace.indexPackets(nbThreads, monitor)) {
+            return;
         }
         seek(0);
-
     }
 }
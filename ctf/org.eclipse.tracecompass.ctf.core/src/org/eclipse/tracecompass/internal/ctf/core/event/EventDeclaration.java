@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -25,7 +25,10 @@ import org.eclipse.tracecompass.ctf.core.event.IEventDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
 import org.eclipse.tracecompass.ctf.core.event.scope.ILexicalScope;
 import org.eclipse.tracecompass.ctf.core.event.types.Definition;
+import org.eclipse.tracecompass.ctf.core.event.types.EnumDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.ICompositeDefinition;
+import org.eclipse.tracecompass.ctf.core.event.types.IDeclaration;
+import org.eclipse.tracecompass.ctf.core.event.types.IntegerDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.IntegerDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDefinition;
@@ -76,6 +79,16 @@ public class EventDeclaration implements IEventDeclaration {
 
     private int fId = (int) UNSET_EVENT_ID;
 
+    /**
+     * Size in bits of the event fields when it is the same for every event,
+     * {@link #VARIABLE_SIZE} otherwise, or {@link #UNKNOWN_SIZE} before it is
+     * computed
+     */
+    private int fFieldsSize = UNKNOWN_SIZE;
+
+    private static final int UNKNOWN_SIZE = -1;
+    private static final int VARIABLE_SIZE = 0;
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
@@ -109,14 +122,64 @@ public class EventDeclaration implements IEventDeclaration {
      */
     public EventDefinition createDefinition(StructDeclaration streamEventContextDecl, ICTFPacketDescriptor packetDescriptor, ICompositeDefinition packetContext, ICompositeDefinition eventHeaderDef, @NonNull BitBuffer input, long prevTimestamp)
             throws CTFException {
+        return createDefinition(streamEventContextDecl, packetDescriptor, packetContext, eventHeaderDef, input, prevTimestamp, hasTimestamp(eventHeaderDef));
+    }
+
+    /**
+     * Creates an instance of EventDefinition corresponding to this declaration,
+     * for a reader that already knows if the event header has a timestamp.
+     *
+     * @param streamEventContextDecl
+     *            event context
+     * @param packetDescriptor
+     *            current packet
+     * @param packetContext
+     *            packet context
+     * @param eventHeaderDef
+     *            The event header definition
+     * @param input
+     *            the bitbuffer input source
+     * @param prevTimestamp
+     *            The timestamp when the event was taken
+     * @param headerHasTimestamp
+     *            true if the event header has a timestamp field, in which case
+     *            the fields can be decoded when they are read
+     * @return A new EventDefinition.
+     * @throws CTFException
+     *             As a bitbuffer is used to read, it could have wrapped
+     *             IOExceptions.
+     */
+    public EventDefinition createDefinition(StructDeclaration streamEventContextDecl, ICTFPacketDescriptor packetDescriptor, ICompositeDefinition packetContext, ICompositeDefinition eventHeaderDef, @NonNull BitBuffer input, long prevTimestamp,
+            boolean headerHasTimestamp) throws CTFException {
         final CTFStream stream = fStream;
         final CTFTrace trace = stream == null ? null : stream.getTrace();
         StructDefinition streamEventContext = streamEventContextDecl != null ? streamEventContextDecl.createDefinition(trace, ILexicalScope.STREAM_EVENT_CONTEXT, input) : null;
         StructDefinition eventContext = fContext != null ? fContext.createFieldDefinition(eventHeaderDef, trace, ILexicalScope.CONTEXT, input) : null;
+        int cpu = (int) packetDescriptor.getTargetId();
+        if (fFields != null && headerHasTimestamp) {
+            byte[] rawFields = readRawFields(fFields, input);
+            if (rawFields != null) {
+                /*
+                 * The fields are not needed to compute the timestamp, they are
+                 * only decoded if they are read.
+                 */
+                long timestamp = calculateTimestamp(eventHeaderDef, prevTimestamp, null, eventContext);
+                return new EventDefinition(
+                        this,
+                        cpu,
+                        timestamp,
+                        eventHeaderDef,
+                        streamEventContext,
+                        eventContext,
+                        packetContext,
+                        rawFields,
+                        trace,
+                        packetDescriptor);
+            }
+        }
         StructDefinition eventPayload = fFields != null ? fFields.createFieldDefinition(eventHeaderDef, trace, ILexicalScope.FIELDS, input) : null;
         long timestamp = calculateTimestamp(eventHeaderDef, prevTimestamp, eventPayload, eventContext);
 
-        int cpu = (int) packetDescriptor.getTargetId();
         return new EventDefinition(
                 this,
                 cpu,
@@ -129,6 +192,68 @@ public class EventDeclaration implements IEventDeclaration {
                 packetDescriptor);
     }
 
+    private static boolean hasTimestamp(@Nullable ICompositeDefinition eventHeaderDef) {
+        if (eventHeaderDef instanceof EventHeaderDefinition) {
+            return true;
+        }
+        return eventHeaderDef instanceof StructDefinition && ((StructDefinition) eventHeaderDef).lookupDefinition(CTFStrings.TIMESTAMP) != null;
+    }
+
+    /**
+     * Copy the bytes of the event fields when they have a fixed size and start
+     * on a byte boundary, so that their definitions can be created later from
+     * the copy.
+     *
+     * @return the bytes of the fields, or null if they must be decoded now, in
+     *         which case the position of the input is not changed
+     */
+    private byte @Nullable [] readRawFields(StructDeclaration fields, @NonNull BitBuffer input) throws CTFException {
+        int size = fFieldsSize;
+        if (size == UNKNOWN_SIZE) {
+            size = getFixedSize(fields);
+            fFieldsSize = size;
+        }
+        if (size == VARIABLE_SIZE) {
+            return null;
+        }
+        long start = input.position();
+        long mask = fields.getAlignment() - 1;
+        long position = (start + mask) & ~mask;
+        if (position % Byte.SIZE != 0) {
+            return null;
+        }
+        input.position(position);
+        if (!input.canRead(size)) {
+            input.position(start);
+            return null;
+        }
+        byte[] rawFields = new byte[size / Byte.SIZE];
+        input.get(rawFields);
+        return rawFields;
+    }
+
+    /**
+     * Get the size of the fields of an event if it does not depend on the
+     * event, that is if they are all integers or enums. The alignment of the
+     * fields is computed from the start of the structure, which is aligned on
+     * the largest alignment of its fields.
+     */
+    private static int getFixedSize(StructDeclaration fields) {
+        long size = 0;
+        for (String name : fields.getFieldsList()) {
+            IDeclaration field = fields.getField(name);
+            if (field == null || !(field instanceof IntegerDeclaration || field instanceof EnumDeclaration)) {
+                return VARIABLE_SIZE;
+            }
+            long mask = field.getAlignment() - 1;
+            size = ((size + mask) & ~mask) + field.getMaximumSize();
+        }
+        if (size % Byte.SIZE != 0 || size > Integer.MAX_VALUE) {
+            return VARIABLE_SIZE;
+        }
+        return (int) size;
+    }
+
     private static long calculateTimestamp(@Nullable ICompositeDefinition eventHeaderDef, long prevTimestamp, StructDefinition eventPayload, StructDefinition eventContext) throws CTFIOException {
         long timestamp = 0;
         Definition def = null;
@@ -217,6 +342,7 @@ public class EventDeclaration implements IEventDeclaration {
      */
     public void setFields(StructDeclaration fields) {
         fFields = fields;
+        fFieldsSize = UNKNOWN_SIZE;
     }
 
     @Override
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011-2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -12,6 +12,7 @@
 
 package org.eclipse.tracecompass.internal.ctf.core.event;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -19,8 +20,11 @@ import java.util.Map;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.common.core.NonNullUtils;
+import org.eclipse.tracecompass.ctf.core.CTFException;
 import org.eclipse.tracecompass.ctf.core.event.IEventDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.IEventDefinition;
+import org.eclipse.tracecompass.ctf.core.event.io.BitBuffer;
 import org.eclipse.tracecompass.ctf.core.event.scope.IDefinitionScope;
 import org.eclipse.tracecompass.ctf.core.event.scope.ILexicalScope;
 import org.eclipse.tracecompass.ctf.core.event.scope.LexicalScope;
@@ -29,6 +33,7 @@ import org.eclipse.tracecompass.ctf.core.event.types.ICompositeDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.IDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDefinition;
+import org.eclipse.tracecompass.ctf.core.trace.CTFTrace;
 import org.eclipse.tracecompass.ctf.core.trace.ICTFPacketDescriptor;
 
 /**
@@ -62,9 +67,17 @@ public final class EventDefinition implements IDefinitionScope, IEventDefinition
     private final ICompositeDefinition fPacketContext;
 
     /**
-     * The event fields structure definition.
+     * The event fields structure definition, created from the raw fields when
+     * it is first read if the fields were not decoded with the event.
      */
-    private final ICompositeDefinition fFields;
+    private volatile ICompositeDefinition fFields;
+
+    /**
+     * The bytes of the event fields, until they are decoded
+     */
+    private volatile byte @Nullable [] fRawFields;
+
+    private final @Nullable CTFTrace fTrace;
 
     /**
      * The current cpu, could be @link {@link IPacketHeader#UNKNOWN_CPU}
@@ -112,11 +125,71 @@ public final class EventDefinition implements IDefinitionScope, IEventDefinition
             ICompositeDefinition packetContext,
             ICompositeDefinition fields,
             @Nullable ICTFPacketDescriptor packetDescriptor) {
+        this(declaration, cpu, timestamp, eventHeaderDefinition, streamContext, eventContext, packetContext, fields, null, null, packetDescriptor);
+    }
+
+    /**
+     * Constructs an event definition whose fields are decoded from their bytes
+     * when they are first read. The fields must not depend on other
+     * definitions than the event header.
+     *
+     * @param declaration
+     *            The corresponding event declaration, which declares the
+     *            fields
+     * @param cpu
+     *            The cpu source of the event. You can use UNKNOWN_CPU if it is
+     *            not known.
+     * @param timestamp
+     *            event timestamp
+     * @param eventHeaderDefinition
+     *            The event header definition, can be null if there is no header
+     *            definition
+     * @param streamContext
+     *            the stream context
+     * @param eventContext
+     *            The event context
+     * @param packetContext
+     *            the packet context (the one with content size, not magic
+     *            number)
+     * @param rawFields
+     *            The bytes of the event fields, starting at the alignment of
+     *            the fields structure
+     * @param trace
+     *            The trace of the event
+     * @param packetDescriptor
+     *            descriptor of the packet containing this event
+     */
+    public EventDefinition(IEventDeclaration declaration,
+            int cpu,
+            long timestamp,
+            ICompositeDefinition eventHeaderDefinition,
+            ICompositeDefinition streamContext,
+            ICompositeDefinition eventContext,
+            ICompositeDefinition packetContext,
+            byte @NonNull [] rawFields,
+            @Nullable CTFTrace trace,
+            @Nullable ICTFPacketDescriptor packetDescriptor) {
+        this(declaration, cpu, timestamp, eventHeaderDefinition, streamContext, eventContext, packetContext, null, rawFields, trace, packetDescriptor);
+    }
+
+    private EventDefinition(IEventDeclaration declaration,
+            int cpu,
+            long timestamp,
+            ICompositeDefinition eventHeaderDefinition,
+            ICompositeDefinition streamContext,
+            ICompositeDefinition eventContext,
+            ICompositeDefinition packetContext,
+            ICompositeDefinition fields,
+            byte @Nullable [] rawFields,
+            @Nullable CTFTrace trace,
+            @Nullable ICTFPacketDescriptor packetDescriptor) {
         fDeclaration = declaration;
         fEventHeaderDefinition = eventHeaderDefinition;
         fCpu = cpu;
         fTimestamp = timestamp;
         fFields = fields;
+        fRawFields = rawFields;
+        fTrace = trace;
         fEventContext = eventContext;
         fPacketContext = packetContext;
         fStreamContext = streamContext;
@@ -150,8 +223,32 @@ public final class EventDefinition implements IDefinitionScope, IEventDefinition
         return fEventHeaderDefinition;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The fields of an event whose fields have a fixed size are decoded the
+     * first time they are read, from a copy of their bytes. These fields are
+     * only integers and enums, which are always decoded from the copied
+     * bytes.
+     *
+     * @throws IllegalStateException
+     *             if the copied fields cannot be decoded, which means that the
+     *             copy does not match their declaration
+     */
     @Override
     public ICompositeDefinition getFields() {
+        byte[] rawFields = fRawFields;
+        if (rawFields == null) {
+            return fFields;
+        }
+        /* Decoding twice in concurrent reads gives equal definitions */
+        try {
+            BitBuffer input = new BitBuffer(NonNullUtils.checkNotNull(ByteBuffer.wrap(rawFields)));
+            fFields = fDeclaration.getFields().createFieldDefinition(fEventHeaderDefinition, fTrace, ILexicalScope.FIELDS, input);
+        } catch (CTFException e) {
+            throw new IllegalStateException("Cannot decode the fields of " + fDeclaration.getName(), e); //$NON-NLS-1$
+        }
+        fRawFields = null;
         return fFields;
     }
 
@@ -234,7 +331,7 @@ public final class EventDefinition implements IDefinitionScope, IEventDefinition
         if (lookupPath.equals("context")) { //$NON-NLS-1$
             return fEventContext;
         } else if (lookupPath.equals("fields")) { //$NON-NLS-1$
-            return fFields;
+            return getFields();
         } else {
             return null;
         }
@@ -257,11 +354,12 @@ public final class EventDefinition implements IDefinitionScope, IEventDefinition
             }
         }
 
-        if (fFields != null) {
-            list = fFields.getFieldNames();
+        ICompositeDefinition fields = getFields();
+        if (fields != null) {
+            list = fields.getFieldNames();
 
             for (String field : list) {
-                retString.append(field).append(" : ").append(fFields.getDefinition(field).toString()).append(cr); //$NON-NLS-1$
+                retString.append(field).append(" : ").append(fields.getDefinition(field).toString()).append(cr); //$NON-NLS-1$
             }
         }
 
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2015 Ericsson
+ * Copyright (c) 2015, 2016 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -12,6 +12,8 @@
 
 package org.eclipse.tracecompass.internal.ctf.core.trace;
 
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
@@ -31,6 +33,7 @@ import org.eclipse.tracecompass.ctf.core.event.types.IntegerDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.SimpleDatatypeDefinition;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.StructDefinition;
+import org.eclipse.tracecompass.ctf.core.event.types.VariantDeclaration;
 import org.eclipse.tracecompass.ctf.core.event.types.VariantDefinition;
 import org.eclipse.tracecompass.ctf.core.trace.CTFIOException;
 import org.eclipse.tracecompass.ctf.core.trace.ICTFPacketDescriptor;
@@ -40,6 +43,8 @@ import org.eclipse.tracecompass.internal.ctf.core.event.EventDefinition;
 import org.eclipse.tracecompass.internal.ctf.core.event.LostEventDeclaration;
 import org.eclipse.tracecompass.internal.ctf.core.event.types.composite.EventHeaderDefinition;
 
+import com.google.common.collect.ImmutableList;
+
 /**
  * Packet reader with a fixed bit buffer, should be the fast and easily
  * parallelizable one.
@@ -60,6 +65,14 @@ public final class CTFPacketReader implements IPacketReader, IDefinitionScope {
         }
     };
 
+    /** The field is not in the event header */
+    private static final int NOT_FOUND = -1;
+    /** The field may be in a structure or variant of the event header */
+    private static final int LOOKUP = -2;
+
+    private static final String ID = "id"; //$NON-NLS-1$
+    private static final String VARIANT = "v"; //$NON-NLS-1$
+
     private final BitBuffer fInput;
     private final ICTFPacketDescriptor fPacketContext;
     private final List<@Nullable IEventDeclaration> fDeclarations;
@@ -75,6 +88,13 @@ public final class CTFPacketReader implements IPacketReader, IDefinitionScope {
 
     private @Nullable ICompositeDefinition fEventHeader;
 
+    /** Index of the id in a structure event header, or NOT_FOUND or LOOKUP */
+    private final int fIdIndex;
+    /** Index of the variant in a structure event header */
+    private final int fVariantIndex;
+    /** Index of the timestamp in a structure event header */
+    private final int fTimestampIndex;
+
     /**
      * Constructor
      *
@@ -105,6 +125,46 @@ public final class CTFPacketReader implements IPacketReader, IDefinitionScope {
         fStreamEventHeaderDecl = eventHeaderDeclaration;
         fStreamContext = streamContext;
         fTracePacketHeader = packetHeader;
+        if (eventHeaderDeclaration instanceof StructDeclaration) {
+            fIdIndex = getFieldIndex((StructDeclaration) eventHeaderDeclaration, ID);
+            fVariantIndex = getFieldIndex((StructDeclaration) eventHeaderDeclaration, VARIANT);
+            fTimestampIndex = getFieldIndex((StructDeclaration) eventHeaderDeclaration, CTFStrings.TIMESTAMP);
+        } else {
+            fIdIndex = NOT_FOUND;
+            fVariantIndex = NOT_FOUND;
+            fTimestampIndex = NOT_FOUND;
+        }
+    }
+
+    /**
+     * Get the index of a field in the event header, as found by
+     * {@link StructDefinition#lookupDefinition(String)}, so that the field
+     * does not have to be looked up by name for every event.
+     */
+    private static int getFieldIndex(StructDeclaration eventHeaderDeclaration, String name) {
+        List<String> fieldNames = ImmutableList.copyOf(eventHeaderDeclaration.getFieldsList());
+        int index = fieldNames.indexOf(name);
+        if (index == NOT_FOUND) {
+            index = fieldNames.indexOf('_' + name);
+        }
+        if (index != NOT_FOUND) {
+            return index;
+        }
+        for (String fieldName : fieldNames) {
+            IDeclaration field = eventHeaderDeclaration.getField(fieldName);
+            if (field instanceof StructDeclaration || field instanceof VariantDeclaration) {
+                return LOOKUP;
+            }
+        }
+        /* The scope of the event header has no definitions */
+        return NOT_FOUND;
+    }
+
+    private static @Nullable IDefinition getField(StructDefinition eventHeaderDef, int index, String name) {
+        if (index >= 0) {
+            return eventHeaderDef.getDefinition(index);
+        }
+        return index == LOOKUP ? eventHeaderDef.lookupDefinition(name) : null;
     }
 
     @Override
@@ -131,6 +191,7 @@ public final class CTFPacketReader implements IPacketReader, IDefinitionScope {
         }
 
         fEventHeader = null;
+        boolean headerHasTimestamp = false;
         /* Read the stream event header. */
         final IDeclaration streamEventHeaderDecl = fStreamEventHeaderDecl;
         if (streamEventHeaderDecl instanceof IEventHeaderDeclaration) {
@@ -138,11 +199,14 @@ public final class CTFPacketReader implements IPacketReader, IDefinitionScope {
             EventHeaderDefinition ehd = (EventHeaderDefinition) eventHeaderDeclaration.createDefinition(EVENT_HEADER_SCOPE, "", fInput); //$NON-NLS-1$
             fEventHeader = ehd;
             eventID = ehd.getId();
+            headerHasTimestamp = true;
         } else if (streamEventHeaderDecl instanceof StructDeclaration) {
-            StructDefinition structEventHeaderDef = ((StructDeclaration) streamEventHeaderDecl).createDefinition(EVENT_HEADER_SCOPE, ILexicalScope.EVENT_HEADER, fInput);
+            StructDefinition structEventHeaderDef = checkNotNull(((StructDeclaration) streamEventHeaderDecl).createDefinition(EVENT_HEADER_SCOPE, ILexicalScope.EVENT_HEADER, fInput));
             fEventHeader = structEventHeaderDef;
+            /* A field found by index is in every event header */
+            headerHasTimestamp = fTimestampIndex >= 0 || (fTimestampIndex == LOOKUP && getField(structEventHeaderDef, fTimestampIndex, CTFStrings.TIMESTAMP) != null);
             /* Check for the event id. */
-            IDefinition idDef = structEventHeaderDef.lookupDefinition("id"); //$NON-NLS-1$
+            IDefinition idDef = getField(structEventHeaderDef, fIdIndex, ID);
             SimpleDatatypeDefinition simpleIdDef = null;
             if (idDef instanceof SimpleDatatypeDefinition) {
                 simpleIdDef = ((SimpleDatatypeDefinition) idDef);
@@ -150,7 +214,7 @@ public final class CTFPacketReader implements IPacketReader, IDefinitionScope {
                 throw new CTFIOException("Id defintion not an integer, enum or float definiton in event header."); //$NON-NLS-1$
             }
             /* Check for the variant v. */
-            IDefinition variantDef = structEventHeaderDef.lookupDefinition("v"); //$NON-NLS-1$
+            IDefinition variantDef = getField(structEventHeaderDef, fVariantIndex, VARIANT);
             if (variantDef instanceof VariantDefinition) {
 
                 /* Get the variant current field */
@@ -160,7 +224,7 @@ public final class CTFPacketReader implements IPacketReader, IDefinitionScope {
                  * Try to get the id field in the current field of the variant.
                  * If it is present, it overrides the previously read event id.
                  */
-                IDefinition vIdDef = variantCurrentField.lookupDefinition("id"); //$NON-NLS-1$
+                IDefinition vIdDef = variantCurrentField.lookupDefinition(ID);
                 if (vIdDef instanceof IntegerDefinition) {
                     simpleIdDef = (SimpleDatatypeDefinition) vIdDef;
                 }
@@ -180,7 +244,7 @@ public final class CTFPacketReader implements IPacketReader, IDefinitionScope {
             throw new CTFIOException("Incorrect event id : " + eventID); //$NON-NLS-1$
         }
         EventDeclaration declaration = (EventDeclaration) eventDeclaration;
-        EventDefinition eventDef = declaration.createDefinition(fStreamContext, fPacketContext, fTracePacketHeader, fEventHeader, fInput, fLastTimestamp);
+        EventDefinition eventDef = declaration.createDefinition(fStreamContext, fPacketContext, fTracePacketHeader, fEventHeader, fInput, fLastTimestamp, headerHasTimestamp);
         fLastTimestamp = eventDef.getTimestamp();
         /*
          * Set the event timestamp using the timestamp calculated by
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2014 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -17,11 +17,9 @@ package org.eclipse.tracecompass.internal.ctf.core.trace;
 import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.List;
 import java.util.TreeSet;
 
 import org.eclipse.core.runtime.IStatus;
@@ -33,7 +31,10 @@ import org.eclipse.tracecompass.internal.ctf.core.Activator;
  * <b><u>StreamInputPacketIndex</u></b>
  * <p>
  * This is a data structure containing entries, you may append to this and read
- * it. It is not thread safe.
+ * it. One thread at a time may append entries, for example the indexing job of
+ * a stream input, while other threads read the entries already appended: each
+ * append publishes the new size after the entry, and the readers only read up
+ * to the size they see.
  */
 public class StreamInputPacketIndex {
 
@@ -41,11 +42,20 @@ public class StreamInputPacketIndex {
     // Attributes
     // ------------------------------------------------------------------------
 
+    private static final int INITIAL_CAPACITY = 16;
+
     /**
      * Entries of the index. They are sorted by increasing begin timestamp.
-     * index builder.
+     * Only the first {@link #fSize} ones are set. The array is replaced by a
+     * larger copy when it is full, the entries are never modified once set.
+     */
+    private volatile ICTFPacketDescriptor[] fEntries = new ICTFPacketDescriptor[INITIAL_CAPACITY];
+
+    /**
+     * Number of entries, written after the entries and the array, and read
+     * before them
      */
-    private final List<ICTFPacketDescriptor> fEntries = new ArrayList<>();
+    private volatile int fSize = 0;
 
     // ------------------------------------------------------------------------
     // Operations
@@ -59,7 +69,7 @@ public class StreamInputPacketIndex {
      * @return the number of elements in this data structure
      */
     public int size() {
-        return fEntries.size();
+        return fSize;
     }
 
     /**
@@ -68,7 +78,7 @@ public class StreamInputPacketIndex {
      * @return {@code true} if this data structure contains no elements
      */
     public boolean isEmpty() {
-        return fEntries.isEmpty();
+        return fSize == 0;
     }
 
     /**
@@ -103,11 +113,18 @@ public class StreamInputPacketIndex {
          * Validate entries are inserted in monotonic increasing timestamp
          * order.
          */
-        if (!fEntries.isEmpty() && (entryToAdd.getTimestampBegin() < lastElement().getTimestampBegin())) {
+        int size = fSize;
+        if (size > 0 && (entryToAdd.getTimestampBegin() < lastElement().getTimestampBegin())) {
             return false;
         }
 
-        fEntries.add(entryToAdd);
+        ICTFPacketDescriptor[] entries = fEntries;
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+            fEntries = entries;
+        }
+        entries[size] = entryToAdd;
+        fSize = size + 1;
         return true;
     }
 
@@ -127,7 +144,9 @@ public class StreamInputPacketIndex {
          * needs to be one too. We are looking for a timestamp though, so we use
          * the dataOffset which is a long and use it as a timestamp holder.
          */
-        int index = Collections.binarySearch(fEntries, new StreamInputPacketIndexEntry(timestamp, 0), new FindTimestamp());
+        ICTFPacketDescriptor key = new StreamInputPacketIndexEntry(timestamp, 0);
+        int size = fSize;
+        int index = Arrays.binarySearch(fEntries, 0, size, key, new FindTimestamp());
         if (index < 0) {
             index = -index - 1;
         }
@@ -140,7 +159,7 @@ public class StreamInputPacketIndex {
      * @return the last element in the index
      */
     public ICTFPacketDescriptor lastElement() {
-        return fEntries.get(fEntries.size() - 1);
+        return getElement(fSize - 1);
     }
 
     /**
@@ -154,7 +173,11 @@ public class StreamInputPacketIndex {
      *             {@code index < 0 || index >= size()})
      */
     public ICTFPacketDescriptor getElement(int index) {
-        return fEntries.get(index);
+        int size = fSize;
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return checkNotNull(fEntries[index]);
     }
 
     /**
@@ -183,7 +206,8 @@ public class StreamInputPacketIndex {
     public int indexOf(ICTFPacketDescriptor element) {
         int indexOf = -1;
         if (element != null) {
-            indexOf = Collections.binarySearch(fEntries, element, new MonotonicComparator());
+            int size = fSize;
+            indexOf = Arrays.binarySearch(fEntries, 0, size, element, new MonotonicComparator());
         }
         return (indexOf < 0) ? -1 : indexOf;
     }
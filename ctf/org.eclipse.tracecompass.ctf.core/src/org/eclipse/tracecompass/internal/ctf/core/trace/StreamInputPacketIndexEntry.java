@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2011, 2015 Ericsson, Ecole Polytechnique de Montreal and others
+ * Copyright (c) 2011, 2016 Ericsson, Ecole Polytechnique de Montreal and others
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -173,6 +173,47 @@ public class StreamInputPacketIndexEntry implements ICTFPacketDescriptor {
         fLostEvents = computeLostEvents(lostSoFar);
     }
 
+    /**
+     * Constructor from the values of an entry that was previously computed,
+     * for example read from a packet index file
+     *
+     * @param dataOffsetBits
+     *            offset in the file for the start of data in bits
+     * @param packetSizeBits
+     *            packet size, in bits
+     * @param contentSizeBits
+     *            content size, in bits
+     * @param timestampBegin
+     *            begin timestamp
+     * @param timestampEnd
+     *            end timestamp
+     * @param lostEvents
+     *            number of events lost in this packet
+     * @param target
+     *            the traced target, may be null
+     * @param targetId
+     *            the id of the traced target
+     * @param endPacketHeaderBits
+     *            end of packet headers
+     * @param attributes
+     *            the attributes of the packet context
+     */
+    public StreamInputPacketIndexEntry(long dataOffsetBits, long packetSizeBits, long contentSizeBits,
+            long timestampBegin, long timestampEnd, long lostEvents, String target, long targetId,
+            long endPacketHeaderBits, @NonNull Map<String, Object> attributes) {
+        fOffsetBits = dataOffsetBits;
+        fOffsetBytes = dataOffsetBits / Byte.SIZE;
+        fPacketSizeBits = packetSizeBits;
+        fContentSizeBits = contentSizeBits;
+        fTimestampBegin = timestampBegin;
+        fTimestampEnd = timestampEnd;
+        fLostEvents = lostEvents;
+        fTarget = target;
+        fTargetID = targetId;
+        fEndPacketHeaderBits = endPacketHeaderBits;
+        fAttributes = attributes;
+    }
+
     /**
      * Copy constructor that updates the timestamp end
      *
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.ctf.core.trace;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.ctf.core.trace.ICTFPacketDescriptor;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Reads and writes the packet indexes of the stream files of a trace in a
+ * compact binary file, so that the packet headers and contexts do not have to
+ * be read again when the trace is re-opened.
+ * <p>
+ * The index of a stream file is only valid if the size and the last
+ * modification time of the file did not change since the index was written.
+ * <p>
+ * File format:
+ *
+ * <pre>
+ * header: magic (int), version (int), number of streams (int)
+ * per stream: file name (UTF), length (long), last modified (long),
+ *             attribute names (int count, UTF each), packets (int count)
+ * per packet: offset, packet size, content size, begin, end, lost events,
+ *             payload start, target id (longs), target (boolean + UTF),
+ *             attributes (int count, then name index (int), type (byte), value)
+ * </pre>
+ */
+public final class StreamInputPacketIndexFile {
+
+    private static final int MAGIC = 0x43544649; /* "CTFI" */
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_LONG = 0;
+    private static final byte TYPE_DOUBLE = 1;
+    private static final byte TYPE_STRING = 2;
+    private static final byte TYPE_ENUM = 3;
+
+    private StreamInputPacketIndexFile() {
+    }
+
+    /**
+     * Read the packet indexes of stream files from an index file. Only the
+     * indexes of the given stream files that did not change are returned.
+     *
+     * @param indexFile
+     *            the index file
+     * @param streamFiles
+     *            the stream files of the trace
+     * @return the packet index of each valid stream file, in offset order
+     * @throws IOException
+     *             if the index file cannot be read or is not a valid index
+     *             file
+     */
+    public static Map<File, @NonNull List<@NonNull ICTFPacketDescriptor>> read(File indexFile, Iterable<File> streamFiles) throws IOException {
+        Map<String, File> filesByName = new HashMap<>();
+        for (File file : streamFiles) {
+            filesByName.put(file.getName(), file);
+        }
+        Map<File, @NonNull List<@NonNull ICTFPacketDescriptor>> indexes = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid packet index file " + indexFile); //$NON-NLS-1$
+            }
+            int nbStreams = in.readInt();
+            for (int i = 0; i < nbStreams; i++) {
+                String name = in.readUTF();
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                List<@NonNull ICTFPacketDescriptor> index = readStream(in);
+                File file = filesByName.get(name);
+                if (file != null && file.length() == length && file.lastModified() == lastModified) {
+                    indexes.put(file, index);
+                }
+            }
+        }
+        return indexes;
+    }
+
+    private static @NonNull List<@NonNull ICTFPacketDescriptor> readStream(DataInputStream in) throws IOException {
+        String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+        int nbPackets = in.readInt();
+        List<@NonNull ICTFPacketDescriptor> index = new ArrayList<>(nbPackets);
+        for (int i = 0; i < nbPackets; i++) {
+            long offsetBits = in.readLong();
+            long packetSizeBits = in.readLong();
+            long contentSizeBits = in.readLong();
+            long timestampBegin = in.readLong();
+            long timestampEnd = in.readLong();
+            long lostEvents = in.readLong();
+            long payloadStartBits = in.readLong();
+            long targetId = in.readLong();
+            String target = in.readBoolean() ? in.readUTF() : null;
+            int nbAttributes = in.readInt();
+            ImmutableMap.Builder<String, Object> attributes = ImmutableMap.builder();
+            for (int j = 0; j < nbAttributes; j++) {
+                attributes.put(names[in.readInt()], readValue(in));
+            }
+            index.add(new StreamInputPacketIndexEntry(offsetBits, packetSizeBits, contentSizeBits,
+                    timestampBegin, timestampEnd, lostEvents, target, targetId, payloadStartBits,
+                    attributes.build()));
+        }
+        return index;
+    }
+
+    private static @NonNull Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_LONG:
+            return in.readLong();
+        case TYPE_DOUBLE:
+            return in.readDouble();
+        case TYPE_STRING:
+            return checkNotNull(in.readUTF());
+        case TYPE_ENUM:
+            String string = in.readUTF();
+            return new AbstractMap.SimpleImmutableEntry<>(string, in.readLong());
+        default:
+            throw new IOException("Invalid attribute type " + type); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Write the packet indexes of stream files to an index file. The file is
+     * written under a temporary name then renamed, so a partially written
+     * file is never read.
+     *
+     * @param indexFile
+     *            the index file
+     * @param indexes
+     *            the packet index of each stream file, in offset order
+     * @throws IOException
+     *             if the index file cannot be written
+     */
+    public static void write(File indexFile, Map<File, List<ICTFPacketDescriptor>> indexes) throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp"); //$NON-NLS-1$
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(indexes.size());
+            for (Entry<File, List<ICTFPacketDescriptor>> entry : indexes.entrySet()) {
+                File file = entry.getKey();
+                out.writeUTF(file.getName());
+                out.writeLong(file.length());
+                out.writeLong(file.lastModified());
+                writeStream(out, entry.getValue());
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeStream(DataOutputStream out, List<ICTFPacketDescriptor> index) throws IOException {
+        /* The packets of a stream share the names of their attributes */
+        Map<String, Integer> names = new HashMap<>();
+        List<String> nameList = new ArrayList<>();
+        for (ICTFPacketDescriptor packet : index) {
+            for (String name : packet.getAttributes().keySet()) {
+                if (names.putIfAbsent(name, nameList.size()) == null) {
+                    nameList.add(name);
+                }
+            }
+        }
+        out.writeInt(nameList.size());
+        for (String name : nameList) {
+            out.writeUTF(name);
+        }
+        out.writeInt(index.size());
+        for (ICTFPacketDescriptor packet : index) {
+            out.writeLong(packet.getOffsetBits());
+            out.writeLong(packet.getPacketSizeBits());
+            out.writeLong(packet.getContentSizeBits());
+            out.writeLong(packet.getTimestampBegin());
+            out.writeLong(packet.getTimestampEnd());
+            out.writeLong(packet.getLostEvents());
+            out.writeLong(packet.getPayloadStartBits());
+            out.writeLong(packet.getTargetId());
+            String target = packet.getTarget();
+            out.writeBoolean(target != null);
+            if (target != null) {
+                out.writeUTF(target);
+            }
+            Map<String, Object> attributes = packet.getAttributes();
+            out.writeInt(attributes.size());
+            for (Entry<String, Object> attribute : attributes.entrySet()) {
+                /* Every name was added above */
+                out.writeInt(checkNotNull(names.get(attribute.getKey())));
+                writeValue(out, attribute.getValue());
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, @Nullable Object value) throws IOException {
+        if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Entry) {
+            Entry<?, ?> enumValue = (Entry<?, ?>) value;
+            Object enumLong = enumValue.getValue();
+            if (!(enumLong instanceof Long)) {
+                throw new IOException("Unsupported enum attribute value " + value); //$NON-NLS-1$
+            }
+            out.writeByte(TYPE_ENUM);
+            out.writeUTF(String.valueOf(enumValue.getKey()));
+            out.writeLong((Long) enumLong);
+        } else {
+            throw new IOException("Unsupported attribute value " + value); //$NON-NLS-1$
+        }
+    }
+}
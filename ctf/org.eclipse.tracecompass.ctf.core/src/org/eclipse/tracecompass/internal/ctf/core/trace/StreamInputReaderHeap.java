@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.ctf.core.trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.ctf.core.event.IEventDefinition;
+import org.eclipse.tracecompass.ctf.core.trace.CTFStreamInputReader;
+
+/**
+ * A binary min-heap of stream input readers, ordered by the timestamp of their
+ * current event, to merge the events of the streams of a trace.
+ * <p>
+ * The timestamps are cached in a primitive array, so the readers and their
+ * events are not dereferenced to compare them. When the top reader moves to
+ * its next event, it is replaced in place and only sifted down if its new
+ * timestamp is after the one of the runner-up, so a stream whose events are
+ * consecutive in the trace is read without reordering the heap.
+ * <p>
+ * The timestamps are compared as unsigned values, like
+ * {@link StreamInputReaderTimestampComparator}. Readers with the same
+ * timestamp are ordered by the order in which they were added. A reader
+ * without a current event, such as a live reader waiting for events, is
+ * ordered after all the others.
+ * <p>
+ * The heap does not own the readers, they are closed by their trace reader.
+ */
+public class StreamInputReaderHeap {
+
+    private static final int MIN_SIZE = 16;
+
+    /** Key of a reader without a current event, the largest unsigned value */
+    private static final long NO_EVENT_KEY = Long.MAX_VALUE;
+
+    private CTFStreamInputReader[] fReaders;
+    /** Timestamps with their sign bit flipped, so signed order is unsigned */
+    private long[] fKeys;
+    /** Order in which the readers were added, to break ties */
+    private long[] fSequences;
+    private int fSize = 0;
+    private long fNextSequence = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            the expected number of readers
+     */
+    public StreamInputReaderHeap(int capacity) {
+        int size = Math.max(capacity, MIN_SIZE);
+        fReaders = new CTFStreamInputReader[size];
+        fKeys = new long[size];
+        fSequences = new long[size];
+    }
+
+    /**
+     * Add a reader to the heap, at the timestamp of its current event
+     *
+     * @param reader
+     *            the reader to add
+     */
+    public void add(@NonNull CTFStreamInputReader reader) {
+        if (fSize == fReaders.length) {
+            int size = fSize * 2;
+            fReaders = Arrays.copyOf(fReaders, size);
+            fKeys = Arrays.copyOf(fKeys, size);
+            fSequences = Arrays.copyOf(fSequences, size);
+        }
+        int index = fSize++;
+        long key = getKey(reader);
+        long sequence = fNextSequence++;
+        /* Sift up */
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isBefore(key, sequence, fKeys[parent], fSequences[parent])) {
+                break;
+            }
+            set(index, fReaders[parent], fKeys[parent], fSequences[parent]);
+            index = parent;
+        }
+        set(index, reader, key, sequence);
+    }
+
+    /**
+     * Get the reader with the earliest current event
+     *
+     * @return the top reader, or null if the heap is empty
+     */
+    public @Nullable CTFStreamInputReader peek() {
+        return (fSize == 0) ? null : fReaders[0];
+    }
+
+    /**
+     * Update the position of the top reader after it moved to another event
+     */
+    @SuppressWarnings("resource")
+    public void updateTop() {
+        if (fSize == 0) {
+            return;
+        }
+        CTFStreamInputReader top = fReaders[0];
+        /*
+         * The smaller child of the top is the runner-up: if the top is still
+         * before it, the sift down stops there.
+         */
+        siftDown(top, getKey(top), fSequences[0]);
+    }
+
+    /**
+     * Remove the top reader, if any. The reader is not closed.
+     */
+    @SuppressWarnings("resource")
+    public void removeTop() {
+        if (fSize == 0) {
+            return;
+        }
+        int last = --fSize;
+        CTFStreamInputReader lastReader = fReaders[last];
+        long lastKey = fKeys[last];
+        long lastSequence = fSequences[last];
+        fReaders[last] = null;
+        if (last > 0) {
+            siftDown(lastReader, lastKey, lastSequence);
+        }
+    }
+
+    /**
+     * Get the number of readers in the heap
+     *
+     * @return the number of readers
+     */
+    public int size() {
+        return fSize;
+    }
+
+    /**
+     * Remove all the readers
+     */
+    public void clear() {
+        Arrays.fill(fReaders, 0, fSize, null);
+        fSize = 0;
+        fNextSequence = 0;
+    }
+
+    /**
+     * Get the readers of the heap, in no particular order
+     *
+     * @return a copy of the list of readers
+     */
+    @SuppressWarnings("resource")
+    public List<@NonNull CTFStreamInputReader> getReaders() {
+        List<@NonNull CTFStreamInputReader> readers = new ArrayList<>(fSize);
+        for (int i = 0; i < fSize; i++) {
+            CTFStreamInputReader reader = fReaders[i];
+            if (reader != null) {
+                readers.add(reader);
+            }
+        }
+        return readers;
+    }
+
+    private void siftDown(CTFStreamInputReader reader, long key, long sequence) {
+        int index = 0;
+        int child = getSmallerChild(index);
+        while (child >= 0 && isBefore(fKeys[child], fSequences[child], key, sequence)) {
+            set(index, fReaders[child], fKeys[child], fSequences[child]);
+            index = child;
+            child = getSmallerChild(index);
+        }
+        set(index, reader, key, sequence);
+    }
+
+    private int getSmallerChild(int index) {
+        int left = 2 * index + 1;
+        if (left >= fSize) {
+            return -1;
+        }
+        int right = left + 1;
+        if (right < fSize && isBefore(fKeys[right], fSequences[right], fKeys[left], fSequences[left])) {
+            return right;
+        }
+        return left;
+    }
+
+    private void set(int index, CTFStreamInputReader reader, long key, long sequence) {
+        fReaders[index] = reader;
+        fKeys[index] = key;
+        fSequences[index] = sequence;
+    }
+
+    private static boolean isBefore(long key, long sequence, long otherKey, long otherSequence) {
+        return key < otherKey || (key == otherKey && sequence < otherSequence);
+    }
+
+    private static long getKey(CTFStreamInputReader reader) {
+        IEventDefinition event = reader.getCurrentEvent();
+        if (event == null) {
+            return NO_EVENT_KEY;
+        }
+        return event.getTimestamp() ^ Long.MIN_VALUE;
+    }
+}
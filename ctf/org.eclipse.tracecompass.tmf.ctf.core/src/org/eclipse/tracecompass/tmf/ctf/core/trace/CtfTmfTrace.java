@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2012, 2015 Ericsson, École Polytechnique de Montréal
+ * Copyright (c) 2012, 2016 Ericsson, École Polytechnique de Montréal
  *
  * All rights reserved. This program and the accompanying materials are made
  * available under the terms of the Eclipse Public License v1.0 which
@@ -16,6 +16,7 @@ package org.eclipse.tracecompass.tmf.ctf.core.trace;
 
 import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 
+import java.io.File;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -29,9 +30,12 @@ import java.util.Set;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.ctf.core.CTFException;
 import org.eclipse.tracecompass.ctf.core.event.CTFClock;
 import org.eclipse.tracecompass.ctf.core.event.IEventDeclaration;
@@ -54,6 +58,7 @@ import org.eclipse.tracecompass.tmf.core.timestamp.TmfTimestamp;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfContext;
 import org.eclipse.tracecompass.tmf.core.trace.ITmfTraceWithPreDefinedEvents;
 import org.eclipse.tracecompass.tmf.core.trace.TmfTrace;
+import org.eclipse.tracecompass.tmf.core.trace.TmfTraceManager;
 import org.eclipse.tracecompass.tmf.core.trace.TraceValidationStatus;
 import org.eclipse.tracecompass.tmf.core.trace.indexer.ITmfPersistentlyIndexable;
 import org.eclipse.tracecompass.tmf.core.trace.indexer.ITmfTraceIndexer;
@@ -118,6 +123,8 @@ public class CtfTmfTrace extends TmfTrace
     private static final String CLOCK_HOST_PROPERTY = "uuid"; //$NON-NLS-1$
     private static final int CONFIDENCE = 10;
     private static final int MIN_CONFIDENCE = 1;
+    private static final String PACKET_INDEX_FILE_NAME = "packet_index.idx"; //$NON-NLS-1$
+    private static final int MAX_PACKET_INDEXING_THREADS = 8;
 
     // -------------------------------------------
     // Fields
@@ -133,6 +140,9 @@ public class CtfTmfTrace extends TmfTrace
     /** Reference to the CTF Trace */
     private CTFTrace fTrace;
 
+    /** The job indexing the packets of the stream files, if any */
+    private @Nullable Job fPacketIndexingJob;
+
     // -------------------------------------------
     // Constructor
     // -------------------------------------------
@@ -187,6 +197,8 @@ public class CtfTmfTrace extends TmfTrace
 
         try {
             this.fTrace = new CTFTrace(path);
+            loadPacketIndex(fTrace);
+            startPacketIndexing(fTrace);
             CtfTmfContext ctx;
             /* Set the start and (current) end times for this trace */
             ctx = (CtfTmfContext) seekEvent(0L);
@@ -239,12 +251,55 @@ public class CtfTmfTrace extends TmfTrace
     @Override
     public synchronized void dispose() {
         fIteratorManager.dispose();
+        Job job = fPacketIndexingJob;
+        if (job != null) {
+            job.cancel();
+            try {
+                job.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            fPacketIndexingJob = null;
+        }
         if (fTrace != null) {
+            savePacketIndex(fTrace);
             fTrace = null;
         }
         super.dispose();
     }
 
+    private File getPacketIndexFile() {
+        return new File(TmfTraceManager.getSupplementaryFileDir(this) + PACKET_INDEX_FILE_NAME);
+    }
+
+    /**
+     * Load the packet index saved in the supplementary files, so that the
+     * packet headers of the unchanged stream files are not read again.
+     */
+    private void loadPacketIndex(CTFTrace trace) {
+        try {
+            trace.loadPacketIndex(getPacketIndexFile());
+        } catch (CTFException e) {
+            Activator.getDefault().logWarning(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Save the packets indexed so far in the supplementary files
+     */
+    private void savePacketIndex(CTFTrace trace) {
+        File indexFile = getPacketIndexFile();
+        File directory = indexFile.getParentFile();
+        if (directory == null || !(directory.isDirectory() || directory.mkdirs())) {
+            return;
+        }
+        try {
+            trace.savePacketIndex(indexFile);
+        } catch (CTFException e) {
+            Activator.getDefault().logWarning(e.getMessage(), e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      * <p>
@@ -522,6 +577,66 @@ public class CtfTmfTrace extends TmfTrace
         return event;
     }
 
+    /**
+     * Get the number of threads that index the packets of all the stream
+     * files in a background job, once the trace is opened, ahead of the
+     * readers. By default, it is {@link #getDefaultPacketIndexingThreads()}.
+     * Sub-classes can return 0 to only index the packets as the trace is
+     * read.
+     *
+     * @return the number of threads, or 0 to index the packets while reading
+     *         the trace
+     * @since 2.0
+     */
+    protected int getPacketIndexingThreads() {
+        return getDefaultPacketIndexingThreads();
+    }
+
+    /**
+     * Get a number of packet indexing threads suited to the processors of
+     * this machine, up to 8. It is 0, indexing the packets while reading the
+     * trace, when there is a single processor.
+     *
+     * @return the number of threads
+     * @since 2.0
+     */
+    protected static int getDefaultPacketIndexingThreads() {
+        int nbProcessors = Runtime.getRuntime().availableProcessors();
+        if (nbProcessors <= 1) {
+            return 0;
+        }
+        return Math.min(nbProcessors, MAX_PACKET_INDEXING_THREADS);
+    }
+
+    /**
+     * Index the packets of the stream files in a job, if enabled. The readers
+     * index the packets they need while the job runs. If the job is
+     * cancelled or fails, for example on the last packet of a stream file
+     * that is still being written, the rest of the packets are indexed as the
+     * trace is read, as when the job is disabled.
+     */
+    private void startPacketIndexing(CTFTrace trace) {
+        int nbThreads = getPacketIndexingThreads();
+        if (nbThreads <= 0) {
+            return;
+        }
+        Job job = new Job("Indexing packets of " + getName()) { //$NON-NLS-1$
+            @Override
+            protected IStatus run(IProgressMonitor monitor) {
+                try {
+                    if (!trace.indexPackets(nbThreads, monitor)) {
+                        return Status.CANCEL_STATUS;
+                    }
+                } catch (CTFException e) {
+                    Activator.getDefault().logWarning(e.getMessage(), e);
+                }
+                return Status.OK_STATUS;
+            }
+        };
+        fPacketIndexingJob = job;
+        job.schedule();
+    }
+
     /**
      * Sets the cache size for a CtfTmfTrace.
      */
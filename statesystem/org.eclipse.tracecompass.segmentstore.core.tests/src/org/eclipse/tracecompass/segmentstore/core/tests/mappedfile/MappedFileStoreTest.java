@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.tests.mappedfile;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.segmentstore.core.BasicSegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.SegmentComparators;
+import org.eclipse.tracecompass.segmentstore.core.mappedfile.ISegmentSerializer;
+import org.eclipse.tracecompass.segmentstore.core.mappedfile.MappedFileStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for the MappedFileStore
+ */
+public class MappedFileStoreTest {
+
+    private static final int NB_SEGMENTS = 10000;
+
+    private Path fFile;
+    private final List<MappedFileStore<@NonNull NamedSegment>> fStores = new ArrayList<>();
+
+    /**
+     * Segment with some data to serialize
+     */
+    private static class NamedSegment extends BasicSegment {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String fName;
+
+        public NamedSegment(long start, long end, String name) {
+            super(start, end);
+            fName = name;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof NamedSegment)) {
+                return false;
+            }
+            NamedSegment other = (NamedSegment) obj;
+            return getStart() == other.getStart() && getEnd() == other.getEnd() && fName.equals(other.fName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(getStart(), getEnd(), fName);
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + ' ' + fName;
+        }
+    }
+
+    private static final @NonNull ISegmentSerializer<@NonNull NamedSegment> SERIALIZER = new ISegmentSerializer<@NonNull NamedSegment>() {
+
+        @Override
+        public int getSerializedSize(@NonNull NamedSegment segment) {
+            return 4 + segment.fName.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        @Override
+        public void writeSegment(@NonNull NamedSegment segment, ByteBuffer buffer) {
+            byte[] name = segment.fName.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(name.length);
+            buffer.put(name);
+        }
+
+        @Override
+        public @NonNull NamedSegment readSegment(long start, long end, ByteBuffer buffer) {
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            return new NamedSegment(start, end, new String(name, StandardCharsets.UTF_8));
+        }
+    };
+
+    /**
+     * Create the file name
+     *
+     * @throws IOException
+     *             If the temporary file cannot be created
+     */
+    @Before
+    public void setup() throws IOException {
+        fFile = Files.createTempFile("segments", ".dat");
+    }
+
+    /**
+     * Dispose of the stores and delete the file
+     *
+     * @throws IOException
+     *             If the file cannot be deleted
+     */
+    @After
+    public void teardown() throws IOException {
+        for (MappedFileStore<@NonNull NamedSegment> store : fStores) {
+            store.dispose();
+        }
+        Files.deleteIfExists(fFile);
+    }
+
+    private MappedFileStore<@NonNull NamedSegment> create() throws IOException {
+        MappedFileStore<@NonNull NamedSegment> store = MappedFileStore.create(checkNotNull(fFile), SERIALIZER);
+        fStores.add(store);
+        return store;
+    }
+
+    private MappedFileStore<@NonNull NamedSegment> open() throws IOException {
+        MappedFileStore<@NonNull NamedSegment> store = MappedFileStore.open(checkNotNull(fFile), SERIALIZER);
+        fStores.add(store);
+        return store;
+    }
+
+    /*
+     * Segments ending in order, like the segments of a latency analysis, with
+     * a few long ones
+     */
+    private static List<@NonNull NamedSegment> generate() {
+        Random random = new Random(42);
+        List<@NonNull NamedSegment> segments = new ArrayList<>();
+        for (int i = 0; i < NB_SEGMENTS; i++) {
+            long end = i * 10L;
+            long length = (i % 500 == 0 ? random.nextInt(20000) : random.nextInt(100));
+            segments.add(new NamedSegment(end - length, end, "segment" + i % 37));
+        }
+        return segments;
+    }
+
+    private static void assertQueries(List<@NonNull NamedSegment> segments, MappedFileStore<@NonNull NamedSegment> store) {
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            long start = random.nextInt(NB_SEGMENTS * 10 + 2000) - 1000;
+            long end = start + (i % 2 == 0 ? 0 : random.nextInt(500));
+            List<NamedSegment> expected = new ArrayList<>();
+            for (NamedSegment segment : segments) {
+                if (segment.getStart() <= end && segment.getEnd() >= start) {
+                    expected.add(segment);
+                }
+            }
+            List<@NonNull NamedSegment> actual = Lists.newArrayList(store.getIntersectingElements(start, end));
+            assertEquals(expected.size(), actual.size());
+            assertTrue(actual.containsAll(expected));
+            assertSorted(actual);
+        }
+    }
+
+    private static void assertSorted(List<@NonNull NamedSegment> segments) {
+        for (int i = 1; i < segments.size(); i++) {
+            assertTrue(SegmentComparators.INTERVAL_START_COMPARATOR.compare(segments.get(i - 1), segments.get(i)) <= 0);
+        }
+    }
+
+    /**
+     * Test the queries and the iteration while the store is being filled,
+     * with segments both in the file and in memory
+     *
+     * @throws IOException
+     *             If the file cannot be accessed
+     */
+    @Test
+    public void testBuilding() throws IOException {
+        MappedFileStore<@NonNull NamedSegment> store = create();
+        List<@NonNull NamedSegment> segments = generate();
+        List<@NonNull NamedSegment> added = segments.subList(0, NB_SEGMENTS / 2 + 17);
+        store.addAll(added);
+        assertEquals(added.size(), store.size());
+        assertQueries(added, store);
+
+        List<@NonNull NamedSegment> iterated = Lists.newArrayList(store);
+        assertEquals(added.size(), iterated.size());
+        assertSorted(iterated);
+        assertTrue(iterated.containsAll(added));
+    }
+
+    /**
+     * Test queries between additions, while the blocks are added to the
+     * mapped regions already read
+     *
+     * @throws IOException
+     *             If the file cannot be accessed
+     */
+    @Test
+    public void testQueriesWhileAdding() throws IOException {
+        MappedFileStore<@NonNull NamedSegment> store = create();
+        List<@NonNull NamedSegment> segments = generate();
+        for (int i = 0; i < NB_SEGMENTS; i += 1500) {
+            List<@NonNull NamedSegment> added = segments.subList(0, Math.min(i + 1500, NB_SEGMENTS));
+            store.addAll(segments.subList(i, added.size()));
+            assertQueries(added, store);
+        }
+        assertEquals(NB_SEGMENTS, Iterables.size(store));
+    }
+
+    /**
+     * Test that disposing a store releases its file, which can then be
+     * overwritten, and that its iterators cannot be used anymore
+     *
+     * @throws IOException
+     *             If the file cannot be accessed
+     */
+    @Test
+    public void testDispose() throws IOException {
+        MappedFileStore<@NonNull NamedSegment> store = create();
+        List<@NonNull NamedSegment> segments = generate();
+        store.addAll(segments);
+        store.finish();
+        assertQueries(segments, store);
+        Iterator<@NonNull NamedSegment> iterator = store.iterator();
+        assertTrue(iterator.hasNext());
+        iterator.next();
+        store.dispose();
+        assertTrue(store.isEmpty());
+
+        /* Overwrite the file the disposed store was mapping */
+        MappedFileStore<@NonNull NamedSegment> newStore = create();
+        newStore.add(new NamedSegment(1, 2, "a"));
+        newStore.finish();
+        assertEquals(1, Iterables.size(newStore));
+        try {
+            iterator.next();
+            fail();
+        } catch (IllegalStateException e) {
+            /* Expected */
+        }
+    }
+
+    /**
+     * Test that a serializer adapted to a type of segment rejects the other
+     * segments
+     */
+    @Test
+    public void testSerializerForType() {
+        ISegmentSerializer<@NonNull ISegment> serializer = ISegmentSerializer.forType(NamedSegment.class, SERIALIZER);
+        NamedSegment segment = new NamedSegment(1, 2, "a");
+        assertEquals(SERIALIZER.getSerializedSize(segment), serializer.getSerializedSize(segment));
+        try {
+            serializer.getSerializedSize(new BasicSegment(1, 2));
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* Expected */
+        }
+    }
+
+    /**
+     * Test that a finished file is reopened with the same content
+     *
+     * @throws IOException
+     *             If the file cannot be accessed
+     */
+    @Test
+    public void testReopen() throws IOException {
+        MappedFileStore<@NonNull NamedSegment> store = create();
+        List<@NonNull NamedSegment> segments = generate();
+        Collections.shuffle(segments, new Random(3));
+        store.addAll(segments);
+        store.finish();
+        assertQueries(segments, store);
+        List<@NonNull NamedSegment> iterated = Lists.newArrayList(store);
+        store.dispose();
+        assertTrue(Files.exists(fFile));
+
+        MappedFileStore<@NonNull NamedSegment> reopened = open();
+        assertEquals(NB_SEGMENTS, reopened.size());
+        assertQueries(segments, reopened);
+        assertEquals(iterated, Lists.newArrayList(reopened));
+        assertTrue(reopened.contains(segments.get(1234)));
+        assertFalse(reopened.contains(new NamedSegment(12, 34, "other")));
+        assertEquals(NB_SEGMENTS, reopened.toArray().length);
+    }
+
+    /**
+     * Test an empty store
+     *
+     * @throws IOException
+     *             If the file cannot be accessed
+     */
+    @Test
+    public void testEmpty() throws IOException {
+        create().finish();
+        MappedFileStore<@NonNull NamedSegment> store = open();
+        assertTrue(store.isEmpty());
+        assertEquals(0, Iterables.size(store));
+        assertEquals(0, Iterables.size(store.getIntersectingElements(0, Long.MAX_VALUE)));
+    }
+
+    /**
+     * Test that no segment can be added once the store is finished
+     *
+     * @throws IOException
+     *             If the file cannot be accessed
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterFinish() throws IOException {
+        MappedFileStore<@NonNull NamedSegment> store = create();
+        store.add(new NamedSegment(1, 2, "a"));
+        store.finish();
+        store.add(new NamedSegment(3, 4, "b"));
+    }
+
+    /**
+     * Test that a file that was not finished cannot be opened, and is deleted
+     * when its store is disposed
+     *
+     * @throws IOException
+     *             If the file cannot be accessed
+     */
+    @Test
+    public void testUnfinished() throws IOException {
+        MappedFileStore<@NonNull NamedSegment> store = create();
+        store.addAll(generate());
+        try {
+            open();
+            fail();
+        } catch (IOException e) {
+            /* Expected */
+        }
+        store.dispose();
+        assertFalse(Files.exists(fFile));
+    }
+
+    /**
+     * Test that a file of another format is refused
+     *
+     * @throws IOException
+     *             If the file cannot be accessed
+     */
+    @Test(expected = IOException.class)
+    public void testInvalidFile() throws IOException {
+        Files.write(fFile, new byte[100]);
+        open();
+    }
+}
@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.tests.sortedarray;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.segmentstore.core.BasicSegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.sortedarray.SortedArrayStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Unit tests for the SortedArrayStore
+ */
+public class SortedArrayStoreTest {
+
+    private SortedArrayStore<@NonNull ISegment> fSegmentStore;
+
+    private static final @NonNull ISegment SEGMENT_2_6 = new BasicSegment(2, 6);
+    private static final @NonNull ISegment SEGMENT_4_6 = new BasicSegment(4, 6);
+    private static final @NonNull ISegment SEGMENT_4_8 = new BasicSegment(4, 8);
+    private static final @NonNull ISegment SEGMENT_6_8 = new BasicSegment(6, 8);
+    private static final @NonNull ISegment SEGMENT_10_14 = new BasicSegment(10, 14);
+
+    private static final List<@NonNull ISegment> SEGMENTS = ImmutableList.of(SEGMENT_2_6, SEGMENT_4_6, SEGMENT_4_8, SEGMENT_6_8, SEGMENT_10_14);
+    private static final @NonNull List<@NonNull ISegment> REVERSE_SEGMENTS = checkNotNull(Lists.reverse(SEGMENTS));
+
+    /**
+     * Initialize data (test vector) that will be tested
+     */
+    @Before
+    public void setup() {
+        fSegmentStore = new SortedArrayStore<>();
+        for (ISegment segment : SEGMENTS) {
+            fSegmentStore.add(checkNotNull(segment));
+        }
+    }
+
+    /**
+     * Dispose of the segment store
+     */
+    @After
+    public void teardown() {
+        fSegmentStore.dispose();
+    }
+
+    /**
+     * Testing method size()
+     */
+    @Test
+    public void testSize() {
+        assertEquals(SEGMENTS.size(), fSegmentStore.size());
+    }
+
+    /**
+     * Test the contains() method.
+     */
+    @Test
+    public void testContains() {
+        ISegment otherSegment = new BasicSegment(0, 20);
+
+        assertTrue(fSegmentStore.contains(SEGMENT_2_6));
+        assertTrue(fSegmentStore.contains(SEGMENT_4_8));
+        assertTrue(fSegmentStore.containsAll(SEGMENTS));
+        assertFalse(fSegmentStore.contains(otherSegment));
+        assertFalse(fSegmentStore.contains(new BasicSegment(4, 6)));
+    }
+
+    /**
+     * Test the toArray() method.
+     */
+    @Test
+    public void testToObjectArray() {
+        Object[] array = fSegmentStore.toArray();
+
+        assertEquals(SEGMENTS.size(), array.length);
+        assertTrue(Arrays.asList(array).containsAll(SEGMENTS));
+    }
+
+    /**
+     * Test the toArray(T[]) method with a subtype of ISegment.
+     */
+    @Test
+    public void testToSpecifyArraySubtype() {
+        SortedArrayStore<@NonNull BasicSegment> store = new SortedArrayStore<>();
+        BasicSegment otherSegment = new BasicSegment(2, 6);
+        store.add(otherSegment);
+        BasicSegment[] array = store.toArray(new BasicSegment[0]);
+
+        assertEquals(1, array.length);
+        assertTrue(Arrays.asList(array).contains(otherSegment));
+
+        store.dispose();
+    }
+
+    /**
+     * Unlike the TreeMapStore, segments with the same times are all kept
+     */
+    @Test
+    public void testDuplicateElements() {
+        for (ISegment segment : SEGMENTS) {
+            assertTrue(fSegmentStore.add(new BasicSegment(segment.getStart(), segment.getEnd())));
+        }
+        assertEquals(2 * SEGMENTS.size(), fSegmentStore.size());
+        assertEquals(2, Iterables.size(fSegmentStore.getIntersectingElements(11)));
+    }
+
+    /**
+     * Test the iteration order when the elements are not inserted in sorted
+     * order, and when elements are added after a query.
+     */
+    @Test
+    public void testIterationOrderNonSortedInsertion() {
+        SortedArrayStore<@NonNull ISegment> store = new SortedArrayStore<>();
+        for (ISegment segment : REVERSE_SEGMENTS.subList(0, 2)) {
+            store.add(checkNotNull(segment));
+        }
+        assertEquals(REVERSE_SEGMENTS.subList(0, 2), Lists.reverse(Lists.newArrayList(store)));
+
+        for (ISegment segment : REVERSE_SEGMENTS.subList(2, SEGMENTS.size())) {
+            store.add(checkNotNull(segment));
+        }
+        assertEquals(SEGMENTS, Lists.newArrayList(store));
+
+        store.dispose();
+    }
+
+    /**
+     * Test the bulk loading constructor
+     */
+    @Test
+    public void testBulkLoad() {
+        SortedArrayStore<@NonNull ISegment> store = new SortedArrayStore<>(REVERSE_SEGMENTS);
+        assertEquals(SEGMENTS.size(), store.size());
+        assertEquals(SEGMENTS, Lists.newArrayList(store));
+        assertEquals(ImmutableList.of(SEGMENT_4_8, SEGMENT_6_8), Lists.newArrayList(store.getIntersectingElements(7, 9)));
+        store.dispose();
+    }
+
+    /**
+     * Testing method getIntersectingElements(long start, long end)
+     */
+    @Test
+    public void testGetIntersectingElementsRange() {
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(16, 20)));
+        assertEquals(5, Iterables.size(fSegmentStore.getIntersectingElements(1, 15)));
+        assertEquals(5, Iterables.size(fSegmentStore.getIntersectingElements(2, 14)));
+        assertEquals(SEGMENT_10_14, Iterables.getOnlyElement(fSegmentStore.getIntersectingElements(11, 13)));
+        assertEquals(SEGMENT_10_14, Iterables.getOnlyElement(fSegmentStore.getIntersectingElements(10, 14)));
+        assertEquals(SEGMENT_10_14, Iterables.getOnlyElement(fSegmentStore.getIntersectingElements(14, 18)));
+        assertEquals(SEGMENT_2_6, Iterables.getOnlyElement(fSegmentStore.getIntersectingElements(1, 2)));
+    }
+
+    /**
+     * Testing method getIntersectingElements(long position)
+     */
+    @Test
+    public void testGetIntersectingElementsTime() {
+        assertEquals(SEGMENT_2_6, Iterables.getOnlyElement(fSegmentStore.getIntersectingElements(3)));
+        assertEquals(SEGMENT_2_6, Iterables.getOnlyElement(fSegmentStore.getIntersectingElements(2)));
+        assertEquals(SEGMENT_10_14, Iterables.getOnlyElement(fSegmentStore.getIntersectingElements(14)));
+        assertEquals(ImmutableList.of(SEGMENT_2_6, SEGMENT_4_6, SEGMENT_4_8, SEGMENT_6_8),
+                Lists.newArrayList(fSegmentStore.getIntersectingElements(6)));
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(9)));
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(1)));
+        assertEquals(0, Iterables.size(fSegmentStore.getIntersectingElements(15)));
+    }
+
+    /**
+     * Compare the intersection queries on many random segments, spanning
+     * several blocks of the index, with a linear search
+     */
+    @Test
+    public void testGetIntersectingElementsRandom() {
+        Random random = new Random(42);
+        List<@NonNull ISegment> segments = new ArrayList<>();
+        SortedArrayStore<@NonNull ISegment> store = new SortedArrayStore<>();
+        for (int i = 0; i < 5000; i++) {
+            long start = random.nextInt(100000);
+            /* Mostly short segments, with a few long ones */
+            long length = (i % 100 == 0 ? random.nextInt(50000) : random.nextInt(100));
+            ISegment segment = new BasicSegment(start, start + length);
+            segments.add(segment);
+            store.add(segment);
+        }
+        assertEquals(segments.size(), store.size());
+
+        for (int i = 0; i < 200; i++) {
+            long start = random.nextInt(110000) - 5000;
+            long end = start + (i % 2 == 0 ? 0 : random.nextInt(2000));
+            List<ISegment> expected = new ArrayList<>();
+            for (ISegment segment : segments) {
+                if (segment.getStart() <= end && segment.getEnd() >= start) {
+                    expected.add(segment);
+                }
+            }
+            List<ISegment> actual = Lists.newArrayList(store.getIntersectingElements(start, end));
+            assertEquals(expected.size(), actual.size());
+            assertTrue(actual.containsAll(expected));
+        }
+        store.dispose();
+    }
+
+    /**
+     * Test queries between additions, when the recently added segments are
+     * not merged in the main array yet, and after they are merged
+     */
+    @Test
+    public void testQueriesBetweenAdditions() {
+        Random random = new Random(7);
+        List<@NonNull ISegment> segments = new ArrayList<>();
+        SortedArrayStore<@NonNull ISegment> store = new SortedArrayStore<>();
+        Comparator<ISegment> order = Comparator.comparingLong(ISegment::getStart)
+                .thenComparingLong(ISegment::getEnd);
+        for (int i = 0; i < 3000; i++) {
+            long start = random.nextInt(10000);
+            ISegment segment = new BasicSegment(start, start + random.nextInt(200));
+            segments.add(segment);
+            store.add(segment);
+            assertTrue(store.contains(segment));
+
+            long time = random.nextInt(10200);
+            List<ISegment> expected = new ArrayList<>();
+            for (ISegment candidate : segments) {
+                if (candidate.getStart() <= time && candidate.getEnd() >= time) {
+                    expected.add(candidate);
+                }
+            }
+            List<ISegment> actual = Lists.newArrayList(store.getIntersectingElements(time));
+            assertEquals(expected.size(), actual.size());
+            assertTrue(actual.containsAll(expected));
+            /* The results of the main and recent segments are merged in order */
+            for (int j = 1; j < actual.size(); j++) {
+                assertTrue(order.compare(actual.get(j - 1), actual.get(j)) <= 0);
+            }
+        }
+
+        List<ISegment> sorted = new ArrayList<>(segments);
+        sorted.sort(order);
+        List<ISegment> iterated = Lists.newArrayList(store);
+        assertEquals(sorted.size(), iterated.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(0, order.compare(sorted.get(i), iterated.get(i)));
+        }
+        store.dispose();
+    }
+
+    /**
+     * Test the dispose() method
+     */
+    @Test
+    public void testDispose() {
+        SortedArrayStore<@NonNull ISegment> store = new SortedArrayStore<>();
+        store.add(SEGMENT_2_6);
+        store.dispose();
+        assertEquals(0, store.size());
+        assertEquals(0, Iterables.size(store.getIntersectingElements(3)));
+    }
+}
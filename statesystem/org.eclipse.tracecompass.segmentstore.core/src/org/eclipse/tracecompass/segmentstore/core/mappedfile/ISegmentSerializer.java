@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.mappedfile;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+
+/**
+ * Writes segments to, and reads them from, the file of a
+ * {@link MappedFileStore}. The store itself saves the start and end of each
+ * segment, the serializer only handles the rest of its data.
+ *
+ * @param <E>
+ *            The type of segment
+ * @since 1.1
+ */
+public interface ISegmentSerializer<E extends ISegment> {
+
+    /**
+     * Get the number of bytes {@link #writeSegment} will write for a segment
+     *
+     * @param segment
+     *            The segment
+     * @return The size in bytes
+     */
+    int getSerializedSize(E segment);
+
+    /**
+     * Write the data of a segment, other than its start and end
+     *
+     * @param segment
+     *            The segment to write
+     * @param buffer
+     *            The buffer to write to, at its current position. It has at
+     *            least {@link #getSerializedSize} bytes remaining.
+     */
+    void writeSegment(E segment, ByteBuffer buffer);
+
+    /**
+     * Read a segment written by {@link #writeSegment}
+     *
+     * @param start
+     *            The start of the segment
+     * @param end
+     *            The end of the segment
+     * @param buffer
+     *            The buffer to read from, at its current position
+     * @return The segment
+     */
+    E readSegment(long start, long end, ByteBuffer buffer);
+
+    /**
+     * Adapt a serializer of a specific type of segment to a store of generic
+     * segments, for example the store of an analysis which only adds segments
+     * of that type.
+     *
+     * @param type
+     *            The class of the segments handled by the serializer
+     * @param serializer
+     *            The serializer of these segments
+     * @return A serializer which throws an {@link IllegalArgumentException}
+     *         when asked to write a segment which is not of this type
+     */
+    static <E extends ISegment> ISegmentSerializer<ISegment> forType(Class<E> type, ISegmentSerializer<E> serializer) {
+        return new ISegmentSerializer<ISegment>() {
+
+            private E checkType(ISegment segment) {
+                if (!type.isInstance(segment)) {
+                    throw new IllegalArgumentException("Unexpected segment type " + segment.getClass().getName() + ", expected " + type.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+                return checkNotNull(type.cast(segment));
+            }
+
+            @Override
+            public int getSerializedSize(ISegment segment) {
+                return serializer.getSerializedSize(checkType(segment));
+            }
+
+            @Override
+            public void writeSegment(ISegment segment, ByteBuffer buffer) {
+                serializer.writeSegment(checkType(segment), buffer);
+            }
+
+            @Override
+            public ISegment readSegment(long start, long end, ByteBuffer buffer) {
+                return serializer.readSegment(start, end, buffer);
+            }
+        };
+    }
+}
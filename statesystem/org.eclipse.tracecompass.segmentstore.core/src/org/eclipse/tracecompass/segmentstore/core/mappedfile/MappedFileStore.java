@@ -0,0 +1,827 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.mappedfile;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.common.core.BufferUtils;
+import org.eclipse.tracecompass.internal.segmentstore.core.Activator;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Implementation of a {@link ISegmentStore} that keeps the segments in a
+ * file, and reads them back through memory mappings of that file. Only the
+ * segments of the block being filled and a small index of the file are kept
+ * in memory.
+ *
+ * Segments are appended to an in-memory block. When it is full, the block is
+ * sorted and written at the end of the file, with a sparse index of its start
+ * and end times. Since segments are usually added in time order, the blocks
+ * cover mostly consecutive time ranges and queries only read the few blocks,
+ * and the few groups of segments in these blocks, that intersect the queried
+ * range.
+ *
+ * Once all the segments are added, {@link #finish()} writes the remaining
+ * segments and the index of the blocks at the end of the file. A finished
+ * file can be reopened with {@link #open}, which only reads the header and the
+ * index. A file that was not finished is deleted when the store is disposed.
+ * Disposing the store also releases its mappings of the file, so the file can
+ * be deleted or overwritten afterwards. Iterators of a disposed store throw an
+ * {@link IllegalStateException}.
+ *
+ * The iteration order, as well as the order of the query results, is by
+ * ascending order of start times, then of end times, then by the segments'
+ * natural ordering ({@link ISegment#compareTo}). Since the segments are read
+ * back from the file, they are new objects and {@link #contains} relies on
+ * their equals() method. Duplicate segments are all kept. Removal operations
+ * are not supported.
+ *
+ * @param <E>
+ *            The type of segment held in this store
+ * @since 1.1
+ */
+public class MappedFileStore<@NonNull E extends ISegment> implements ISegmentStore<E> {
+
+    private static final int MAGIC_NUMBER = 0x5E65F11E;
+    private static final int FILE_VERSION = 1;
+
+    /* Magic number, version, finished flag, unused, nb of segments, index position */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+    /* Position, size, number of segments, minimum start, maximum end */
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 4 + 8 + 8;
+
+    private static final int BLOCK_CAPACITY = 4096;
+    /* Number of segments summarized by each entry of a block's sparse index */
+    private static final int GROUP_SIZE = 64;
+    /* Number of segments and of groups of a block */
+    private static final int BLOCK_HEADER_SIZE = 4 + 4;
+    /* Start of the group's first segment, maximum end, position in the block */
+    private static final int GROUP_ENTRY_SIZE = 8 + 8 + 4;
+    /* Start, end, size of the serialized data */
+    private static final int RECORD_HEADER_SIZE = 8 + 8 + 4;
+
+    private static final long MAX_MAPPING_SIZE = 1L << 30;
+
+    /* By start time, then by end time, then by natural ordering */
+    private static final Comparator<ISegment> COMPARATOR = (a, b) -> {
+        int result = Long.compare(a.getStart(), b.getStart());
+        if (result == 0) {
+            result = Long.compare(a.getEnd(), b.getEnd());
+        }
+        return (result != 0 ? result : a.compareTo(b));
+    };
+
+    private final Path fPath;
+    private final ISegmentSerializer<E> fSerializer;
+    private final FileChannel fChannel;
+    private final ReadWriteLock fLock = new ReentrantReadWriteLock(false);
+
+    /* Blocks written to the file, in file order */
+    private final List<Block> fBlocks = new ArrayList<>();
+    private final List<Mapping> fMappings = new ArrayList<>();
+    private long fFileEnd = HEADER_SIZE;
+
+    /* Segments not written to the file yet */
+    private List<E> fOpenBlock = new ArrayList<>();
+
+    private boolean fFinished;
+    private boolean fDisposed = false;
+    private volatile long fSize = 0;
+
+    /**
+     * A mapped region of the file, containing consecutive blocks. The region
+     * is mapped by the readers, with the read lock of the store, and is only
+     * released with the write lock, when a block is added to it or when the
+     * store is disposed. The buffers obtained from it must not be used once
+     * the read lock is released.
+     */
+    private static final class Mapping {
+
+        private final long fPosition;
+        private long fEnd;
+        private @Nullable MappedByteBuffer fBuffer = null;
+
+        public Mapping(long position) {
+            fPosition = position;
+            fEnd = position;
+        }
+
+        public synchronized ByteBuffer get(FileChannel channel) throws IOException {
+            MappedByteBuffer buffer = fBuffer;
+            if (buffer == null) {
+                buffer = channel.map(MapMode.READ_ONLY, fPosition, fEnd - fPosition);
+                fBuffer = buffer;
+            }
+            return checkNotNull(buffer.duplicate());
+        }
+
+        /* Extend the region to a block added after it, must be remapped */
+        public synchronized void extend(long end) {
+            release();
+            fEnd = end;
+        }
+
+        public synchronized void release() {
+            MappedByteBuffer buffer = fBuffer;
+            if (buffer != null) {
+                BufferUtils.unmap(buffer);
+                fBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Index entry of a block of segments in the file
+     */
+    private static final class Block {
+
+        public final long fPosition;
+        public final int fByteSize;
+        public final int fNbSegments;
+        public final long fMinStart;
+        public final long fMaxEnd;
+        public final Mapping fMapping;
+
+        public Block(long position, int byteSize, int nbSegments, long minStart, long maxEnd, Mapping mapping) {
+            fPosition = position;
+            fByteSize = byteSize;
+            fNbSegments = nbSegments;
+            fMinStart = minStart;
+            fMaxEnd = maxEnd;
+            fMapping = mapping;
+        }
+    }
+
+    /* The store owns the channel of its file, disposing it closes the channel */
+    private MappedFileStore(Path path, ISegmentSerializer<E> serializer, boolean finished, OpenOption... options) throws IOException {
+        fPath = path;
+        fSerializer = serializer;
+        fChannel = FileChannel.open(path, options);
+        fFinished = finished;
+    }
+
+    /**
+     * Create a new store, in a new file. An existing file at this location is
+     * overwritten.
+     *
+     * @param path
+     *            The file in which to write the segments
+     * @param serializer
+     *            The serializer of the segments
+     * @return The new, empty store
+     * @throws IOException
+     *             If the file cannot be created
+     */
+    public static <@NonNull E extends ISegment> MappedFileStore<E> create(Path path, ISegmentSerializer<E> serializer) throws IOException {
+        MappedFileStore<E> store = new MappedFileStore<>(path, serializer, false,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            store.writeHeader();
+            return store;
+        } catch (IOException e) {
+            store.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a store from a file written and finished by a previous store. Only
+     * the header and the index of the file are read.
+     *
+     * @param path
+     *            The file of the store
+     * @param serializer
+     *            The serializer of the segments
+     * @return The store, which cannot be modified
+     * @throws IOException
+     *             If the file cannot be read, or is not a finished segment
+     *             store file
+     */
+    public static <@NonNull E extends ISegment> MappedFileStore<E> open(Path path, ISegmentSerializer<E> serializer) throws IOException {
+        MappedFileStore<E> store = new MappedFileStore<>(path, serializer, true, StandardOpenOption.READ);
+        FileChannel channel = store.fChannel;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.getInt() != MAGIC_NUMBER || header.getInt() != FILE_VERSION) {
+                throw new IOException("Not a segment store file: " + path); //$NON-NLS-1$
+            }
+            if (header.getInt() != 1) {
+                throw new IOException("Segment store file was not finished: " + path); //$NON-NLS-1$
+            }
+            header.getInt();
+            long nbSegments = header.getLong();
+            long indexPosition = header.getLong();
+            long indexSize = channel.size() - indexPosition;
+            if (indexPosition < HEADER_SIZE || indexSize < 0 || indexSize % INDEX_ENTRY_SIZE != 0 || indexSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid segment store file index: " + path); //$NON-NLS-1$
+            }
+
+            ByteBuffer index = ByteBuffer.allocate((int) indexSize);
+            readFully(channel, index, indexPosition);
+            long total = 0;
+            while (index.hasRemaining()) {
+                long position = index.getLong();
+                int byteSize = index.getInt();
+                int count = index.getInt();
+                long minStart = index.getLong();
+                long maxEnd = index.getLong();
+                if (position != store.fFileEnd || byteSize <= 0 || count <= 0 || position + byteSize > indexPosition) {
+                    throw new IOException("Invalid segment store file index: " + path); //$NON-NLS-1$
+                }
+                store.addBlock(byteSize, count, minStart, maxEnd);
+                total += count;
+            }
+            if (total != nbSegments) {
+                throw new IOException("Invalid segment store file index: " + path); //$NON-NLS-1$
+            }
+            store.fSize = nbSegments;
+            return store;
+        } catch (IOException e) {
+            store.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the segments still in memory and the index of the file. The file
+     * can then be reopened with {@link #open}, and no more segments can be
+     * added to this store. Does nothing if the store is already finished.
+     *
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    public void finish() throws IOException {
+        fLock.writeLock().lock();
+        try {
+            if (fFinished) {
+                return;
+            }
+            if (!fOpenBlock.isEmpty()) {
+                writeBlock();
+            }
+            ByteBuffer index = ByteBuffer.allocate(fBlocks.size() * INDEX_ENTRY_SIZE);
+            for (Block block : fBlocks) {
+                index.putLong(block.fPosition);
+                index.putInt(block.fByteSize);
+                index.putInt(block.fNbSegments);
+                index.putLong(block.fMinStart);
+                index.putLong(block.fMaxEnd);
+            }
+            index.flip();
+            writeFully(index, fFileEnd);
+            fFinished = true;
+            writeHeader();
+            fChannel.force(false);
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the file of this store
+     *
+     * @return The path of the file
+     */
+    public Path getPath() {
+        return fPath;
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods from Collection
+    // ------------------------------------------------------------------------
+
+    @Override
+    public Iterator<E> iterator() {
+        fLock.readLock().lock();
+        try {
+            List<Block> blocks = new ArrayList<>(fBlocks);
+            Collections.sort(blocks, (a, b) -> Long.compare(a.fMinStart, b.fMinStart));
+            List<E> openBlock = new ArrayList<>(fOpenBlock);
+            Collections.sort(openBlock, COMPARATOR);
+            return new MergeIterator(blocks, openBlock);
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean add(@Nullable E val) {
+        if (val == null) {
+            throw new IllegalArgumentException();
+        }
+
+        fLock.writeLock().lock();
+        try {
+            if (fFinished) {
+                throw new IllegalStateException("Segment store file is finished: " + fPath); //$NON-NLS-1$
+            }
+            fOpenBlock.add(val);
+            fSize++;
+            if (fOpenBlock.size() >= BLOCK_CAPACITY) {
+                writeBlock();
+            }
+            return true;
+        } catch (IOException e) {
+            throw ioError(e);
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(fSize, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (fSize == 0);
+    }
+
+    @Override
+    public boolean contains(@Nullable Object o) {
+        if (!(o instanceof ISegment)) {
+            return false;
+        }
+        ISegment segment = (ISegment) o;
+        for (E element : getIntersectingElements(segment.getStart())) {
+            if (element.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean containsAll(@Nullable Collection<?> c) {
+        if (c == null) {
+            throw new IllegalArgumentException();
+        }
+        for (Object o : c) {
+            if (!contains(o)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return Lists.newArrayList(iterator()).toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return Lists.newArrayList(iterator()).toArray(a);
+    }
+
+    @Override
+    public boolean remove(@Nullable Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(@Nullable Collection<? extends E> c) {
+        if (c == null) {
+            throw new IllegalArgumentException();
+        }
+
+        fLock.writeLock().lock();
+        try {
+            boolean changed = false;
+            for (E elem : c) {
+                if (this.add(elem)) {
+                    changed = true;
+                }
+            }
+            return changed;
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean removeAll(@Nullable Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(@Nullable Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods added by ISegmentStore
+    // ------------------------------------------------------------------------
+
+    @Override
+    public Iterable<E> getIntersectingElements(long position) {
+        return getIntersectingElements(position, position);
+    }
+
+    @Override
+    public Iterable<E> getIntersectingElements(long start, long end) {
+        List<E> result = new ArrayList<>();
+        fLock.readLock().lock();
+        try {
+            for (Block block : fBlocks) {
+                if (block.fMinStart <= end && block.fMaxEnd >= start) {
+                    readIntersecting(block, start, end, result);
+                }
+            }
+            for (E segment : fOpenBlock) {
+                if (segment.getStart() <= end && segment.getEnd() >= start) {
+                    result.add(segment);
+                }
+            }
+        } catch (IOException e) {
+            throw ioError(e);
+        } finally {
+            fLock.readLock().unlock();
+        }
+        Collections.sort(result, COMPARATOR);
+        return result;
+    }
+
+    /**
+     * Release the mappings of the file and close it. If the store was not
+     * finished, the file is incomplete and is deleted.
+     */
+    @Override
+    public void dispose() {
+        fLock.writeLock().lock();
+        try {
+            if (fDisposed) {
+                return;
+            }
+            fDisposed = true;
+            for (Mapping mapping : fMappings) {
+                mapping.release();
+            }
+            fMappings.clear();
+            fChannel.close();
+            if (!fFinished) {
+                Files.deleteIfExists(fPath);
+            }
+        } catch (IOException e) {
+            Activator.instance().logError("Error closing segment store file " + fPath, e); //$NON-NLS-1$
+        } finally {
+            fBlocks.clear();
+            fOpenBlock = new ArrayList<>();
+            fSize = 0;
+            fLock.writeLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // File access
+    // ------------------------------------------------------------------------
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC_NUMBER);
+        header.putInt(FILE_VERSION);
+        header.putInt(fFinished ? 1 : 0);
+        header.putInt(0);
+        header.putLong(fSize);
+        header.putLong(fFileEnd);
+        header.flip();
+        writeFully(header, 0);
+    }
+
+    /**
+     * Sort the open block and write it at the end of the file. Must be called
+     * with the write lock.
+     */
+    private void writeBlock() throws IOException {
+        List<E> segments = fOpenBlock;
+        Collections.sort(segments, COMPARATOR);
+        int nbSegments = segments.size();
+        int nbGroups = (nbSegments + GROUP_SIZE - 1) / GROUP_SIZE;
+
+        int[] sizes = new int[nbSegments];
+        long byteSize = BLOCK_HEADER_SIZE + (long) nbGroups * GROUP_ENTRY_SIZE;
+        for (int i = 0; i < nbSegments; i++) {
+            sizes[i] = fSerializer.getSerializedSize(segments.get(i));
+            byteSize += RECORD_HEADER_SIZE + sizes[i];
+        }
+        if (byteSize > Integer.MAX_VALUE) {
+            throw new IOException("Segments too big to be written: " + byteSize); //$NON-NLS-1$
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) byteSize);
+        buffer.putInt(nbSegments);
+        buffer.putInt(nbGroups);
+        buffer.position(BLOCK_HEADER_SIZE + nbGroups * GROUP_ENTRY_SIZE);
+        long maxEnd = Long.MIN_VALUE;
+        for (int i = 0; i < nbSegments; i++) {
+            E segment = segments.get(i);
+            int groupEntry = BLOCK_HEADER_SIZE + (i / GROUP_SIZE) * GROUP_ENTRY_SIZE;
+            if (i % GROUP_SIZE == 0) {
+                buffer.putLong(groupEntry, segment.getStart());
+                buffer.putLong(groupEntry + 8, segment.getEnd());
+                buffer.putInt(groupEntry + 16, buffer.position());
+            } else if (segment.getEnd() > buffer.getLong(groupEntry + 8)) {
+                buffer.putLong(groupEntry + 8, segment.getEnd());
+            }
+            maxEnd = Math.max(maxEnd, segment.getEnd());
+
+            buffer.putLong(segment.getStart());
+            buffer.putLong(segment.getEnd());
+            buffer.putInt(sizes[i]);
+            int dataPosition = buffer.position();
+            fSerializer.writeSegment(segment, buffer);
+            if (buffer.position() - dataPosition != sizes[i]) {
+                throw new IllegalStateException("Serializer wrote " + (buffer.position() - dataPosition) + //$NON-NLS-1$
+                        " bytes instead of " + sizes[i]); //$NON-NLS-1$
+            }
+        }
+        buffer.flip();
+        writeFully(buffer, fFileEnd);
+
+        addBlock((int) byteSize, nbSegments, segments.get(0).getStart(), maxEnd);
+        fOpenBlock = new ArrayList<>();
+    }
+
+    /**
+     * Add the index entry of the block written at the end of the file
+     */
+    private void addBlock(int byteSize, int nbSegments, long minStart, long maxEnd) {
+        long position = fFileEnd;
+        Mapping mapping = (fMappings.isEmpty() ? null : fMappings.get(fMappings.size() - 1));
+        if (mapping == null || position + byteSize - mapping.fPosition > MAX_MAPPING_SIZE) {
+            mapping = new Mapping(position);
+            fMappings.add(mapping);
+        }
+        mapping.extend(position + byteSize);
+        fBlocks.add(new Block(position, byteSize, nbSegments, minStart, maxEnd, mapping));
+        fFileEnd = position + byteSize;
+    }
+
+    /**
+     * Get a buffer of a block. The returned buffer is private to the caller,
+     * and its position 0 is the start of the block. Must be called with the
+     * read lock, and the buffer must not be used once it is released.
+     */
+    private ByteBuffer getBlockBuffer(Block block) throws IOException {
+        Mapping mapping = block.fMapping;
+        long offset = block.fPosition - mapping.fPosition;
+        ByteBuffer buffer = mapping.get(fChannel);
+        buffer.limit((int) offset + block.fByteSize);
+        buffer.position((int) offset);
+        return checkNotNull(buffer.slice());
+    }
+
+    /**
+     * Read the segments of a block intersecting a range, using the sparse
+     * index of the block to skip the groups of segments outside of it
+     */
+    private void readIntersecting(Block block, long start, long end, List<E> result) throws IOException {
+        ByteBuffer buffer = getBlockBuffer(block);
+        int nbSegments = buffer.getInt(0);
+        int nbGroups = buffer.getInt(4);
+        for (int group = 0; group < nbGroups; group++) {
+            int groupEntry = BLOCK_HEADER_SIZE + group * GROUP_ENTRY_SIZE;
+            if (buffer.getLong(groupEntry) > end) {
+                /* The segments are sorted by start time */
+                return;
+            }
+            if (buffer.getLong(groupEntry + 8) < start) {
+                continue;
+            }
+            int position = buffer.getInt(groupEntry + 16);
+            int count = Math.min(GROUP_SIZE, nbSegments - group * GROUP_SIZE);
+            for (int i = 0; i < count; i++) {
+                long segmentStart = buffer.getLong(position);
+                if (segmentStart > end) {
+                    return;
+                }
+                long segmentEnd = buffer.getLong(position + 8);
+                int size = buffer.getInt(position + 16);
+                if (segmentEnd >= start) {
+                    result.add(readSegment(buffer, position, segmentStart, segmentEnd, size));
+                }
+                position += RECORD_HEADER_SIZE + size;
+            }
+        }
+    }
+
+    private E readSegment(ByteBuffer buffer, int position, long start, long end, int size) {
+        buffer.limit(position + RECORD_HEADER_SIZE + size);
+        buffer.position(position + RECORD_HEADER_SIZE);
+        ByteBuffer data = checkNotNull(buffer.slice());
+        buffer.limit(buffer.capacity());
+        return fSerializer.readSegment(start, end, data);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment store file"); //$NON-NLS-1$
+            }
+            pos += read;
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            pos += fChannel.write(buffer, pos);
+        }
+    }
+
+    private IllegalStateException ioError(IOException e) {
+        Activator.instance().logError("Error accessing segment store file " + fPath, e); //$NON-NLS-1$
+        return new IllegalStateException(e);
+    }
+
+    // ------------------------------------------------------------------------
+    // Iteration
+    // ------------------------------------------------------------------------
+
+    /**
+     * Sequential reader of the segments of a block, or of a sorted list. A
+     * block is read again through its mapping at each step, since the mapping
+     * may be released between two steps.
+     */
+    private final class Cursor {
+
+        private final @Nullable Block fBlock;
+        private final @Nullable Iterator<E> fIterator;
+        private int fRemaining;
+        private int fPosition;
+        private @Nullable E fCurrent = null;
+
+        public Cursor(Block block) throws IOException {
+            ByteBuffer buffer = getBlockBuffer(block);
+            fBlock = block;
+            fIterator = null;
+            fRemaining = buffer.getInt(0);
+            fPosition = BLOCK_HEADER_SIZE + buffer.getInt(4) * GROUP_ENTRY_SIZE;
+            advance();
+        }
+
+        public Cursor(List<E> segments) {
+            Iterator<E> iterator = segments.iterator();
+            fBlock = null;
+            fIterator = iterator;
+            fRemaining = segments.size();
+            if (fRemaining > 0) {
+                fRemaining--;
+                fCurrent = iterator.next();
+            }
+        }
+
+        public E current() {
+            return checkNotNull(fCurrent);
+        }
+
+        /**
+         * Move to the next segment. Must be called with the read lock.
+         *
+         * @return False if there are no more segments
+         * @throws IOException
+         *             If the block cannot be mapped
+         */
+        public boolean advance() throws IOException {
+            if (fRemaining == 0) {
+                fCurrent = null;
+                return false;
+            }
+            fRemaining--;
+            Block block = fBlock;
+            Iterator<E> iterator = fIterator;
+            if (iterator != null) {
+                fCurrent = iterator.next();
+            } else if (block != null) {
+                ByteBuffer buffer = getBlockBuffer(block);
+                int size = buffer.getInt(fPosition + 16);
+                fCurrent = readSegment(buffer, fPosition, buffer.getLong(fPosition), buffer.getLong(fPosition + 8), size);
+                fPosition += RECORD_HEADER_SIZE + size;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Merge of the sorted blocks. Since the blocks mostly cover consecutive
+     * time ranges, a block is only opened when its first segment is reached.
+     * The blocks are read with the read lock of the store, so that their
+     * mappings are not released meanwhile.
+     */
+    private final class MergeIterator implements Iterator<E> {
+
+        private final List<Block> fPendingBlocks;
+        private int fNextBlock = 0;
+        private final PriorityQueue<Cursor> fQueue = new PriorityQueue<>(11,
+                (a, b) -> COMPARATOR.compare(a.current(), b.current()));
+
+        /**
+         * @param blocks
+         *            The blocks, sorted by their minimum start time
+         * @param openBlock
+         *            The sorted segments not written yet
+         */
+        public MergeIterator(List<Block> blocks, List<E> openBlock) {
+            fPendingBlocks = blocks;
+            if (!openBlock.isEmpty()) {
+                fQueue.add(new Cursor(openBlock));
+            }
+        }
+
+        /**
+         * Open the blocks starting before the next segment of the queue. Must
+         * be called with the read lock.
+         */
+        private void openBlocks() throws IOException {
+            if (fDisposed) {
+                throw new IllegalStateException("Segment store is disposed: " + fPath); //$NON-NLS-1$
+            }
+            while (fNextBlock < fPendingBlocks.size()) {
+                Block block = fPendingBlocks.get(fNextBlock);
+                Cursor head = fQueue.peek();
+                if (head != null && block.fMinStart > head.current().getStart()) {
+                    return;
+                }
+                fQueue.add(new Cursor(block));
+                fNextBlock++;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            fLock.readLock().lock();
+            try {
+                openBlocks();
+                return !fQueue.isEmpty();
+            } catch (IOException e) {
+                throw ioError(e);
+            } finally {
+                fLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public E next() {
+            fLock.readLock().lock();
+            try {
+                openBlocks();
+                Cursor cursor = fQueue.poll();
+                if (cursor == null) {
+                    throw new NoSuchElementException();
+                }
+                E segment = cursor.current();
+                if (cursor.advance()) {
+                    fQueue.add(cursor);
+                }
+                return segment;
+            } catch (IOException e) {
+                throw ioError(e);
+            } finally {
+                fLock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,467 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.segmentstore.core.sortedarray;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.segmentstore.core.ISegment;
+import org.eclipse.tracecompass.segmentstore.core.ISegmentStore;
+
+/**
+ * Implementation of a {@link ISegmentStore} using a sorted array of the
+ * segments, augmented with an index of the maximum end times. Intersection
+ * queries follow the index down to each block of segments containing a
+ * result, so they cost O(k log n) in the worst case, k being the number of
+ * segments returned, without building any temporary collection of the whole
+ * store.
+ *
+ * Added segments are kept aside and loaded in bulk at the next query or
+ * iteration. They are first sorted and merged in a small array of recent
+ * segments, which queries search besides the main one. The recent segments
+ * are merged in the main array, and its index rebuilt, once they exceed the
+ * square root of the size of the store, or at the next iteration. A query
+ * following each addition therefore costs O(sqrt(n)) amortized, instead of a
+ * rebuild of the whole array. The {@link #SortedArrayStore(Collection)}
+ * constructor loads existing segments directly.
+ *
+ * The iteration order, as well as the order of the query results, is by
+ * ascending order of start times, then of end times, then by the segments'
+ * natural ordering ({@link ISegment#compareTo}).
+ *
+ * Unlike the TreeMapStore, duplicate segments are all kept. Removal
+ * operations are not supported.
+ *
+ * @param <E>
+ *            The type of segment held in this store
+ * @since 1.1
+ */
+public class SortedArrayStore<@NonNull E extends ISegment> implements ISegmentStore<E> {
+
+    /* Number of consecutive segments summarized by one leaf of the index */
+    private static final int BLOCK_SIZE = 32;
+
+    /* Number of recent segments always allowed before a merge */
+    private static final int MIN_RECENT_SIZE = 1024;
+
+    private static final Object[] EMPTY = new Object[0];
+
+    /* By start time, then by end time, then by natural ordering */
+    private static final Comparator<ISegment> COMPARATOR = (a, b) -> {
+        int result = Long.compare(a.getStart(), b.getStart());
+        if (result == 0) {
+            result = Long.compare(a.getEnd(), b.getEnd());
+        }
+        return (result != 0 ? result : a.compareTo(b));
+    };
+
+    private final ReadWriteLock fLock = new ReentrantReadWriteLock(false);
+
+    /*
+     * The loaded segments, sorted. The arrays are never modified once
+     * loaded, a load replaces them.
+     */
+    private Object[] fSorted = EMPTY;
+
+    /*
+     * Implicit binary tree of the maximum end time of the blocks of sorted
+     * segments. The node 1 is the root, the children of node i are 2i and
+     * 2i + 1, and the leaves start at fNbLeaves.
+     */
+    private long[] fMaxEnds = new long[] { Long.MIN_VALUE, Long.MIN_VALUE };
+    private int fNbLeaves = 1;
+
+    /*
+     * The sorted recent segments, not merged in the main array yet, and not
+     * covered by the index
+     */
+    private Object[] fRecent = EMPTY;
+
+    /* Segments added since the last load */
+    private List<E> fPending = new ArrayList<>();
+
+    private volatile int fSize = 0;
+
+    /**
+     * Constructor
+     */
+    public SortedArrayStore() {
+    }
+
+    /**
+     * Constructor that loads existing segments in bulk
+     *
+     * @param segments
+     *            The segments to put in the store, in any order
+     */
+    public SortedArrayStore(Collection<? extends E> segments) {
+        addAll(segments);
+        fLock.writeLock().lock();
+        try {
+            load(true);
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods from Collection
+    // ------------------------------------------------------------------------
+
+    @Override
+    public Iterator<E> iterator() {
+        lockLoaded(true);
+        try {
+            return checkNotNull(Collections.unmodifiableList(asList(fSorted)).iterator());
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean add(@Nullable E val) {
+        if (val == null) {
+            throw new IllegalArgumentException();
+        }
+
+        fLock.writeLock().lock();
+        try {
+            fPending.add(val);
+            fSize++;
+            return true;
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return fSize;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (fSize == 0);
+    }
+
+    @Override
+    public boolean contains(@Nullable Object o) {
+        if (!(o instanceof ISegment)) {
+            return false;
+        }
+        ISegment segment = (ISegment) o;
+        lockLoaded(false);
+        try {
+            return contains(fSorted, segment) || contains(fRecent, segment);
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    private static boolean contains(Object[] sorted, ISegment segment) {
+        long start = segment.getStart();
+        int first = (start == Long.MIN_VALUE ? 0 : indexOfFirstStartAfter(sorted, start - 1));
+        for (int i = first; i < sorted.length; i++) {
+            ISegment element = (ISegment) sorted[i];
+            if (element.getStart() != start) {
+                return false;
+            }
+            if (element.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean containsAll(@Nullable Collection<?> c) {
+        if (c == null) {
+            throw new IllegalArgumentException();
+        }
+        for (Object o : c) {
+            if (!contains(o)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Object[] toArray() {
+        lockLoaded(true);
+        try {
+            return checkNotNull(Arrays.copyOf(fSorted, fSorted.length));
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        lockLoaded(true);
+        try {
+            return Arrays.asList(fSorted).toArray(a);
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(@Nullable Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(@Nullable Collection<? extends E> c) {
+        if (c == null) {
+            throw new IllegalArgumentException();
+        }
+
+        fLock.writeLock().lock();
+        try {
+            boolean changed = false;
+            for (E elem : c) {
+                if (this.add(elem)) {
+                    changed = true;
+                }
+            }
+            return changed;
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean removeAll(@Nullable Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(@Nullable Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        fLock.writeLock().lock();
+        try {
+            fSorted = EMPTY;
+            fRecent = EMPTY;
+            fMaxEnds = new long[] { Long.MIN_VALUE, Long.MIN_VALUE };
+            fNbLeaves = 1;
+            fPending = new ArrayList<>();
+            fSize = 0;
+        } finally {
+            fLock.writeLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods added by ISegmentStore
+    // ------------------------------------------------------------------------
+
+    @Override
+    public Iterable<E> getIntersectingElements(long position) {
+        return getIntersectingElements(position, position);
+    }
+
+    @Override
+    public Iterable<E> getIntersectingElements(long start, long end) {
+        lockLoaded(false);
+        try {
+            /*
+             * The segments starting at or before 'end' are a prefix of the
+             * sorted array. Among them, the index leads to the blocks
+             * containing segments ending at or after 'start'.
+             */
+            Object[] sorted = fSorted;
+            int limit = indexOfFirstStartAfter(sorted, end);
+            List<E> result = new ArrayList<>();
+            collect(sorted, 1, 0, fNbLeaves, limit, start, result);
+
+            /* The few recent segments are not indexed, check them all */
+            Object[] recent = fRecent;
+            int recentLimit = indexOfFirstStartAfter(recent, end);
+            if (recentLimit == 0) {
+                return result;
+            }
+            List<E> recentResult = new ArrayList<>();
+            for (int i = 0; i < recentLimit; i++) {
+                E segment = element(recent, i);
+                if (segment.getEnd() >= start) {
+                    recentResult.add(segment);
+                }
+            }
+            return asList(merge(result.toArray(), recentResult.toArray()));
+        } finally {
+            fLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        clear();
+    }
+
+    // ------------------------------------------------------------------------
+    // Helpers
+    // ------------------------------------------------------------------------
+
+    /**
+     * Take the read lock, once all the added segments are loaded. The caller
+     * must release the read lock.
+     *
+     * @param all
+     *            If the recent segments must also be merged in the main array
+     */
+    private void lockLoaded(boolean all) {
+        while (true) {
+            fLock.readLock().lock();
+            if (fPending.isEmpty() && (!all || fRecent.length == 0)) {
+                return;
+            }
+            fLock.readLock().unlock();
+
+            fLock.writeLock().lock();
+            try {
+                load(all);
+            } finally {
+                fLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Sort the pending segments and merge them with the recent ones. Then,
+     * if there are too many recent segments, or if requested, merge them with
+     * the main array and rebuild the index. Must be called with the write
+     * lock.
+     */
+    private void load(boolean all) {
+        List<E> pending = fPending;
+        if (!pending.isEmpty()) {
+            Collections.sort(pending, COMPARATOR);
+            fRecent = merge(fRecent, pending.toArray());
+            fPending = new ArrayList<>();
+        }
+        Object[] recent = fRecent;
+        if (recent.length == 0 ||
+                (!all && recent.length <= Math.max(MIN_RECENT_SIZE, (int) Math.sqrt(fSorted.length)))) {
+            return;
+        }
+
+        Object[] sorted = merge(fSorted, recent);
+        int nbBlocks = (sorted.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int nbLeaves = 1;
+        while (nbLeaves < nbBlocks) {
+            nbLeaves *= 2;
+        }
+        long[] maxEnds = new long[2 * nbLeaves];
+        Arrays.fill(maxEnds, Long.MIN_VALUE);
+        for (int k = 0; k < sorted.length; k++) {
+            int leaf = nbLeaves + k / BLOCK_SIZE;
+            maxEnds[leaf] = Math.max(maxEnds[leaf], ((ISegment) sorted[k]).getEnd());
+        }
+        for (int node = nbLeaves - 1; node > 0; node--) {
+            maxEnds[node] = Math.max(maxEnds[2 * node], maxEnds[2 * node + 1]);
+        }
+
+        fSorted = sorted;
+        fMaxEnds = maxEnds;
+        fNbLeaves = nbLeaves;
+        fRecent = EMPTY;
+    }
+
+    /**
+     * Merge two sorted arrays of segments. The segments of the first array,
+     * which were added first, go first in case of equality.
+     */
+    private Object[] merge(Object[] first, Object[] second) {
+        if (second.length == 0) {
+            return first;
+        }
+        if (first.length == 0) {
+            return second;
+        }
+        Object[] merged = new Object[first.length + second.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            if (j >= second.length || (i < first.length &&
+                    COMPARATOR.compare(element(first, i), element(second, j)) <= 0)) {
+                merged[k] = first[i++];
+            } else {
+                merged[k] = second[j++];
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Add to the result the segments of a node of the index that are before
+     * the limit and that end at or after the start time
+     */
+    private void collect(Object[] sorted, int node, int firstBlock, int nbBlocks, int limit, long start, List<E> result) {
+        if (firstBlock * BLOCK_SIZE >= limit || fMaxEnds[node] < start) {
+            return;
+        }
+        if (nbBlocks == 1) {
+            int last = Math.min((firstBlock + 1) * BLOCK_SIZE, limit);
+            for (int i = firstBlock * BLOCK_SIZE; i < last; i++) {
+                E segment = element(sorted, i);
+                if (segment.getEnd() >= start) {
+                    result.add(segment);
+                }
+            }
+            return;
+        }
+        int half = nbBlocks / 2;
+        collect(sorted, 2 * node, firstBlock, half, limit, start, result);
+        collect(sorted, 2 * node + 1, firstBlock + half, half, limit, start, result);
+    }
+
+    /**
+     * Find the position of the first segment starting after a position
+     */
+    private static int indexOfFirstStartAfter(Object[] sorted, long position) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (((ISegment) sorted[mid]).getStart() <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E element(Object[] sorted, int index) {
+        return (E) sorted[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<E> asList(Object[] sorted) {
+        return checkNotNull((List<E>) (List<?>) Arrays.asList(sorted));
+    }
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.perf.historytree;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.test.performance.Dimension;
+import org.eclipse.test.performance.Performance;
+import org.eclipse.test.performance.PerformanceMeter;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.ThreadedHistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.Test;
+
+/**
+ * Benchmark of the construction of a history tree: insertion of the intervals
+ * in the calling thread, in the insertion thread of the threaded backend, and
+ * in the threaded backend with the nodes written by a separate thread.
+ */
+public class HistoryTreeBuildBenchmark {
+
+    private static final String TEST_SUITE_NAME = "History Tree Build Benchmark";
+    private static final String TEST_ID = "org.eclipse.tracecompass#" + TEST_SUITE_NAME;
+    private static final int LOOP_COUNT = 5;
+
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 200000;
+    private static final int NB_ATTRIBUTES = 2000;
+    private static final int QUEUE_SIZE = 10000;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_CHILDREN = 50;
+
+    private interface BackendFactory {
+        HistoryTreeBackend create(File file) throws IOException;
+    }
+
+    /**
+     * Benchmark the construction in the calling thread
+     */
+    @Test
+    public void testSingleThread() {
+        runBuild("single-thread", file -> new HistoryTreeBackend("build-benchmark",
+                file, 1, START_TIME, BLOCK_SIZE, MAX_CHILDREN));
+    }
+
+    /**
+     * Benchmark the construction with the insertion thread writing the nodes
+     */
+    @Test
+    public void testThreaded() {
+        runBuild("threaded", file -> new ThreadedHistoryTreeBackend("build-benchmark",
+                file, 1, START_TIME, QUEUE_SIZE, BLOCK_SIZE, MAX_CHILDREN, false));
+    }
+
+    /**
+     * Benchmark the construction with a separate thread writing the nodes
+     */
+    @Test
+    public void testThreadedNodeWriter() {
+        runBuild("threaded-node-writer", file -> new ThreadedHistoryTreeBackend("build-benchmark",
+                file, 1, START_TIME, QUEUE_SIZE, BLOCK_SIZE, MAX_CHILDREN, true));
+    }
+
+    private static void runBuild(String testName, BackendFactory factory) {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + '#' + testName);
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ':' + testName, Dimension.ELAPSED_PROCESS);
+
+        for (int loop = 0; loop < LOOP_COUNT; loop++) {
+            File file = null;
+            HistoryTreeBackend backend = null;
+            try {
+                file = File.createTempFile("build-benchmark", ".ht");
+                backend = factory.create(file);
+
+                pm.start();
+                /*
+                 * Insert the intervals in the order of their end times, like
+                 * a state system would, with strings and longs.
+                 */
+                long[] stateStarts = new long[NB_ATTRIBUTES];
+                for (long t = START_TIME + 1; t < END_TIME; t++) {
+                    for (int quark = (int) (t % 10); quark < NB_ATTRIBUTES; quark += 10) {
+                        if (t % (quark % 17 + 5) == 0) {
+                            TmfStateValue value = (quark % 2 == 0 ?
+                                    TmfStateValue.newValueLong(t) :
+                                    TmfStateValue.newValueString("state" + t % 20)); //$NON-NLS-1$
+                            backend.insertPastState(stateStarts[quark], t - 1, quark, value);
+                            stateStarts[quark] = t;
+                        }
+                    }
+                }
+                for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                    backend.insertPastState(stateStarts[quark], END_TIME, quark, TmfStateValue.nullValue());
+                }
+                backend.finishedBuilding(END_TIME);
+                pm.stop();
+            } catch (IOException e) {
+                fail(e.getMessage());
+            } finally {
+                if (backend != null) {
+                    backend.dispose();
+                }
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+        pm.commit();
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.perf.historytree;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.test.performance.Dimension;
+import org.eclipse.test.performance.Performance;
+import org.eclipse.test.performance.PerformanceMeter;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Benchmark of full queries sent concurrently to a state system by several
+ * reader threads, like the views of a trace do. Each thread runs the same
+ * number of queries, so the elapsed time stays the same as the number of
+ * threads grows, as long as the queries do not wait for each other and there
+ * are enough processors.
+ */
+public class HistoryTreeConcurrentQueryBenchmark {
+
+    private static final String TEST_SUITE_NAME = "History Tree Concurrent Query Benchmark";
+    private static final String TEST_ID = "org.eclipse.tracecompass#" + TEST_SUITE_NAME;
+    private static final int LOOP_COUNT = 5;
+    private static final int QUERIES_PER_THREAD = 200;
+
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 500000;
+    private static final long TIME_STEP = 100;
+    private static final int NB_ATTRIBUTES = 2000;
+
+    private static File fTempFile;
+    private static ITmfStateSystemBuilder fStateSystem;
+
+    /**
+     * Build the state system used by all the benchmarks
+     */
+    @BeforeClass
+    public static void setUp() {
+        try {
+            File file = checkNotNull(File.createTempFile("concurrent-query-benchmark", ".ht"));
+            fTempFile = file;
+            fStateSystem = StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createHistoryTreeBackendNewFile(
+                    "concurrent-query-benchmark", file, 1, START_TIME, 0));
+            int[] quarks = new int[NB_ATTRIBUTES];
+            for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                quarks[i] = fStateSystem.getQuarkAbsoluteAndAdd("Threads", String.valueOf(i));
+            }
+            for (long t = START_TIME + TIME_STEP; t < END_TIME; t += TIME_STEP) {
+                for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                    if ((t / TIME_STEP) % (10 + i % 50) == 0) {
+                        fStateSystem.modifyAttribute(t, TmfStateValue.newValueLong(t), quarks[i]);
+                    }
+                }
+            }
+            fStateSystem.closeHistory(END_TIME);
+        } catch (IOException | StateValueTypeException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the history file
+     */
+    @AfterClass
+    public static void tearDown() {
+        fStateSystem.dispose();
+        fTempFile.delete();
+    }
+
+    /**
+     * Benchmark full queries from one thread
+     */
+    @Test
+    public void testOneReader() {
+        runQueries(1);
+    }
+
+    /**
+     * Benchmark full queries from 2 threads
+     */
+    @Test
+    public void testTwoReaders() {
+        runQueries(2);
+    }
+
+    /**
+     * Benchmark full queries from 4 threads
+     */
+    @Test
+    public void testFourReaders() {
+        runQueries(4);
+    }
+
+    /**
+     * Benchmark full queries from 8 threads
+     */
+    @Test
+    public void testEightReaders() {
+        runQueries(8);
+    }
+
+    private static void runQueries(int nbThreads) {
+        Performance perf = Performance.getDefault();
+        String testName = nbThreads + "-readers";
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + '#' + testName);
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ':' + testName, Dimension.ELAPSED_PROCESS);
+
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            for (int loop = 0; loop < LOOP_COUNT; loop++) {
+                List<Future<Long>> results = new ArrayList<>();
+                pm.start();
+                for (int thread = 0; thread < nbThreads; thread++) {
+                    final int offset = thread;
+                    results.add(executor.submit(() -> {
+                        long count = 0;
+                        for (int i = 0; i < QUERIES_PER_THREAD; i++) {
+                            /* Each reader looks at different times */
+                            long t = START_TIME + (END_TIME - START_TIME) * ((i * 7 + offset) % QUERIES_PER_THREAD) / QUERIES_PER_THREAD;
+                            List<ITmfStateInterval> state = fStateSystem.queryFullState(t);
+                            count += state.size();
+                        }
+                        return count;
+                    }));
+                }
+                for (Future<Long> result : results) {
+                    assertEquals((long) QUERIES_PER_THREAD * NB_ATTRIBUTES + QUERIES_PER_THREAD, (long) result.get());
+                }
+                pm.stop();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            fail(e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+        pm.commit();
+    }
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.perf.historytree;
+
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.test.performance.Dimension;
+import org.eclipse.test.performance.Performance;
+import org.eclipse.test.performance.PerformanceMeter;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Benchmark of the full and range queries of the history tree backend, run in
+ * the calling thread and in parallel in the common fork-join pool.
+ */
+public class HistoryTreeQueryBenchmark {
+
+    private static final String TEST_SUITE_NAME = "History Tree Query Benchmark";
+    private static final String TEST_ID = "org.eclipse.tracecompass#" + TEST_SUITE_NAME;
+    private static final int LOOP_COUNT = 10;
+    private static final int QUERIES_PER_LOOP = 20;
+
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 1000000;
+    private static final long TIME_STEP = 1000;
+    private static final int NB_ATTRIBUTES = 20000;
+
+    private static File fTempFile;
+    private static HistoryTreeBackend fBackend;
+
+    /**
+     * Build the history tree used by all the benchmarks
+     */
+    @BeforeClass
+    public static void setUp() {
+        try {
+            fTempFile = File.createTempFile("query-benchmark", ".ht");
+            fBackend = new HistoryTreeBackend("query-benchmark", fTempFile, 1, START_TIME);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        /*
+         * Insert the intervals in the order of their end times, like a state
+         * system would. Each attribute changes state at its own rate.
+         */
+        long[] stateStarts = new long[NB_ATTRIBUTES];
+        for (long t = START_TIME + TIME_STEP; t < END_TIME; t += TIME_STEP) {
+            for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                if ((t - START_TIME) % (TIME_STEP * (10 + quark % 50)) == 0) {
+                    fBackend.insertPastState(stateStarts[quark], t - 1, quark, TmfStateValue.newValueLong(t));
+                    stateStarts[quark] = t;
+                }
+            }
+        }
+        for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+            fBackend.insertPastState(stateStarts[quark], END_TIME, quark, TmfStateValue.nullValue());
+        }
+        fBackend.finishedBuilding(END_TIME);
+    }
+
+    /**
+     * Delete the history file
+     */
+    @AfterClass
+    public static void tearDown() {
+        fBackend.dispose();
+        fTempFile.delete();
+    }
+
+    /**
+     * Benchmark full queries in the calling thread
+     */
+    @Test
+    public void testFullQuery() {
+        runFullQueries("full-query", null);
+    }
+
+    /**
+     * Benchmark full queries in parallel
+     */
+    @Test
+    public void testFullQueryParallel() {
+        runFullQueries("full-query-parallel", ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Benchmark range queries in the calling thread
+     */
+    @Test
+    public void testRangeQuery() {
+        runRangeQueries("range-query", null);
+    }
+
+    /**
+     * Benchmark range queries in parallel
+     */
+    @Test
+    public void testRangeQueryParallel() {
+        runRangeQueries("range-query-parallel", ForkJoinPool.commonPool());
+    }
+
+    private static PerformanceMeter createMeter(Performance perf, String testName) {
+        PerformanceMeter pm = perf.createPerformanceMeter(TEST_ID + '#' + testName);
+        perf.tagAsSummary(pm, TEST_SUITE_NAME + ':' + testName, Dimension.CPU_TIME);
+        return pm;
+    }
+
+    private static void runFullQueries(String testName, @Nullable ForkJoinPool pool) {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter pm = createMeter(perf, testName);
+        fBackend.setQueryPool(pool);
+
+        List<ITmfStateInterval> stateInfo = new ArrayList<>(NB_ATTRIBUTES);
+        for (int i = 0; i < NB_ATTRIBUTES; i++) {
+            stateInfo.add(null);
+        }
+        try {
+            for (int loop = 0; loop < LOOP_COUNT; loop++) {
+                pm.start();
+                for (int i = 0; i < QUERIES_PER_LOOP; i++) {
+                    long t = START_TIME + (END_TIME - START_TIME) * i / QUERIES_PER_LOOP;
+                    fBackend.doQuery(stateInfo, t);
+                }
+                pm.stop();
+            }
+        } catch (StateSystemDisposedException e) {
+            fail(e.getMessage());
+        } finally {
+            fBackend.setQueryPool(null);
+        }
+        pm.commit();
+    }
+
+    private static void runRangeQueries(String testName, @Nullable ForkJoinPool pool) {
+        Performance perf = Performance.getDefault();
+        PerformanceMeter pm = createMeter(perf, testName);
+        fBackend.setQueryPool(pool);
+
+        List<@NonNull Integer> quarks = new ArrayList<>();
+        for (int i = 0; i < NB_ATTRIBUTES; i += 10) {
+            quarks.add(i);
+        }
+        try {
+            for (int loop = 0; loop < LOOP_COUNT; loop++) {
+                pm.start();
+                long count = 0;
+                for (ITmfStateInterval interval : fBackend.query2D(quarks, START_TIME, END_TIME, 1000)) {
+                    /* Do something with the interval */
+                    count += interval.getAttribute();
+                }
+                if (count < 0) {
+                    fail();
+                }
+                pm.stop();
+            }
+        } catch (StateSystemDisposedException e) {
+            fail(e.getMessage());
+        } finally {
+            fBackend.setQueryPool(null);
+        }
+        pm.commit();
+    }
+}
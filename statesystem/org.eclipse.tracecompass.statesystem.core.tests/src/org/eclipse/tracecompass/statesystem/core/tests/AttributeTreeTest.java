@@ -15,10 +15,18 @@ package org.eclipse.tracecompass.statesystem.core.tests;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.eclipse.tracecompass.internal.statesystem.core.AttributeTree;
 import org.eclipse.tracecompass.internal.statesystem.core.StateSystem;
@@ -115,6 +123,7 @@ public class AttributeTreeTest {
                 String[] path = new String[] { THREADS, name, STATUS };
                 int quark = attributeTree2.getQuarkDontAdd(ITmfStateSystem.ROOT_ATTRIBUTE, path);
                 assertNotEquals(ITmfStateSystem.INVALID_ATTRIBUTE, quark);
+                assertEquals(attributeTree1.getQuarkDontAdd(ITmfStateSystem.ROOT_ATTRIBUTE, path), quark);
                 assertArrayEquals(path, attributeTree2.getFullAttributePathArray(quark));
                 assertEquals(name, attributeTree2.getAttributeName(attributeTree2.getParentAttributeQuark(quark)));
             }
@@ -123,4 +132,118 @@ public class AttributeTreeTest {
             file.delete();
         }
     }
+
+    /**
+     * Test reading an attribute tree written by older versions, as a
+     * serialized list of paths.
+     *
+     * @throws IOException
+     *             if there is an error accessing the test file
+     */
+    @Test
+    public void testLegacyAttributeTreeFile() throws IOException {
+        File file = File.createTempFile("AttributeTreeTest", ".ht");
+        ArrayList<String[]> list = new ArrayList<>();
+        for (String name : NAMES) {
+            list.add(new String[] { THREADS });
+            list.add(new String[] { THREADS, name });
+            list.add(new String[] { THREADS, name, STATUS });
+        }
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
+            oos.writeInt(0x06EC3671);
+            oos.writeObject(list);
+        }
+
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createNullBackend("test");
+        StateSystem ss = new StateSystem(backend);
+        try (FileInputStream fis = new FileInputStream(file)) {
+            AttributeTree attributeTree = new AttributeTree(ss, fis);
+            assertEquals(1 + 2 * NAMES.length, attributeTree.getNbAttributes());
+            for (String name : NAMES) {
+                String[] path = new String[] { THREADS, name, STATUS };
+                int quark = attributeTree.getQuarkDontAdd(ITmfStateSystem.ROOT_ATTRIBUTE, path);
+                assertArrayEquals(path, attributeTree.getFullAttributePathArray(quark));
+            }
+        } finally {
+            ss.dispose();
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that paths reusing the same array are found correctly, and that
+     * the cached quarks do not leak between starting nodes.
+     */
+    @Test
+    public void testQuarkLookupReusedPath() {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createNullBackend("test");
+        StateSystem ss = new StateSystem(backend);
+        try {
+            AttributeTree attributeTree = new AttributeTree(ss);
+            String[] path = new String[2];
+            path[1] = STATUS;
+            for (String name : NAMES) {
+                path[0] = name;
+                int threadQuark = attributeTree.getQuarkAndAdd(ITmfStateSystem.ROOT_ATTRIBUTE, THREADS, name);
+                int quark = attributeTree.getQuarkAndAdd(ITmfStateSystem.ROOT_ATTRIBUTE, THREADS, name, STATUS);
+                assertEquals(quark, attributeTree.getQuarkDontAdd(ITmfStateSystem.ROOT_ATTRIBUTE, THREADS, name, STATUS));
+                assertEquals(ITmfStateSystem.INVALID_ATTRIBUTE, attributeTree.getQuarkDontAdd(ITmfStateSystem.ROOT_ATTRIBUTE, path));
+                assertEquals(quark, attributeTree.getQuarkDontAdd(threadQuark, STATUS));
+            }
+            int threadsQuark = attributeTree.getQuarkDontAdd(ITmfStateSystem.ROOT_ATTRIBUTE, THREADS);
+            for (String name : NAMES) {
+                path[0] = name;
+                int quark = attributeTree.getQuarkDontAdd(threadsQuark, path);
+                assertArrayEquals(new String[] { THREADS, name, STATUS }, attributeTree.getFullAttributePathArray(quark));
+            }
+        } finally {
+            ss.dispose();
+        }
+    }
+
+    /**
+     * Test adding and looking up the same attributes from several threads.
+     * Each path must get a single quark, and the children must be listed in
+     * the order of their quarks.
+     *
+     * @throws Exception
+     *             if a thread fails
+     */
+    @Test
+    public void testConcurrentQuarkAndAdd() throws Exception {
+        final int nbThreads = 4;
+        final int nbAttributes = 500;
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createNullBackend("test");
+        StateSystem ss = new StateSystem(backend);
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            AttributeTree attributeTree = new AttributeTree(ss);
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int thread = 0; thread < nbThreads; thread++) {
+                results.add(executor.submit(() -> {
+                    int[] quarks = new int[nbAttributes];
+                    for (int i = 0; i < nbAttributes; i++) {
+                        quarks[i] = attributeTree.getQuarkAndAdd(ITmfStateSystem.ROOT_ATTRIBUTE, THREADS, String.valueOf(i), STATUS);
+                        assertEquals(String.valueOf(i), attributeTree.getAttributeName(attributeTree.getParentAttributeQuark(quarks[i])));
+                    }
+                    return quarks;
+                }));
+            }
+            int[] expected = results.get(0).get();
+            for (Future<int[]> result : results) {
+                assertArrayEquals(expected, result.get());
+            }
+            assertEquals(1 + 2 * nbAttributes, attributeTree.getNbAttributes());
+
+            int threadsQuark = attributeTree.getQuarkDontAdd(ITmfStateSystem.ROOT_ATTRIBUTE, THREADS);
+            List<Integer> children = attributeTree.getSubAttributes(threadsQuark, false);
+            assertEquals(nbAttributes, children.size());
+            for (int i = 1; i < children.size(); i++) {
+                assertTrue(children.get(i - 1) < children.get(i));
+            }
+        } finally {
+            executor.shutdown();
+            ss.dispose();
+        }
+    }
 }
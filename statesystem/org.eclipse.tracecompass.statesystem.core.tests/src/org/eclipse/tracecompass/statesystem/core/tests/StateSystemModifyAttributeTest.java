@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the primitive versions of
+ * {@link ITmfStateSystemBuilder#modifyAttribute}, which must give the same
+ * history as the state value version.
+ */
+public class StateSystemModifyAttributeTest {
+
+    private static final long START_TIME = 1000L;
+    private static final long END_TIME = 2000L;
+    private static final @NonNull String DUMMY_STRING = "test";
+
+    private ITmfStateSystemBuilder fStateSystem;
+
+    /**
+     * Build a small test state system in memory
+     */
+    @Before
+    public void setupStateSystem() {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createInMemoryBackend(DUMMY_STRING, START_TIME);
+        fStateSystem = StateSystemFactory.newStateSystem(backend);
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        fStateSystem.dispose();
+    }
+
+    /**
+     * Test the primitive values, including setting the same value again,
+     * which must not end the ongoing interval
+     */
+    @Test
+    public void testPrimitiveValues() {
+        ITmfStateSystemBuilder ss = fStateSystem;
+        try {
+            int intQuark = ss.getQuarkAbsoluteAndAdd("int");
+            int longQuark = ss.getQuarkAbsoluteAndAdd("long");
+            int doubleQuark = ss.getQuarkAbsoluteAndAdd("double");
+
+            ss.modifyAttribute(1100, 5, intQuark);
+            ss.modifyAttribute(1100, 5000000000L, longQuark);
+            ss.modifyAttribute(1100, 1.5, doubleQuark);
+            ss.modifyAttribute(1200, 5, intQuark);
+            ss.modifyAttribute(1200, 5000000000L, longQuark);
+            ss.modifyAttribute(1200, 1.5, doubleQuark);
+            ss.modifyAttribute(1300, 100000, intQuark);
+            ss.modifyAttribute(1300, 7L, longQuark);
+            ss.modifyAttribute(1300, Double.NaN, doubleQuark);
+            ss.modifyAttribute(1400, TmfStateValue.nullValue(), intQuark);
+            ss.modifyAttribute(1400, TmfStateValue.newValueLong(7), longQuark);
+            ss.modifyAttribute(1400, Double.NaN, doubleQuark);
+            ss.closeHistory(END_TIME);
+
+            assertInterval(1100, 1299, TmfStateValue.newValueInt(5), ss.querySingleState(1250, intQuark));
+            assertInterval(1300, 1399, TmfStateValue.newValueInt(100000), ss.querySingleState(1300, intQuark));
+            assertInterval(1400, END_TIME, TmfStateValue.nullValue(), ss.querySingleState(1500, intQuark));
+            assertInterval(1100, 1299, TmfStateValue.newValueLong(5000000000L), ss.querySingleState(1100, longQuark));
+            assertInterval(1300, END_TIME, TmfStateValue.newValueLong(7), ss.querySingleState(1400, longQuark));
+            assertInterval(1100, 1299, TmfStateValue.newValueDouble(1.5), ss.querySingleState(1299, doubleQuark));
+            assertInterval(1300, END_TIME, TmfStateValue.newValueDouble(Double.NaN), ss.querySingleState(1450, doubleQuark));
+        } catch (StateValueTypeException | AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test that a primitive value of the wrong type is refused
+     *
+     * @throws AttributeNotFoundException
+     *             If the quark is invalid, not expected
+     */
+    @Test(expected = StateValueTypeException.class)
+    public void testWrongType() throws AttributeNotFoundException {
+        int quark = fStateSystem.getQuarkAbsoluteAndAdd(DUMMY_STRING);
+        fStateSystem.modifyAttribute(1100, 3, quark);
+        fStateSystem.modifyAttribute(1200, 3L, quark);
+    }
+
+    private static void assertInterval(long start, long end, TmfStateValue value, ITmfStateInterval interval) {
+        assertEquals(start, interval.getStartTime());
+        assertEquals(end, interval.getEndTime());
+        assertEquals(value, interval.getStateValue());
+    }
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the range queries of the state system, comparing their results with
+ * those of single queries, for the different storage backends.
+ */
+public class StateSystemQuery2DTest {
+
+    private static final @NonNull String SSID = "query2d-test";
+    private static final long START_TIME = 1000L;
+    private static final int NB_ATTRIBUTES = 10;
+    private static final int NB_CHANGES = 3000;
+
+    private ITmfStateSystemBuilder fStateSystem;
+    private File fStateFile;
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void tearDown() {
+        if (fStateSystem != null) {
+            fStateSystem.dispose();
+        }
+        if (fStateFile != null) {
+            fStateFile.delete();
+        }
+    }
+
+    private static @NonNull IStateHistoryBackend createHistoryTreeBackend(@NonNull File file, int queueSize) {
+        try {
+            return StateHistoryBackendFactory.createHistoryTreeBackendNewFile(SSID, file, 1, START_TIME, queueSize);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private @NonNull File createTempFile() {
+        try {
+            File file = checkNotNull(File.createTempFile("query2d-test", ".ht"));
+            fStateFile = file;
+            return file;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Populate the state system, each attribute changing state at a
+     * different rate.
+     */
+    private @NonNull List<@NonNull Integer> populate(@NonNull IStateHistoryBackend backend, boolean close) {
+        fStateSystem = StateSystemFactory.newStateSystem(backend);
+        List<@NonNull Integer> quarks = new ArrayList<>();
+        for (int i = 0; i < NB_ATTRIBUTES; i++) {
+            quarks.add(fStateSystem.getQuarkAbsoluteAndAdd("attr" + i));
+        }
+        try {
+            for (long t = START_TIME; t < START_TIME + NB_CHANGES * 10; t += 10) {
+                for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                    if ((t / 10) % (i + 1) == 0) {
+                        fStateSystem.modifyAttribute(t, TmfStateValue.newValueLong(t), quarks.get(i));
+                    }
+                }
+            }
+        } catch (StateValueTypeException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+        if (close) {
+            fStateSystem.closeHistory(START_TIME + NB_CHANGES * 10);
+        }
+        return quarks;
+    }
+
+    /**
+     * Compute the expected result of a range query with single queries.
+     */
+    private Set<String> expected(Collection<@NonNull Integer> quarks, long start, long end, long resolution)
+            throws StateSystemDisposedException, AttributeNotFoundException {
+        Set<String> result = new HashSet<>();
+        long rangeEnd = Math.min(end, fStateSystem.getCurrentEndTime());
+        for (int quark : quarks) {
+            long t = Math.max(start, fStateSystem.getStartTime());
+            while (t <= rangeEnd) {
+                ITmfStateInterval interval = fStateSystem.querySingleState(t, quark);
+                result.add(interval.toString());
+                long next = interval.getEndTime() + 1;
+                if (resolution > 1 && next < rangeEnd) {
+                    /* Next sampling point after this interval */
+                    long offset = next - start;
+                    next = Math.min(start + ((offset + resolution - 1) / resolution) * resolution, rangeEnd);
+                }
+                if (next <= t) {
+                    break;
+                }
+                t = next;
+            }
+        }
+        return result;
+    }
+
+    private Set<String> actual(@NonNull Collection<@NonNull Integer> quarks, long start, long end, long resolution)
+            throws StateSystemDisposedException {
+        Set<String> result = new HashSet<>();
+        for (ITmfStateInterval interval : fStateSystem.query2D(quarks, start, end, resolution)) {
+            assertTrue("Duplicate interval " + interval, result.add(interval.toString()));
+            assertTrue(quarks.contains(interval.getAttribute()));
+        }
+        return result;
+    }
+
+    private void compare(@NonNull Collection<@NonNull Integer> quarks) {
+        long end = fStateSystem.getCurrentEndTime();
+        try {
+            assertEquals(expected(quarks, START_TIME, end, 1), actual(quarks, START_TIME, end, 1));
+            assertEquals(expected(quarks, 5000, 5020, 1), actual(quarks, 5000, 5020, 1));
+            assertEquals(expected(quarks, 2003, 27000, 1), actual(quarks, 2003, 27000, 1));
+            assertEquals(expected(quarks, 2003, 27000, 97), actual(quarks, 2003, 27000, 97));
+            assertEquals(expected(quarks, 0, end + 1000, 500), actual(quarks, 0, end + 1000, 500));
+            assertEquals(expected(quarks, 7777, 7777, 1), actual(quarks, 7777, 7777, 1));
+        } catch (StateSystemDisposedException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test range queries on the in-memory backend
+     */
+    @Test
+    public void testInMemory() {
+        List<@NonNull Integer> quarks = populate(StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME), true);
+        compare(quarks);
+        compare(quarks.subList(3, 6));
+    }
+
+    /**
+     * Test range queries on the history tree backend
+     */
+    @Test
+    public void testHistoryTree() {
+        List<@NonNull Integer> quarks = populate(createHistoryTreeBackend(createTempFile(), 0), true);
+        compare(quarks);
+        compare(quarks.subList(3, 6));
+    }
+
+    /**
+     * Test range queries on the history tree backend while the history is
+     * still being built, so that part of the results come from the ongoing
+     * states or from the insertion queue of the threaded backend.
+     */
+    @Test
+    public void testHistoryTreePartial() {
+        List<@NonNull Integer> quarks = populate(createHistoryTreeBackend(createTempFile(), 100), false);
+        compare(quarks);
+        compare(Collections.singletonList(quarks.get(NB_ATTRIBUTES - 1)));
+    }
+
+    /**
+     * Test invalid range queries
+     */
+    @Test
+    public void testInvalidQueries() {
+        List<@NonNull Integer> quarks = populate(StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME), true);
+        try {
+            fStateSystem.query2D(quarks, 2000, 1000);
+            fail();
+        } catch (TimeRangeException e) {
+            /* Expected */
+        } catch (StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+        try {
+            fStateSystem.query2D(Collections.singletonList(NB_ATTRIBUTES), 1000, 2000);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            /* Expected */
+        } catch (StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+        try {
+            assertFalse(fStateSystem.query2D(quarks, 0, START_TIME - 1).iterator().hasNext());
+        } catch (StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+        fStateSystem.dispose();
+        try {
+            fStateSystem.query2D(quarks, 1000, 2000);
+            fail();
+        } catch (StateSystemDisposedException e) {
+            /* Expected */
+        }
+        fStateSystem = null;
+    }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTLruNodeCache;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.LeafNode;
+import org.junit.Test;
+
+/**
+ * Tests for the size-bounded LRU node cache of the history tree
+ */
+public class HTLruNodeCacheTest {
+
+    private static final int BLOCK_SIZE = HistoryTree.TREE_HEADER_SIZE;
+    private static final HTConfig CONFIG = new HTConfig(new File("unused.ht"), BLOCK_SIZE, 3, 1, 0);
+
+    private static HTNode newNode(int seqNumber) {
+        return new LeafNode(CONFIG, seqNumber, -1, 0);
+    }
+
+    /**
+     * Test the hit and miss counters
+     */
+    @Test
+    public void testHitMissCount() {
+        HTLruNodeCache cache = new HTLruNodeCache(64L * BLOCK_SIZE, BLOCK_SIZE);
+        HTNode node = newNode(3);
+
+        assertNull(cache.get(3));
+        cache.put(node);
+        assertSame(node, cache.get(3));
+        assertSame(node, cache.get(3));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    /**
+     * Test that the least recently used node is evicted once the budget is
+     * reached. Sequence numbers 0 and 16 fall in the same segment, which
+     * holds one node with this budget.
+     */
+    @Test
+    public void testEviction() {
+        HTLruNodeCache cache = new HTLruNodeCache(16L * BLOCK_SIZE, BLOCK_SIZE);
+        HTNode node0 = newNode(0);
+        HTNode node1 = newNode(1);
+        HTNode node16 = newNode(16);
+
+        cache.put(node0);
+        cache.put(node1);
+        cache.put(node16);
+
+        assertNull(cache.get(0));
+        assertSame(node1, cache.get(1));
+        assertSame(node16, cache.get(16));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    /**
+     * Test that a budget smaller than one block disables the cache
+     */
+    @Test
+    public void testDisabled() {
+        HTLruNodeCache cache = new HTLruNodeCache(0, BLOCK_SIZE);
+        cache.put(newNode(0));
+        assertNull(cache.get(0));
+        assertEquals(1, cache.getEvictionCount());
+    }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the parallel queries of the history tree backend return the same
+ * results as the queries running in the calling thread.
+ */
+public class HistoryTreeBackendParallelQueryTest {
+
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 20000;
+    private static final int NB_ATTRIBUTES = 50;
+
+    private File fTempFile;
+    private HistoryTreeBackend fBackend;
+    private ForkJoinPool fPool;
+
+    /**
+     * Build a history tree with a few levels
+     */
+    @Before
+    public void setupTest() {
+        try {
+            fTempFile = File.createTempFile("tmpStateSystem", null);
+            /* Small blocks and few children, to get a deep tree */
+            fBackend = new HistoryTreeBackend("parallel-test", fTempFile, 1, START_TIME, 4096, 3);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        /* Insert in end time order, each attribute at its own rate */
+        long[] stateStarts = new long[NB_ATTRIBUTES];
+        for (long t = START_TIME + 1; t < END_TIME; t++) {
+            for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                if ((t - START_TIME) % (quark + 7) == 0) {
+                    fBackend.insertPastState(stateStarts[quark], t - 1, quark, TmfStateValue.newValueLong(t));
+                    stateStarts[quark] = t;
+                }
+            }
+        }
+        for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+            fBackend.insertPastState(stateStarts[quark], END_TIME, quark, TmfStateValue.nullValue());
+        }
+        fBackend.finishedBuilding(END_TIME);
+        fPool = new ForkJoinPool(4);
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void cleanup() {
+        fPool.shutdown();
+        fBackend.dispose();
+        fTempFile.delete();
+    }
+
+    private List<ITmfStateInterval> fullQuery(long t) throws StateSystemDisposedException {
+        List<ITmfStateInterval> stateInfo = new ArrayList<>();
+        for (int i = 0; i < NB_ATTRIBUTES; i++) {
+            stateInfo.add(null);
+        }
+        fBackend.doQuery(stateInfo, t);
+        return stateInfo;
+    }
+
+    private Set<String> rangeQuery(@NonNull Collection<@NonNull Integer> quarks, long start, long end, long resolution)
+            throws StateSystemDisposedException {
+        Set<String> result = new HashSet<>();
+        for (ITmfStateInterval interval : fBackend.query2D(quarks, start, end, resolution)) {
+            result.add(interval.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Test the parallel full queries
+     */
+    @Test
+    public void testFullQuery() {
+        try {
+            for (long t = START_TIME; t <= END_TIME; t += 333) {
+                fBackend.setQueryPool(null);
+                List<ITmfStateInterval> expected = fullQuery(t);
+                fBackend.setQueryPool(fPool);
+                assertEquals(expected, fullQuery(t));
+            }
+        } catch (StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test the parallel range queries
+     */
+    @Test
+    public void testRangeQuery() {
+        List<@NonNull Integer> quarks = new ArrayList<>();
+        for (int i = 0; i < NB_ATTRIBUTES; i += 3) {
+            quarks.add(i);
+        }
+        try {
+            long[][] ranges = { { START_TIME, END_TIME, 1 }, { 1234, 5678, 1 }, { 1234, 15678, 100 }, { 500, 500, 1 } };
+            for (long[] range : ranges) {
+                fBackend.setQueryPool(null);
+                Set<String> expected = rangeQuery(quarks, range[0], range[1], range[2]);
+                fBackend.setQueryPool(fPool);
+                assertEquals(expected, rangeQuery(quarks, range[0], range[1], range[2]));
+            }
+        } catch (StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Test parallel queries once the file is closed
+     */
+    @Test
+    public void testDisposed() {
+        fBackend.setQueryPool(fPool);
+        fBackend.dispose();
+        try {
+            fullQuery(END_TIME / 2);
+            fail();
+        } catch (StateSystemDisposedException e) {
+            /* Expected */
+        }
+        try {
+            rangeQuery(new ArrayList<>(), START_TIME, END_TIME, 1);
+            fail();
+        } catch (StateSystemDisposedException e) {
+            /* Expected */
+        }
+        fBackend.setQueryPool(null);
+        assertNull(fBackend.getQueryPool());
+    }
+}
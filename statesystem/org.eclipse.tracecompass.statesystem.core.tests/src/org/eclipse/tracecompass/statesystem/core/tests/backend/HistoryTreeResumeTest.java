@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test resuming the construction of a history tree file, by comparing a
+ * history built in two steps with one built in a single step.
+ */
+public class HistoryTreeResumeTest {
+
+    private static final @NonNull String SSID = "resume-test";
+    private static final long START_TIME = 0;
+    private static final long RESUME_TIME = 3000;
+    private static final long END_TIME = 8000;
+    private static final int NB_ATTRIBUTES = 15;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+
+    private File fFile;
+    private final List<ITmfStateSystemBuilder> fStateSystems = new ArrayList<>();
+
+    /**
+     * Create the history file
+     */
+    @Before
+    public void setupTest() {
+        try {
+            fFile = File.createTempFile("resume-test", ".ht");
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void cleanup() {
+        for (ITmfStateSystemBuilder ss : fStateSystems) {
+            ss.dispose();
+        }
+        fFile.delete();
+    }
+
+    /**
+     * Do the state changes of the ]from, to] time range. Half of the
+     * attributes have string values, and a new attribute appears after the
+     * resume time.
+     */
+    private static void fill(ITmfStateSystemBuilder ss, long from, long to) {
+        try {
+            for (long t = from + 1; t <= to; t++) {
+                for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                    if (t % (i + 3) == 0) {
+                        int quark = ss.getQuarkAbsoluteAndAdd("Attributes", String.valueOf(i));
+                        TmfStateValue value = (i % 2 == 0 ?
+                                TmfStateValue.newValueLong(t) :
+                                TmfStateValue.newValueString("state" + (t / (i + 3)) % 7));
+                        ss.modifyAttribute(t, value, quark);
+                    }
+                }
+                if (t > RESUME_TIME + 500 && t % 100 == 0) {
+                    int quark = ss.getQuarkAbsoluteAndAdd("Late");
+                    ss.modifyAttribute(t, TmfStateValue.newValueInt((int) t), quark);
+                }
+            }
+        } catch (StateValueTypeException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private ITmfStateSystemBuilder track(ITmfStateSystemBuilder ss) {
+        fStateSystems.add(ss);
+        return ss;
+    }
+
+    /*
+     * The intervals that were ongoing at the resume time are split, so only
+     * compare the values, and make sure the intervals contain the time.
+     */
+    private static void compare(ITmfStateSystem expected, ITmfStateSystem actual) {
+        try {
+            assertEquals(expected.getNbAttributes(), actual.getNbAttributes());
+            assertEquals(END_TIME, actual.getCurrentEndTime());
+            for (long t = START_TIME; t <= END_TIME; t += 37) {
+                List<ITmfStateInterval> expectedState = expected.queryFullState(t);
+                List<ITmfStateInterval> actualState = actual.queryFullState(t);
+                for (int quark = 0; quark < expectedState.size(); quark++) {
+                    String message = "Quark " + quark + " at " + t;
+                    ITmfStateInterval interval = actualState.get(quark);
+                    assertEquals(message, expectedState.get(quark).getStateValue(), interval.getStateValue());
+                    assertTrue(message, interval.intersects(t));
+                    assertEquals(message, interval.getStateValue(), actual.querySingleState(t, quark).getStateValue());
+                }
+            }
+        } catch (StateSystemDisposedException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private void testResume(int queueSize) throws IOException {
+        ITmfStateSystemBuilder expected = track(StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME)));
+        fill(expected, START_TIME, END_TIME);
+        expected.closeHistory(END_TIME);
+
+        /* Build the first part, then close the history */
+        ITmfStateSystemBuilder first = StateSystemFactory.newStateSystem(new HistoryTreeBackend(SSID,
+                fFile, 1, START_TIME, BLOCK_SIZE, MAX_CHILDREN));
+        fill(first, START_TIME, RESUME_TIME);
+        first.closeHistory(RESUME_TIME);
+        first.dispose();
+
+        /* Continue from where it stopped */
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createHistoryTreeBackendResumeFile(SSID, checkNotNull(fFile), 1, queueSize);
+        ITmfStateSystemBuilder resumed = track(StateSystemFactory.resumeStateSystem(backend));
+        assertEquals(RESUME_TIME, resumed.getCurrentEndTime());
+        fill(resumed, RESUME_TIME, END_TIME);
+        resumed.closeHistory(END_TIME);
+        compare(expected, resumed);
+
+        fStateSystems.remove(resumed);
+        resumed.dispose();
+        assertTrue(fFile.exists());
+
+        /* The file must be complete, with the new attributes */
+        IStateHistoryBackend reopened = StateHistoryBackendFactory.createHistoryTreeBackendExistingFile(SSID, fFile, 1);
+        compare(expected, track(StateSystemFactory.newStateSystem(reopened, false)));
+    }
+
+    /**
+     * Test resuming the construction in the calling thread
+     *
+     * @throws IOException
+     *             If the history file cannot be written or read
+     */
+    @Test
+    public void testResume() throws IOException {
+        testResume(0);
+    }
+
+    /**
+     * Test resuming the construction with the threaded backend
+     *
+     * @throws IOException
+     *             If the history file cannot be written or read
+     */
+    @Test
+    public void testResumeThreaded() throws IOException {
+        testResume(1000);
+    }
+}
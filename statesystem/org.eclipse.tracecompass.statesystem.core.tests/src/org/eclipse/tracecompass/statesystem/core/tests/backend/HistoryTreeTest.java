@@ -10,19 +10,29 @@
 package org.eclipse.tracecompass.statesystem.core.tests.backend;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.CoreNode;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTNode;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTree;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
 import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 import org.eclipse.tracecompass.statesystem.core.tests.stubs.backend.HistoryTreeStub;
 import org.junit.After;
@@ -38,6 +48,12 @@ public class HistoryTreeTest {
 
     /* Minimal allowed blocksize */
     private static final int BLOCK_SIZE = HistoryTree.TREE_HEADER_SIZE;
+    /* Node cache size of the test trees */
+    private static final long CACHE_SIZE = 256L * BLOCK_SIZE;
+    /* Last file version with fixed-size intervals, whose sizes are tested */
+    private static final int FIXED_SIZE_VERSION = 6;
+    /* File version with the compact interval encoding */
+    private static final int COMPACT_VERSION = 7;
     /* The extra size used by long and double values */
     private static final int LONG_DOUBLE_SIZE = 8;
     /* The number of extra characters to store a string interval */
@@ -72,13 +88,26 @@ public class HistoryTreeTest {
     }
 
     /**
-     * Setup a history tree.
+     * Setup a history tree, using the fixed-size interval format.
      *
      * @param maxChildren
      *            The max number of children per node in the tree (tree config
      *            option)
      */
     private HistoryTreeStub setupSmallTree(int maxChildren) {
+        return setupSmallTree(maxChildren, FIXED_SIZE_VERSION);
+    }
+
+    /**
+     * Setup a history tree.
+     *
+     * @param maxChildren
+     *            The max number of children per node in the tree (tree config
+     *            option)
+     * @param fileVersion
+     *            The file format version
+     */
+    private HistoryTreeStub setupSmallTree(int maxChildren, int fileVersion) {
         HistoryTreeStub ht = null;
         try {
             File newFile = fTempFile;
@@ -87,7 +116,9 @@ public class HistoryTreeTest {
                     BLOCK_SIZE,
                     maxChildren, /* Number of children */
                     1, /* Provider version */
-                    1); /* Start time */
+                    1, /* Start time */
+                    CACHE_SIZE,
+                    fileVersion);
             ht = new HistoryTreeStub(config);
 
         } catch (IOException e) {
@@ -309,4 +340,387 @@ public class HistoryTreeTest {
         assertEquals( 5, branch.get(2).getSequenceNumber());
         assertEquals( 4, branch.get(2).getParentSequenceNumber());
     }
+
+    /**
+     * Test the end time of a node which is closed, but still waiting to be
+     * written to disk
+     */
+    @Test
+    public void testPendingNodeEnd() {
+        HistoryTreeStub ht = setupSmallTree();
+        long start = fillNextLeafNode(ht, 1);
+
+        HTNode node = ht.getLatestLeaf();
+        assertFalse(node.isClosed());
+        assertEquals(0, node.getNodeEnd());
+
+        node.closeThisNode(start + 10);
+        assertFalse(node.isOnDisk());
+        assertTrue(node.isClosed());
+        assertEquals(start + 10, node.getNodeEnd());
+    }
+
+    /**
+     * Test single queries from another thread while the tree is built, with
+     * a new root node added every time the tree gets deeper. A query must
+     * always find the intervals inserted before it started, whichever root
+     * node it starts from.
+     *
+     * @throws InterruptedException
+     *             If the test is interrupted
+     */
+    @Test
+    public void testQueriesWhileAddingRootNodes() throws InterruptedException {
+        HistoryTreeStub ht = setupSmallTree(2);
+        AtomicLong insertedEnd = new AtomicLong(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(() -> {
+            try {
+                long t = 1;
+                while (insertedEnd.get() >= 0) {
+                    long end = insertedEnd.get();
+                    if (end < 1) {
+                        continue;
+                    }
+                    t = (t % end) + 1;
+                    HTNode node = ht.getRootNode();
+                    HTInterval interval = node.getRelevantInterval(1, t);
+                    while (interval == null && node.getNodeType() == HTNode.NodeType.CORE) {
+                        node = ht.selectNextChild((CoreNode) node, t);
+                        interval = node.getRelevantInterval(1, t);
+                    }
+                    assertNotNull("Time " + t, interval);
+                    assertTrue(interval.getStartTime() <= t && t <= interval.getEndTime());
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+
+        /* Depth 5 needs 16 leaves, and a new root node at 2, 4, 8 and 16 */
+        long start = 1;
+        while (ht.getDepth() < 5 && failure.get() == null) {
+            ht.insertInterval(new HTInterval(start, start + 1, 1, STRING_VALUE));
+            insertedEnd.set(start + 1);
+            start++;
+        }
+        insertedEnd.set(-1);
+        reader.join();
+
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new AssertionError(e);
+        }
+        assertEquals(5, ht.getDepth());
+    }
+
+    /**
+     * Test that the nodes of a closed history file read back from disk (using
+     * the memory-mapped read path) match the nodes that were written.
+     *
+     * @throws IOException
+     *             If the test fails
+     */
+    @Test
+    public void testReopenExistingFile() throws IOException {
+        long start = 1;
+
+        HistoryTreeStub ht = setupSmallTree(2);
+        for (int i = 0; i < 4; i++) {
+            start = fillNextLeafNode(ht, start);
+            start = fillValues(ht, STRING_VALUE, 1, start);
+        }
+        int nodeCount = ht.getNodeCount();
+        long[] nodeStarts = new long[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodeStarts[i] = ht.readNode(i).getNodeStart();
+        }
+        ht.closeTree(start);
+        ht.closeFile();
+
+        HistoryTree reopened = new HistoryTree(fTempFile, 1);
+        try {
+            assertEquals(nodeCount, reopened.getNodeCount());
+            assertEquals(start, reopened.getTreeEnd());
+            for (int i = 0; i < nodeCount; i++) {
+                HTNode node = reopened.readNode(i);
+                assertEquals(i, node.getSequenceNumber());
+                assertEquals(nodeStarts[i], node.getNodeStart());
+                assertTrue(node.isOnDisk());
+            }
+            HTInterval interval = reopened.readNode(0).getRelevantInterval(1, 1);
+            assertNotNull(interval);
+            assertEquals(STRING_VALUE, interval.getStateValue());
+        } finally {
+            reopened.closeFile();
+        }
+    }
+
+    /**
+     * Test that a history file read through the memory-mapped path can be
+     * deleted, and is not read anymore once it is deleted.
+     *
+     * @throws IOException
+     *             If the test fails
+     */
+    @Test
+    public void testDeleteMappedFile() throws IOException {
+        long start = 1;
+
+        HistoryTreeStub ht = setupSmallTree(2);
+        for (int i = 0; i < 4; i++) {
+            start = fillNextLeafNode(ht, start);
+            start = fillValues(ht, STRING_VALUE, 1, start);
+        }
+        ht.closeTree(start);
+        ht.closeFile();
+
+        /* The first leaf is not in the latest branch, it is read from disk */
+        HistoryTree reopened = new HistoryTree(fTempFile, 1);
+        assertTrue(reopened.readNode(1).isOnDisk());
+        reopened.deleteFile();
+        assertFalse(fTempFile.exists());
+        try {
+            reopened.readNode(1);
+            fail("The node should not be read from a deleted file");
+        } catch (ClosedChannelException e) {
+            /* Expected */
+        }
+    }
+
+    /**
+     * Test that the compact format uses less space than the fixed-size one,
+     * and that string values are only stored once per node.
+     */
+    @Test
+    public void testCompactFill() {
+        HistoryTreeStub ht = setupSmallTree(3, COMPACT_VERSION);
+        HTNode node = ht.getLatestLeaf();
+
+        /* Small times, attribute and value: 1 byte each, plus the type */
+        int nodeFreeSpace = node.getNodeFreeSpace();
+        fillValues(ht, INT_VALUE, 1, 1);
+        assertEquals(nodeFreeSpace - 5, node.getNodeFreeSpace());
+
+        nodeFreeSpace = node.getNodeFreeSpace();
+        fillValues(ht, TmfStateValue.nullValue(), 1, 2);
+        assertEquals(nodeFreeSpace - 4, node.getNodeFreeSpace());
+
+        /* The first string value also adds an entry in the string table */
+        HTInterval interval = new HTInterval(3, 4, 1, STRING_VALUE);
+        int firstSize = node.getIntervalSize(interval);
+        assertEquals(5 + 1 + TEST_STRING.length(), firstSize);
+        nodeFreeSpace = node.getNodeFreeSpace();
+        ht.insertInterval(interval);
+        assertEquals(nodeFreeSpace - firstSize, node.getNodeFreeSpace());
+
+        /* The next ones only refer to it */
+        interval = new HTInterval(4, 5, 1, STRING_VALUE);
+        assertEquals(5, node.getIntervalSize(interval));
+        nodeFreeSpace = node.getNodeFreeSpace();
+        ht.insertInterval(interval);
+        assertEquals(nodeFreeSpace - 5, node.getNodeFreeSpace());
+
+        /*
+         * Fill the node, a lot more intervals fit than with fixed sizes. The
+         * start times now need 2 bytes.
+         */
+        int nbFixedSize = node.getNodeFreeSpace() / (HTInterval.DATA_ENTRY_SIZE + TEST_STRING.length() + STRING_PADDING);
+        int nbIntervals = node.getNodeFreeSpace() / 6;
+        fillValues(ht, STRING_VALUE, nbIntervals, 5);
+        assertEquals(1, ht.getNodeCount());
+        assertTrue(nbIntervals > 5 * nbFixedSize);
+    }
+
+    /**
+     * Test that history files of all the supported versions can be written
+     * and read back.
+     *
+     * @throws IOException
+     *             If the test fails
+     */
+    @Test
+    public void testFileVersions() throws IOException {
+        final @NonNull TmfStateValue[] values = {
+                TmfStateValue.nullValue(),
+                INT_VALUE,
+                TmfStateValue.newValueInt(-123456),
+                LONG_VALUE,
+                TmfStateValue.newValueLong(Long.MIN_VALUE),
+                TmfStateValue.newValueDouble(-1.5),
+                STRING_VALUE,
+                TmfStateValue.newValueString("")
+        };
+        /* The older formats use the default charset for strings */
+        final @NonNull TmfStateValue utf8Value = TmfStateValue.newValueString("\u00e9t\u00e9");
+        for (int version = 5; version <= COMPACT_VERSION; version++) {
+            HistoryTreeStub ht = setupSmallTree(3, version);
+            long end = 1;
+            for (int i = 0; i < 1000; i++) {
+                /* Intervals of various lengths, on a few attributes */
+                long start = end;
+                end = start + (i % 13) * 1000;
+                TmfStateValue value = values[i % values.length];
+                if (version >= COMPACT_VERSION && i % 7 == 0) {
+                    value = utf8Value;
+                }
+                ht.insertInterval(new HTInterval(start, end, i % 5, value));
+                end++;
+            }
+            ht.closeTree(end);
+            int nodeCount = ht.getNodeCount();
+            assertTrue(nodeCount > 1);
+            List<String> expected = new ArrayList<>();
+            List<String> expectedIntervals = new ArrayList<>();
+            for (int i = 0; i < nodeCount; i++) {
+                expected.add(ht.readNode(i).toString());
+                StringWriter writer = new StringWriter();
+                ht.readNode(i).debugPrintIntervals(new PrintWriter(writer));
+                expectedIntervals.add(writer.toString());
+            }
+            HTInterval last = ht.getLatestLeaf().getRelevantInterval(4, end - 1);
+            assertNotNull(last);
+            ht.closeFile();
+
+            HistoryTree reopened = new HistoryTree(fTempFile, 1);
+            try {
+                for (int i = 0; i < nodeCount; i++) {
+                    assertEquals("Version " + version, expected.get(i), reopened.readNode(i).toString());
+                }
+                for (int i = 0; i < nodeCount; i++) {
+                    StringWriter writer = new StringWriter();
+                    reopened.readNode(i).debugPrintIntervals(new PrintWriter(writer));
+                    assertEquals("Version " + version, expectedIntervals.get(i), writer.toString());
+                }
+                HTInterval interval = reopened.readNode(nodeCount - 1).getRelevantInterval(4, end - 1);
+                assertNotNull(interval);
+                assertEquals(last.toString(), interval.toString());
+            } finally {
+                reopened.closeFile();
+            }
+        }
+    }
+
+    /**
+     * Test the single interval lookups in nodes, which use the quark filter
+     * and, once the node is on disk, the per-node quark index.
+     *
+     * @throws IOException
+     *             If the test fails
+     */
+    @Test
+    public void testRelevantIntervalWithIndex() throws IOException {
+        final int nbQuarks = 20;
+        HistoryTreeStub ht = setupSmallTree(3);
+        /* Each quark has intervals of a different length, starting at 1 */
+        for (long t = 2; t <= 500; t++) {
+            for (int quark = 0; quark < nbQuarks; quark++) {
+                long length = quark + 1;
+                if ((t - 1) % length == 0) {
+                    ht.insertInterval(new HTInterval(t - length, t - 1, quark, INT_VALUE));
+                }
+            }
+        }
+        ht.closeTree(500);
+        assertTrue(ht.getNodeCount() > 1);
+
+        HTNode node = ht.readNode(0);
+        assertTrue(node.isOnDisk());
+        assertNull(node.getRelevantInterval(nbQuarks, node.getNodeStart()));
+        for (int quark = 0; quark < nbQuarks; quark++) {
+            long length = quark + 1;
+            for (long t = node.getNodeStart(); t <= node.getNodeEnd(); t++) {
+                HTInterval interval = node.getRelevantInterval(quark, t);
+                if (interval == null) {
+                    continue;
+                }
+                assertTrue(node.mayContain(quark));
+                assertEquals(quark, interval.getAttribute());
+                assertTrue(interval.getStartTime() <= t && t <= interval.getEndTime());
+                assertEquals(length - 1, interval.getEndTime() - interval.getStartTime());
+            }
+        }
+
+        /* Every interval must be found in exactly one node of its branch */
+        for (int quark = 0; quark < nbQuarks; quark++) {
+            for (long t = 1; t < 500 - nbQuarks; t += 7) {
+                int found = 0;
+                for (int seq = 0; seq < ht.getNodeCount(); seq++) {
+                    HTNode curNode = ht.readNode(seq);
+                    if (curNode.getRelevantInterval(quark, t) != null) {
+                        found++;
+                    }
+                }
+                assertEquals("Quark " + quark + " at " + t, 1, found);
+            }
+        }
+    }
+
+    /**
+     * Test that the intervals of a node stay sorted by end time when they are
+     * not inserted in that order, and that the queries return the right
+     * values, before and after the node is written to disk.
+     *
+     * @throws IOException
+     *             Exception thrown when reading the file
+     */
+    @Test
+    public void testUnsortedNodeInsertion() throws IOException {
+        final @NonNull TmfStateValue[] values = {
+                INT_VALUE,
+                LONG_VALUE,
+                TmfStateValue.newValueDouble(2.5),
+                STRING_VALUE,
+                TmfStateValue.nullValue()
+        };
+        for (int version : new int[] { FIXED_SIZE_VERSION, COMPACT_VERSION }) {
+            HistoryTreeStub ht = setupSmallTree(3, version);
+            /* Insert the intervals in decreasing end time order */
+            for (int quark = 0; quark < values.length; quark++) {
+                ht.insertInterval(new HTInterval(1, 100 - quark * 10, quark, values[quark]));
+            }
+            assertUnsortedNode(ht.getLatestLeaf(), values);
+            ht.closeTree(100);
+            assertEquals(1, ht.getNodeCount());
+            ht.closeFile();
+
+            HistoryTree reopened = new HistoryTree(fTempFile, 1);
+            try {
+                assertUnsortedNode(reopened.readNode(0), values);
+            } finally {
+                reopened.closeFile();
+            }
+        }
+    }
+
+    private static void assertUnsortedNode(HTNode node, @NonNull TmfStateValue[] values) {
+        final int nbQuarks = values.length;
+        List<ITmfStateInterval> stateInfo = new ArrayList<>();
+        for (int quark = 0; quark <= nbQuarks; quark++) {
+            stateInfo.add(null);
+        }
+        node.writeInfoFromNode(stateInfo, 55);
+        for (int quark = 0; quark < nbQuarks; quark++) {
+            ITmfStateInterval interval = stateInfo.get(quark);
+            if (100 - quark * 10 < 55) {
+                assertNull(interval);
+                assertNull(node.getRelevantInterval(quark, 55));
+            } else {
+                assertNotNull(interval);
+                assertEquals(values[quark], interval.getStateValue());
+                assertEquals(interval.toString(), String.valueOf(node.getRelevantInterval(quark, 55)));
+            }
+        }
+        assertNull(stateInfo.get(nbQuarks));
+
+        /* The debug output lists the intervals by end time */
+        StringWriter writer = new StringWriter();
+        node.debugPrintIntervals(new PrintWriter(writer));
+        String output = writer.toString();
+        for (int quark = 1; quark < nbQuarks; quark++) {
+            assertTrue(output.indexOf("attribute = " + quark) < output.indexOf("attribute = " + (quark - 1)));
+        }
+    }
 }
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.InMemoryBackend;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the memory budget of the in-memory backend, which moves its intervals
+ * to a history tree file when it is exceeded.
+ */
+public class InMemoryBackendSpillTest {
+
+    private static final @NonNull String SSID = "spill-test";
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 20000;
+    private static final int NB_ATTRIBUTES = 20;
+
+    private File fFile;
+    private final List<ITmfStateSystemBuilder> fStateSystems = new ArrayList<>();
+
+    /**
+     * Create the spill file name
+     */
+    @Before
+    public void setupTest() {
+        try {
+            fFile = File.createTempFile("spill-test", ".ht");
+            fFile.delete();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void cleanup() {
+        for (ITmfStateSystemBuilder ss : fStateSystems) {
+            ss.dispose();
+        }
+        fFile.delete();
+    }
+
+    private ITmfStateSystemBuilder track(ITmfStateSystemBuilder ss) {
+        fStateSystems.add(ss);
+        return ss;
+    }
+
+    /**
+     * Do the state changes of the ]from, to] time range
+     */
+    private static void fill(ITmfStateSystemBuilder ss, long from, long to) {
+        try {
+            for (long t = from + 1; t <= to; t++) {
+                for (int i = 0; i < NB_ATTRIBUTES; i++) {
+                    if (t % (i + 2) == 0) {
+                        int quark = ss.getQuarkAbsoluteAndAdd("Attributes", String.valueOf(i));
+                        TmfStateValue value = (i % 3 == 0 ?
+                                TmfStateValue.newValueString("state" + t % 13) :
+                                TmfStateValue.newValueLong(t));
+                        ss.modifyAttribute(t, value, quark);
+                    }
+                }
+            }
+        } catch (StateValueTypeException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /*
+     * The ongoing intervals of a history being built end at the current time,
+     * so only compare the start times and values while building.
+     */
+    private static void compare(ITmfStateSystem expected, ITmfStateSystem actual, long end, boolean built) {
+        try {
+            for (long t = START_TIME; t <= end; t += 97) {
+                List<ITmfStateInterval> expectedState = expected.queryFullState(t);
+                List<ITmfStateInterval> actualState = actual.queryFullState(t);
+                assertEquals(expectedState.size(), actualState.size());
+                for (int quark = 0; quark < expectedState.size(); quark++) {
+                    String expectedInterval = toString(expectedState.get(quark), built);
+                    assertEquals(expectedInterval, toString(actualState.get(quark), built));
+                    assertEquals(expectedInterval, toString(actual.querySingleState(t, quark), built));
+                }
+            }
+            if (built) {
+                List<@NonNull Integer> quarks = new ArrayList<>();
+                quarks.add(expected.getQuarkAbsolute("Attributes", "3"));
+                quarks.add(expected.getQuarkAbsolute("Attributes", "4"));
+                assertEquals(toSet(expected.query2D(quarks, 1000, 3000)), toSet(actual.query2D(quarks, 1000, 3000)));
+            }
+        } catch (StateSystemDisposedException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private static Set<String> toSet(Iterable<@NonNull ITmfStateInterval> intervals) {
+        Set<String> set = new HashSet<>();
+        for (ITmfStateInterval interval : intervals) {
+            assertTrue(set.add(toString(interval, true)));
+        }
+        return set;
+    }
+
+    /* The backends use different interval classes */
+    private static String toString(ITmfStateInterval interval, boolean withEnd) {
+        return interval.getAttribute() + ":[" + interval.getStartTime() + ", "
+                + (withEnd ? interval.getEndTime() : "?") + "] " + interval.getStateValue();
+    }
+
+    /**
+     * Test that the intervals are moved to disk once the budget is exceeded,
+     * and that the queries give the same results before and after.
+     */
+    @Test
+    public void testSpill() {
+        InMemoryBackend reference = new InMemoryBackend(SSID, START_TIME);
+        ITmfStateSystemBuilder expected = track(StateSystemFactory.newStateSystem(reference));
+        fill(expected, START_TIME, END_TIME);
+        expected.closeHistory(END_TIME);
+        assertFalse(reference.isSpilled());
+
+        InMemoryBackend backend = new InMemoryBackend(SSID, START_TIME, 1024 * 1024, fFile);
+        ITmfStateSystemBuilder actual = track(StateSystemFactory.newStateSystem(backend));
+        fill(actual, START_TIME, END_TIME / 10);
+        assertFalse(backend.isSpilled());
+        assertFalse(fFile.exists());
+
+        /* Continue the same history until it spills, and query it */
+        fill(actual, END_TIME / 10, END_TIME / 2);
+        assertTrue(backend.isSpilled());
+        compare(expected, actual, END_TIME / 2 - 1, false);
+
+        fill(actual, END_TIME / 2, END_TIME);
+        actual.closeHistory(END_TIME);
+        assertTrue(backend.isSpilled());
+        assertTrue(fFile.exists());
+        compare(expected, actual, END_TIME, true);
+
+        /* The spill file is not kept */
+        fStateSystems.remove(actual);
+        actual.dispose();
+        assertFalse(fFile.exists());
+    }
+
+    /**
+     * Test that the factory checks the arguments
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testBudgetWithoutFile() {
+        new InMemoryBackend(SSID, START_TIME, 1024, null);
+    }
+
+    /**
+     * Test the factory method
+     */
+    @Test
+    public void testFactory() {
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME, 100 * 1024, checkNotNull(fFile)));
+        fStateSystems.add(ss);
+        try {
+            int quark = ss.getQuarkAbsoluteAndAdd("Attribute");
+            for (long t = START_TIME + 1; t <= END_TIME; t++) {
+                ss.modifyAttribute(t, t, quark);
+            }
+            ss.closeHistory(END_TIME);
+            assertTrue(fFile.exists());
+            assertEquals(TmfStateValue.newValueLong(1234), ss.querySingleState(1234, quark).getStateValue());
+        } catch (StateValueTypeException | AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+    }
+}
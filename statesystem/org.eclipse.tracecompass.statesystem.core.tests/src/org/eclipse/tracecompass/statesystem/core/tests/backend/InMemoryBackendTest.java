@@ -150,7 +150,11 @@ public class InMemoryBackendTest {
 
             fixture.doQuery(intervalQuery, 950);
             ITmfStateInterval ref[] = intervalQuery.toArray(new ITmfStateInterval[0]);
-            assertArrayEquals(ref, interval);
+            /* The backend creates a new interval object for each query */
+            assertEquals(ref.length, interval.length);
+            for (int i = 0; i < ref.length; i++) {
+                assertEquals(String.valueOf(ref[i]), String.valueOf(interval[i]));
+            }
 
         } catch (TimeRangeException | AttributeNotFoundException | StateSystemDisposedException e) {
             fail(e.getMessage());
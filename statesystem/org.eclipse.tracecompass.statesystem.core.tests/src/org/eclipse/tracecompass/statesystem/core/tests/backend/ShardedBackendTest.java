@@ -0,0 +1,381 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntUnaryOperator;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.ShardedBackend;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Test the sharded backend, which keeps each top-level attribute subtree in
+ * its own history tree, by comparing its results with those of an in-memory
+ * backend.
+ */
+public class ShardedBackendTest {
+
+    private static final @NonNull String SSID = "sharded-test";
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 5000;
+    private static final String[] SUBTREES = { "CPUs", "Threads", "Resources" };
+    private static final int NB_CHILDREN = 10;
+
+    private final @NonNull List<@NonNull File> fFiles = new ArrayList<>();
+    private final AtomicReference<ITmfStateSystem> fStateSystemRef = new AtomicReference<>();
+    private final List<ITmfStateSystemBuilder> fStateSystems = new ArrayList<>();
+
+    /**
+     * Create the shard files
+     */
+    @Before
+    public void setupTest() {
+        try {
+            for (int i = 0; i < SUBTREES.length; i++) {
+                fFiles.add(checkNotNull(File.createTempFile("sharded-test", ".ht")));
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Clean-up
+     */
+    @After
+    public void cleanup() {
+        for (ITmfStateSystemBuilder ss : fStateSystems) {
+            ss.dispose();
+        }
+        for (File file : fFiles) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Shard function keeping each top-level attribute in its own shard
+     */
+    private @NonNull IntUnaryOperator topLevelShards() {
+        return quark -> {
+            ITmfStateSystem ss = fStateSystemRef.get();
+            int topLevel = quark;
+            while (ss.getParentAttributeQuark(topLevel) != ITmfStateSystem.ROOT_ATTRIBUTE) {
+                topLevel = ss.getParentAttributeQuark(topLevel);
+            }
+            return Arrays.asList(SUBTREES).indexOf(ss.getAttributeName(topLevel));
+        };
+    }
+
+    private ITmfStateSystemBuilder build(@NonNull IStateHistoryBackend backend, boolean sharded) {
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(backend);
+        fStateSystems.add(ss);
+        if (sharded) {
+            fStateSystemRef.set(ss);
+        }
+        try {
+            /* The threads change state much more often than the rest */
+            for (long t = START_TIME; t < END_TIME; t++) {
+                for (int s = 0; s < SUBTREES.length; s++) {
+                    int period = (s == 1 ? 1 : 50);
+                    for (int i = 0; i < NB_CHILDREN; i++) {
+                        if ((t + i) % period == 0) {
+                            int quark = ss.getQuarkAbsoluteAndAdd(SUBTREES[s], String.valueOf(i));
+                            ss.modifyAttribute(t, TmfStateValue.newValueLong(t * s + i), quark);
+                        }
+                    }
+                }
+            }
+        } catch (StateValueTypeException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+        ss.closeHistory(END_TIME);
+        return ss;
+    }
+
+    private static void compare(ITmfStateSystem expected, ITmfStateSystem actual) {
+        try {
+            for (long t = START_TIME; t <= END_TIME; t += 123) {
+                List<ITmfStateInterval> expectedState = expected.queryFullState(t);
+                List<ITmfStateInterval> actualState = actual.queryFullState(t);
+                assertEquals(expectedState.size(), actualState.size());
+                for (int quark = 0; quark < expectedState.size(); quark++) {
+                    String expectedInterval = toString(expectedState.get(quark));
+                    assertEquals(expectedInterval, toString(actualState.get(quark)));
+                    assertEquals(expectedInterval, toString(actual.querySingleState(t, quark)));
+                }
+            }
+
+            List<@NonNull Integer> quarks = new ArrayList<>();
+            quarks.add(expected.getQuarkAbsolute("CPUs", "3"));
+            quarks.add(expected.getQuarkAbsolute("Threads", "5"));
+            quarks.add(expected.getQuarkAbsolute("Resources", "7"));
+            assertEquals(toSet(expected.query2D(quarks, 1000, 2000)), toSet(actual.query2D(quarks, 1000, 2000)));
+            assertEquals(toSet(expected.query2D(quarks, 0, END_TIME, 100)), toSet(actual.query2D(quarks, 0, END_TIME, 100)));
+        } catch (StateSystemDisposedException | AttributeNotFoundException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private static Set<String> toSet(Iterable<@NonNull ITmfStateInterval> intervals) {
+        Set<String> set = new HashSet<>();
+        for (ITmfStateInterval interval : intervals) {
+            assertTrue(set.add(toString(interval)));
+        }
+        return set;
+    }
+
+    /* The backends use different interval classes */
+    private static String toString(ITmfStateInterval interval) {
+        return interval.getAttribute() + ":[" + interval.getStartTime() + ", "
+                + interval.getEndTime() + "] " + interval.getStateValue();
+    }
+
+    /**
+     * Test building and querying a sharded history, then opening it again
+     *
+     * @throws IOException
+     *             If the history files cannot be created or opened
+     */
+    @Test
+    public void testShardedHistory() throws IOException {
+        ITmfStateSystem expected = build(StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME), false);
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createShardedHistoryTreeBackendNewFiles(SSID,
+                fFiles, 1, START_TIME, 1000, topLevelShards());
+        ITmfStateSystem actual = build(backend, true);
+        compare(expected, actual);
+
+        /* The threads subtree must not bloat the other shards */
+        assertTrue(fFiles.get(1).length() > fFiles.get(0).length());
+        assertTrue(fFiles.get(1).length() > fFiles.get(2).length());
+
+        fStateSystems.remove(actual);
+        actual.dispose();
+
+        IStateHistoryBackend reopened = StateHistoryBackendFactory.createShardedHistoryTreeBackendExistingFiles(SSID,
+                fFiles, 1, topLevelShards());
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(reopened, false);
+        fStateSystems.add(ss);
+        fStateSystemRef.set(ss);
+        compare(expected, ss);
+    }
+
+    /**
+     * Test queries on threaded history tree shards while the history is being
+     * built, when the latest intervals are still in the queues of the shards
+     *
+     * @throws IOException
+     *             If the history files cannot be created
+     */
+    @Test
+    public void testQueriesWhileBuilding() throws IOException {
+        ITmfStateSystemBuilder expected = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME));
+        fStateSystems.add(expected);
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createShardedHistoryTreeBackendNewFiles(SSID,
+                fFiles, 1, START_TIME, 10000, topLevelShards());
+        ITmfStateSystemBuilder actual = StateSystemFactory.newStateSystem(backend);
+        fStateSystems.add(actual);
+        fStateSystemRef.set(actual);
+        try {
+            for (long t = START_TIME; t < END_TIME; t++) {
+                for (int s = 0; s < SUBTREES.length; s++) {
+                    int period = (s == 1 ? 1 : 50);
+                    for (int i = 0; i < NB_CHILDREN; i++) {
+                        if ((t + i) % period == 0) {
+                            String[] path = { SUBTREES[s], String.valueOf(i) };
+                            TmfStateValue value = TmfStateValue.newValueLong(t * s + i);
+                            expected.modifyAttribute(t, value, expected.getQuarkAbsoluteAndAdd(path));
+                            actual.modifyAttribute(t, value, actual.getQuarkAbsoluteAndAdd(path));
+                        }
+                    }
+                }
+                if (t % 250 == 249) {
+                    /* The end of the history includes the queued intervals */
+                    long end = actual.getCurrentEndTime();
+                    assertEquals(t - 1, end);
+                    for (long queryTime : new long[] { end, end - 1, end / 2 }) {
+                        List<ITmfStateInterval> expectedState = expected.queryFullState(queryTime);
+                        List<ITmfStateInterval> actualState = actual.queryFullState(queryTime);
+                        assertEquals(expectedState.size(), actualState.size());
+                        for (int quark = 0; quark < expectedState.size(); quark++) {
+                            String expectedInterval = toString(expectedState.get(quark));
+                            assertEquals(expectedInterval, toString(actualState.get(quark)));
+                            assertEquals(expectedInterval, toString(actual.querySingleState(queryTime, quark)));
+                        }
+                    }
+                    List<@NonNull Integer> quarks = ImmutableList.of(
+                            expected.getQuarkAbsolute("CPUs", "3"),
+                            expected.getQuarkAbsolute("Threads", "5"));
+                    assertEquals(toSet(expected.query2D(quarks, end / 2, end)), toSet(actual.query2D(quarks, end / 2, end)));
+                }
+            }
+        } catch (StateValueTypeException | AttributeNotFoundException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        }
+        expected.closeHistory(END_TIME);
+        actual.closeHistory(END_TIME);
+        compare(expected, actual);
+    }
+
+    /**
+     * Create a sharded backend of two in-memory shards, with the even quarks
+     * in the first shard and the odd quarks in the second one. The first
+     * shard ends at 30 and the second one at 20.
+     */
+    private static ShardedBackend createEvenOddBackend() {
+        List<@NonNull IStateHistoryBackend> shards = ImmutableList.of(
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME),
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME));
+        ShardedBackend backend = new ShardedBackend(SSID, shards, quark -> quark % 2);
+        backend.insertPastState(0, 10, 0, TmfStateValue.newValueInt(0));
+        backend.insertPastState(0, 15, 3, TmfStateValue.newValueInt(3));
+        backend.insertPastState(0, 20, 1, TmfStateValue.newValueInt(1));
+        backend.insertPastState(5, 30, 2, TmfStateValue.newValueInt(2));
+        return backend;
+    }
+
+    /**
+     * Test that a full query fills the intervals of every shard in the same
+     * list, without a shard clearing the intervals of another one
+     *
+     * @throws StateSystemDisposedException
+     *             Should not happen
+     */
+    @Test
+    public void testFullQuery() throws StateSystemDisposedException {
+        ShardedBackend backend = createEvenOddBackend();
+        assertEquals(30, backend.getEndTime());
+
+        List<@Nullable ITmfStateInterval> state = new ArrayList<>(Collections.nCopies(4, null));
+        backend.doQuery(state, 7);
+        for (int quark = 0; quark < state.size(); quark++) {
+            ITmfStateInterval interval = state.get(quark);
+            assertNotNull(interval);
+            assertEquals(quark, interval.getAttribute());
+            assertEquals(quark, interval.getStateValue().unboxInt());
+        }
+
+        /* The second shard ends before 25, only quark 2 has a state */
+        state = new ArrayList<>(Collections.nCopies(4, null));
+        backend.doQuery(state, 25);
+        assertNull(state.get(0));
+        assertNull(state.get(1));
+        assertNotNull(state.get(2));
+        assertNull(state.get(3));
+    }
+
+    /**
+     * Test single queries on a shard which ends before the other ones
+     *
+     * @throws StateSystemDisposedException
+     *             Should not happen
+     * @throws AttributeNotFoundException
+     *             Should not happen
+     */
+    @Test
+    public void testSingularQuery() throws StateSystemDisposedException, AttributeNotFoundException {
+        ShardedBackend backend = createEvenOddBackend();
+        ITmfStateInterval interval = backend.doSingularQuery(18, 1);
+        assertNotNull(interval);
+        assertEquals(1, interval.getStateValue().unboxInt());
+
+        interval = backend.doSingularQuery(25, 2);
+        assertNotNull(interval);
+        assertEquals(2, interval.getStateValue().unboxInt());
+
+        /* The second shard is queried up to its own end, which grows */
+        backend.insertPastState(21, 28, 1, TmfStateValue.newValueInt(5));
+        interval = backend.doSingularQuery(25, 1);
+        assertNotNull(interval);
+        assertEquals(5, interval.getStateValue().unboxInt());
+    }
+
+    /**
+     * Test range queries over quarks of both shards, past the end of one of
+     * them
+     *
+     * @throws StateSystemDisposedException
+     *             Should not happen
+     */
+    @Test
+    public void testRangeQuery() throws StateSystemDisposedException {
+        ShardedBackend backend = createEvenOddBackend();
+        Set<String> intervals = toSet(backend.query2D(ImmutableList.of(1, 2), 12, 28, 1));
+        assertEquals(2, intervals.size());
+        assertTrue(intervals.contains("1:[0, 20] " + TmfStateValue.newValueInt(1)));
+        assertTrue(intervals.contains("2:[5, 30] " + TmfStateValue.newValueInt(2)));
+
+        /* Only the first shard reaches 25 */
+        intervals = toSet(backend.query2D(ImmutableList.of(0, 1, 2, 3), 25, 30, 1));
+        assertEquals(Collections.singleton("2:[5, 30] " + TmfStateValue.newValueInt(2)), intervals);
+    }
+
+    /**
+     * Test that a range query outside of the backend's range fails
+     *
+     * @throws StateSystemDisposedException
+     *             Should not happen
+     */
+    @Test(expected = TimeRangeException.class)
+    public void testRangeQueryOutOfRange() throws StateSystemDisposedException {
+        createEvenOddBackend().query2D(ImmutableList.of(0, 1), 10, 31, 1);
+    }
+
+    /**
+     * Test that a shard function returning an invalid shard is detected
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidShard() {
+        List<@NonNull IStateHistoryBackend> shards = ImmutableList.of(
+                StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME));
+        ShardedBackend backend = new ShardedBackend(SSID, shards, quark -> quark);
+        backend.insertPastState(0, 10, 1, TmfStateValue.newValueInt(1));
+    }
+
+    /**
+     * Test that a sharded backend cannot be created without shards
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoShard() {
+        new ShardedBackend(SSID, Collections.emptyList(), quark -> 0);
+    }
+}
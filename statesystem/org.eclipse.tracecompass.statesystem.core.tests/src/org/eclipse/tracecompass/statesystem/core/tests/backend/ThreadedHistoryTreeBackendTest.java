@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.statesystem.core.tests.backend;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.ThreadedHistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the threaded history tree backend, whose closed nodes are written by a
+ * separate thread.
+ */
+public class ThreadedHistoryTreeBackendTest {
+
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 10000;
+    private static final int NB_ATTRIBUTES = 20;
+    private static final int QUEUE_SIZE = 1000;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+
+    private final List<File> fFiles = new ArrayList<>();
+
+    /**
+     * Create the history files
+     */
+    @Before
+    public void setupTest() {
+        try {
+            fFiles.add(File.createTempFile("tmpStateSystem", null));
+            fFiles.add(File.createTempFile("tmpStateSystem", null));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the history files
+     */
+    @After
+    public void cleanup() {
+        for (File file : fFiles) {
+            file.delete();
+        }
+    }
+
+    private static ThreadedHistoryTreeBackend createBackend(File file, boolean nodeWriter) throws IOException {
+        return new ThreadedHistoryTreeBackend("threaded-test", file, 1, START_TIME,
+                QUEUE_SIZE, BLOCK_SIZE, MAX_CHILDREN, nodeWriter);
+    }
+
+    /**
+     * Insert the intervals in end time order, each attribute at its own rate,
+     * up to the given time.
+     */
+    private static void fill(HistoryTreeBackend backend, long[] stateStarts, long from, long to) {
+        for (long t = from; t < to; t++) {
+            for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                if (t % (quark + 3) == 0) {
+                    backend.insertPastState(stateStarts[quark], t - 1, quark, TmfStateValue.newValueLong(t));
+                    stateStarts[quark] = t;
+                }
+            }
+        }
+    }
+
+    private static void finish(HistoryTreeBackend backend, long[] stateStarts) {
+        for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+            backend.insertPastState(stateStarts[quark], END_TIME, quark, TmfStateValue.nullValue());
+        }
+        backend.finishedBuilding(END_TIME);
+    }
+
+    /**
+     * Test that the file written with the node writer thread is the same as
+     * the one written by the insertion thread
+     *
+     * @throws IOException
+     *             If the files cannot be read
+     */
+    @Test
+    public void testSameFile() throws IOException {
+        for (int i = 0; i < fFiles.size(); i++) {
+            ThreadedHistoryTreeBackend backend = createBackend(fFiles.get(i), i == 0);
+            long[] stateStarts = new long[NB_ATTRIBUTES];
+            fill(backend, stateStarts, START_TIME + 1, END_TIME);
+            finish(backend, stateStarts);
+            backend.dispose();
+        }
+        byte[] expected = Files.readAllBytes(fFiles.get(1).toPath());
+        assertArrayEquals(expected, Files.readAllBytes(fFiles.get(0).toPath()));
+
+        HistoryTreeBackend reopened = new HistoryTreeBackend("threaded-test", fFiles.get(0), 1);
+        try {
+            ITmfStateInterval interval = reopened.doSingularQuery(END_TIME - 1, NB_ATTRIBUTES - 1);
+            assertNotNull(interval);
+            assertEquals(TmfStateValue.nullValue(), interval.getStateValue());
+        } catch (StateSystemDisposedException e) {
+            fail(e.getMessage());
+        } finally {
+            reopened.dispose();
+        }
+    }
+
+    /**
+     * Test queries while the history is being built, when some of the nodes
+     * may be waiting to be written
+     */
+    @Test
+    public void testQueriesWhileBuilding() {
+        ThreadedHistoryTreeBackend backend = null;
+        try {
+            backend = createBackend(fFiles.get(0), true);
+            long[] stateStarts = new long[NB_ATTRIBUTES];
+            long time = START_TIME + 1;
+            for (long step = 1000; time + step <= END_TIME; time += step) {
+                fill(backend, stateStarts, time, time + step);
+                /* Every past state must be found, in the tree or in the queue */
+                for (long t = START_TIME; t < time; t += 97) {
+                    for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                        ITmfStateInterval interval = backend.doSingularQuery(t, quark);
+                        assertNotNull("Quark " + quark + " at " + t, interval);
+                        assertEquals(quark, interval.getAttribute());
+                    }
+                }
+            }
+            fill(backend, stateStarts, time, END_TIME);
+            finish(backend, stateStarts);
+            assertTrue(backend.getFileSize() > BLOCK_SIZE);
+        } catch (IOException | StateSystemDisposedException e) {
+            fail(e.getMessage());
+        } finally {
+            if (backend != null) {
+                backend.dispose();
+            }
+        }
+    }
+
+    /**
+     * Test disposing of the backend before the history is built
+     */
+    @Test
+    public void testDisposeWhileBuilding() {
+        try {
+            ThreadedHistoryTreeBackend backend = createBackend(fFiles.get(0), true);
+            long[] stateStarts = new long[NB_ATTRIBUTES];
+            fill(backend, stateStarts, START_TIME + 1, END_TIME);
+            backend.dispose();
+            assertFalse(fFiles.get(0).exists());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Array to which elements can only be appended, and which can be read without
+ * locking while an element is added.
+ *
+ * Only one thread may append at a time, the callers are responsible for that.
+ * An element is visible to the readers once the size includes it: the element
+ * is stored before the volatile size is written, and the array is only
+ * replaced by a bigger copy already containing the previous elements.
+ *
+ * @param <E>
+ *            The type of the elements
+ */
+final class AppendOnlyArray<@NonNull E> {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private volatile Object[] fElements = new Object[INITIAL_CAPACITY];
+    private volatile int fSize = 0;
+
+    /**
+     * Add an element at the end of the array. Calls to this method must be
+     * serialized by the caller.
+     *
+     * @param element
+     *            The element to add
+     */
+    public void add(E element) {
+        int size = fSize;
+        Object[] elements = fElements;
+        if (size == elements.length) {
+            elements = Arrays.copyOf(elements, size * 2);
+            fElements = elements;
+        }
+        elements[size] = element;
+        fSize = size + 1;
+    }
+
+    /**
+     * Get an element of the array
+     *
+     * @param index
+     *            The index of the element
+     * @return The element
+     * @throws IndexOutOfBoundsException
+     *             If the index is negative or not below the size
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        /* Read the size first, the array read after it contains the element */
+        if (index < 0 || index >= fSize) {
+            throw new IndexOutOfBoundsException("Index: " + index); //$NON-NLS-1$
+        }
+        return (E) fElements[index];
+    }
+
+    /**
+     * Get the number of elements
+     *
+     * @return The number of elements
+     */
+    public int size() {
+        return fSize;
+    }
+
+    /**
+     * Get a copy of the elements currently in the array
+     *
+     * @return The elements, in the order they were added
+     */
+    @SuppressWarnings("unchecked")
+    public List<E> snapshot() {
+        int size = fSize;
+        Object[] elements = fElements;
+        ImmutableList.Builder<E> builder = ImmutableList.builder();
+        for (int i = 0; i < size; i++) {
+            builder.add((E) elements[i]);
+        }
+        return builder.build();
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2012, 2015 Ericsson, EfficiOS Inc.
+ * Copyright (c) 2012, 2016 Ericsson, EfficiOS Inc.
  * Copyright (c) 2010, 2011 École Polytechnique de Montréal
  * Copyright (c) 2010, 2011 Alexandre Montplaisir <alexandre.montplaisir@gmail.com>
  *
@@ -18,16 +18,13 @@ import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
 import static org.eclipse.tracecompass.statesystem.core.ITmfStateSystem.INVALID_ATTRIBUTE;
 
 import java.io.PrintWriter;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
 
-import com.google.common.collect.ImmutableList;
-
 /**
  * An Attribute is a "node" in the Attribute Tree. It represents a smallest
  * unit of the model which can be in a particular state at a given time.
@@ -44,9 +41,16 @@ public final class Attribute {
     private final @NonNull String name;
     private final int quark;
 
-    /** The sub-attributes (<basename, attribute>) of this attribute */
+    /**
+     * The sub-attributes (<basename, attribute>) of this attribute. The map is
+     * concurrent so that lookups do not need any lock while attributes are
+     * added.
+     */
     private final Map<String, Attribute> subAttributes;
 
+    /** The sub-attributes, in the order they were added */
+    private final AppendOnlyArray<@NonNull Attribute> subAttributeList;
+
     /**
      * Constructor
      *
@@ -62,7 +66,8 @@ public final class Attribute {
         this.parent = parent;
         this.quark = quark;
         this.name = name;
-        this.subAttributes = Collections.synchronizedMap(new LinkedHashMap<String, Attribute>());
+        this.subAttributes = new ConcurrentHashMap<>();
+        this.subAttributeList = new AppendOnlyArray<>();
     }
 
     // ------------------------------------------------------------------------
@@ -93,7 +98,7 @@ public final class Attribute {
      * @return The child attributes.
      */
     public Iterable<Attribute> getSubAttributes() {
-        return ImmutableList.copyOf(subAttributes.values());
+        return subAttributeList.snapshot();
     }
 
     /**
@@ -158,7 +163,9 @@ public final class Attribute {
     /* The methods how to access children are left to derived classes */
 
     /**
-     * Add a sub-attribute to this attribute
+     * Add a sub-attribute to this attribute. The sub-attributes of an
+     * attribute must not be added concurrently, but they can be read while
+     * one is added.
      *
      * @param newSubAttribute The new attribute to add
      */
@@ -166,6 +173,7 @@ public final class Attribute {
         if (newSubAttribute == null) {
             throw new IllegalArgumentException();
         }
+        subAttributeList.add(newSubAttribute);
         subAttributes.put(newSubAttribute.getName(), newSubAttribute);
     }
 
@@ -180,7 +188,12 @@ public final class Attribute {
      * @return The requested attribute
      */
     private Attribute getSubAttributeNode(String[] path, int index) {
-        final Attribute nextNode = subAttributes.get(path[index]);
+        String childName = path[index];
+        if (childName == null) {
+            /* The concurrent map does not accept null keys */
+            return null;
+        }
+        final Attribute nextNode = subAttributes.get(childName);
 
         if (nextNode == null) {
             /* We don't have the expected child => the attribute does not exist */
@@ -20,18 +20,26 @@ import static org.eclipse.tracecompass.statesystem.core.ITmfStateSystem.INVALID_
 import static org.eclipse.tracecompass.statesystem.core.ITmfStateSystem.ROOT_ATTRIBUTE;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 
@@ -40,6 +48,13 @@ import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundExc
  * Each node of this tree is both like a file and a directory in the
  * "file system".
  *
+ * The lookups do not take any lock, so the views can read the tree while the
+ * state provider adds attributes to it. Only the creation of new attributes is
+ * serialized. Attributes are never removed, so the quark of a path never
+ * changes, and recently looked up paths are kept in a small cache indexed by
+ * their hash, which finds paths like "Threads/1234/Status" with a single
+ * lookup and without allocating.
+ *
  * @author alexmont
  *
  */
@@ -48,10 +63,51 @@ public final class AttributeTree {
     /* "Magic number" for attribute tree files or file sections */
     private static final int ATTRIB_TREE_MAGIC_NUMBER = 0x06EC3671;
 
+    /* Magic number of the compact format, which does not use serialization */
+    private static final int COMPACT_ATTRIB_TREE_MAGIC_NUMBER = 0x06EC3672;
+
+    /*
+     * Number of entries of the path cache, rounded up to a power of 2. The
+     * cache is disabled if it is set to 0.
+     */
+    private static final int QUARK_CACHE_SIZE = Integer.getInteger("org.eclipse.tracecompass.statesystem.core.quarkCacheSize", 4096); //$NON-NLS-1$
+
     private final StateSystem ss;
-    private final List<Attribute> attributeList;
+    private final AppendOnlyArray<@NonNull Attribute> attributeList;
     private final Attribute attributeTreeRoot;
 
+    /*
+     * The entries are immutable, so they can be replaced without locking. A
+     * reader may miss an entry that was just added, in which case it simply
+     * looks up the path in the tree.
+     */
+    private final @Nullable CachedPath @Nullable [] quarkCache;
+
+    /** Entry of the path cache */
+    private static final class CachedPath {
+        private final int startingQuark;
+        private final String[] path;
+        private final int quark;
+
+        public CachedPath(int startingQuark, String[] path, int quark) {
+            this.startingQuark = startingQuark;
+            this.path = path;
+            this.quark = quark;
+        }
+
+        public boolean matches(int start, String[] subPath) {
+            if (start != startingQuark || subPath.length != path.length) {
+                return false;
+            }
+            for (int i = 0; i < subPath.length; i++) {
+                if (!Objects.equals(path[i], subPath[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     /**
      * Standard constructor, create a new empty Attribute Tree
      *
@@ -60,14 +116,19 @@ public final class AttributeTree {
      */
     public AttributeTree(StateSystem ss) {
         this.ss = ss;
-        this.attributeList = new ArrayList<>();
+        this.attributeList = new AppendOnlyArray<>();
         this.attributeTreeRoot = new Attribute(null, "root", ROOT_ATTRIBUTE); //$NON-NLS-1$
+        this.quarkCache = (QUARK_CACHE_SIZE > 0 ?
+                new @Nullable CachedPath[Integer.highestOneBit(Math.max(QUARK_CACHE_SIZE - 1, 1)) << 1] : null);
     }
 
     /**
      * "Existing file" constructor. Builds an attribute tree from a
      * "mapping file" or mapping section previously saved somewhere.
      *
+     * Both the compact format written by {@link #writeSelf(File, long)} and the
+     * serialized list of paths of older files are supported.
+     *
      * @param ss
      *            StateSystem to which this AT is attached
      * @param fis
@@ -78,15 +139,64 @@ public final class AttributeTree {
      */
     public AttributeTree(StateSystem ss, FileInputStream fis) throws IOException {
         this(ss);
-        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(fis));
+        BufferedInputStream bis = new BufferedInputStream(fis);
 
         /* Read the header of the Attribute Tree file (or file section) */
+        bis.mark(Integer.BYTES);
+        DataInputStream dis = new DataInputStream(bis);
+        if (dis.readInt() == COMPACT_ATTRIB_TREE_MAGIC_NUMBER) {
+            readCompact(dis);
+            return;
+        }
+        bis.reset();
+        readSerialized(bis);
+    }
+
+    /**
+     * Read the compact format: the pool of attribute names, then the parent
+     * quark and the index of the name of each attribute, in quark order. The
+     * parent of an attribute always comes before it, so the tree is rebuilt
+     * in a single pass.
+     */
+    private void readCompact(DataInputStream dis) throws IOException {
+        int nbNames = dis.readInt();
+        if (nbNames < 0) {
+            throw new IOException("Invalid number of attribute names: " + nbNames); //$NON-NLS-1$
+        }
+        String[] names = new String[nbNames];
+        for (int i = 0; i < nbNames; i++) {
+            byte[] bytes = new byte[dis.readInt()];
+            dis.readFully(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int nbAttributes = dis.readInt();
+        for (int quark = 0; quark < nbAttributes; quark++) {
+            int parentQuark = dis.readInt();
+            int nameIndex = dis.readInt();
+            if (parentQuark < ROOT_ATTRIBUTE || parentQuark >= quark || nameIndex < 0 || nameIndex >= nbNames) {
+                throw new IOException("The attribute tree file section is either invalid or corrupted."); //$NON-NLS-1$
+            }
+            Attribute parent = getStartingNode(parentQuark);
+            Attribute attribute = new Attribute(parent, checkNotNull(names[nameIndex]), quark);
+            ss.addEmptyAttribute();
+            attributeList.add(attribute);
+            parent.addSubAttribute(attribute);
+        }
+    }
+
+    /**
+     * Read the format of older files, a serialized list of the full paths of
+     * the attributes.
+     */
+    private void readSerialized(InputStream is) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(is);
+
         int res = ois.readInt(); /* Magic number */
         if (res != ATTRIB_TREE_MAGIC_NUMBER) {
             throw new IOException("The attribute tree file section is either invalid or corrupted."); //$NON-NLS-1$
         }
 
-
         ArrayList<String[]> attribList;
         try {
             @SuppressWarnings("unchecked")
@@ -117,17 +227,38 @@ public final class AttributeTree {
         try (FileOutputStream fos = new FileOutputStream(file, true);
                 FileChannel fc = fos.getChannel();) {
             fc.position(pos);
-            try (ObjectOutputStream oos = new ObjectOutputStream(fos)) {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))) {
+
+                dos.writeInt(COMPACT_ATTRIB_TREE_MAGIC_NUMBER);
+
+                /* Many attributes have the same name, write each name once */
+                List<Attribute> attributes = attributeList.snapshot();
+                Map<String, Integer> nameIndexes = new HashMap<>();
+                List<String> names = new ArrayList<>();
+                int[] attributeNames = new int[attributes.size()];
+                for (int i = 0; i < attributes.size(); i++) {
+                    String name = attributes.get(i).getName();
+                    Integer index = nameIndexes.get(name);
+                    if (index == null) {
+                        index = names.size();
+                        nameIndexes.put(name, index);
+                        names.add(name);
+                    }
+                    attributeNames[i] = index;
+                }
 
-                /* Write the almost-magic number */
-                oos.writeInt(ATTRIB_TREE_MAGIC_NUMBER);
+                dos.writeInt(names.size());
+                for (String name : names) {
+                    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    dos.writeInt(bytes.length);
+                    dos.write(bytes);
+                }
 
-                /* Compute the serialized list of attributes and write it */
-                List<String[]> list = new ArrayList<>(attributeList.size());
-                for (Attribute entry : this.attributeList) {
-                    list.add(entry.getFullAttribute());
+                dos.writeInt(attributes.size());
+                for (int i = 0; i < attributes.size(); i++) {
+                    dos.writeInt(attributes.get(i).getParentAttributeQuark());
+                    dos.writeInt(attributeNames[i]);
                 }
-                oos.writeObject(list);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -142,7 +273,7 @@ public final class AttributeTree {
      *
      * @return The current number of attributes in the tree
      */
-    public synchronized int getNbAttributes() {
+    public int getNbAttributes() {
         return attributeList.size();
     }
 
@@ -161,24 +292,47 @@ public final class AttributeTree {
      *         {@link ITmfStateSystem#INVALID_ATTRIBUTE} if that attribute does
      *         not exist.
      */
-    public synchronized int getQuarkDontAdd(int startingNodeQuark, String... subPath) {
+    public int getQuarkDontAdd(int startingNodeQuark, String... subPath) {
         assert (startingNodeQuark >= ROOT_ATTRIBUTE);
 
-        Attribute prevNode;
-
         /* If subPath is empty, simply return the starting quark */
         if (subPath == null || subPath.length == 0) {
             return startingNodeQuark;
         }
 
-        /* Get the "starting node" */
+        /* Paths of one element are found just as fast in the tree */
+        @Nullable CachedPath[] cache = quarkCache;
+        if (cache == null || subPath.length == 1) {
+            return getStartingNode(startingNodeQuark).getSubAttributeQuark(subPath);
+        }
+
+        int index = hash(startingNodeQuark, subPath) & (cache.length - 1);
+        CachedPath entry = cache[index];
+        if (entry != null && entry.matches(startingNodeQuark, subPath)) {
+            return entry.quark;
+        }
+
+        int quark = getStartingNode(startingNodeQuark).getSubAttributeQuark(subPath);
+        if (quark != INVALID_ATTRIBUTE) {
+            /* The caller may reuse its array */
+            cache[index] = new CachedPath(startingNodeQuark, subPath.clone(), quark);
+        }
+        return quark;
+    }
+
+    private Attribute getStartingNode(int startingNodeQuark) {
         if (startingNodeQuark == ROOT_ATTRIBUTE) {
-            prevNode = attributeTreeRoot;
-        } else {
-            prevNode = attributeList.get(startingNodeQuark);
+            return attributeTreeRoot;
         }
+        return attributeList.get(startingNodeQuark);
+    }
 
-        return prevNode.getSubAttributeQuark(subPath);
+    private static int hash(int startingNodeQuark, String[] subPath) {
+        int hash = startingNodeQuark;
+        for (String element : subPath) {
+            hash = 31 * hash + Objects.hashCode(element);
+        }
+        return hash ^ (hash >>> 16);
     }
 
     /**
@@ -194,46 +348,40 @@ public final class AttributeTree {
      *            The path to the attribute, relative to the starting node.
      * @return The quark of the attribute represented by the path
      */
-    public synchronized int getQuarkAndAdd(int startingNodeQuark, String... subPath) {
-        // FIXME synchronized here is probably quite costly... maybe only locking
-        // the "for" would be enough?
+    public int getQuarkAndAdd(int startingNodeQuark, String... subPath) {
         assert (subPath != null && subPath.length > 0);
         assert (startingNodeQuark >= ROOT_ATTRIBUTE);
 
-        Attribute nextNode = null;
-        Attribute prevNode;
-
-        /* Get the "starting node" */
-        if (startingNodeQuark == ROOT_ATTRIBUTE) {
-            prevNode = attributeTreeRoot;
-        } else {
-            prevNode = attributeList.get(startingNodeQuark);
+        /* Most of the time, the attribute already exists */
+        int knownQuark = getQuarkDontAdd(startingNodeQuark, subPath);
+        if (knownQuark != INVALID_ATTRIBUTE) {
+            return knownQuark;
         }
 
-        int knownQuark = prevNode.getSubAttributeQuark(subPath);
-        if (knownQuark == INVALID_ATTRIBUTE) {
-            /*
-             * The attribute was not in the table previously, and we want to add
-             * it
-             */
+        /*
+         * The attribute was not in the table previously, and we want to add
+         * it. Another thread may have added it in the meantime, so the path is
+         * walked again while holding the lock.
+         */
+        synchronized (this) {
+            Attribute prevNode = getStartingNode(startingNodeQuark);
+            Attribute nextNode = prevNode;
             for (String curDirectory : subPath) {
                 nextNode = prevNode.getSubAttributeNode(curDirectory);
                 if (nextNode == null) {
-                    /* This is where we need to start adding */
+                    /*
+                     * This is where we need to start adding. The attribute is
+                     * visible by its quark before it is visible by its path.
+                     */
                     nextNode = new Attribute(prevNode, checkNotNull(curDirectory), attributeList.size());
-                    prevNode.addSubAttribute(nextNode);
-                    attributeList.add(nextNode);
                     ss.addEmptyAttribute();
+                    attributeList.add(nextNode);
+                    prevNode.addSubAttribute(nextNode);
                 }
                 prevNode = nextNode;
             }
-            return attributeList.size() - 1;
+            return nextNode.getQuark();
         }
-        /*
-         * The attribute was already existing, return the quark of that
-         * attribute
-         */
-        return knownQuark;
     }
 
     /**
@@ -250,7 +398,7 @@ public final class AttributeTree {
      *             If 'attributeQuark' is invalid, or if there is no attribute
      *             associated to it.
      */
-    public synchronized @NonNull List<@NonNull Integer> getSubAttributes(int attributeQuark, boolean recursive)
+    public @NonNull List<@NonNull Integer> getSubAttributes(int attributeQuark, boolean recursive)
             throws AttributeNotFoundException {
         List<@NonNull Integer> listOfChildren = new ArrayList<>();
         Attribute startingAttribute;
@@ -261,11 +409,7 @@ public final class AttributeTree {
         }
 
         /* Set up the node from which we'll start the search */
-        if (attributeQuark == ROOT_ATTRIBUTE) {
-            startingAttribute = attributeTreeRoot;
-        } else {
-            startingAttribute = attributeList.get(attributeQuark);
-        }
+        startingAttribute = getStartingNode(attributeQuark);
 
         /* Iterate through the sub-attributes and add them to the list */
         addSubAttributes(listOfChildren, startingAttribute, recursive);
@@ -282,7 +426,7 @@ public final class AttributeTree {
      * @return Quark of the parent attribute or
      *         {@link ITmfStateSystem#ROOT_ATTRIBUTE} for the root attribute
      */
-    public synchronized int getParentAttributeQuark(int quark) {
+    public int getParentAttributeQuark(int quark) {
         if (quark == ROOT_ATTRIBUTE) {
             return quark;
         }
@@ -306,7 +450,7 @@ public final class AttributeTree {
      *            The quark of the attribute
      * @return The (base) name of the attribute
      */
-    public synchronized @NonNull String getAttributeName(int quark) {
+    public @NonNull String getAttributeName(int quark) {
         return attributeList.get(quark).getName();
     }
 
@@ -317,7 +461,7 @@ public final class AttributeTree {
      *            The quark of the attribute
      * @return The full path name of the attribute
      */
-    public synchronized @NonNull String getFullAttributeName(int quark) {
+    public @NonNull String getFullAttributeName(int quark) {
         return attributeList.get(quark).getFullAttributeName();
     }
 
@@ -329,7 +473,7 @@ public final class AttributeTree {
      *            The quark of the attribute
      * @return The path elements of the full path
      */
-    public synchronized String @NonNull [] getFullAttributePathArray(int quark) {
+    public String @NonNull [] getFullAttributePathArray(int quark) {
         return attributeList.get(quark).getFullAttribute();
     }
 
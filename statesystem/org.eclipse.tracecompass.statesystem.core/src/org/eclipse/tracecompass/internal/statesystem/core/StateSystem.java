@@ -15,11 +15,15 @@
 
 package org.eclipse.tracecompass.internal.statesystem.core;
 
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -27,6 +31,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.TimeRangeCondition;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
 import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
@@ -38,6 +43,8 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
 import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
+import com.google.common.collect.Iterables;
+
 /**
  * This is the core class of the Generic State System. It contains all the
  * methods to build and query a state history. It's exposed externally through
@@ -62,7 +69,8 @@ public class StateSystem implements ITmfStateSystemBuilder {
     private final CountDownLatch finishedLatch = new CountDownLatch(1);
 
     private boolean buildCancelled = false;
-    private boolean isDisposed = false;
+    /* Checked by the queries, which do not take the state system's lock */
+    private volatile boolean isDisposed = false;
 
     /**
      * New-file constructor. For when you build a state system with a new file,
@@ -90,19 +98,63 @@ public class StateSystem implements ITmfStateSystemBuilder {
      */
     public StateSystem(@NonNull IStateHistoryBackend backend, boolean newFile)
             throws IOException {
+        this(backend, newFile, false);
+    }
+
+    /**
+     * Constructor which can resume the construction of an existing history,
+     * for example when its trace has grown since it was built. The back-end
+     * must then accept intervals ending after the end of the existing
+     * history. The state of each attribute at the end of the history becomes
+     * its ongoing state, and the construction continues from there.
+     *
+     * @param backend
+     *            The "state history storage" back-end to use.
+     * @param newFile
+     *            Put true if this is a new history started from scratch. It is
+     *            used to tell the state system where to get its attribute tree.
+     * @param resume
+     *            Put true to continue building an existing history. Ignored if
+     *            newFile is true.
+     * @throws IOException
+     *             If there was a problem creating the new history file, or
+     *             reading the existing one
+     */
+    public StateSystem(@NonNull IStateHistoryBackend backend, boolean newFile, boolean resume)
+            throws IOException {
         this.backend = backend;
         this.transState = new TransientState(backend);
 
         if (newFile) {
             attributeTree = new AttributeTree(this);
+        } else if (resume) {
+            /* We're continuing an existing file */
+            this.attributeTree = readAttributeTree();
+            long endTime = backend.getEndTime();
+            List<@Nullable ITmfStateInterval> lastStates = new ArrayList<>(getNbAttributes());
+            for (int i = 0; i < getNbAttributes(); i++) {
+                lastStates.add(null);
+            }
+            try {
+                backend.doQuery(lastStates, endTime);
+            } catch (StateSystemDisposedException e) {
+                throw new IOException(e);
+            }
+            transState.resumeOngoingState(lastStates, endTime);
         } else {
             /* We're opening an existing file */
-            this.attributeTree = new AttributeTree(this, backend.supplyAttributeTreeReader());
+            this.attributeTree = readAttributeTree();
             transState.setInactive();
             finishedLatch.countDown(); /* The history is already built */
         }
     }
 
+    /* The stream belongs to the back-end, which closes it when disposed */
+    @SuppressWarnings("resource")
+    private AttributeTree readAttributeTree() throws IOException {
+        return new AttributeTree(this, backend.supplyAttributeTreeReader());
+    }
+
     @Override
     public String getSSID() {
         return backend.getSSID();
@@ -401,6 +453,27 @@ public class StateSystem implements ITmfStateSystemBuilder {
         transState.processStateChange(t, value, attributeQuark);
     }
 
+    @Override
+    public void modifyAttribute(long t, int value, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException,
+            StateValueTypeException {
+        transState.processStateChange(t, value, attributeQuark);
+    }
+
+    @Override
+    public void modifyAttribute(long t, long value, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException,
+            StateValueTypeException {
+        transState.processStateChange(t, value, attributeQuark);
+    }
+
+    @Override
+    public void modifyAttribute(long t, double value, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException,
+            StateValueTypeException {
+        transState.processStateChange(t, value, attributeQuark);
+    }
+
     @Deprecated
     @Override
     public void incrementAttribute(long t, int attributeQuark)
@@ -412,8 +485,7 @@ public class StateSystem implements ITmfStateSystemBuilder {
         if (!stateValue.isNull()) {
             prevValue = stateValue.unboxInt();
         }
-        modifyAttribute(t, TmfStateValue.newValueInt(prevValue + 1),
-                attributeQuark);
+        modifyAttribute(t, prevValue + 1, attributeQuark);
     }
 
     @Override
@@ -450,7 +522,7 @@ public class StateSystem implements ITmfStateSystemBuilder {
         stackDepth++;
         subAttributeQuark = getQuarkRelativeAndAdd(attributeQuark, String.valueOf(stackDepth));
 
-        modifyAttribute(t, TmfStateValue.newValueInt(stackDepth), attributeQuark);
+        modifyAttribute(t, stackDepth, attributeQuark);
         modifyAttribute(t, value, subAttributeQuark);
     }
 
@@ -574,8 +646,13 @@ public class StateSystem implements ITmfStateSystemBuilder {
     //        Regular query methods (sent to the back-end)
     //--------------------------------------------------------------------------
 
+    /*
+     * Not synchronized: the transient state and the back-ends protect their
+     * own data, so full queries can run concurrently with each other and with
+     * the construction of the history.
+     */
     @Override
-    public synchronized List<ITmfStateInterval> queryFullState(long t)
+    public List<ITmfStateInterval> queryFullState(long t)
             throws TimeRangeException, StateSystemDisposedException {
         if (isDisposed) {
             throw new StateSystemDisposedException();
@@ -638,6 +715,58 @@ public class StateSystem implements ITmfStateSystemBuilder {
         return ret;
     }
 
+    @Override
+    public Iterable<@NonNull ITmfStateInterval> query2D(Collection<@NonNull Integer> quarks,
+            long start, long end) throws StateSystemDisposedException {
+        return query2D(quarks, start, end, 1);
+    }
+
+    @Override
+    public Iterable<@NonNull ITmfStateInterval> query2D(Collection<@NonNull Integer> quarks,
+            long start, long end, long resolution) throws StateSystemDisposedException {
+        if (isDisposed) {
+            throw new StateSystemDisposedException();
+        }
+        if (end < start) {
+            throw new TimeRangeException(getSSID() + " Start:" + start + ", End:" + end); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        final int nbAttr = getNbAttributes();
+        for (Integer quark : quarks) {
+            if (quark < 0 || quark >= nbAttr) {
+                throw new IndexOutOfBoundsException(getSSID() + " Quark:" + quark); //$NON-NLS-1$
+            }
+        }
+        final long rangeStart = Math.max(start, getStartTime());
+        final long rangeEnd = Math.min(end, getCurrentEndTime());
+        if (quarks.isEmpty() || rangeEnd < rangeStart) {
+            return Collections.emptyList();
+        }
+
+        /* Query the storage backend, over the part of the range it covers */
+        Iterable<@NonNull ITmfStateInterval> intervals = Collections.emptyList();
+        final long backendEnd = Math.min(rangeEnd, backend.getEndTime());
+        if (rangeStart <= backendEnd) {
+            intervals = backend.query2D(quarks, rangeStart, backendEnd, resolution);
+        }
+
+        /*
+         * If we are currently building the history, also query the "ongoing"
+         * states for stuff that might not yet be written to the history.
+         */
+        if (transState.isActive()) {
+            TimeRangeCondition times = new TimeRangeCondition(rangeStart, rangeEnd, resolution);
+            List<@NonNull ITmfStateInterval> ongoing = new ArrayList<>();
+            for (Integer quark : quarks) {
+                ITmfStateInterval interval = transState.getIntervalAt(rangeEnd, quark);
+                if (interval != null && times.intersects(interval.getStartTime(), rangeEnd)) {
+                    ongoing.add(interval);
+                }
+            }
+            intervals = checkNotNull(Iterables.concat(intervals, ongoing));
+        }
+        return intervals;
+    }
+
     //--------------------------------------------------------------------------
     //        Debug methods
     //--------------------------------------------------------------------------
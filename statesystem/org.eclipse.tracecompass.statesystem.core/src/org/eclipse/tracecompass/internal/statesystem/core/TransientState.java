@@ -15,10 +15,13 @@
 
 package org.eclipse.tracecompass.internal.statesystem.core;
 
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
@@ -50,14 +53,26 @@ public class TransientState {
     /* Indicates where to insert state changes that we generate */
     private final IStateHistoryBackend fBackend;
 
-    private final ReentrantReadWriteLock fRWLock = new ReentrantReadWriteLock(false);
+    private static final int INITIAL_CAPACITY = 16;
+
+    /*
+     * The state changes take the write lock. The single queries first try an
+     * optimistic read, which does not write to shared memory, so that
+     * concurrent readers do not slow each other down.
+     */
+    private final StampedLock fLock = new StampedLock();
 
     private volatile boolean fIsActive;
     private volatile long fLatestTime;
 
-    /* A method accessing these arrays will have to go through the lock */
+    /*
+     * A method accessing these arrays will have to go through the lock. The
+     * start times are kept in a primitive array, whose capacity can be bigger
+     * than the number of attributes, to avoid boxing one Long per state
+     * change.
+     */
     private List<ITmfStateValue> fOngoingStateInfo;
-    private List<Long> fOngoingStateStartTimes;
+    private long[] fOngoingStateStartTimes;
     private List<Type> fStateValueTypes;
 
     /**
@@ -70,7 +85,7 @@ public class TransientState {
         fBackend = backend;
         fIsActive = true;
         fOngoingStateInfo = new ArrayList<>();
-        fOngoingStateStartTimes = new ArrayList<>();
+        fOngoingStateStartTimes = new long[INITIAL_CAPACITY];
         fStateValueTypes = new ArrayList<>();
 
         fLatestTime = backend.getStartTime();
@@ -95,12 +110,12 @@ public class TransientState {
      *             If the quark is invalid
      */
     public ITmfStateValue getOngoingStateValue(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
+        long stamp = fLock.readLock();
         try {
             checkValidAttribute(quark);
             return fOngoingStateInfo.get(quark);
         } finally {
-            fRWLock.readLock().unlock();
+            fLock.unlockRead(stamp);
         }
     }
 
@@ -114,12 +129,12 @@ public class TransientState {
      *             If the quark is invalid
      */
     public long getOngoingStartTime(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
+        long stamp = fLock.readLock();
         try {
             checkValidAttribute(quark);
-            return fOngoingStateStartTimes.get(quark);
+            return fOngoingStateStartTimes[quark];
         } finally {
-            fRWLock.readLock().unlock();
+            fLock.unlockRead(stamp);
         }
     }
 
@@ -136,12 +151,12 @@ public class TransientState {
      */
     public void changeOngoingStateValue(int quark, ITmfStateValue newValue)
             throws AttributeNotFoundException {
-        fRWLock.writeLock().lock();
+        long stamp = fLock.writeLock();
         try {
             checkValidAttribute(quark);
             fOngoingStateInfo.set(quark, newValue);
         } finally {
-            fRWLock.writeLock().unlock();
+            fLock.unlockWrite(stamp);
         }
     }
 
@@ -157,13 +172,13 @@ public class TransientState {
      *             If the quark is invalid
      */
     public ITmfStateInterval getOngoingInterval(int quark) throws AttributeNotFoundException {
-        fRWLock.readLock().lock();
+        long stamp = fLock.readLock();
         try {
             checkValidAttribute(quark);
-            return new TmfStateInterval(fOngoingStateStartTimes.get(quark), fLatestTime,
+            return new TmfStateInterval(fOngoingStateStartTimes[quark], fLatestTime,
                     quark, fOngoingStateInfo.get(quark));
         } finally {
-            fRWLock.readLock().unlock();
+            fLock.unlockRead(stamp);
         }
     }
 
@@ -180,19 +195,42 @@ public class TransientState {
      *         this transient state, or null if we couldn't.
      */
     public @Nullable ITmfStateInterval getIntervalAt(long time, int quark) {
-        fRWLock.readLock().lock();
-        try {
-            checkValidAttribute(quark);
-            if (!isActive() || time < fOngoingStateStartTimes.get(quark)) {
-                return null;
-            }
-            return new TmfStateInterval(fOngoingStateStartTimes.get(quark),
-                    fLatestTime, quark, fOngoingStateInfo.get(quark));
-        } catch (AttributeNotFoundException e) {
+        if (!fIsActive) {
+            /* The history is built, nothing changes here anymore */
             return null;
+        }
+        long stamp = fLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                ITmfStateInterval interval = readIntervalAt(time, quark);
+                if (fLock.validate(stamp)) {
+                    return interval;
+                }
+            } catch (RuntimeException e) {
+                /* Inconsistent read during a state change, retried below */
+            }
+        }
+        stamp = fLock.readLock();
+        try {
+            return readIntervalAt(time, quark);
         } finally {
-            fRWLock.readLock().unlock();
+            fLock.unlockRead(stamp);
+        }
+    }
+
+    /*
+     * Should only be called with the read lock taken, or in an optimistic read
+     * which is validated afterwards.
+     */
+    private @Nullable ITmfStateInterval readIntervalAt(long time, int quark) {
+        if (!fIsActive || quark < 0 || quark >= fOngoingStateInfo.size()) {
+            return null;
+        }
+        long start = fOngoingStateStartTimes[quark];
+        if (time < start) {
+            return null;
         }
+        return new TmfStateInterval(start, fLatestTime, quark, fOngoingStateInfo.get(quark));
     }
 
     private void checkValidAttribute(int quark) throws AttributeNotFoundException {
@@ -215,19 +253,54 @@ public class TransientState {
     public void replaceOngoingState(List<ITmfStateInterval> newStateIntervals) {
         final int size = newStateIntervals.size();
 
-        fRWLock.writeLock().lock();
+        long stamp = fLock.writeLock();
         try {
             fOngoingStateInfo = new ArrayList<>(size);
-            fOngoingStateStartTimes = new ArrayList<>(size);
+            fOngoingStateStartTimes = new long[Math.max(size, INITIAL_CAPACITY)];
             fStateValueTypes = new ArrayList<>(size);
 
             for (ITmfStateInterval interval : newStateIntervals) {
+                fOngoingStateStartTimes[fOngoingStateInfo.size()] = interval.getStartTime();
                 fOngoingStateInfo.add(interval.getStateValue());
-                fOngoingStateStartTimes.add(interval.getStartTime());
                 fStateValueTypes.add(interval.getStateValue().getType());
             }
         } finally {
-            fRWLock.writeLock().unlock();
+            fLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Restore the ongoing state of a history whose construction was closed,
+     * to continue building it. Each attribute keeps its last state of the
+     * history, as if it had changed right after the end of the history: the
+     * intervals that were ongoing when the history was closed are split at
+     * that time.
+     *
+     * @param lastStates
+     *            The state of each attribute at the end time of the history.
+     *            Attributes without an interval are in the null state.
+     * @param endTime
+     *            The end time of the history
+     */
+    public void resumeOngoingState(List<@Nullable ITmfStateInterval> lastStates, long endTime) {
+        final int size = lastStates.size();
+
+        long stamp = fLock.writeLock();
+        try {
+            fOngoingStateInfo = new ArrayList<>(size);
+            fOngoingStateStartTimes = new long[Math.max(size, INITIAL_CAPACITY)];
+            fStateValueTypes = new ArrayList<>(size);
+
+            for (ITmfStateInterval interval : lastStates) {
+                ITmfStateValue value = (interval == null ? TmfStateValue.nullValue() : interval.getStateValue());
+                fOngoingStateStartTimes[fOngoingStateInfo.size()] = endTime + 1;
+                fOngoingStateInfo.add(value);
+                fStateValueTypes.add(value.getType());
+            }
+            fLatestTime = endTime + 1;
+            fIsActive = true;
+        } finally {
+            fLock.unlockWrite(stamp);
         }
     }
 
@@ -237,7 +310,7 @@ public class TransientState {
      * attribute tree, namely when we add sub-path attributes.
      */
     public void addEmptyEntry() {
-        fRWLock.writeLock().lock();
+        long stamp = fLock.writeLock();
         try {
             /*
              * Since this is a new attribute, we suppose it was in the
@@ -245,12 +318,16 @@ public class TransientState {
              * covering for all timestamps). A null interval will then get added
              * at the first state change.
              */
+            int quark = fOngoingStateInfo.size();
+            if (quark == fOngoingStateStartTimes.length) {
+                fOngoingStateStartTimes = checkNotNull(Arrays.copyOf(fOngoingStateStartTimes, quark * 2));
+            }
+            fOngoingStateStartTimes[quark] = fBackend.getStartTime();
+
             fOngoingStateInfo.add(TmfStateValue.nullValue());
             fStateValueTypes.add(Type.NULL);
-
-            fOngoingStateStartTimes.add(fBackend.getStartTime());
         } finally {
-            fRWLock.writeLock().unlock();
+            fLock.unlockWrite(stamp);
         }
     }
 
@@ -277,60 +354,176 @@ public class TransientState {
             return;
         }
 
-        fRWLock.writeLock().lock();
+        long stamp = fLock.writeLock();
         try {
-            Type expectedSvType = fStateValueTypes.get(quark);
-            checkValidAttribute(quark);
+            changeState(eventTime, value, quark);
+        } finally {
+            fLock.unlockWrite(stamp);
+        }
+    }
 
-            /*
-             * Make sure the state value type we're inserting is the same as the
-             * one registered for this attribute.
-             */
-            if (expectedSvType == Type.NULL) {
-                /*
-                 * The value hasn't been used yet, set it to the value we're
-                 * currently inserting (which might be null/-1 again).
-                 */
-                fStateValueTypes.set(quark, value.getType());
-            } else if ((value.getType() != Type.NULL) && (value.getType() != expectedSvType)) {
-                /*
-                 * We authorize inserting null values in any type of attribute,
-                 * but for every other types, it needs to match our
-                 * expectations!
-                 */
-                throw new StateValueTypeException(fBackend.getSSID() + " Quark:" + quark + ", Type:" + value.getType() + ", Expected:" + expectedSvType); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-            }
+    /**
+     * Process a state change to an integer value. When the attribute already
+     * has this value, nothing is done and no state value object is created.
+     *
+     * @param eventTime
+     *            The timestamp associated with this state change
+     * @param value
+     *            The new value of this attribute
+     * @param quark
+     *            The quark of the attribute that is being modified
+     * @throws TimeRangeException
+     *             If 'eventTime' is invalid
+     * @throws AttributeNotFoundException
+     *             IF 'quark' does not represent an existing attribute
+     * @throws StateValueTypeException
+     *             If the attribute has values of another type
+     */
+    public void processStateChange(long eventTime, int value, int quark)
+            throws TimeRangeException, AttributeNotFoundException, StateValueTypeException {
+        if (!this.fIsActive) {
+            return;
+        }
 
-            if (fOngoingStateInfo.get(quark).equals(value)) {
-                /*
-                 * This is the case where the new value and the one already
-                 * present in the Builder are the same. We do not need to create
-                 * an interval, we'll just keep the current one going.
-                 */
+        long stamp = fLock.writeLock();
+        try {
+            checkValidAttribute(quark);
+            ITmfStateValue ongoingValue = fOngoingStateInfo.get(quark);
+            if (ongoingValue.getType() == Type.INTEGER && ongoingValue.unboxInt() == value) {
                 return;
             }
+            changeState(eventTime, TmfStateValue.newValueInt(value), quark);
+        } finally {
+            fLock.unlockWrite(stamp);
+        }
+    }
 
-            if (fOngoingStateStartTimes.get(quark) < eventTime) {
-                /*
-                 * These two conditions are necessary to create an interval and
-                 * update ongoingStateInfo.
-                 */
-                fBackend.insertPastState(fOngoingStateStartTimes.get(quark),
-                        eventTime - 1, /* End Time */
-                        quark, /* attribute quark */
-                        fOngoingStateInfo.get(quark)); /* StateValue */
+    /**
+     * Process a state change to a long value. When the attribute already has
+     * this value, nothing is done and no state value object is created.
+     *
+     * @param eventTime
+     *            The timestamp associated with this state change
+     * @param value
+     *            The new value of this attribute
+     * @param quark
+     *            The quark of the attribute that is being modified
+     * @throws TimeRangeException
+     *             If 'eventTime' is invalid
+     * @throws AttributeNotFoundException
+     *             IF 'quark' does not represent an existing attribute
+     * @throws StateValueTypeException
+     *             If the attribute has values of another type
+     */
+    public void processStateChange(long eventTime, long value, int quark)
+            throws TimeRangeException, AttributeNotFoundException, StateValueTypeException {
+        if (!this.fIsActive) {
+            return;
+        }
 
-                fOngoingStateStartTimes.set(quark, eventTime);
+        long stamp = fLock.writeLock();
+        try {
+            checkValidAttribute(quark);
+            ITmfStateValue ongoingValue = fOngoingStateInfo.get(quark);
+            if (ongoingValue.getType() == Type.LONG && ongoingValue.unboxLong() == value) {
+                return;
             }
-            fOngoingStateInfo.set(quark, value);
+            changeState(eventTime, TmfStateValue.newValueLong(value), quark);
+        } finally {
+            fLock.unlockWrite(stamp);
+        }
+    }
 
-            /* Update the Transient State's lastestTime, if needed */
-            if (fLatestTime < eventTime) {
-                fLatestTime = eventTime;
-            }
+    /**
+     * Process a state change to a double value. When the attribute already
+     * has this value, nothing is done and no state value object is created.
+     *
+     * @param eventTime
+     *            The timestamp associated with this state change
+     * @param value
+     *            The new value of this attribute
+     * @param quark
+     *            The quark of the attribute that is being modified
+     * @throws TimeRangeException
+     *             If 'eventTime' is invalid
+     * @throws AttributeNotFoundException
+     *             IF 'quark' does not represent an existing attribute
+     * @throws StateValueTypeException
+     *             If the attribute has values of another type
+     */
+    public void processStateChange(long eventTime, double value, int quark)
+            throws TimeRangeException, AttributeNotFoundException, StateValueTypeException {
+        if (!this.fIsActive) {
+            return;
+        }
 
+        long stamp = fLock.writeLock();
+        try {
+            checkValidAttribute(quark);
+            ITmfStateValue ongoingValue = fOngoingStateInfo.get(quark);
+            /* Same comparison as the equals() of double state values */
+            if (ongoingValue.getType() == Type.DOUBLE && Double.compare(ongoingValue.unboxDouble(), value) == 0) {
+                return;
+            }
+            changeState(eventTime, TmfStateValue.newValueDouble(value), quark);
         } finally {
-            fRWLock.writeLock().unlock();
+            fLock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * Should only be called with the write lock taken
+     */
+    private void changeState(long eventTime, ITmfStateValue value, int quark)
+            throws TimeRangeException, AttributeNotFoundException, StateValueTypeException {
+        Type expectedSvType = fStateValueTypes.get(quark);
+        checkValidAttribute(quark);
+
+        /*
+         * Make sure the state value type we're inserting is the same as the
+         * one registered for this attribute.
+         */
+        if (expectedSvType == Type.NULL) {
+            /*
+             * The value hasn't been used yet, set it to the value we're
+             * currently inserting (which might be null/-1 again).
+             */
+            fStateValueTypes.set(quark, value.getType());
+        } else if ((value.getType() != Type.NULL) && (value.getType() != expectedSvType)) {
+            /*
+             * We authorize inserting null values in any type of attribute,
+             * but for every other types, it needs to match our
+             * expectations!
+             */
+            throw new StateValueTypeException(fBackend.getSSID() + " Quark:" + quark + ", Type:" + value.getType() + ", Expected:" + expectedSvType); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+
+        if (fOngoingStateInfo.get(quark).equals(value)) {
+            /*
+             * This is the case where the new value and the one already
+             * present in the Builder are the same. We do not need to create
+             * an interval, we'll just keep the current one going.
+             */
+            return;
+        }
+
+        if (fOngoingStateStartTimes[quark] < eventTime) {
+            /*
+             * These two conditions are necessary to create an interval and
+             * update ongoingStateInfo.
+             */
+            fBackend.insertPastState(fOngoingStateStartTimes[quark],
+                    eventTime - 1, /* End Time */
+                    quark, /* attribute quark */
+                    fOngoingStateInfo.get(quark)); /* StateValue */
+
+            fOngoingStateStartTimes[quark] = eventTime;
+        }
+        fOngoingStateInfo.set(quark, value);
+
+        /* Update the Transient State's lastestTime, if needed */
+        if (fLatestTime < eventTime) {
+            fLatestTime = eventTime;
         }
     }
 
@@ -344,7 +537,10 @@ public class TransientState {
      *            The requested timestamp
      */
     public void doQuery(List<@Nullable ITmfStateInterval> stateInfo, long t) {
-        fRWLock.readLock().lock();
+        if (!fIsActive) {
+            return;
+        }
+        long stamp = fLock.readLock();
         try {
             if (!this.fIsActive) {
                 return;
@@ -359,13 +555,13 @@ public class TransientState {
                  * "current transient state end time" to put in the answer to
                  * the query.
                  */
-                final ITmfStateInterval interval = getIntervalAt(t, i);
+                final ITmfStateInterval interval = readIntervalAt(t, i);
                 if (interval != null) {
                     stateInfo.set(i, interval);
                 }
             }
         } finally {
-            fRWLock.readLock().unlock();
+            fLock.unlockRead(stamp);
         }
     }
 
@@ -384,10 +580,10 @@ public class TransientState {
             return;
         }
 
-        fRWLock.writeLock().lock();
+        long stamp = fLock.writeLock();
         try {
             for (int i = 0; i < fOngoingStateInfo.size(); i++) {
-                if (fOngoingStateStartTimes.get(i) > endTime) {
+                if (fOngoingStateStartTimes[i] > endTime) {
                     /*
                      * Handle the cases where trace end > timestamp of last
                      * state change. This can happen when inserting "future"
@@ -396,7 +592,7 @@ public class TransientState {
                     continue;
                 }
                 try {
-                    fBackend.insertPastState(fOngoingStateStartTimes.get(i),
+                    fBackend.insertPastState(fOngoingStateStartTimes[i],
                             endTime, /* End Time */
                             i, /* attribute quark */
                             fOngoingStateInfo.get(i)); /* StateValue */
@@ -411,11 +607,10 @@ public class TransientState {
             }
 
             fOngoingStateInfo.clear();
-            fOngoingStateStartTimes.clear();
             this.fIsActive = false;
 
         } finally {
-            fRWLock.writeLock().unlock();
+            fLock.unlockWrite(stamp);
         }
     }
 
@@ -454,7 +649,7 @@ public class TransientState {
         for (int i = 0; i < fOngoingStateInfo.size(); i++) {
             writer.format("%d\t\t", i); //$NON-NLS-1$
             writer.print(fOngoingStateInfo.get(i).toString() + "\t\t"); //$NON-NLS-1$
-            writer.println(fOngoingStateStartTimes.get(i).toString());
+            writer.println(fOngoingStateStartTimes[i]);
         }
         writer.println('\n');
         return;
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2015 Ericsson
+ * Copyright (c) 2013, 2016 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -16,22 +16,26 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.NavigableSet;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
 import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
-import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
 import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
-import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
 /**
  * State history back-end that stores its intervals in RAM only. It cannot be
@@ -39,48 +43,42 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
  * trace. But it's relatively quick to build, so this shouldn't be a problem in
  * most cases.
  *
- * This should only be used with very small state histories (and/or, very small
- * traces). Since it's stored in standard Collections, it's limited to 2^31
- * intervals.
+ * The intervals are stored in segments of primitive arrays. The segment
+ * receiving the new intervals is protected by a lock, and is sorted by end
+ * time and sealed once full. Sealed segments are never modified, so the
+ * queries read them without locking.
+ *
+ * A memory budget can be given, along with a spill file. When the intervals
+ * use more memory than the budget, they are all moved to a history tree in
+ * the spill file, which then receives the next intervals and answers the
+ * queries. The spill file is deleted when the back-end is disposed.
  *
  * @author Alexandre Montplaisir
  */
 public class InMemoryBackend implements IStateHistoryBackend {
 
-    /**
-     * We need to compare the end time and the attribute, because we can have 2
-     * intervals with the same end time (for different attributes). And TreeSet
-     * needs a unique "key" per element.
-     */
-    private static final Comparator<ITmfStateInterval> END_COMPARATOR =
-            new Comparator<ITmfStateInterval>() {
-                @Override
-                public int compare(ITmfStateInterval o1, ITmfStateInterval o2) {
-                    final long e1 = o1.getEndTime();
-                    final long e2 = o2.getEndTime();
-                    final int a1 = o1.getAttribute();
-                    final int a2 = o2.getAttribute();
-                    if (e1 < e2) {
-                        return -1;
-                    } else if (e1 > e2) {
-                        return 1;
-                    } else if (a1 < a2) {
-                        return -1;
-                    } else if (a1 > a2) {
-                        return 1;
-                    } else {
-                        return 0;
-                    }
-                }
+    /* Number of intervals per segment */
+    private static final int SEGMENT_CAPACITY = 4096;
 
-            };
+    private static final IntervalSegment[] NO_SEGMENTS = new IntervalSegment[0];
 
     private final @NonNull String ssid;
-    private final NavigableSet<ITmfStateInterval> intervals;
     private final long startTime;
+    private final long memoryBudget;
+    private final @Nullable File spillFile;
 
     private volatile long latestTime;
 
+    /* Replaced by a bigger copy each time a segment is sealed */
+    private volatile IntervalSegment[] sealedSegments = NO_SEGMENTS;
+
+    /* The following fields are guarded by 'this' */
+    private IntervalSegment openSegment = new IntervalSegment(SEGMENT_CAPACITY);
+    private long usedMemory = IntervalSegment.getArraysSize(SEGMENT_CAPACITY);
+
+    /* Set once the intervals are moved to disk, never unset */
+    private volatile @Nullable HistoryTreeBackend spillBackend = null;
+
     /**
      * Constructor
      *
@@ -90,10 +88,35 @@ public class InMemoryBackend implements IStateHistoryBackend {
      *            The start time of this interval store
      */
     public InMemoryBackend(@NonNull String ssid, long startTime) {
+        this(ssid, startTime, 0, null);
+    }
+
+    /**
+     * Constructor for a back-end which moves its intervals to disk when they
+     * use too much memory
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param startTime
+     *            The start time of this interval store
+     * @param memoryBudget
+     *            The memory, in bytes, the intervals can use before they are
+     *            moved to the spill file. 0 or less for no limit.
+     * @param spillFile
+     *            The file where to write the history tree once the budget is
+     *            exceeded. It is only created when needed, and is deleted
+     *            when the back-end is disposed. It is required if there is a
+     *            memory budget.
+     */
+    public InMemoryBackend(@NonNull String ssid, long startTime, long memoryBudget, @Nullable File spillFile) {
+        if (memoryBudget > 0 && spillFile == null) {
+            throw new IllegalArgumentException("A memory budget requires a spill file"); //$NON-NLS-1$
+        }
         this.ssid = ssid;
         this.startTime = startTime;
         this.latestTime = startTime;
-        this.intervals = new TreeSet<>(END_COMPARATOR);
+        this.memoryBudget = memoryBudget;
+        this.spillFile = spillFile;
     }
 
     @Override
@@ -111,6 +134,15 @@ public class InMemoryBackend implements IStateHistoryBackend {
         return latestTime;
     }
 
+    /**
+     * Check if the intervals have been moved to the spill file
+     *
+     * @return If the memory budget was exceeded
+     */
+    public boolean isSpilled() {
+        return spillBackend != null;
+    }
+
     @Override
     public void insertPastState(long stateStartTime, long stateEndTime,
             int quark, ITmfStateValue value) throws TimeRangeException {
@@ -119,72 +151,230 @@ public class InMemoryBackend implements IStateHistoryBackend {
             throw new TimeRangeException(ssid + " Interval Start:" + stateStartTime + ", Interval End:" + stateEndTime + ", Backend Start:" + startTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
-        ITmfStateInterval interval = new TmfStateInterval(stateStartTime, stateEndTime, quark, value);
+        synchronized (this) {
+            HistoryTreeBackend spill = spillBackend;
+            if (spill != null) {
+                spill.insertPastState(stateStartTime, stateEndTime, quark, value);
+            } else {
+                usedMemory += openSegment.add(stateStartTime, stateEndTime, quark, value);
+                if (openSegment.isFull()) {
+                    sealOpenSegment();
+                    openSegment = new IntervalSegment(SEGMENT_CAPACITY);
+                    usedMemory += IntervalSegment.getArraysSize(SEGMENT_CAPACITY);
+                }
+                if (memoryBudget > 0 && usedMemory > memoryBudget) {
+                    spill();
+                }
+            }
 
-        /* Add the interval into the tree */
-        synchronized (intervals) {
-            intervals.add(interval);
+            /* Update the "latest seen time" */
+            if (stateEndTime > latestTime) {
+                latestTime = stateEndTime;
+            }
         }
+    }
+
+    /* Must be called with the lock held */
+    private void sealOpenSegment() {
+        openSegment.seal();
+        IntervalSegment[] segments = Arrays.copyOf(sealedSegments, sealedSegments.length + 1);
+        segments[segments.length - 1] = openSegment;
+        sealedSegments = segments;
+    }
+
+    /**
+     * Move all the intervals to a history tree in the spill file, in the
+     * order of their end times. Must be called with the lock held.
+     */
+    private void spill() {
+        File file = spillFile;
+        if (file == null) {
+            return;
+        }
+        sealOpenSegment();
+        IntervalSegment[] segments = sealedSegments;
+        try {
+            HistoryTreeBackend spill = new HistoryTreeBackend(ssid, file, 0, startTime);
+
+            /* Merge the sorted segments */
+            PriorityQueue<int[]> cursors = new PriorityQueue<>(Math.max(segments.length, 1),
+                    (c1, c2) -> Long.compare(segments[c1[0]].getEnd(c1[1]), segments[c2[0]].getEnd(c2[1])));
+            for (int i = 0; i < segments.length; i++) {
+                if (segments[i].size() > 0) {
+                    cursors.add(new int[] { i, 0 });
+                }
+            }
+            int[] cursor;
+            while ((cursor = cursors.poll()) != null) {
+                ITmfStateInterval interval = segments[cursor[0]].get(cursor[1]);
+                spill.insertPastState(interval.getStartTime(), interval.getEndTime(),
+                        interval.getAttribute(), interval.getStateValue());
+                cursor[1]++;
+                if (cursor[1] < segments[cursor[0]].size()) {
+                    cursors.add(cursor);
+                }
+            }
 
-        /* Update the "latest seen time" */
-        if (stateEndTime > latestTime) {
-            latestTime = stateEndTime;
+            /*
+             * The readers check the spill back-end after reading the segments,
+             * so it has to be visible before the segments are released.
+             */
+            spillBackend = spill;
+            sealedSegments = NO_SEGMENTS;
+            openSegment = new IntervalSegment(SEGMENT_CAPACITY);
+            usedMemory = 0;
+        } catch (IOException e) {
+            /* Keep the intervals in memory, and do not try again */
+            Activator.getDefault().logError("Could not create the spill file of " + ssid, e); //$NON-NLS-1$
+            openSegment = new IntervalSegment(SEGMENT_CAPACITY);
+            usedMemory = Long.MIN_VALUE;
         }
     }
 
     @Override
-    public void doQuery(List<ITmfStateInterval> currentStateInfo, long t)
-            throws TimeRangeException {
+    public void doQuery(List<@Nullable ITmfStateInterval> currentStateInfo, long t)
+            throws TimeRangeException, StateSystemDisposedException {
         if (!checkValidTime(t)) {
             throw new TimeRangeException(ssid + " Time:" + t + ", Start:" + startTime + ", End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
+        IntervalSegment[] segments = sealedSegments;
+        HistoryTreeBackend spill = spillBackend;
+        if (spill != null) {
+            spill.doQuery(currentStateInfo, t);
+            return;
+        }
+
         /*
-         * The intervals are sorted by end time, so we can binary search to get
-         * the first possible interval, then only compare their start times.
+         * The intervals of the sealed segments are sorted by end time, so we
+         * can binary search to get the first possible interval, then only
+         * compare their start times. Each attribute has a single interval
+         * containing t.
          */
-        synchronized (intervals) {
-            Iterator<ITmfStateInterval> iter = searchforEndTime(intervals, t);
-            for (int modCount = 0; iter.hasNext() && modCount < currentStateInfo.size();) {
-                ITmfStateInterval entry = iter.next();
-                final long entryStartTime = entry.getStartTime();
-                if (entryStartTime <= t) {
-                    /* Add this interval to the returned values */
-                    currentStateInfo.set(entry.getAttribute(), entry);
-                    modCount++;
-                }
+        int nbFound = 0;
+        for (IntervalSegment segment : segments) {
+            if (nbFound >= currentStateInfo.size()) {
+                return;
+            }
+            if (segment.intersects(t, t)) {
+                nbFound += readIntervals(segment, segment.getStartIndexFor(t), currentStateInfo, t);
+            }
+        }
+
+        synchronized (this) {
+            spill = spillBackend;
+            if (spill != null) {
+                /* The segments read above were moved in the meantime */
+                spill.doQuery(currentStateInfo, t);
+                return;
             }
+            readIntervals(openSegment, 0, currentStateInfo, t);
         }
     }
 
+    private static int readIntervals(IntervalSegment segment, int from, List<@Nullable ITmfStateInterval> stateInfo, long t) {
+        int nbFound = 0;
+        for (int i = from; i < segment.size(); i++) {
+            int quark = segment.getQuark(i);
+            if (segment.contains(i, t) && quark < stateInfo.size()) {
+                stateInfo.set(quark, segment.get(i));
+                nbFound++;
+            }
+        }
+        return nbFound;
+    }
+
     @Override
     public ITmfStateInterval doSingularQuery(long t, int attributeQuark)
-            throws TimeRangeException, AttributeNotFoundException {
+            throws TimeRangeException, AttributeNotFoundException, StateSystemDisposedException {
         if (!checkValidTime(t)) {
             throw new TimeRangeException(ssid + " Time:" + t + ", Start:" + startTime + ", End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
-        /*
-         * The intervals are sorted by end time, so we can binary search to get
-         * the first possible interval, then only compare their start times.
-         */
-        synchronized (intervals) {
-            Iterator<ITmfStateInterval> iter = searchforEndTime(intervals, t);
-            while (iter.hasNext()) {
-                ITmfStateInterval entry = iter.next();
-                final boolean attributeMatches = (entry.getAttribute() == attributeQuark);
-                final long entryStartTime = entry.getStartTime();
-                if (attributeMatches) {
-                    if (entryStartTime <= t) {
-                        /* This is the droid we are looking for */
-                        return entry;
-                    }
+        IntervalSegment[] segments = sealedSegments;
+        HistoryTreeBackend spill = spillBackend;
+        if (spill != null) {
+            return spill.doSingularQuery(t, attributeQuark);
+        }
+
+        for (IntervalSegment segment : segments) {
+            if (segment.intersects(t, t)) {
+                ITmfStateInterval interval = findInterval(segment, segment.getStartIndexFor(t), t, attributeQuark);
+                if (interval != null) {
+                    return interval;
                 }
             }
         }
+
+        synchronized (this) {
+            spill = spillBackend;
+            if (spill != null) {
+                return spill.doSingularQuery(t, attributeQuark);
+            }
+            ITmfStateInterval interval = findInterval(openSegment, 0, t, attributeQuark);
+            if (interval != null) {
+                return interval;
+            }
+        }
         throw new AttributeNotFoundException(ssid + " Quark:" + attributeQuark); //$NON-NLS-1$
     }
 
+    private static @Nullable ITmfStateInterval findInterval(IntervalSegment segment, int from, long t, int quark) {
+        for (int i = from; i < segment.size(); i++) {
+            if (segment.getQuark(i) == quark && segment.contains(i, t)) {
+                return segment.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Iterable<@NonNull ITmfStateInterval> query2D(Collection<@NonNull Integer> quarks,
+            long start, long end, long resolution) throws TimeRangeException, StateSystemDisposedException {
+        if (!checkValidTime(start) || !checkValidTime(end) || end < start) {
+            throw new TimeRangeException(ssid + " Start:" + start + ", End:" + end + ", Backend Start:" + startTime + ", Backend End:" + latestTime); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        }
+
+        IntervalSegment[] segments = sealedSegments;
+        HistoryTreeBackend spill = spillBackend;
+        if (spill != null) {
+            return spill.query2D(quarks, start, end, resolution);
+        }
+
+        TimeRangeCondition times = new TimeRangeCondition(start, end, resolution);
+        Set<Integer> quarkSet = new HashSet<>(quarks);
+        List<@NonNull ITmfStateInterval> ret = new ArrayList<>();
+
+        /*
+         * The intervals are sorted by end time, so we can skip the ones that
+         * end before the range, then only compare their start times.
+         */
+        for (IntervalSegment segment : segments) {
+            if (segment.intersects(start, end)) {
+                readIntervals(segment, segment.getStartIndexFor(start), quarkSet, times, ret);
+            }
+        }
+
+        synchronized (this) {
+            spill = spillBackend;
+            if (spill != null) {
+                return spill.query2D(quarks, start, end, resolution);
+            }
+            readIntervals(openSegment, 0, quarkSet, times, ret);
+        }
+        return ret;
+    }
+
+    private static void readIntervals(IntervalSegment segment, int from, Set<Integer> quarks,
+            TimeRangeCondition times, List<@NonNull ITmfStateInterval> intervals) {
+        for (int i = from; i < segment.size(); i++) {
+            if (quarks.contains(segment.getQuark(i))
+                    && times.intersects(segment.getStart(i), segment.getEnd(i))) {
+                intervals.add(segment.get(i));
+            }
+        }
+    }
+
     private boolean checkValidTime(long t) {
         if (t >= startTime && t <= latestTime) {
             return true;
@@ -194,7 +384,12 @@ public class InMemoryBackend implements IStateHistoryBackend {
 
     @Override
     public void finishedBuilding(long endTime) throws TimeRangeException {
-        /* Nothing to do */
+        synchronized (this) {
+            HistoryTreeBackend spill = spillBackend;
+            if (spill != null) {
+                spill.finishedBuilding(endTime);
+            }
+        }
     }
 
     @Override
@@ -217,31 +412,37 @@ public class InMemoryBackend implements IStateHistoryBackend {
 
     @Override
     public void removeFiles() {
-        /* Nothing to do */
+        /* The spill file is removed when disposing */
     }
 
     @Override
     public void dispose() {
-        /* Nothing to do */
+        synchronized (this) {
+            HistoryTreeBackend spill = spillBackend;
+            if (spill != null) {
+                /* The spill file cannot be opened again */
+                spill.removeFiles();
+            }
+        }
     }
 
     @Override
     public void debugPrint(PrintWriter writer) {
-        synchronized (intervals) {
-            writer.println(intervals.toString());
+        HistoryTreeBackend spill = spillBackend;
+        if (spill != null) {
+            spill.debugPrint(writer);
+            return;
         }
-    }
-
-    private static Iterator<ITmfStateInterval> searchforEndTime(NavigableSet<ITmfStateInterval> tree, long time) {
-        ITmfStateInterval dummyInterval = new TmfStateInterval(-1, time, -1, TmfStateValue.nullValue());
-        ITmfStateInterval myInterval = tree.lower(dummyInterval);
-        if (myInterval == null) {
-            return tree.iterator();
+        for (IntervalSegment segment : sealedSegments) {
+            for (int i = 0; i < segment.size(); i++) {
+                writer.println(segment.get(i).toString());
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < openSegment.size(); i++) {
+                writer.println(openSegment.get(i).toString());
+            }
         }
-        final SortedSet<ITmfStateInterval> tailSet = tree.tailSet(myInterval);
-        Iterator<ITmfStateInterval> retVal = tailSet.iterator();
-        retVal.next();
-        return retVal;
     }
 
 }
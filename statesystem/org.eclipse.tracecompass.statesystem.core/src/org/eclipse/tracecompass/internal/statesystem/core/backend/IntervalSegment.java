@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * A fixed-capacity block of intervals of the {@link InMemoryBackend}, stored
+ * in parallel arrays of primitives instead of one interval object and one
+ * state value object per interval.
+ *
+ * Intervals are appended in any order while the segment is open. Sealing the
+ * segment sorts them by end time, after which the segment is never modified
+ * and can be read by any number of threads without locking.
+ */
+final class IntervalSegment {
+
+    /* Size of the arrays for each interval: start, end, quark, type, value */
+    private static final int BYTES_PER_INTERVAL = 8 + 8 + 4 + 1 + 8;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_INTEGER = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_STRING = 4;
+
+    private long[] fStarts;
+    private long[] fEnds;
+    private int[] fQuarks;
+    private byte[] fTypes;
+    /* Integer and long values, or the bits of double values */
+    private long[] fValues;
+    /* String values, null until a string interval is added */
+    private String @Nullable [] fStrings = null;
+
+    private int fSize = 0;
+    private long fMinStart = Long.MAX_VALUE;
+    private long fMaxEnd = Long.MIN_VALUE;
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            The maximum number of intervals of this segment
+     */
+    public IntervalSegment(int capacity) {
+        fStarts = new long[capacity];
+        fEnds = new long[capacity];
+        fQuarks = new int[capacity];
+        fTypes = new byte[capacity];
+        fValues = new long[capacity];
+    }
+
+    /**
+     * Get the memory used by the arrays of a segment, not counting the
+     * strings
+     *
+     * @param capacity
+     *            The capacity of the segment
+     * @return The size in bytes
+     */
+    public static long getArraysSize(int capacity) {
+        return (long) capacity * BYTES_PER_INTERVAL;
+    }
+
+    /**
+     * Get the number of intervals
+     *
+     * @return The number of intervals
+     */
+    public int size() {
+        return fSize;
+    }
+
+    /**
+     * Check if the segment is full
+     *
+     * @return If no more intervals can be added
+     */
+    public boolean isFull() {
+        return fSize == fStarts.length;
+    }
+
+    /**
+     * Get the end time of an interval
+     *
+     * @param index
+     *            The position of the interval
+     * @return The end time
+     */
+    public long getEnd(int index) {
+        return fEnds[index];
+    }
+
+    /**
+     * Check if the segment may contain intervals intersecting a time range
+     *
+     * @param start
+     *            The start of the range
+     * @param end
+     *            The end of the range
+     * @return False if no interval of the segment intersects the range
+     */
+    public boolean intersects(long start, long end) {
+        return fMinStart <= end && fMaxEnd >= start;
+    }
+
+    /**
+     * Add an interval at the end of the segment. The segment must not be
+     * full.
+     *
+     * @param start
+     *            The start time
+     * @param end
+     *            The end time
+     * @param quark
+     *            The attribute quark
+     * @param value
+     *            The state value
+     * @return The memory used by the value, outside of the arrays
+     */
+    public long add(long start, long end, int quark, ITmfStateValue value) {
+        int index = fSize;
+        fStarts[index] = start;
+        fEnds[index] = end;
+        fQuarks[index] = quark;
+        fMinStart = Math.min(fMinStart, start);
+        fMaxEnd = Math.max(fMaxEnd, end);
+        long extraSize = 0;
+        switch (value.getType()) {
+        case INTEGER:
+            fTypes[index] = TYPE_INTEGER;
+            fValues[index] = value.unboxInt();
+            break;
+        case LONG:
+            fTypes[index] = TYPE_LONG;
+            fValues[index] = value.unboxLong();
+            break;
+        case DOUBLE:
+            fTypes[index] = TYPE_DOUBLE;
+            fValues[index] = Double.doubleToRawLongBits(value.unboxDouble());
+            break;
+        case STRING:
+            String[] strings = fStrings;
+            if (strings == null) {
+                strings = new String[fStarts.length];
+                fStrings = strings;
+                extraSize += 8L * fStarts.length;
+            }
+            String string = value.unboxStr();
+            strings[index] = string;
+            fTypes[index] = TYPE_STRING;
+            /* Header, length and characters of the string object */
+            extraSize += 40 + 2L * string.length();
+            break;
+        case NULL:
+        default:
+            fTypes[index] = TYPE_NULL;
+            break;
+        }
+        fSize++;
+        return extraSize;
+    }
+
+    /**
+     * Get an interval object for the interval at a given position
+     *
+     * @param index
+     *            The position of the interval
+     * @return A new interval object
+     */
+    public @NonNull ITmfStateInterval get(int index) {
+        return new TmfStateInterval(fStarts[index], fEnds[index], fQuarks[index], getValue(index));
+    }
+
+    private @NonNull TmfStateValue getValue(int index) {
+        switch (fTypes[index]) {
+        case TYPE_INTEGER:
+            return TmfStateValue.newValueInt((int) fValues[index]);
+        case TYPE_LONG:
+            return TmfStateValue.newValueLong(fValues[index]);
+        case TYPE_DOUBLE:
+            return TmfStateValue.newValueDouble(Double.longBitsToDouble(fValues[index]));
+        case TYPE_STRING:
+            String[] strings = fStrings;
+            return TmfStateValue.newValueString(strings == null ? null : strings[index]);
+        case TYPE_NULL:
+        default:
+            return TmfStateValue.nullValue();
+        }
+    }
+
+    /**
+     * Check if an interval contains a time
+     *
+     * @param index
+     *            The position of the interval
+     * @param t
+     *            The timestamp
+     * @return If the interval starts at or before t and ends at or after it
+     */
+    public boolean contains(int index, long t) {
+        return fStarts[index] <= t && t <= fEnds[index];
+    }
+
+    /**
+     * Get the start time of an interval
+     *
+     * @param index
+     *            The position of the interval
+     * @return The start time
+     */
+    public long getStart(int index) {
+        return fStarts[index];
+    }
+
+    /**
+     * Get the attribute of an interval
+     *
+     * @param index
+     *            The position of the interval
+     * @return The attribute quark
+     */
+    public int getQuark(int index) {
+        return fQuarks[index];
+    }
+
+    /**
+     * Find the position of the first interval ending at or after a time. The
+     * segment must be sealed.
+     *
+     * @param t
+     *            The timestamp
+     * @return The position, which is the size if all intervals end before t
+     */
+    public int getStartIndexFor(long t) {
+        int low = 0;
+        int high = fSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fEnds[mid] < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sort the intervals by end time. The segment must not be modified
+     * afterwards.
+     */
+    public void seal() {
+        boolean sorted = true;
+        for (int i = 1; i < fSize && sorted; i++) {
+            sorted = (fEnds[i - 1] <= fEnds[i]);
+        }
+        if (sorted) {
+            /* The usual case, the state system inserts by end time */
+            return;
+        }
+
+        int[] order = new int[fSize];
+        for (int i = 0; i < fSize; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[fSize], 0, fSize);
+
+        long[] starts = new long[fStarts.length];
+        long[] ends = new long[fEnds.length];
+        int[] quarks = new int[fQuarks.length];
+        byte[] types = new byte[fTypes.length];
+        long[] values = new long[fValues.length];
+        String[] oldStrings = fStrings;
+        String[] strings = (oldStrings == null ? null : new String[oldStrings.length]);
+        for (int i = 0; i < fSize; i++) {
+            int from = order[i];
+            starts[i] = fStarts[from];
+            ends[i] = fEnds[from];
+            quarks[i] = fQuarks[from];
+            types[i] = fTypes[from];
+            values[i] = fValues[from];
+            if (strings != null && oldStrings != null) {
+                strings[i] = oldStrings[from];
+            }
+        }
+        fStarts = starts;
+        fEnds = ends;
+        fQuarks = quarks;
+        fTypes = types;
+        fValues = values;
+        fStrings = strings;
+    }
+
+    /* Stable sort of the positions in [from, to[ by end time */
+    private void mergeSort(int[] order, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, tmp, from, mid);
+        mergeSort(order, tmp, mid, to);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && fEnds[order[left]] <= fEnds[order[right]])) {
+                tmp[i] = order[left++];
+            } else {
+                tmp[i] = order[right++];
+            }
+        }
+        System.arraycopy(tmp, from, order, from, to - from);
+    }
+}
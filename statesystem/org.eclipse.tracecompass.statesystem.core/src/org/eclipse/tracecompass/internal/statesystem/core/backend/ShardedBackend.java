@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+/**
+ * State history back-end which splits the attributes between several
+ * independent back-ends, the shards. A shard function gives the shard of each
+ * attribute, so that busy attributes (the threads of a kernel trace, for
+ * example) do not fill the storage used by the other ones.
+ *
+ * Single queries and range queries only go to the shards containing the
+ * requested attributes. The shards are built independently, so shards that
+ * run in their own thread, like the threaded history tree, are built in
+ * parallel. The end time of such a shard includes the intervals it has not
+ * inserted yet, so a shard is only skipped by a query when it has not received
+ * any interval reaching the queried time.
+ *
+ * The attribute tree is stored by the first shard.
+ */
+public class ShardedBackend implements IStateHistoryBackend {
+
+    private final @NonNull String fSsid;
+    private final List<@NonNull IStateHistoryBackend> fShards;
+    private final IntUnaryOperator fShardFunction;
+
+    /**
+     * Constructor
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param shards
+     *            The back-ends storing the intervals. They must all have the
+     *            same start time.
+     * @param shardFunction
+     *            The function giving the index, in the shards list, of the
+     *            shard of an attribute quark. It must always return the same
+     *            shard for a given quark, including when an existing history
+     *            is opened again.
+     */
+    public ShardedBackend(@NonNull String ssid, List<@NonNull IStateHistoryBackend> shards,
+            IntUnaryOperator shardFunction) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A sharded backend needs at least one shard"); //$NON-NLS-1$
+        }
+        fSsid = ssid;
+        fShards = ImmutableList.copyOf(shards);
+        fShardFunction = shardFunction;
+    }
+
+    /**
+     * Get the shards of this back-end.
+     *
+     * @return The shards
+     */
+    public List<@NonNull IStateHistoryBackend> getShards() {
+        return fShards;
+    }
+
+    private int getShardIndex(int quark) {
+        int index = fShardFunction.applyAsInt(quark);
+        if (index < 0 || index >= fShards.size()) {
+            throw new IllegalStateException("Invalid shard " + index + " for quark " + quark); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return index;
+    }
+
+    private IStateHistoryBackend getShard(int quark) {
+        return fShards.get(getShardIndex(quark));
+    }
+
+    @Override
+    public String getSSID() {
+        return fSsid;
+    }
+
+    @Override
+    public long getStartTime() {
+        return fShards.get(0).getStartTime();
+    }
+
+    @Override
+    public long getEndTime() {
+        long endTime = Long.MIN_VALUE;
+        for (IStateHistoryBackend shard : fShards) {
+            endTime = Math.max(endTime, shard.getEndTime());
+        }
+        return endTime;
+    }
+
+    @Override
+    public void insertPastState(long stateStartTime, long stateEndTime,
+            int quark, ITmfStateValue value) throws TimeRangeException {
+        getShard(quark).insertPastState(stateStartTime, stateEndTime, quark, value);
+    }
+
+    @Override
+    public void finishedBuilding(long endTime) throws TimeRangeException {
+        for (IStateHistoryBackend shard : fShards) {
+            shard.finishedBuilding(endTime);
+        }
+    }
+
+    @Override
+    public FileInputStream supplyAttributeTreeReader() {
+        return fShards.get(0).supplyAttributeTreeReader();
+    }
+
+    @Override
+    public File supplyAttributeTreeWriterFile() {
+        return fShards.get(0).supplyAttributeTreeWriterFile();
+    }
+
+    @Override
+    public long supplyAttributeTreeWriterFilePosition() {
+        return fShards.get(0).supplyAttributeTreeWriterFilePosition();
+    }
+
+    @Override
+    public void removeFiles() {
+        for (IStateHistoryBackend shard : fShards) {
+            shard.removeFiles();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        for (IStateHistoryBackend shard : fShards) {
+            shard.dispose();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Query methods
+    // ------------------------------------------------------------------------
+
+    @Override
+    public void doQuery(List<@Nullable ITmfStateInterval> currentStateInfo, long t)
+            throws TimeRangeException, StateSystemDisposedException {
+        /*
+         * Each attribute is stored in a single shard, and a shard only sets the
+         * intervals of its own attributes, so they can all fill the same list.
+         */
+        for (IStateHistoryBackend shard : fShards) {
+            if (t > shard.getEndTime()) {
+                /* Nothing in this shard reaches t yet */
+                continue;
+            }
+            shard.doQuery(currentStateInfo, t);
+        }
+    }
+
+    @Override
+    public ITmfStateInterval doSingularQuery(long t, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException, StateSystemDisposedException {
+        IStateHistoryBackend shard = getShard(attributeQuark);
+        if (t > shard.getEndTime() && t <= getEndTime()) {
+            /* Valid time, but not stored in this shard yet */
+            return null;
+        }
+        return shard.doSingularQuery(t, attributeQuark);
+    }
+
+    @Override
+    public Iterable<@NonNull ITmfStateInterval> query2D(Collection<@NonNull Integer> quarks,
+            long start, long end, long resolution)
+            throws TimeRangeException, StateSystemDisposedException {
+        if (end < start || start < getStartTime() || end > getEndTime()) {
+            throw new TimeRangeException(fSsid + " Start:" + start + ", End:" + end); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        /* Group the quarks by shard */
+        List<List<@NonNull Integer>> shardQuarks = new ArrayList<>();
+        for (int i = 0; i < fShards.size(); i++) {
+            shardQuarks.add(new ArrayList<>());
+        }
+        for (Integer quark : quarks) {
+            shardQuarks.get(getShardIndex(quark)).add(quark);
+        }
+
+        /* Query each shard up to its end, at the same sampling times */
+        TimeRangeCondition times = new TimeRangeCondition(start, end, resolution);
+        List<Iterable<@NonNull ITmfStateInterval>> results = new ArrayList<>();
+        for (int i = 0; i < fShards.size(); i++) {
+            List<@NonNull Integer> subset = shardQuarks.get(i);
+            long shardEnd = times.previous(fShards.get(i).getEndTime());
+            if (subset.isEmpty() || shardEnd < start) {
+                continue;
+            }
+            results.add(fShards.get(i).query2D(subset, start, shardEnd, resolution));
+        }
+        return checkNotNull(Iterables.concat(results));
+    }
+
+    @Override
+    public void debugPrint(PrintWriter writer) {
+        for (int i = 0; i < fShards.size(); i++) {
+            writer.println("Shard " + i + ':'); //$NON-NLS-1$
+            fShards.get(i).debugPrint(writer);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend;
+
+/**
+ * Time condition of a range ("2D") query. It selects the time range
+ * [start, end], optionally sampled at a given resolution: only the times
+ * start, start + resolution, start + 2 * resolution, ..., and end are then
+ * considered.
+ *
+ * The same condition is used to select the intervals and to prune the parts
+ * of a backend (for example the nodes of a history tree) which cannot contain
+ * any matching interval.
+ */
+public final class TimeRangeCondition {
+
+    private final long fStart;
+    private final long fEnd;
+    private final long fResolution;
+
+    /**
+     * Constructor
+     *
+     * @param start
+     *            Start of the time range
+     * @param end
+     *            End of the time range, inclusive
+     * @param resolution
+     *            The sampling resolution. A value of 1 or less selects every
+     *            time in the range.
+     */
+    public TimeRangeCondition(long start, long end, long resolution) {
+        fStart = start;
+        fEnd = end;
+        fResolution = resolution;
+    }
+
+    /**
+     * Get the start of the time range
+     *
+     * @return The start time
+     */
+    public long getStart() {
+        return fStart;
+    }
+
+    /**
+     * Get the end of the time range
+     *
+     * @return The end time
+     */
+    public long getEnd() {
+        return fEnd;
+    }
+
+    /**
+     * Get the first time selected by this condition that is greater than or
+     * equal to the given time.
+     *
+     * @param time
+     *            The time from which to look
+     * @return The next selected time, or {@link Long#MAX_VALUE} if there is
+     *         none.
+     */
+    public long next(long time) {
+        if (time > fEnd) {
+            return Long.MAX_VALUE;
+        }
+        if (time <= fStart) {
+            return fStart;
+        }
+        if (fResolution <= 1) {
+            return time;
+        }
+        long steps = (time - fStart + fResolution - 1) / fResolution;
+        return Math.min(fStart + steps * fResolution, fEnd);
+    }
+
+    /**
+     * Get the last time selected by this condition that is less than or equal
+     * to the given time. A query up to this time, with the same start and
+     * resolution, selects the same times as this condition before the given
+     * time.
+     *
+     * @param time
+     *            The time from which to look
+     * @return The previous selected time, or {@link Long#MIN_VALUE} if there
+     *         is none.
+     */
+    public long previous(long time) {
+        if (time < fStart) {
+            return Long.MIN_VALUE;
+        }
+        if (time >= fEnd) {
+            return fEnd;
+        }
+        if (fResolution <= 1) {
+            return time;
+        }
+        return fStart + ((time - fStart) / fResolution) * fResolution;
+    }
+
+    /**
+     * Check if the time range [low, high] contains at least one time selected
+     * by this condition.
+     *
+     * @param low
+     *            Start of the range to check
+     * @param high
+     *            End of the range to check, inclusive
+     * @return True if the range intersects this condition
+     */
+    public boolean intersects(long low, long high) {
+        return (high >= fStart && next(low) <= high);
+    }
+}
@@ -24,11 +24,23 @@ public final class HTConfig {
     private static final int DEFAULT_BLOCKSIZE = 64 * 1024;
     private static final int DEFAULT_MAXCHILDREN = 50;
 
+    /**
+     * Default size budget of the node cache, in bytes. It can be overridden
+     * with the "org.eclipse.tracecompass.statesystem.core.nodeCacheSize"
+     * system property. The default is equivalent to 256 nodes of the default
+     * block size.
+     */
+    private static final long DEFAULT_NODE_CACHE_SIZE = Long.getLong(
+            "org.eclipse.tracecompass.statesystem.core.nodeCacheSize", //$NON-NLS-1$
+            256L * DEFAULT_BLOCKSIZE).longValue();
+
     private final File stateFile;
     private final int blockSize;
     private final int maxChildren;
     private final int providerVersion;
     private final long treeStart;
+    private final long nodeCacheSize;
+    private final int fileVersion;
 
     /**
      * Full constructor.
@@ -47,14 +59,74 @@ public final class HTConfig {
      *            uselessly.
      * @param startTime
      *            The start time of the history
+     * @param nodeCacheSize
+     *            The size budget, in bytes, of the cache of nodes read from
+     *            the history file
+     * @param fileVersion
+     *            The version of the file format, which defines how the nodes
+     *            are serialized
      */
     public HTConfig(File newStateFile, int blockSize, int maxChildren,
-            int providerVersion, long startTime) {
+            int providerVersion, long startTime, long nodeCacheSize, int fileVersion) {
+        if (fileVersion < HistoryTree.MIN_FILE_VERSION || fileVersion > HistoryTree.FILE_VERSION) {
+            throw new IllegalArgumentException("Unsupported file version: " + fileVersion); //$NON-NLS-1$
+        }
         this.stateFile = newStateFile;
         this.blockSize = blockSize;
         this.maxChildren = maxChildren;
         this.providerVersion = providerVersion;
         this.treeStart = startTime;
+        this.nodeCacheSize = nodeCacheSize;
+        this.fileVersion = fileVersion;
+    }
+
+    /**
+     * Version of the constructor using the current file format.
+     *
+     * @param newStateFile
+     *            The name of the history file
+     * @param blockSize
+     *            The size of each "block" on disk. One node will always fit in
+     *            one block.
+     * @param maxChildren
+     *            The maximum number of children allowed per core (non-leaf)
+     *            node.
+     * @param providerVersion
+     *            The version of the state provider. If a file already exists,
+     *            and their versions match, the history file will not be rebuilt
+     *            uselessly.
+     * @param startTime
+     *            The start time of the history
+     * @param nodeCacheSize
+     *            The size budget, in bytes, of the cache of nodes read from
+     *            the history file
+     */
+    public HTConfig(File newStateFile, int blockSize, int maxChildren,
+            int providerVersion, long startTime, long nodeCacheSize) {
+        this(newStateFile, blockSize, maxChildren, providerVersion, startTime, nodeCacheSize, HistoryTree.FILE_VERSION);
+    }
+
+    /**
+     * Version of the constructor using the default node cache size.
+     *
+     * @param newStateFile
+     *            The name of the history file
+     * @param blockSize
+     *            The size of each "block" on disk. One node will always fit in
+     *            one block.
+     * @param maxChildren
+     *            The maximum number of children allowed per core (non-leaf)
+     *            node.
+     * @param providerVersion
+     *            The version of the state provider. If a file already exists,
+     *            and their versions match, the history file will not be rebuilt
+     *            uselessly.
+     * @param startTime
+     *            The start time of the history
+     */
+    public HTConfig(File newStateFile, int blockSize, int maxChildren,
+            int providerVersion, long startTime) {
+        this(newStateFile, blockSize, maxChildren, providerVersion, startTime, DEFAULT_NODE_CACHE_SIZE);
     }
 
     /**
@@ -78,6 +150,15 @@ public final class HTConfig {
     // Getters
     // ------------------------------------------------------------------------
 
+    /**
+     * Get the default size budget of the node cache
+     *
+     * @return The default node cache size, in bytes
+     */
+    public static long getDefaultNodeCacheSize() {
+        return DEFAULT_NODE_CACHE_SIZE;
+    }
+
     /**
      * Get the history file.
      *
@@ -122,4 +203,22 @@ public final class HTConfig {
     public long getTreeStart() {
         return treeStart;
     }
+
+    /**
+     * Get the size budget of the node cache
+     *
+     * @return The node cache size, in bytes
+     */
+    public long getNodeCacheSize() {
+        return nodeCacheSize;
+    }
+
+    /**
+     * Get the version of the file format
+     *
+     * @return The file format version
+     */
+    public int getFileVersion() {
+        return fileVersion;
+    }
 }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2012, 2015 Ericsson, École Polytechnique de Montréal
+ * Copyright (c) 2012, 2016 Ericsson, École Polytechnique de Montréal
  * Copyright (c) 2010, 2011 Alexandre Montplaisir <alexandre.montplaisir@gmail.com>
  *
  * All rights reserved. This program and the accompanying materials are
@@ -17,8 +17,10 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
@@ -48,11 +50,11 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
     public static final int DATA_ENTRY_SIZE = 25;
 
     /* 'Byte' equivalent for state values types */
-    private static final byte TYPE_NULL = -1;
-    private static final byte TYPE_INTEGER = 0;
-    private static final byte TYPE_STRING = 1;
-    private static final byte TYPE_LONG = 2;
-    private static final byte TYPE_DOUBLE = 3;
+    static final byte TYPE_NULL = -1;
+    static final byte TYPE_INTEGER = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_LONG = 2;
+    static final byte TYPE_DOUBLE = 3;
 
     /* String entry sizes of different state values */
     private static final int NO_ENTRY_SIZE = 0;
@@ -66,9 +68,13 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
     private final @NonNull TmfStateValue sv;
 
     /*
-     * Size of the strings section entry used by this interval (= 0 if not used)
+     * The string value, encoded on first use since the size of an interval
+     * is queried several times before it is inserted: in the platform
+     * charset for the original format, and its length in UTF-8 for the
+     * compact format. Racing threads compute the same values.
      */
-    private final int stringsEntrySize;
+    private byte @Nullable [] fStringBytes = null;
+    private int fUtf8Length = -1;
 
     /**
      * Standard constructor
@@ -95,26 +101,6 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         this.end = intervalEnd;
         this.attribute = attribute;
         this.sv = value;
-        this.stringsEntrySize = computeStringsEntrySize();
-    }
-
-    /**
-     * "Faster" constructor for inner use only. When we build an interval when
-     * reading it from disk (with {@link #readFrom}), we already know the size
-     * of the strings entry, so there is no need to call
-     * {@link #computeStringsEntrySize()} and do an extra copy.
-     */
-    private HTInterval(long intervalStart, long intervalEnd, int attribute,
-            @NonNull TmfStateValue value, int size) throws TimeRangeException {
-        if (intervalStart > intervalEnd) {
-            throw new TimeRangeException("Start:" + intervalStart + ", End:" + intervalEnd); //$NON-NLS-1$ //$NON-NLS-2$
-        }
-
-        this.start = intervalStart;
-        this.end = intervalEnd;
-        this.attribute = attribute;
-        this.sv = value;
-        this.stringsEntrySize = size;
     }
 
     /**
@@ -132,7 +118,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         long intervalStart, intervalEnd;
         int attribute;
         TmfStateValue value;
-        int valueOrOffset, valueSize, res;
+        int valueOrOffset, res;
         byte valueType;
         byte array[];
 
@@ -148,13 +134,11 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
 
         case TYPE_NULL:
             value = TmfStateValue.nullValue();
-            valueSize = NO_ENTRY_SIZE;
             break;
 
         case TYPE_INTEGER:
             /* "ValueOrOffset" is the straight value */
             value = TmfStateValue.newValueInt(valueOrOffset);
-            valueSize = NO_ENTRY_SIZE;
             break;
 
         case TYPE_STRING:
@@ -163,7 +147,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             buffer.position(valueOrOffset);
 
             /* the first byte = the size to read */
-            valueSize = buffer.get();
+            int valueSize = buffer.get();
 
             /*
              * Careful though, 'valueSize' is the total size of the entry,
@@ -193,7 +177,6 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             buffer.mark();
             buffer.position(valueOrOffset);
             value = TmfStateValue.newValueLong(buffer.getLong());
-            valueSize = LONG_ENTRY_SIZE;
 
             /*
              * Restore the file pointer's position (so we can read the next
@@ -207,7 +190,6 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             buffer.mark();
             buffer.position(valueOrOffset);
             value = TmfStateValue.newValueDouble(buffer.getDouble());
-            valueSize = DOUBLE_ENTRY_SIZE;
 
             /*
              * Restore the file pointer's position (so we can read the next
@@ -222,7 +204,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         }
 
         try {
-            interval = new HTInterval(intervalStart, intervalEnd, attribute, value, valueSize);
+            interval = new HTInterval(intervalStart, intervalEnd, attribute, value);
         } catch (TimeRangeException e) {
             throw new IOException(errMsg);
         }
@@ -244,6 +226,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
      * @return The size of the Strings Entry that was written, if any.
      */
     public int writeInterval(ByteBuffer buffer, int endPosOfStringEntry) {
+        final int stringsEntrySize = computeStringsEntrySize();
         buffer.putLong(start);
         buffer.putLong(end);
         buffer.putInt(attribute);
@@ -266,13 +249,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             break;
 
         case TYPE_STRING:
-            byte[] byteArrayToWrite;
-            try {
-                byteArrayToWrite = sv.unboxStr().getBytes();
-            } catch (StateValueTypeException e1) {
-                /* Should not happen, we're in a switch/case for string type */
-                throw new RuntimeException();
-            }
+            byte[] byteArrayToWrite = getStringBytes();
 
             /* we use the valueOffset as an offset. */
             buffer.putInt(endPosOfStringEntry - stringsEntrySize);
@@ -339,6 +316,113 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
         return stringsEntrySize;
     }
 
+    // ------------------------------------------------------------------------
+    // Compact format (file version 7 and up)
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the size of this interval in the compact format, not counting its
+     * entry in the string table.
+     *
+     * @param nodeStart
+     *            The start time of the node containing the interval
+     * @param stringIndex
+     *            The index of the value in the string table of the node, if
+     *            the value is a string
+     * @return The size in bytes
+     */
+    public int getCompactSize(long nodeStart, int stringIndex) {
+        int size = getVarLongSize(start - nodeStart)
+                + getVarLongSize(end - start)
+                + getVarLongSize(attribute)
+                + 1;
+        try {
+            switch (sv.getType()) {
+            case INTEGER:
+                return size + getVarLongSize(encodeZigZag(sv.unboxInt()));
+            case LONG:
+                return size + getVarLongSize(encodeZigZag(sv.unboxLong()));
+            case DOUBLE:
+                return size + DOUBLE_ENTRY_SIZE;
+            case STRING:
+                return size + getVarLongSize(stringIndex);
+            case NULL:
+            default:
+                return size;
+            }
+        } catch (StateValueTypeException e) {
+            /* We switched on the type of the value, can't happen */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the number of bytes used by a value in the variable-length (LEB128)
+     * encoding. Negative values are treated as unsigned and use 10 bytes.
+     *
+     * @param value
+     *            The value
+     * @return The encoded size, between 1 and 10 bytes
+     */
+    static int getVarLongSize(long value) {
+        int size = 1;
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            remaining >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write a value in the variable-length (LEB128) encoding: 7 bits per
+     * byte, least significant first, the high bit set on all but the last
+     * byte.
+     *
+     * @param buffer
+     *            The buffer to write to
+     * @param value
+     *            The value to write
+     */
+    static void putVarLong(ByteBuffer buffer, long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            buffer.put((byte) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    /**
+     * Read a value written with {@link #putVarLong}.
+     *
+     * @param buffer
+     *            The buffer to read from
+     * @return The value
+     * @throws IOException
+     *             If the encoding is invalid
+     */
+    static long getVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException(errMsg);
+    }
+
+    static long encodeZigZag(long value) {
+        /* Map small negative values to small positive ones */
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
     @Override
     public long getStartTime() {
         return start;
@@ -370,7 +454,33 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
     }
 
     int getStringsEntrySize() {
-        return stringsEntrySize;
+        return computeStringsEntrySize();
+    }
+
+    /**
+     * Get the length of the string value of this interval, encoded in UTF-8
+     * as in the string table of the compact format
+     *
+     * @return The length in bytes
+     * @throws StateValueTypeException
+     *             If the value is not a string
+     */
+    int getUtf8Length() {
+        int length = fUtf8Length;
+        if (length < 0) {
+            length = sv.unboxStr().getBytes(StandardCharsets.UTF_8).length;
+            fUtf8Length = length;
+        }
+        return length;
+    }
+
+    private byte[] getStringBytes() {
+        byte[] bytes = fStringBytes;
+        if (bytes == null) {
+            bytes = sv.unboxStr().getBytes();
+            fStringBytes = bytes;
+        }
+        return bytes;
     }
 
     /**
@@ -379,7 +489,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
      * @return The interval size
      */
     public int getIntervalSize() {
-        return stringsEntrySize + DATA_ENTRY_SIZE;
+        return computeStringsEntrySize() + DATA_ENTRY_SIZE;
     }
 
     private int computeStringsEntrySize() {
@@ -395,13 +505,8 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
             /* The value is also written directly into the strings section */
             return DOUBLE_ENTRY_SIZE;
         case STRING:
-            try {
-                /* String's length + 2 (1 byte for size, 1 byte for \0 at the end */
-                return sv.unboxStr().getBytes().length + 2;
-            } catch (StateValueTypeException e) {
-                /* We're inside a switch/case for the string type, can't happen */
-                throw new IllegalStateException(e);
-            }
+            /* String's length + 2 (1 byte for size, 1 byte for \0 at the end */
+            return getStringBytes().length + 2;
         default:
             /* It's very important that we know how to write the state value in
              * the file!! */
@@ -461,7 +566,7 @@ public final class HTInterval implements ITmfStateInterval, Comparable<HTInterva
      * Here we determine how state values "types" are written in the 8-bit
      * field that indicates the value type in the file.
      */
-    private static byte getByteFromType(ITmfStateValue.Type type) {
+    static byte getByteFromType(ITmfStateValue.Type type) {
         switch(type) {
         case NULL:
             return TYPE_NULL;
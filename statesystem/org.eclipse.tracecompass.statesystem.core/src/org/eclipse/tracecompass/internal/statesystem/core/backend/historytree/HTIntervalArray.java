@@ -0,0 +1,356 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * The intervals of a history tree node, sorted by end time.
+ *
+ * The intervals are stored in parallel arrays of primitives (start, end,
+ * quark, value type and value) rather than as one {@link HTInterval} and one
+ * state value object each. The queries only compare the times and quarks, so
+ * interval objects are only created, with {@link #get}, for the intervals
+ * that are returned. Integer, long and double values are kept in a single
+ * long array, string values in an array that is only allocated for nodes
+ * that contain strings.
+ *
+ * This class is not thread-safe, the node protects the accesses.
+ */
+final class HTIntervalArray {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final String errMsg = "Invalid interval data. Maybe your file is corrupt?"; //$NON-NLS-1$
+
+    private long[] fStarts;
+    private long[] fEnds;
+    private int[] fQuarks;
+    private byte[] fTypes;
+    /* Integer and long values, or the bits of double values */
+    private long[] fValues;
+    /* String values, null until a string interval is added */
+    private String[] fStrings = null;
+
+    private int fSize = 0;
+
+    /**
+     * Constructor
+     */
+    public HTIntervalArray() {
+        fStarts = new long[INITIAL_CAPACITY];
+        fEnds = new long[INITIAL_CAPACITY];
+        fQuarks = new int[INITIAL_CAPACITY];
+        fTypes = new byte[INITIAL_CAPACITY];
+        fValues = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Get the number of intervals
+     *
+     * @return The number of intervals
+     */
+    public int size() {
+        return fSize;
+    }
+
+    /**
+     * Check if there are no intervals
+     *
+     * @return If there are no intervals
+     */
+    public boolean isEmpty() {
+        return fSize == 0;
+    }
+
+    /**
+     * Get the start time of an interval
+     *
+     * @param index
+     *            The position of the interval
+     * @return The start time
+     */
+    public long getStart(int index) {
+        return fStarts[index];
+    }
+
+    /**
+     * Get the end time of an interval
+     *
+     * @param index
+     *            The position of the interval
+     * @return The end time
+     */
+    public long getEnd(int index) {
+        return fEnds[index];
+    }
+
+    /**
+     * Get the attribute of an interval
+     *
+     * @param index
+     *            The position of the interval
+     * @return The attribute quark
+     */
+    public int getQuark(int index) {
+        return fQuarks[index];
+    }
+
+    /**
+     * Get an interval object for the interval at a given position. A new
+     * object is created at each call.
+     *
+     * @param index
+     *            The position of the interval
+     * @return The interval
+     */
+    public HTInterval get(int index) {
+        return new HTInterval(fStarts[index], fEnds[index], fQuarks[index], getValue(index));
+    }
+
+    /**
+     * Get the string value of an interval
+     *
+     * @param index
+     *            The position of the interval
+     * @return The string, or null if the value is not a string
+     */
+    public String getString(int index) {
+        return (fTypes[index] == HTInterval.TYPE_STRING ? fStrings[index] : null);
+    }
+
+    private @NonNull TmfStateValue getValue(int index) {
+        switch (fTypes[index]) {
+        case HTInterval.TYPE_INTEGER:
+            return TmfStateValue.newValueInt((int) fValues[index]);
+        case HTInterval.TYPE_LONG:
+            return TmfStateValue.newValueLong(fValues[index]);
+        case HTInterval.TYPE_DOUBLE:
+            return TmfStateValue.newValueDouble(Double.longBitsToDouble(fValues[index]));
+        case HTInterval.TYPE_STRING:
+            return TmfStateValue.newValueString(fStrings[index]);
+        case HTInterval.TYPE_NULL:
+        default:
+            return TmfStateValue.nullValue();
+        }
+    }
+
+    /**
+     * Find the position of the first interval ending at or after a time
+     *
+     * @param t
+     *            The timestamp
+     * @return The position, which is the size if all intervals end before t
+     */
+    public int getStartIndexFor(long t) {
+        int low = 0;
+        int high = fSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fEnds[mid] < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Insert an interval at a given position
+     *
+     * @param index
+     *            The position, between 0 and the size
+     * @param interval
+     *            The interval to insert
+     */
+    public void insert(int index, HTInterval interval) {
+        ITmfStateValue sv = interval.getStateValue();
+        byte type = HTInterval.getByteFromType(sv.getType());
+        long value = 0;
+        String string = null;
+        try {
+            switch (type) {
+            case HTInterval.TYPE_INTEGER:
+                value = sv.unboxInt();
+                break;
+            case HTInterval.TYPE_LONG:
+                value = sv.unboxLong();
+                break;
+            case HTInterval.TYPE_DOUBLE:
+                value = Double.doubleToRawLongBits(sv.unboxDouble());
+                break;
+            case HTInterval.TYPE_STRING:
+                string = sv.unboxStr();
+                break;
+            case HTInterval.TYPE_NULL:
+            default:
+                break;
+            }
+        } catch (StateValueTypeException e) {
+            /* We switched on the type of the value, can't happen */
+            throw new IllegalStateException(e);
+        }
+        insert(index, interval.getStartTime(), interval.getEndTime(), interval.getAttribute(), type, value, string);
+    }
+
+    private void insert(int index, long start, long end, int quark, byte type, long value, String string) {
+        if (fSize == fStarts.length) {
+            grow(fSize * 2);
+        }
+        if (string != null && fStrings == null) {
+            fStrings = new String[fStarts.length];
+        }
+        if (index < fSize) {
+            int length = fSize - index;
+            System.arraycopy(fStarts, index, fStarts, index + 1, length);
+            System.arraycopy(fEnds, index, fEnds, index + 1, length);
+            System.arraycopy(fQuarks, index, fQuarks, index + 1, length);
+            System.arraycopy(fTypes, index, fTypes, index + 1, length);
+            System.arraycopy(fValues, index, fValues, index + 1, length);
+            if (fStrings != null) {
+                System.arraycopy(fStrings, index, fStrings, index + 1, length);
+            }
+        }
+        fStarts[index] = start;
+        fEnds[index] = end;
+        fQuarks[index] = quark;
+        fTypes[index] = type;
+        fValues[index] = value;
+        if (fStrings != null) {
+            fStrings[index] = string;
+        }
+        fSize++;
+    }
+
+    /**
+     * Make sure the arrays can hold a number of intervals without being
+     * reallocated.
+     *
+     * @param capacity
+     *            The number of intervals
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > fStarts.length) {
+            grow(capacity);
+        }
+    }
+
+    private void grow(int capacity) {
+        fStarts = Arrays.copyOf(fStarts, capacity);
+        fEnds = Arrays.copyOf(fEnds, capacity);
+        fQuarks = Arrays.copyOf(fQuarks, capacity);
+        fTypes = Arrays.copyOf(fTypes, capacity);
+        fValues = Arrays.copyOf(fValues, capacity);
+        if (fStrings != null) {
+            fStrings = Arrays.copyOf(fStrings, capacity);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Compact format (file version 7 and up)
+    // ------------------------------------------------------------------------
+
+    /**
+     * Read an interval in the compact format, where the times are stored as
+     * variable-length deltas and the strings are stored once per node, in a
+     * table preceding the intervals, and append it. The intervals must be
+     * read in end time order.
+     *
+     * @param buffer
+     *            The ByteBuffer from which to read the information
+     * @param nodeStart
+     *            The start time of the node containing the interval
+     * @param strings
+     *            The string table of the node
+     * @throws IOException
+     *             If there was an error reading from the buffer
+     */
+    public void addCompactFrom(ByteBuffer buffer, long nodeStart, List<@NonNull String> strings) throws IOException {
+        long start = nodeStart + HTInterval.getVarLong(buffer);
+        long duration = HTInterval.getVarLong(buffer);
+        int quark = (int) HTInterval.getVarLong(buffer);
+        byte type = buffer.get();
+        if (duration < 0) {
+            throw new IOException(errMsg);
+        }
+
+        long value = 0;
+        String string = null;
+        switch (type) {
+        case HTInterval.TYPE_NULL:
+            break;
+        case HTInterval.TYPE_INTEGER:
+            value = (int) HTInterval.decodeZigZag(HTInterval.getVarLong(buffer));
+            break;
+        case HTInterval.TYPE_LONG:
+            value = HTInterval.decodeZigZag(HTInterval.getVarLong(buffer));
+            break;
+        case HTInterval.TYPE_DOUBLE:
+            value = buffer.getLong();
+            break;
+        case HTInterval.TYPE_STRING:
+            long stringIndex = HTInterval.getVarLong(buffer);
+            if (stringIndex >= strings.size()) {
+                throw new IOException(errMsg);
+            }
+            string = strings.get((int) stringIndex);
+            break;
+        default:
+            throw new IOException(errMsg);
+        }
+        insert(fSize, start, start + duration, quark, type, value, string);
+    }
+
+    /**
+     * Write an interval in the compact format. See {@link #addCompactFrom}.
+     *
+     * @param index
+     *            The position of the interval
+     * @param buffer
+     *            The buffer to write to, at its current position
+     * @param nodeStart
+     *            The start time of the node containing the interval
+     * @param stringIndex
+     *            The index of the value in the string table of the node, if
+     *            the value is a string
+     */
+    public void writeCompact(int index, ByteBuffer buffer, long nodeStart, int stringIndex) {
+        HTInterval.putVarLong(buffer, fStarts[index] - nodeStart);
+        HTInterval.putVarLong(buffer, fEnds[index] - fStarts[index]);
+        HTInterval.putVarLong(buffer, fQuarks[index]);
+        byte type = fTypes[index];
+        buffer.put(type);
+        switch (type) {
+        case HTInterval.TYPE_INTEGER:
+        case HTInterval.TYPE_LONG:
+            HTInterval.putVarLong(buffer, HTInterval.encodeZigZag(fValues[index]));
+            break;
+        case HTInterval.TYPE_DOUBLE:
+            /* Same bits as putDouble() */
+            buffer.putLong(fValues[index]);
+            break;
+        case HTInterval.TYPE_STRING:
+            HTInterval.putVarLong(buffer, stringIndex);
+            break;
+        case HTInterval.TYPE_NULL:
+        default:
+            break;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Node cache bounded by a size budget in bytes, evicting the least recently
+ * used nodes first.
+ *
+ * Every node occupies one block of the history file, so the budget is divided
+ * by the block size to obtain the number of nodes to keep. The cache is split
+ * into segments, each with its own LRU list and lock, so that concurrent
+ * queries reading different nodes rarely contend on the same lock.
+ */
+public final class HTLruNodeCache implements IHTNodeCache {
+
+    /** Number of segments, must be a power of 2 */
+    private static final int NB_SEGMENTS = 16;
+    private static final int SEGMENT_MASK = NB_SEGMENTS - 1;
+
+    private final Segment[] fSegments = new Segment[NB_SEGMENTS];
+
+    private final LongAdder fHits = new LongAdder();
+    private final LongAdder fMisses = new LongAdder();
+    private final LongAdder fEvictions = new LongAdder();
+
+    /**
+     * Constructor
+     *
+     * @param sizeBudget
+     *            The maximum size, in bytes, of the nodes kept in the cache. A
+     *            budget smaller than one block disables the cache.
+     * @param blockSize
+     *            The block size of the history tree, which is the size
+     *            accounted for each node
+     */
+    public HTLruNodeCache(long sizeBudget, int blockSize) {
+        long maxNodes = sizeBudget / blockSize;
+        int perSegment = (int) Math.min(Integer.MAX_VALUE, (maxNodes + NB_SEGMENTS - 1) / NB_SEGMENTS);
+        for (int i = 0; i < NB_SEGMENTS; i++) {
+            fSegments[i] = new Segment(perSegment);
+        }
+    }
+
+    @Override
+    public @Nullable HTNode get(int seqNumber) {
+        Segment segment = fSegments[seqNumber & SEGMENT_MASK];
+        HTNode node;
+        synchronized (segment) {
+            node = segment.get(seqNumber);
+        }
+        if (node == null) {
+            fMisses.increment();
+        } else {
+            fHits.increment();
+        }
+        return node;
+    }
+
+    @Override
+    public void put(HTNode node) {
+        int seqNumber = node.getSequenceNumber();
+        Segment segment = fSegments[seqNumber & SEGMENT_MASK];
+        synchronized (segment) {
+            segment.put(seqNumber, node);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : fSegments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return fHits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return fMisses.sum();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return fEvictions.sum();
+    }
+
+    /**
+     * One segment of the cache, an access-ordered map which removes its
+     * eldest entry when it goes over capacity. Accesses must be synchronized
+     * on the segment.
+     */
+    private final class Segment extends LinkedHashMap<Integer, HTNode> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int fCapacity;
+
+        public Segment(int capacity) {
+            super(16, 0.75f, true);
+            fCapacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.@Nullable Entry<Integer, HTNode> eldest) {
+            if (size() > fCapacity) {
+                fEvictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -19,17 +19,22 @@ import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.TimeRangeCondition;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
-import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
-
-import com.google.common.collect.Iterables;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 
 /**
  * The base class for all the types of nodes that go in the History Tree.
@@ -103,8 +108,35 @@ public abstract class HTNode {
      *              strings section pos.)
      *  1 - byte (done or not)
      * </pre>
+     *
+     * followed, from file version 6, by
+     *
+     * <pre>
+     * 128 - 16x long (quark filter)
+     * </pre>
      */
     private static final int COMMON_HEADER_SIZE = 34;
+    private static final int QUARK_FILTER_SIZE = 128;
+
+    /** First file version with a quark filter in the node headers */
+    private static final int QUARK_FILTER_VERSION = 6;
+
+    /**
+     * First file version using the compact encoding: the header is followed by
+     * the string table (a varint count, then each string as a varint length
+     * and its UTF-8 bytes), then by the variable-size intervals. There is no
+     * separate strings section at the end of the block.
+     */
+    private static final int COMPACT_VERSION = 7;
+
+    /**
+     * Number of longs in the quark filter. The filter is a bitmap with one bit
+     * per hashed quark, so a node can be skipped by single queries when the bit
+     * of the requested quark is not set.
+     */
+    private static final int QUARK_FILTER_LENGTH = 16;
+    private static final int QUARK_FILTER_BITS = QUARK_FILTER_LENGTH * Long.SIZE;
+    private static final int QUARK_FILTER_SHIFT = Integer.SIZE - Integer.numberOfTrailingZeros(QUARK_FILTER_BITS);
 
     // ------------------------------------------------------------------------
     // Attributes
@@ -130,8 +162,37 @@ public abstract class HTNode {
     /* True if this node was read from disk (meaning its end time is now fixed) */
     private volatile boolean fIsOnDisk;
 
-    /* Vector containing all the intervals contained in this node */
-    private final List<HTInterval> fIntervals;
+    /*
+     * True if this node was closed, its end time is then fixed even if it is
+     * still waiting to be written
+     */
+    private volatile boolean fIsClosed;
+
+    /*
+     * All the intervals contained in this node, sorted by end time. They are
+     * stored as arrays of primitives, interval objects are only created for
+     * the query results.
+     */
+    private final HTIntervalArray fIntervals;
+
+    /*
+     * String table of the compact format. The index of a string is its
+     * position in the table. The map is only filled while the node is being
+     * built.
+     */
+    private final List<@NonNull String> fStrings = new ArrayList<>();
+    private final Map<String, Integer> fStringIndex = new HashMap<>();
+
+    /* Bitmap of the (hashed) quarks of the intervals in this node */
+    private final long[] fQuarkFilter = new long[QUARK_FILTER_LENGTH];
+
+    /*
+     * Index of the intervals by quark, only built for nodes on disk, which do
+     * not change anymore. Each entry is the quark in the high 32 bits and the
+     * position in fIntervals in the low 32 bits, so that sorting the entries
+     * groups the intervals by quark, in end time order.
+     */
+    private volatile long @Nullable [] fQuarkIndex = null;
 
     /* Lock used to protect the accesses to intervals, nodeEnd and such */
     private final ReentrantReadWriteLock fRwl = new ReentrantReadWriteLock(false);
@@ -155,9 +216,10 @@ public abstract class HTNode {
         fParentSequenceNumber = parentSeqNumber;
 
         fStringSectionOffset = config.getBlockSize();
-        fSizeOfIntervalSection = 0;
+        /* The compact format always has the string table count */
+        fSizeOfIntervalSection = (isCompact() ? HTInterval.getVarLongSize(0) : 0);
         fIsOnDisk = false;
-        fIntervals = new ArrayList<>();
+        fIntervals = new HTIntervalArray();
     }
 
     /**
@@ -175,8 +237,7 @@ public abstract class HTNode {
      */
     public static final @NonNull HTNode readNode(HTConfig config, FileChannel fc)
             throws IOException {
-        HTNode newNode = null;
-        int res, i;
+        int res;
 
         ByteBuffer buffer = ByteBuffer.allocate(config.getBlockSize());
         buffer.order(ByteOrder.LITTLE_ENDIAN);
@@ -185,6 +246,29 @@ public abstract class HTNode {
         assert (res == config.getBlockSize());
         buffer.flip();
 
+        return readNode(config, buffer);
+    }
+
+    /**
+     * Reader factory method. Build a Node object (of the right type) from a
+     * buffer containing exactly one block of the history file, for example a
+     * slice of a memory-mapped region of the file.
+     *
+     * @param config
+     *            Configuration of the History Tree
+     * @param buffer
+     *            The buffer to read from. Position 0 must correspond to the
+     *            start of the node and the byte order must be little endian.
+     *            The position of this buffer will be modified.
+     * @return The node object
+     * @throws IOException
+     *             If the buffer does not contain a valid node
+     */
+    public static final @NonNull HTNode readNode(HTConfig config, ByteBuffer buffer)
+            throws IOException {
+        HTNode newNode = null;
+        int i;
+
         /* Read the common header part */
         byte typeByte = buffer.get();
         NodeType type = NodeType.fromByte(typeByte);
@@ -195,6 +279,15 @@ public abstract class HTNode {
         int intervalCount = buffer.getInt();
         int stringSectionOffset = buffer.getInt();
         buffer.get(); // TODO Used to be "isDone", to be removed from the header
+        long[] quarkFilter = new long[QUARK_FILTER_LENGTH];
+        if (config.getFileVersion() >= QUARK_FILTER_VERSION) {
+            for (i = 0; i < QUARK_FILTER_LENGTH; i++) {
+                quarkFilter[i] = buffer.getLong();
+            }
+        } else {
+            /* No filter in older files, any quark may be in the node */
+            Arrays.fill(quarkFilter, -1L);
+        }
 
         /* Now the rest of the header depends on the node type */
         switch (type) {
@@ -219,15 +312,34 @@ public abstract class HTNode {
          * At this point, we should be done reading the header and 'buffer'
          * should only have the intervals left
          */
-        for (i = 0; i < intervalCount; i++) {
-            HTInterval interval = HTInterval.readFrom(buffer);
-            newNode.fIntervals.add(interval);
-            newNode.fSizeOfIntervalSection += HTInterval.DATA_ENTRY_SIZE;
+        newNode.fIntervals.ensureCapacity(intervalCount);
+        if (newNode.isCompact()) {
+            int sectionStart = buffer.position();
+            int nbStrings = (int) HTInterval.getVarLong(buffer);
+            /* Kept in the node, in case it is reopened for insertions */
+            List<@NonNull String> strings = newNode.fStrings;
+            for (i = 0; i < nbStrings; i++) {
+                byte[] bytes = new byte[(int) HTInterval.getVarLong(buffer)];
+                buffer.get(bytes);
+                strings.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            for (i = 0; i < intervalCount; i++) {
+                newNode.fIntervals.addCompactFrom(buffer, start, strings);
+            }
+            newNode.fSizeOfIntervalSection = buffer.position() - sectionStart;
+        } else {
+            for (i = 0; i < intervalCount; i++) {
+                HTInterval interval = HTInterval.readFrom(buffer);
+                newNode.fIntervals.insert(i, interval);
+                newNode.fSizeOfIntervalSection += HTInterval.DATA_ENTRY_SIZE;
+            }
         }
 
         /* Assign the node's other information we have read previously */
+        System.arraycopy(quarkFilter, 0, newNode.fQuarkFilter, 0, QUARK_FILTER_LENGTH);
         newNode.fNodeEnd = end;
         newNode.fStringSectionOffset = stringSectionOffset;
+        newNode.fIsClosed = true;
         newNode.fIsOnDisk = true;
 
         return newNode;
@@ -265,14 +377,23 @@ public abstract class HTNode {
             buffer.putInt(fIntervals.size());
             buffer.putInt(fStringSectionOffset);
             buffer.put((byte) 1); // TODO Used to be "isDone", to be removed from header
+            if (fConfig.getFileVersion() >= QUARK_FILTER_VERSION) {
+                for (long filterWord : fQuarkFilter) {
+                    buffer.putLong(filterWord);
+                }
+            }
 
             /* Now call the inner method to write the specific header part */
             writeSpecificHeader(buffer);
 
             /* Back to us, we write the intervals */
-            for (HTInterval interval : fIntervals) {
-                int size = interval.writeInterval(buffer, curStringsEntryEndPos);
-                curStringsEntryEndPos -= size;
+            if (isCompact()) {
+                writeCompactIntervals(buffer);
+            } else {
+                for (int i = 0; i < fIntervals.size(); i++) {
+                    int size = fIntervals.get(i).writeInterval(buffer, curStringsEntryEndPos);
+                    curStringsEntryEndPos -= size;
+                }
             }
 
             /*
@@ -309,6 +430,43 @@ public abstract class HTNode {
         fIsOnDisk = true;
     }
 
+    private void writeCompactIntervals(ByteBuffer buffer) {
+        /* Should only be called by methods with the readLock taken */
+        int sectionStart = buffer.position();
+        HTInterval.putVarLong(buffer, fStrings.size());
+        for (String string : fStrings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            HTInterval.putVarLong(buffer, bytes.length);
+            buffer.put(bytes);
+        }
+        for (int i = 0; i < fIntervals.size(); i++) {
+            fIntervals.writeCompact(i, buffer, fNodeStart, getStringIndex(fIntervals.getString(i)));
+        }
+        if (buffer.position() - sectionStart != fSizeOfIntervalSection) {
+            throw new IllegalStateException("Wrong size of interval section: Actual: " + (buffer.position() - sectionStart) + ", Expected: " + fSizeOfIntervalSection); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    private boolean isCompact() {
+        return fConfig.getFileVersion() >= COMPACT_VERSION;
+    }
+
+    private static @Nullable String getStringValue(HTInterval interval) {
+        ITmfStateValue value = interval.getStateValue();
+        if (value.getType() == ITmfStateValue.Type.STRING) {
+            return value.unboxStr();
+        }
+        return null;
+    }
+
+    private int getStringIndex(@Nullable String string) {
+        if (string == null) {
+            return 0;
+        }
+        Integer index = fStringIndex.get(string);
+        return (index == null ? fStrings.size() : index);
+    }
+
     // ------------------------------------------------------------------------
     // Accessors
     // ------------------------------------------------------------------------
@@ -332,12 +490,13 @@ public abstract class HTNode {
     }
 
     /**
-     * Get the end time of this node.
+     * Get the end time of this node. It is known once the node is closed, even
+     * if the node is not written to disk yet.
      *
-     * @return The end time of this node
+     * @return The end time of this node, or 0 if it is still open
      */
     public long getNodeEnd() {
-        if (fIsOnDisk) {
+        if (fIsClosed) {
             return fNodeEnd;
         }
         return 0;
@@ -381,6 +540,16 @@ public abstract class HTNode {
         return fIsOnDisk;
     }
 
+    /**
+     * Return if this node is closed. Its end time is then fixed, but it may
+     * still be waiting to be written to disk.
+     *
+     * @return If this node is closed or not
+     */
+    public boolean isClosed() {
+        return fIsClosed;
+    }
+
     /**
      * Add an interval to this node
      *
@@ -390,25 +559,79 @@ public abstract class HTNode {
     public void addInterval(HTInterval newInterval) {
         fRwl.writeLock().lock();
         try {
+            int size = computeIntervalSize(newInterval);
             /* Just in case, should be checked before even calling this function */
-            assert (newInterval.getIntervalSize() <= getNodeFreeSpace());
+            assert (size <= getNodeFreeSpace());
 
             /* Find the insert position to keep the list sorted */
             int index = fIntervals.size();
-            while (index > 0 && newInterval.compareTo(fIntervals.get(index - 1)) < 0) {
+            while (index > 0 && newInterval.getEndTime() < fIntervals.getEnd(index - 1)) {
                 index--;
             }
 
-            fIntervals.add(index, newInterval);
-            fSizeOfIntervalSection += HTInterval.DATA_ENTRY_SIZE;
+            fIntervals.insert(index, newInterval);
+            int bit = getQuarkFilterBit(newInterval.getAttribute());
+            fQuarkFilter[bit / Long.SIZE] |= 1L << bit;
+
+            if (isCompact()) {
+                /* The size includes the new string table entry, if any */
+                fSizeOfIntervalSection += size;
+                String string = getStringValue(newInterval);
+                if (string != null && !fStringIndex.containsKey(string)) {
+                    fStringIndex.put(string, fStrings.size());
+                    fStrings.add(string);
+                }
+            } else {
+                fSizeOfIntervalSection += HTInterval.DATA_ENTRY_SIZE;
 
-            /* Update the in-node offset "pointer" */
-            fStringSectionOffset -= (newInterval.getStringsEntrySize());
+                /* Update the in-node offset "pointer" */
+                fStringSectionOffset -= (newInterval.getStringsEntrySize());
+            }
         } finally {
             fRwl.writeLock().unlock();
         }
     }
 
+    /**
+     * Get the number of bytes an interval would use if it was added to this
+     * node. With the compact format, this depends on the node's start time
+     * and string table.
+     *
+     * @param interval
+     *            The interval
+     * @return The size, in bytes
+     */
+    public int getIntervalSize(HTInterval interval) {
+        fRwl.readLock().lock();
+        try {
+            return computeIntervalSize(interval);
+        } finally {
+            fRwl.readLock().unlock();
+        }
+    }
+
+    private int computeIntervalSize(HTInterval interval) {
+        /* Should only be called by methods with a lock taken */
+        if (!isCompact()) {
+            return interval.getIntervalSize();
+        }
+        /*
+         * The tree may ask for the size of an interval starting before this
+         * node, which then goes to a parent. Just make sure it's not negative.
+         */
+        long nodeStart = Math.min(fNodeStart, interval.getStartTime());
+        String string = getStringValue(interval);
+        if (string == null || fStringIndex.containsKey(string)) {
+            return interval.getCompactSize(nodeStart, getStringIndex(string));
+        }
+        /* New string, count its entry in the string table */
+        int nbStrings = fStrings.size();
+        int length = interval.getUtf8Length();
+        return interval.getCompactSize(nodeStart, nbStrings)
+                + HTInterval.getVarLongSize(length) + length
+                + HTInterval.getVarLongSize(nbStrings + 1) - HTInterval.getVarLongSize(nbStrings);
+    }
+
     /**
      * We've received word from the containerTree that newest nodes now exist to
      * our right. (Puts isDone = true and sets the endtime)
@@ -433,12 +656,37 @@ public abstract class HTNode {
                  * EndTime > the one requested. Only need to check the last one
                  * since they are sorted
                  */
-                if (endtime < Iterables.getLast(fIntervals).getEndTime()) {
+                if (endtime < fIntervals.getEnd(fIntervals.size() - 1)) {
                     throw new IllegalArgumentException("Closing end time should be greater than or equal to the end time of the intervals of this node"); //$NON-NLS-1$
                 }
             }
 
             fNodeEnd = endtime;
+            /* Published after the end time, for the readers of getNodeEnd() */
+            fIsClosed = true;
+        } finally {
+            fRwl.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Open this node again for insertions. Used for the latest branch of a
+     * history file whose construction is resumed: the node was read from
+     * disk, and will be written again, at the same position, when it is
+     * closed.
+     */
+    void reopen() {
+        fRwl.writeLock().lock();
+        try {
+            fIsOnDisk = false;
+            fIsClosed = false;
+            fNodeEnd = 0;
+            fQuarkIndex = null;
+            /* Keep the order of the table, the size of the node depends on it */
+            fStringIndex.clear();
+            for (int i = 0; i < fStrings.size(); i++) {
+                fStringIndex.put(fStrings.get(i), i);
+            }
         } finally {
             fRwl.writeLock().unlock();
         }
@@ -460,7 +708,7 @@ public abstract class HTNode {
     public void writeInfoFromNode(List<ITmfStateInterval> stateInfo, long t)
             throws TimeRangeException {
         /* This is from a state system query, we are "reading" this node */
-        fRwl.readLock().lock();
+        boolean locked = lockForQuery();
         try {
             for (int i = getStartIndexFor(t); i < fIntervals.size(); i++) {
                 /*
@@ -471,14 +719,16 @@ public abstract class HTNode {
                  * been created after stateInfo was instantiated (they would be
                  * null anyway).
                  */
-                ITmfStateInterval interval = fIntervals.get(i);
-                if (interval.getStartTime() <= t &&
-                        interval.getAttribute() < stateInfo.size()) {
-                    stateInfo.set(interval.getAttribute(), interval);
+                int quark = fIntervals.getQuark(i);
+                if (fIntervals.getStart(i) <= t &&
+                        quark < stateInfo.size()) {
+                    stateInfo.set(quark, fIntervals.get(i));
                 }
             }
         } finally {
-            fRwl.readLock().unlock();
+            if (locked) {
+                fRwl.readLock().unlock();
+            }
         }
     }
 
@@ -496,14 +746,19 @@ public abstract class HTNode {
      *             If 't' is invalid
      */
     public HTInterval getRelevantInterval(int key, long t) throws TimeRangeException {
-        fRwl.readLock().lock();
+        boolean locked = lockForQuery();
         try {
+            if (!mayContain(key)) {
+                return null;
+            }
+            if (fIsOnDisk) {
+                return getRelevantIntervalFromIndex(key, t);
+            }
             for (int i = getStartIndexFor(t); i < fIntervals.size(); i++) {
-                HTInterval curInterval = fIntervals.get(i);
-                if (curInterval.getAttribute() == key
-                        && curInterval.getStartTime() <= t
-                        && curInterval.getEndTime() >= t) {
-                    return curInterval;
+                if (fIntervals.getQuark(i) == key
+                        && fIntervals.getStart(i) <= t
+                        && fIntervals.getEnd(i) >= t) {
+                    return fIntervals.get(i);
                 }
             }
 
@@ -511,46 +766,130 @@ public abstract class HTNode {
             return null;
 
         } finally {
-            fRwl.readLock().unlock();
+            if (locked) {
+                fRwl.readLock().unlock();
+            }
         }
     }
 
-    private int getStartIndexFor(long t) throws TimeRangeException {
+    /*
+     * Take the read lock for a query, unless the node is on disk: it does not
+     * change anymore, and concurrent queries would only contend on the lock.
+     * Returns if the lock was taken.
+     */
+    private boolean lockForQuery() {
+        if (fIsOnDisk) {
+            return false;
+        }
+        fRwl.readLock().lock();
+        return true;
+    }
+
+    /**
+     * Check if this node may contain intervals for the given attribute. False
+     * positives are possible, but if this returns false, the node contains no
+     * interval for that attribute.
+     *
+     * @param quark
+     *            The attribute quark
+     * @return If the node may contain intervals for the quark
+     */
+    public boolean mayContain(int quark) {
+        int bit = getQuarkFilterBit(quark);
+        return (fQuarkFilter[bit / Long.SIZE] & (1L << bit)) != 0;
+    }
+
+    private boolean mayContainAny(BitSet quarks) {
+        for (int quark = quarks.nextSetBit(0); quark >= 0; quark = quarks.nextSetBit(quark + 1)) {
+            if (mayContain(quark)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getQuarkFilterBit(int quark) {
+        /* Fibonacci hashing, keeping the top bits of the product */
+        return (quark * 0x9E3779B9) >>> QUARK_FILTER_SHIFT;
+    }
+
+    private HTInterval getRelevantIntervalFromIndex(int key, long t) {
         /* Should only be called by methods with the readLock taken */
+        long[] index = getQuarkIndex();
 
-        if (fIntervals.isEmpty()) {
-            return 0;
+        /* Find the first entry for this quark */
+        int pos = Arrays.binarySearch(index, ((long) key) << 32);
+        if (pos < 0) {
+            pos = -pos - 1;
         }
+
         /*
-         * Since the intervals are sorted by end time, we can skip all the ones
-         * at the beginning whose end times are smaller than 't'. Java does
-         * provides a .binarySearch method, but its API is quite weird...
+         * The intervals of a quark do not overlap and are sorted by end time,
+         * so the first one ending at or after t is the only candidate.
          */
-        HTInterval dummy = new HTInterval(0, t, 0, TmfStateValue.nullValue());
-        int index = Collections.binarySearch(fIntervals, dummy);
+        for (; pos < index.length && (int) (index[pos] >>> 32) == key; pos++) {
+            int i = (int) index[pos];
+            if (fIntervals.getEnd(i) >= t) {
+                return (fIntervals.getStart(i) <= t ? fIntervals.get(i) : null);
+            }
+        }
+        return null;
+    }
 
-        if (index < 0) {
-            /*
-             * .binarySearch returns a negative number if the exact value was
-             * not found. Here we just want to know where to start searching, we
-             * don't care if the value is exact or not.
-             */
-            index = -index - 1;
+    private long[] getQuarkIndex() {
+        long[] index = fQuarkIndex;
+        if (index == null) {
+            /* Concurrent readers may build it twice, which is harmless */
+            index = new long[fIntervals.size()];
+            for (int i = 0; i < index.length; i++) {
+                index[i] = (((long) fIntervals.getQuark(i)) << 32) | i;
+            }
+            Arrays.sort(index);
+            fQuarkIndex = index;
+        }
+        return index;
+    }
 
-        } else {
-            /*
-             * Another API quirkiness, the returned index is the one of the *last*
-             * element of a series of equal endtimes, which happens sometimes. We
-             * want the *first* element of such a series, to read through them
-             * again.
-             */
-            while (index > 0
-                    && fIntervals.get(index - 1).compareTo(fIntervals.get(index)) == 0) {
-                index--;
+    /**
+     * Add the intervals of this node matching the given attributes and time
+     * condition to a collection. Used by range queries, which visit each node
+     * at most once.
+     *
+     * @param intervals
+     *            The collection to which the matching intervals are added
+     * @param quarks
+     *            The attributes to look for
+     * @param times
+     *            The time condition the intervals must match
+     */
+    public void writeIntervals(Collection<ITmfStateInterval> intervals, BitSet quarks, TimeRangeCondition times) {
+        boolean locked = lockForQuery();
+        try {
+            if (!mayContainAny(quarks)) {
+                return;
+            }
+            /* Intervals ending before the range are skipped */
+            for (int i = getStartIndexFor(times.getStart()); i < fIntervals.size(); i++) {
+                if (quarks.get(fIntervals.getQuark(i))
+                        && times.intersects(fIntervals.getStart(i), fIntervals.getEnd(i))) {
+                    intervals.add(fIntervals.get(i));
+                }
+            }
+        } finally {
+            if (locked) {
+                fRwl.readLock().unlock();
             }
         }
+    }
 
-        return index;
+    private int getStartIndexFor(long t) throws TimeRangeException {
+        /* Should only be called by methods with the readLock taken, see lockForQuery() */
+
+        /*
+         * Since the intervals are sorted by end time, we can skip all the ones
+         * at the beginning whose end times are smaller than 't'.
+         */
+        return fIntervals.getStartIndexFor(t);
     }
 
     /**
@@ -559,7 +898,11 @@ public abstract class HTNode {
      * @return The total header size
      */
     public final int getTotalHeaderSize() {
-        return COMMON_HEADER_SIZE + getSpecificHeaderSize();
+        int commonSize = COMMON_HEADER_SIZE;
+        if (fConfig.getFileVersion() >= QUARK_FILTER_VERSION) {
+            commonSize += QUARK_FILTER_SIZE;
+        }
+        return commonSize + getSpecificHeaderSize();
     }
 
     /**
@@ -619,7 +962,7 @@ public abstract class HTNode {
                 fIntervals.size(),
                 getNodeUsagePercent(),
                 fNodeStart,
-                (fIsOnDisk || fNodeEnd != 0) ? fNodeEnd : "...");
+                fIsClosed ? fNodeEnd : "...");
     }
 
     /**
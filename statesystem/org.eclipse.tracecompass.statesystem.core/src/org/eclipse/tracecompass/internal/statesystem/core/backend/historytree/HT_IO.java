@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2012, 2014 Ericsson
+ * Copyright (c) 2012, 2016 Ericsson
  * Copyright (c) 2010, 2011 École Polytechnique de Montréal
  * Copyright (c) 2010, 2011 Alexandre Montplaisir <alexandre.montplaisir@gmail.com>
  *
@@ -16,10 +16,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.common.core.BufferUtils;
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
 
 /**
@@ -31,6 +46,20 @@ import org.eclipse.tracecompass.internal.statesystem.core.Activator;
  * This abstraction is mainly for code isolation/clarification purposes. Every
  * HistoryTree must contain 1 and only 1 HT_IO element.
  *
+ * When an existing (closed) history file is opened, the node section of the
+ * file is memory-mapped and nodes are decoded directly from the mapping,
+ * under a shared read lock only. Closing the file takes that lock exclusively
+ * to release the mappings. Files that are being built, or files that could
+ * not be mapped, use the original (synchronized) file channel path.
+ *
+ * An existing file can also be opened to resume its construction. Its nodes
+ * are then read and written with positional file channels, since the nodes of
+ * the latest branch are written again at their original position.
+ *
+ * While a tree is being built, the closed nodes can be encoded and written by
+ * a background writer thread (see {@link #startNodeWriter}), so that the disk
+ * writes overlap with the insertion of the next intervals.
+ *
  * @author Alexandre Montplaisir
  *
  */
@@ -40,17 +69,45 @@ class HT_IO {
 
     /* Fields related to the file I/O */
     private final FileInputStream fFileInputStream;
-    private final FileOutputStream fFileOutputStream;
+    /* Null when resuming, the output channel is opened directly */
+    private final @Nullable FileOutputStream fFileOutputStream;
     private final FileChannel fFileChannelIn;
     private final FileChannel fFileChannelOut;
 
-    // TODO test/benchmark optimal cache size
     /**
-     * Cache size, must be a power of 2
+     * Maximum size of one mapped region. Each region contains a whole number
+     * of nodes, so that a node never spans two regions.
+     */
+    private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+
+    /*
+     * Read-only mappings of the node section of the file, null if the file is
+     * not mapped (new file, or mapping failed).
+     */
+    private final MappedByteBuffer @Nullable [] fMappings;
+    private final int fNodesPerMapping;
+
+    /* Set when the file is closed, mapped reads must then fail */
+    private volatile boolean fIsClosed = false;
+
+    /*
+     * Held in read mode while a node is decoded from the mappings, and in
+     * write mode to release them, since a released mapping must never be
+     * accessed.
      */
-    private static final int CACHE_SIZE = 256;
-    private static final int CACHE_MASK = CACHE_SIZE - 1;
-    private final HTNode fNodeCache[] = new HTNode[CACHE_SIZE];
+    private final ReadWriteLock fMappingLock = new ReentrantReadWriteLock();
+
+    /* Cache of the nodes read from or written to the file */
+    private final IHTNodeCache fNodeCache;
+
+    /* Background writer of the closed nodes, null if the caller writes them */
+    private volatile @Nullable ExecutorService fNodeWriter = null;
+
+    /*
+     * Nodes handed to the writer but not written yet. They must still be
+     * readable, even if they were evicted from the cache.
+     */
+    private final Map<Integer, HTNode> fPendingNodes = new ConcurrentHashMap<>();
 
     /**
      * Standard constructor
@@ -64,7 +121,26 @@ class HT_IO {
      *             An exception can be thrown when file cannot be accessed
      */
     public HT_IO(HTConfig config, boolean newFile) throws IOException {
+        this(config, newFile, false);
+    }
+
+    /**
+     * Constructor which can open an existing file for writing
+     *
+     * @param config
+     *            The configuration object for the StateHistoryTree
+     * @param newFile
+     *            Flag indicating that the file must be created from scratch
+     * @param resume
+     *            Flag indicating that nodes will be written to an existing
+     *            file, to resume its construction. Ignored for new files.
+     *
+     * @throws IOException
+     *             An exception can be thrown when file cannot be accessed
+     */
+    public HT_IO(HTConfig config, boolean newFile, boolean resume) throws IOException {
         fConfig = config;
+        fNodeCache = new HTLruNodeCache(config.getNodeCacheSize(), config.getBlockSize());
 
         File historyTreeFile = config.getStateFile();
         if (newFile) {
@@ -81,6 +157,15 @@ class HT_IO {
             }
             fFileInputStream = new FileInputStream(historyTreeFile);
             fFileOutputStream = new FileOutputStream(historyTreeFile, false);
+            fFileChannelOut = fFileOutputStream.getChannel();
+        } else if (resume) {
+            /*
+             * An append-mode stream would ignore the position of the nodes,
+             * use a channel opened for (positional) writing instead.
+             */
+            fFileInputStream = new FileInputStream(historyTreeFile);
+            fFileOutputStream = null;
+            fFileChannelOut = FileChannel.open(historyTreeFile.toPath(), StandardOpenOption.WRITE);
         } else {
             /*
              * We want to open an existing file, make sure we don't squash the
@@ -88,9 +173,45 @@ class HT_IO {
              */
             fFileInputStream = new FileInputStream(historyTreeFile);
             fFileOutputStream = new FileOutputStream(historyTreeFile, true);
+            fFileChannelOut = fFileOutputStream.getChannel();
         }
         fFileChannelIn = fFileInputStream.getChannel();
-        fFileChannelOut = fFileOutputStream.getChannel();
+
+        /* The nodes of a file being built can still change, don't map them */
+        fNodesPerMapping = (int) (MAX_MAPPING_SIZE / config.getBlockSize());
+        fMappings = (newFile || resume ? null : mapNodeSection());
+    }
+
+    /**
+     * Map the node section of an existing file in read-only mode.
+     *
+     * @return The mapped regions, or null if the file could not be mapped, in
+     *         which case the file channel will be used instead.
+     */
+    private MappedByteBuffer @Nullable [] mapNodeSection() {
+        try {
+            final long blockSize = fConfig.getBlockSize();
+            final long nodeSectionSize = fFileChannelIn.size() - HistoryTree.TREE_HEADER_SIZE;
+            if (nodeSectionSize < blockSize) {
+                return null;
+            }
+            final long nbNodes = nodeSectionSize / blockSize;
+            final long mappingSize = fNodesPerMapping * blockSize;
+            final int nbMappings = (int) ((nbNodes + fNodesPerMapping - 1) / fNodesPerMapping);
+
+            MappedByteBuffer[] mappings = new MappedByteBuffer[nbMappings];
+            for (int i = 0; i < nbMappings; i++) {
+                long position = HistoryTree.TREE_HEADER_SIZE + i * mappingSize;
+                long size = Math.min(mappingSize, (nbNodes * blockSize) - (i * mappingSize));
+                mappings[i] = fFileChannelIn.map(MapMode.READ_ONLY, position, size);
+            }
+            return mappings;
+        } catch (IOException | RuntimeException e) {
+            /* Mapping can fail if we run out of address space, use the channel */
+            Activator.getDefault().logWarning("Could not map history file " + //$NON-NLS-1$
+                    fConfig.getStateFile().getName() + ", falling back to file channel", e); //$NON-NLS-1$
+            return null;
+        }
     }
 
     /**
@@ -104,21 +225,28 @@ class HT_IO {
      *             reading. Instead of using a big reader-writer lock, we'll
      *             just catch this exception.
      */
-    public synchronized @NonNull HTNode readNode(int seqNumber) throws ClosedChannelException {
+    public @NonNull HTNode readNode(int seqNumber) throws ClosedChannelException {
         /* Do a cache lookup */
-        int offset = seqNumber & CACHE_MASK;
-        HTNode readNode = fNodeCache[offset];
-        if (readNode != null && readNode.getSequenceNumber() == seqNumber) {
+        HTNode readNode = fNodeCache.get(seqNumber);
+        if (readNode != null) {
+            return readNode;
+        }
+
+        /* The node may not be written yet */
+        readNode = fPendingNodes.get(seqNumber);
+        if (readNode != null) {
             return readNode;
         }
 
         /* Lookup on disk */
         try {
-            seekFCToNodePos(fFileChannelIn, seqNumber);
-            readNode = HTNode.readNode(fConfig, fFileChannelIn);
+            readNode = readMappedNode(seqNumber);
+            if (readNode == null) {
+                readNode = readNodeFromChannel(seqNumber);
+            }
 
             /* Put the node in the cache. */
-            fNodeCache[offset] = readNode;
+            fNodeCache.put(readNode);
             return readNode;
 
         } catch (ClosedChannelException e) {
@@ -130,15 +258,111 @@ class HT_IO {
         }
     }
 
-    public synchronized void writeNode(HTNode node) {
+    /**
+     * Decode a node from the mapped node section. This can be called
+     * concurrently.
+     *
+     * @param seqNumber
+     *            The sequence number of the node
+     * @return The node, or null if it is not in the mapped section of the file
+     * @throws IOException
+     *             If the file was closed or the node cannot be decoded
+     */
+    private @Nullable HTNode readMappedNode(int seqNumber) throws IOException {
+        MappedByteBuffer[] mappings = fMappings;
+        if (mappings == null) {
+            return null;
+        }
+        fMappingLock.readLock().lock();
         try {
-            /* Insert the node into the cache. */
-            int seqNumber = node.getSequenceNumber();
-            int offset = seqNumber & CACHE_MASK;
-            fNodeCache[offset] = node;
+            if (fIsClosed) {
+                throw new ClosedChannelException();
+            }
+            ByteBuffer buffer = getMappedNode(mappings, seqNumber);
+            return (buffer == null ? null : HTNode.readNode(fConfig, buffer));
+        } finally {
+            fMappingLock.readLock().unlock();
+        }
+    }
 
+    /**
+     * Get a buffer view of a node in the mapped node section. The returned
+     * buffer is private to the caller, so this can be called concurrently.
+     *
+     * @param mappings
+     *            The mappings of the node section
+     * @param seqNumber
+     *            The sequence number of the node
+     * @return The buffer, whose position 0 is the start of the node, or null
+     *         if the node is not in the mapped section of the file
+     */
+    private @Nullable ByteBuffer getMappedNode(MappedByteBuffer[] mappings, int seqNumber) {
+        int mappingIndex = seqNumber / fNodesPerMapping;
+        if (seqNumber < 0 || mappingIndex >= mappings.length) {
+            return null;
+        }
+        final int blockSize = fConfig.getBlockSize();
+        int position = (seqNumber % fNodesPerMapping) * blockSize;
+        ByteBuffer mapping = mappings[mappingIndex];
+        if (position + blockSize > mapping.capacity()) {
+            return null;
+        }
+
+        /*
+         * duplicate() only reads the immutable state of the shared mapping,
+         * the returned view has its own position and limit.
+         */
+        ByteBuffer buffer = mapping.duplicate();
+        buffer.position(position);
+        buffer.limit(position + blockSize);
+        buffer = buffer.slice();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private synchronized @NonNull HTNode readNodeFromChannel(int seqNumber) throws IOException {
+        seekFCToNodePos(fFileChannelIn, seqNumber);
+        return HTNode.readNode(fConfig, fFileChannelIn);
+    }
+
+    /**
+     * Write a node to the file. If the node writer is started, the node is
+     * only queued, and it is written later in the writer thread.
+     *
+     * @param node
+     *            The node to write. It must not be modified anymore.
+     */
+    public void writeNode(HTNode node) {
+        /* Insert the node into the cache. */
+        fNodeCache.put(node);
+
+        ExecutorService writer = fNodeWriter;
+        if (writer == null || writer.isShutdown()) {
+            writeNodeToFile(node);
+            return;
+        }
+        final int seqNumber = node.getSequenceNumber();
+        fPendingNodes.put(seqNumber, node);
+        /*
+         * If the queue is full, or if the writer was stopped since the check
+         * above, the node is written in this thread
+         */
+        writer.execute(() -> {
+            try {
+                writeNodeToFile(node);
+            } catch (RuntimeException e) {
+                Activator.getDefault().logError("Error writing history tree node " + seqNumber, e); //$NON-NLS-1$
+            } finally {
+                /* Only remove it once it can be read back from the file */
+                fPendingNodes.remove(seqNumber);
+            }
+        });
+    }
+
+    private synchronized void writeNodeToFile(HTNode node) {
+        try {
             /* Position ourselves at the start of the node and write it */
-            seekFCToNodePos(fFileChannelOut, seqNumber);
+            seekFCToNodePos(fFileChannelOut, node.getSequenceNumber());
             node.writeSelf(fFileChannelOut);
         } catch (IOException e) {
             /* If we were able to open the file, we should be fine now... */
@@ -146,11 +370,71 @@ class HT_IO {
         }
     }
 
+    /**
+     * Start a background thread which encodes and writes the nodes passed to
+     * {@link #writeNode}, so that the caller can go on building the tree.
+     * Should be called before the first node is written.
+     *
+     * @param maxPendingNodes
+     *            The maximum number of nodes waiting to be written. When it is
+     *            reached, the calling thread writes the nodes itself.
+     */
+    public void startNodeWriter(int maxPendingNodes) {
+        if (fNodeWriter != null) {
+            return;
+        }
+        /*
+         * Unlike CallerRunsPolicy, the rejected writes also run once the
+         * executor is shut down, so a node is never dropped.
+         */
+        fNodeWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxPendingNodes),
+                r -> {
+                    Thread thread = new Thread(r, "History Tree Writer Thread"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (r, executor) -> r.run());
+    }
+
+    /**
+     * Wait until all the nodes passed to {@link #writeNode} are written to the
+     * file. The node writer is stopped, the next nodes are written by the
+     * calling thread.
+     */
+    public void flush() {
+        stopNodeWriter();
+    }
+
+    private void stopNodeWriter() {
+        ExecutorService writer = fNodeWriter;
+        if (writer == null) {
+            return;
+        }
+        /* The queued nodes are still written */
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Activator.getDefault().logError("Interrupted while writing history tree nodes", e); //$NON-NLS-1$
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the cache of nodes used by this object.
+     *
+     * @return The node cache
+     */
+    public IHTNodeCache getNodeCache() {
+        return fNodeCache;
+    }
+
     public FileChannel getFcOut() {
         return fFileChannelOut;
     }
 
-    public FileInputStream supplyATReader(int nodeOffset) {
+    public synchronized FileInputStream supplyATReader(int nodeOffset) {
         try {
             /*
              * Position ourselves at the start of the Mapping section in the
@@ -163,16 +447,52 @@ class HT_IO {
         return fFileInputStream;
     }
 
-    public synchronized void closeFile() {
+    public void closeFile() {
+        /* Not under the lock, the writer thread needs it to finish */
+        stopNodeWriter();
+        synchronized (this) {
+            releaseMappings();
+            fNodeCache.clear();
+            fPendingNodes.clear();
+            try {
+                fFileInputStream.close();
+                FileOutputStream fos = fFileOutputStream;
+                if (fos != null) {
+                    fos.close();
+                }
+                fFileChannelOut.close();
+            } catch (IOException e) {
+                Activator.getDefault().logError(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Release the mappings of the node section now, instead of when they are
+     * garbage collected: a mapped file cannot be deleted or truncated on some
+     * platforms.
+     */
+    private void releaseMappings() {
+        fMappingLock.writeLock().lock();
         try {
-            fFileInputStream.close();
-            fFileOutputStream.close();
-        } catch (IOException e) {
-            Activator.getDefault().logError(e.getMessage(), e);
+            if (fIsClosed) {
+                return;
+            }
+            fIsClosed = true;
+            MappedByteBuffer[] mappings = fMappings;
+            if (mappings != null) {
+                for (MappedByteBuffer mapping : mappings) {
+                    if (mapping != null) {
+                        BufferUtils.unmap(mapping);
+                    }
+                }
+            }
+        } finally {
+            fMappingLock.writeLock().unlock();
         }
     }
 
-    public synchronized void deleteFile() {
+    public void deleteFile() {
         closeFile();
 
         File historyTreeFile = fConfig.getStateFile();
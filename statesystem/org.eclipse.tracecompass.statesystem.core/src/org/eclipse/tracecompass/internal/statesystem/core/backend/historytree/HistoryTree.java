@@ -28,6 +28,7 @@ import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.TimeRangeCondition;
 import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 
@@ -50,8 +51,21 @@ public class HistoryTree {
 
     private static final int HISTORY_FILE_MAGIC_NUMBER = 0x05FFA900;
 
-    /** File format version. Increment when breaking compatibility. */
-    private static final int FILE_VERSION = 5;
+    /**
+     * File format version used for new files. Increment when breaking
+     * compatibility.
+     *
+     * <ul>
+     * <li>5: fixed-size interval entries</li>
+     * <li>6: adds the quark filter to the node headers</li>
+     * <li>7: variable-size interval entries, with times relative to the node
+     * start, and a per-node string table</li>
+     * </ul>
+     */
+    static final int FILE_VERSION = 7;
+
+    /** Oldest file format version that can still be read */
+    static final int MIN_FILE_VERSION = 5;
 
     // ------------------------------------------------------------------------
     // Tree-specific configuration
@@ -76,6 +90,12 @@ public class HistoryTree {
     /** "Cache" to keep the active nodes in memory */
     private final @NonNull List<@NonNull HTNode> fLatestBranch;
 
+    /**
+     * The first node of the latest branch, which every query reads. Kept
+     * apart so that the queries do not take the lock of the latest branch.
+     */
+    private volatile @NonNull HTNode fRootNode;
+
     // ------------------------------------------------------------------------
     // Constructors/"Destructors"
     // ------------------------------------------------------------------------
@@ -110,6 +130,7 @@ public class HistoryTree {
         /* Add the first node to the tree */
         LeafNode firstNode = initNewLeafNode(-1, conf.getTreeStart());
         fLatestBranch.add(firstNode);
+        fRootNode = firstNode;
     }
 
     /**
@@ -124,12 +145,31 @@ public class HistoryTree {
      *             If an error happens reading the file
      */
     public HistoryTree(File existingStateFile, int expProviderVersion) throws IOException {
+        this(existingStateFile, expProviderVersion, false);
+    }
+
+    /**
+     * Constructor for an existing tree file, which can resume the construction
+     * of the tree. The nodes of the latest branch are then opened again, so
+     * that intervals ending after the end time of the file can be inserted,
+     * and the new nodes are written after the existing ones.
+     *
+     * @param existingStateFile
+     *            Path/filename of the history-file we are to open
+     * @param expProviderVersion
+     *            The expected version of the state provider
+     * @param resume
+     *            True to continue building the tree, false to only read it
+     * @throws IOException
+     *             If an error happens reading the file
+     */
+    public HistoryTree(File existingStateFile, int expProviderVersion, boolean resume) throws IOException {
         /*
          * Open the file ourselves, get the tree header information we need,
          * then pass on the descriptor to the TreeIO object.
          */
         int rootNodeSeqNb, res;
-        int bs, maxc;
+        int bs, maxc, fileVersion;
         long startTime;
 
         /* Java I/O mumbo jumbo... */
@@ -159,8 +199,8 @@ public class HistoryTree {
                 throw new IOException("Wrong magic number"); //$NON-NLS-1$
             }
 
-            res = buffer.getInt(); /* File format version number */
-            if (res != FILE_VERSION) {
+            fileVersion = buffer.getInt(); /* File format version number */
+            if (fileVersion < MIN_FILE_VERSION || fileVersion > FILE_VERSION) {
                 throw new IOException("Mismatching History Tree file format versions"); //$NON-NLS-1$
             }
 
@@ -184,7 +224,8 @@ public class HistoryTree {
             rootNodeSeqNb = buffer.getInt();
             startTime = buffer.getLong();
 
-            fConfig = new HTConfig(existingStateFile, bs, maxc, expProviderVersion, startTime);
+            fConfig = new HTConfig(existingStateFile, bs, maxc, expProviderVersion, startTime,
+                    HTConfig.getDefaultNodeCacheSize(), fileVersion);
         }
 
         /*
@@ -192,10 +233,17 @@ public class HistoryTree {
          * file, not extremely elegant. But how to pass the information here to
          * the SHT otherwise?
          */
-        fTreeIO = new HT_IO(fConfig, false);
+        fTreeIO = new HT_IO(fConfig, false, resume);
 
         fLatestBranch = buildLatestBranch(rootNodeSeqNb);
+        fRootNode = fLatestBranch.get(0);
         fTreeEnd = getRootNode().getNodeEnd();
+        if (resume) {
+            /* The nodes will be written again when they are closed */
+            for (HTNode node : fLatestBranch) {
+                node.reopen();
+            }
+        }
 
         /*
          * Make sure the history start time we read previously is consistent
@@ -254,12 +302,18 @@ public class HistoryTree {
             fTreeEnd = requestedEndTime;
 
             /* Close off the latest branch of the tree */
-            for (int i = 0; i < fLatestBranch.size(); i++) {
-                fLatestBranch.get(i).closeThisNode(fTreeEnd);
-                fTreeIO.writeNode(fLatestBranch.get(i));
-            }
+            closeNodes(0, fTreeEnd);
+            /* The header must be written last */
+            fTreeIO.flush();
 
             try (FileChannel fc = fTreeIO.getFcOut();) {
+                /*
+                 * If the construction was resumed, the old attribute tree may
+                 * still be after the last node. Remove it, the new one is
+                 * appended after the nodes.
+                 */
+                fc.truncate(supplyATWriterFilePos());
+
                 ByteBuffer buffer = ByteBuffer.allocate(TREE_HEADER_SIZE);
                 buffer.order(ByteOrder.LITTLE_ENDIAN);
                 buffer.clear();
@@ -269,7 +323,7 @@ public class HistoryTree {
 
                 buffer.putInt(HISTORY_FILE_MAGIC_NUMBER);
 
-                buffer.putInt(FILE_VERSION);
+                buffer.putInt(fConfig.getFileVersion());
                 buffer.putInt(fConfig.getProviderVersion());
 
                 buffer.putInt(fConfig.getBlockSize());
@@ -335,7 +389,7 @@ public class HistoryTree {
      * @return The root node
      */
     public HTNode getRootNode() {
-        return fLatestBranch.get(0);
+        return fRootNode;
     }
 
     /**
@@ -406,6 +460,16 @@ public class HistoryTree {
         return fTreeIO.readNode(seqNumber);
     }
 
+    /**
+     * Get the cache of nodes read from the history file, for statistics
+     * purposes.
+     *
+     * @return The node cache
+     */
+    public IHTNodeCache getNodeCache() {
+        return fTreeIO.getNodeCache();
+    }
+
     /**
      * Write a node object to the history file.
      *
@@ -416,6 +480,18 @@ public class HistoryTree {
         fTreeIO.writeNode(node);
     }
 
+    /**
+     * Encode and write the closed nodes in a background thread, instead of in
+     * the thread inserting the intervals. Should be called before the first
+     * interval is inserted.
+     *
+     * @param maxPendingNodes
+     *            The maximum number of closed nodes waiting to be written
+     */
+    public void startNodeWriter(int maxPendingNodes) {
+        fTreeIO.startNodeWriter(maxPendingNodes);
+    }
+
     /**
      * Close the history file.
      */
@@ -462,7 +538,7 @@ public class HistoryTree {
         HTNode targetNode = fLatestBranch.get(indexOfNode);
 
         /* Verify if there is enough room in this node to store this interval */
-        if (interval.getIntervalSize() > targetNode.getNodeFreeSpace()) {
+        if (targetNode.getIntervalSize(interval) > targetNode.getNodeFreeSpace()) {
             /* Nope, not enough room. Insert in a new sibling instead. */
             addSiblingNode(indexOfNode);
             tryInsertAtNode(interval, fLatestBranch.size() - 1);
@@ -524,10 +600,8 @@ public class HistoryTree {
             }
 
             /* Split off the new branch from the old one */
+            closeNodes(indexOfNode, splitTime);
             for (int i = indexOfNode; i < fLatestBranch.size(); i++) {
-                fLatestBranch.get(i).closeThisNode(splitTime);
-                fTreeIO.writeNode(fLatestBranch.get(i));
-
                 CoreNode prevNode = (CoreNode) fLatestBranch.get(i - 1);
                 HTNode newNode;
 
@@ -548,9 +622,28 @@ public class HistoryTree {
         }
     }
 
+    /**
+     * Close and write the nodes of the latest branch, from a given depth down
+     * to the leaf. The nodes are written from the bottom up: once a node is
+     * written, concurrent queries read its children from the file or from the
+     * node cache, instead of the latest branch, so the children must be
+     * written first.
+     *
+     * @param fromIndex
+     *            The index in latestBranch of the first node to close
+     * @param endTime
+     *            The end time of the closed nodes
+     */
+    private void closeNodes(int fromIndex, long endTime) {
+        for (int i = fLatestBranch.size() - 1; i >= fromIndex; i--) {
+            fLatestBranch.get(i).closeThisNode(endTime);
+            fTreeIO.writeNode(fLatestBranch.get(i));
+        }
+    }
+
     /**
      * Similar to the previous method, except here we rebuild a completely new
-     * latestBranch
+     * latestBranch. Must be called with the lock of the latest branch held.
      */
     private void addNewRootNode() {
         final long splitTime = fTreeEnd;
@@ -561,16 +654,20 @@ public class HistoryTree {
         /* Tell the old root node that it isn't root anymore */
         oldRootNode.setParentSequenceNumber(newRootNode.getSequenceNumber());
 
-        /* Close off the whole current latestBranch */
-
-        for (int i = 0; i < fLatestBranch.size(); i++) {
-            fLatestBranch.get(i).closeThisNode(splitTime);
-            fTreeIO.writeNode(fLatestBranch.get(i));
-        }
-
         /* Link the new root to its first child (the previous root node) */
         newRootNode.linkNewChild(oldRootNode);
 
+        /*
+         * Publish the new root before closing the old branch, so that queries
+         * never start from a closed root. Queries reading the old root from
+         * the new one wait for the lock of the latest branch, held here until
+         * the old root is written.
+         */
+        fRootNode = newRootNode;
+
+        /* Close off the whole current latestBranch */
+        closeNodes(0, splitTime);
+
         /* Rebuild a new latestBranch */
         int depth = fLatestBranch.size();
         fLatestBranch.clear();
@@ -678,6 +775,45 @@ public class HistoryTree {
         return readNode(potentialNextSeqNb);
     }
 
+    /**
+     * Inner method to select all the children of the current node whose time
+     * range matches the given time condition. Used by range queries, which
+     * follow several branches of the tree.
+     *
+     * @param currentNode
+     *            The node on which the request is made
+     * @param times
+     *            The time condition the children must match
+     * @return The sequence numbers of the matching children, in chronological
+     *         order
+     */
+    public List<Integer> selectNextChildren(CoreNode currentNode, TimeRangeCondition times) {
+        List<Integer> children = new ArrayList<>();
+        int nbChildren = currentNode.getNbChildren();
+        for (int i = 0; i < nbChildren; i++) {
+            long childStart = currentNode.getChildStart(i);
+            /*
+             * A child ends where the next one starts. The end time of the
+             * latest child is only known once the parent is closed.
+             */
+            long childEnd;
+            if (i < nbChildren - 1) {
+                childEnd = currentNode.getChildStart(i + 1) - 1;
+            } else if (currentNode.isClosed()) {
+                childEnd = currentNode.getNodeEnd();
+            } else {
+                childEnd = Long.MAX_VALUE;
+            }
+            if (childStart > times.getEnd()) {
+                break;
+            }
+            if (times.intersects(childStart, childEnd)) {
+                children.add(currentNode.getChild(i));
+            }
+        }
+        return children;
+    }
+
     /**
      * Get the current size of the history file.
      *
@@ -730,7 +866,7 @@ public class HistoryTree {
                             + otherNode.getSequenceNumber() + ")\n");
                     ret = false;
                 }
-                if (node.isOnDisk()) {
+                if (node.isClosed()) {
                     otherNode = fTreeIO.readNode(node.getLatestChild());
                     if (node.getNodeEnd() != otherNode.getNodeEnd()) {
                         buf.append("End time of node (" + node.getNodeEnd()
@@ -15,15 +15,26 @@
 
 package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
 
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.TimeRangeCondition;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.CoreNode;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTConfig;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HTInterval;
@@ -51,9 +62,20 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
      */
     private final HistoryTree fSht;
 
+    /**
+     * System property enabling parallel queries by default, using the common
+     * fork-join pool.
+     */
+    private static final boolean DEFAULT_PARALLEL_QUERIES =
+            Boolean.getBoolean("org.eclipse.tracecompass.statesystem.core.parallelQueries"); //$NON-NLS-1$
+
     /** Indicates if the history tree construction is done */
     private volatile boolean fFinishedBuilding = false;
 
+    /** Pool in which to run the queries, null to run them in the caller */
+    private volatile @Nullable ForkJoinPool fQueryPool =
+            (DEFAULT_PARALLEL_QUERIES ? ForkJoinPool.commonPool() : null);
+
     /**
      * Indicates if the history tree construction is done
      *
@@ -149,9 +171,34 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
      */
     public HistoryTreeBackend(@NonNull String ssid, File existingStateFile, int providerVersion)
             throws IOException {
+        this(ssid, existingStateFile, providerVersion, false);
+    }
+
+    /**
+     * Existing history constructor, which can resume the construction of the
+     * history. When resuming, the intervals inserted in this backend must end
+     * after the end time of the existing history, and the file is only valid
+     * again once {@link #finishedBuilding} is called. If the backend is
+     * disposed before, the file is deleted.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param existingStateFile
+     *            Filename/location of the history we want to load
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param resume
+     *            True to continue building the history, false to only read it
+     * @throws IOException
+     *             If we can't read the file, if it doesn't exist, is not
+     *             recognized, or if the version of the file does not match the
+     *             expected providerVersion.
+     */
+    public HistoryTreeBackend(@NonNull String ssid, File existingStateFile, int providerVersion,
+            boolean resume) throws IOException {
         fSsid = ssid;
-        fSht = new HistoryTree(existingStateFile, providerVersion);
-        fFinishedBuilding = true;
+        fSht = new HistoryTree(existingStateFile, providerVersion, resume);
+        fFinishedBuilding = !resume;
     }
 
     /**
@@ -163,6 +210,30 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         return fSht;
     }
 
+    /**
+     * Set the pool in which the full queries and the range queries are
+     * executed. With a pool, the nodes of the tree are read and scanned in
+     * parallel, which makes large queries faster on machines with many cores
+     * at the cost of some overhead for small ones. Single queries always run
+     * in the calling thread.
+     *
+     * @param pool
+     *            The pool to use, or null to run the queries in the calling
+     *            thread (the default)
+     */
+    public void setQueryPool(@Nullable ForkJoinPool pool) {
+        fQueryPool = pool;
+    }
+
+    /**
+     * Get the pool in which the queries are executed.
+     *
+     * @return The pool, or null if the queries run in the calling thread
+     */
+    public @Nullable ForkJoinPool getQueryPool() {
+        return fQueryPool;
+    }
+
     @Override
     public String getSSID() {
         return fSsid;
@@ -233,6 +304,12 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
             throws TimeRangeException, StateSystemDisposedException {
         checkValidTime(t);
 
+        ForkJoinPool pool = fQueryPool;
+        if (pool != null) {
+            ParallelHistoryQuery.doQuery(pool, fSht, stateInfo, t);
+            return;
+        }
+
         /* We start by reading the information in the root node */
         HTNode currentNode = fSht.getRootNode();
         currentNode.writeInfoFromNode(stateInfo, t);
@@ -259,6 +336,79 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         return getRelevantInterval(t, attributeQuark);
     }
 
+    @Override
+    public Iterable<@NonNull ITmfStateInterval> query2D(Collection<@NonNull Integer> quarks,
+            long start, long end, long resolution)
+            throws TimeRangeException, StateSystemDisposedException {
+        checkValidTime(start);
+        checkValidTime(end);
+        if (end < start) {
+            throw new TimeRangeException(fSsid + " Start:" + start + ", End:" + end); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        TimeRangeCondition times = new TimeRangeCondition(start, end, resolution);
+        BitSet quarkSet = new BitSet();
+        for (Integer quark : quarks) {
+            quarkSet.set(quark);
+        }
+
+        ForkJoinPool pool = fQueryPool;
+        if (pool != null) {
+            /* The parallel query is not lazy, it runs before returning */
+            return ParallelHistoryQuery.query2D(pool, fSht, quarkSet, times);
+        }
+        return () -> new Query2DIterator(quarkSet, times);
+    }
+
+    /**
+     * Iterator over the results of a range query. The tree is traversed
+     * lazily, from the root, following every branch that intersects the time
+     * condition, so each node is read at most once.
+     */
+    private class Query2DIterator implements Iterator<@NonNull ITmfStateInterval> {
+
+        private final BitSet fQuarks;
+        private final TimeRangeCondition fTimes;
+        private final Deque<Integer> fNodesToVisit = new ArrayDeque<>();
+        private final Deque<@NonNull ITmfStateInterval> fIntervals = new ArrayDeque<>();
+
+        public Query2DIterator(BitSet quarks, TimeRangeCondition times) {
+            fQuarks = quarks;
+            fTimes = times;
+            fNodesToVisit.push(fSht.getRootNode().getSequenceNumber());
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (fIntervals.isEmpty() && !fNodesToVisit.isEmpty()) {
+                HTNode currentNode;
+                try {
+                    currentNode = fSht.readNode(fNodesToVisit.pop());
+                } catch (ClosedChannelException e) {
+                    throw new IllegalStateException(new StateSystemDisposedException(e));
+                }
+                currentNode.writeIntervals(fIntervals, fQuarks, fTimes);
+
+                if (currentNode.getNodeType() == HTNode.NodeType.CORE) {
+                    /* Push in reverse order, to visit the children in order */
+                    List<Integer> children = fSht.selectNextChildren((CoreNode) currentNode, fTimes);
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        fNodesToVisit.push(children.get(i));
+                    }
+                }
+            }
+            return !fIntervals.isEmpty();
+        }
+
+        @Override
+        public @NonNull ITmfStateInterval next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return checkNotNull(fIntervals.remove());
+        }
+    }
+
     private void checkValidTime(long t) {
         long treeStart = fSht.getTreeStart();
         long treeEnd = fSht.getTreeEnd();
@@ -302,6 +452,35 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         return fSht.getFileSize();
     }
 
+    /**
+     * Get the number of node reads that were served by the node cache.
+     *
+     * @return The number of node cache hits
+     */
+    public long getNodeCacheHitCount() {
+        return fSht.getNodeCache().getHitCount();
+    }
+
+    /**
+     * Get the number of node reads that had to go to the history file. A high
+     * miss count compared to the hit count means the queries are I/O-bound.
+     *
+     * @return The number of node cache misses
+     */
+    public long getNodeCacheMissCount() {
+        return fSht.getNodeCache().getMissCount();
+    }
+
+    /**
+     * Get the number of nodes evicted from the node cache because of its size
+     * budget.
+     *
+     * @return The number of node cache evictions
+     */
+    public long getNodeCacheEvictionCount() {
+        return fSht.getNodeCache().getEvictionCount();
+    }
+
     /**
      * Return the average node usage as a percentage (between 0 and 100)
      *
@@ -353,6 +532,8 @@ public class HistoryTreeBackend implements IStateHistoryBackend {
         writer.println(fSht.toString());
         writer.println("Average node utilization: " //$NON-NLS-1$
                 + getAverageNodeUsage());
+        writer.println("Node cache hits/misses/evictions: " //$NON-NLS-1$
+                + getNodeCacheHitCount() + '/' + getNodeCacheMissCount() + '/' + getNodeCacheEvictionCount());
         writer.println(""); //$NON-NLS-1$
 
         fSht.debugPrintFullTree(writer, printIntervals);
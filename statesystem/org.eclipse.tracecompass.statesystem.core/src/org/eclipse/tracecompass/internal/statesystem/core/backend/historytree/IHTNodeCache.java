@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Cache of history tree nodes that were read from, or written to, the history
+ * file. Implementations must be safe to use from several query threads at the
+ * same time.
+ */
+public interface IHTNodeCache {
+
+    /**
+     * Get a node from the cache.
+     *
+     * @param seqNumber
+     *            The sequence number of the node
+     * @return The cached node, or null if it is not in the cache
+     */
+    @Nullable HTNode get(int seqNumber);
+
+    /**
+     * Put a node in the cache, possibly evicting other nodes.
+     *
+     * @param node
+     *            The node to cache
+     */
+    void put(HTNode node);
+
+    /**
+     * Remove all the nodes from the cache. The statistics are not reset.
+     */
+    void clear();
+
+    /**
+     * Get the number of lookups that found the node in the cache.
+     *
+     * @return The number of cache hits
+     */
+    long getHitCount();
+
+    /**
+     * Get the number of lookups that did not find the node in the cache.
+     *
+     * @return The number of cache misses
+     */
+    long getMissCount();
+
+    /**
+     * Get the number of nodes that were removed from the cache to respect its
+     * size budget.
+     *
+     * @return The number of evictions
+     */
+    long getEvictionCount();
+}
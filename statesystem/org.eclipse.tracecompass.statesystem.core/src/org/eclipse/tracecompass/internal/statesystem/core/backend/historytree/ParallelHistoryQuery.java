@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.TimeRangeCondition;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+
+/**
+ * Implementations of the history tree queries which spread the work over the
+ * threads of a {@link ForkJoinPool}.
+ *
+ * A full query still has to go down the branch one node at a time, since the
+ * child to read is only known once its parent is read, but the nodes are
+ * scanned in parallel, while the next node of the branch is being read. A range
+ * query visits several branches, which are all explored in parallel.
+ */
+final class ParallelHistoryQuery {
+
+    private ParallelHistoryQuery() {
+    }
+
+    /**
+     * Full query at a given time. See
+     * {@link HistoryTreeBackend#doQuery(List, long)}.
+     *
+     * @param pool
+     *            The pool in which to run the query
+     * @param sht
+     *            The history tree to query
+     * @param stateInfo
+     *            The list to fill with the intervals, one per attribute
+     * @param t
+     *            The query time, which must be valid for the tree
+     * @throws StateSystemDisposedException
+     *             If the history file was closed
+     */
+    public static void doQuery(ForkJoinPool pool, HistoryTree sht,
+            List<ITmfStateInterval> stateInfo, long t) throws StateSystemDisposedException {
+        /*
+         * Each attribute has only one interval intersecting t, so the nodes of
+         * the branch write to different positions of stateInfo and can be
+         * scanned concurrently.
+         */
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        try {
+            HTNode currentNode = sht.getRootNode();
+            while (currentNode.getNodeType() == HTNode.NodeType.CORE) {
+                final HTNode node = currentNode;
+                tasks.add(pool.submit(() -> node.writeInfoFromNode(stateInfo, t)));
+                currentNode = sht.selectNextChild((CoreNode) currentNode, t);
+            }
+            /* Scan the leaf in this thread while the other nodes complete */
+            currentNode.writeInfoFromNode(stateInfo, t);
+        } catch (ClosedChannelException e) {
+            throw new StateSystemDisposedException(e);
+        } finally {
+            /* join() also makes the writes of the tasks visible here */
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Range query. See
+     * {@link HistoryTreeBackend#query2D(Collection, long, long, long)}.
+     *
+     * @param pool
+     *            The pool in which to run the query
+     * @param sht
+     *            The history tree to query
+     * @param quarks
+     *            The attributes to look for
+     * @param times
+     *            The time condition the intervals must match
+     * @return The matching intervals, in no particular order
+     * @throws StateSystemDisposedException
+     *             If the history file was closed
+     */
+    public static @NonNull Collection<@NonNull ITmfStateInterval> query2D(ForkJoinPool pool, HistoryTree sht,
+            BitSet quarks, TimeRangeCondition times) throws StateSystemDisposedException {
+        Collection<@NonNull ITmfStateInterval> results = new ConcurrentLinkedQueue<>();
+        NodeTask root = new NodeTask(sht, sht.getRootNode().getSequenceNumber(), quarks, times, results);
+        try {
+            pool.invoke(root);
+        } catch (ClosedNodeException e) {
+            throw new StateSystemDisposedException(e.getCause());
+        }
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Task reading one node of a range query, then forking one task for each
+     * of the children to visit.
+     */
+    private static class NodeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient HistoryTree fSht;
+        private final int fSeqNumber;
+        private final BitSet fQuarks;
+        private final transient TimeRangeCondition fTimes;
+        private final transient Collection<@NonNull ITmfStateInterval> fResults;
+
+        public NodeTask(HistoryTree sht, int seqNumber, BitSet quarks,
+                TimeRangeCondition times, Collection<@NonNull ITmfStateInterval> results) {
+            fSht = sht;
+            fSeqNumber = seqNumber;
+            fQuarks = quarks;
+            fTimes = times;
+            fResults = results;
+        }
+
+        @Override
+        protected void compute() {
+            HTNode node;
+            try {
+                node = fSht.readNode(fSeqNumber);
+            } catch (ClosedChannelException e) {
+                throw new ClosedNodeException(e);
+            }
+
+            List<NodeTask> subTasks = new ArrayList<>();
+            if (node.getNodeType() == HTNode.NodeType.CORE) {
+                for (Integer child : fSht.selectNextChildren((CoreNode) node, fTimes)) {
+                    subTasks.add(new NodeTask(fSht, child, fQuarks, fTimes, fResults));
+                }
+            }
+            /* Let the children be read while this node is scanned */
+            for (NodeTask subTask : subTasks) {
+                subTask.fork();
+            }
+            node.writeIntervals(fResults, fQuarks, fTimes);
+            for (NodeTask subTask : subTasks) {
+                subTask.join();
+            }
+        }
+    }
+
+    /**
+     * Unchecked wrapper used to bring a {@link ClosedChannelException} out of
+     * the tasks.
+     */
+    private static class ClosedNodeException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ClosedNodeException(ClosedChannelException cause) {
+            super(cause);
+        }
+    }
+}
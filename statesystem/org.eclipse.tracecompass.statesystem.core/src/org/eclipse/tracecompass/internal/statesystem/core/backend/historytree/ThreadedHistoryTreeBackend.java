@@ -16,11 +16,18 @@ package org.eclipse.tracecompass.internal.statesystem.core.backend.historytree;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.tracecompass.common.core.collect.BufferedBlockingQueue;
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.TimeRangeCondition;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
@@ -31,14 +38,26 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
  * Variant of the HistoryTreeBackend which runs all the interval-insertion logic
  * in a separate thread.
  *
+ * Building the history is a pipeline: the state system puts the intervals in a
+ * queue, the insertion thread routes them to the nodes of the latest branch
+ * and closes the full nodes, and the closed nodes are encoded and written to
+ * disk by a third thread, while the insertion goes on.
+ *
  * @author Alexandre Montplaisir
  */
 public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
         implements Runnable {
 
     private static final int CHUNK_SIZE = 127;
+    /* Maximum number of closed nodes waiting to be written */
+    private static final int NODE_WRITER_QUEUE_SIZE = 16;
     private final @NonNull BufferedBlockingQueue<HTInterval> intervalQueue;
     private final @NonNull Thread shtThread;
+    /*
+     * Latest end time of the intervals put in the queue. It is ahead of the
+     * end time of the tree while the queued intervals are not inserted.
+     */
+    private volatile long fQueueEnd = Long.MIN_VALUE;
 
     /**
      * New state history constructor
@@ -75,8 +94,51 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
             int blockSize,
             int maxChildren)
                     throws IOException {
+        this(ssid, newStateFile, providerVersion, startTime, queueSize, blockSize, maxChildren, true);
+    }
+
+    /**
+     * New state history constructor, which can disable the background writing
+     * of the nodes.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param newStateFile
+     *            The name of the history file that will be created. Should end
+     *            in ".ht"
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest timestamp stored in the history
+     * @param queueSize
+     *            The size of the interval insertion queue. 2000 - 10000 usually
+     *            works well
+     * @param blockSize
+     *            The size of the blocks in the file
+     * @param maxChildren
+     *            The maximum number of children allowed for each core node
+     * @param nodeWriter
+     *            If the closed nodes are written by a separate thread. If
+     *            false, they are written by the insertion thread.
+     * @throws IOException
+     *             If there was a problem opening the history file for writing
+     */
+    public ThreadedHistoryTreeBackend(@NonNull String ssid,
+            File newStateFile,
+            int providerVersion,
+            long startTime,
+            int queueSize,
+            int blockSize,
+            int maxChildren,
+            boolean nodeWriter)
+                    throws IOException {
         super(ssid, newStateFile, providerVersion, startTime, blockSize, maxChildren);
 
+        if (nodeWriter) {
+            getSHT().startNodeWriter(NODE_WRITER_QUEUE_SIZE);
+        }
         intervalQueue = new BufferedBlockingQueue<>(queueSize / CHUNK_SIZE, CHUNK_SIZE);
         shtThread = new Thread(this, "History Tree Thread"); //$NON-NLS-1$
         shtThread.start();
@@ -111,18 +173,46 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
                     throws IOException {
         super(ssid, newStateFile, providerVersion, startTime);
 
+        getSHT().startNodeWriter(NODE_WRITER_QUEUE_SIZE);
         intervalQueue = new BufferedBlockingQueue<>(queueSize / CHUNK_SIZE, CHUNK_SIZE);
         shtThread = new Thread(this, "History Tree Thread"); //$NON-NLS-1$
         shtThread.start();
     }
 
-    /*
-     * The Threaded version does not specify an "existing file" constructor,
-     * since the history is already built (and we only use the other thread
-     * during building). Just use a plain HistoryTreeProvider in this case.
+    /**
+     * Resume constructor, to continue building an existing history, for
+     * example when its trace has grown. The intervals must end after the end
+     * time of the existing history.
      *
-     * TODO but what about streaming??
+     * To only read an existing history, use a plain {@link HistoryTreeBackend}
+     * instead, the other thread is only used during building.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param existingStateFile
+     *            The history file to open
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param queueSize
+     *            The size of the interval insertion queue. 2000 - 10000 usually
+     *            works well
+     * @throws IOException
+     *             If we can't read the file, if it doesn't exist, is not
+     *             recognized, or if the version of the file does not match the
+     *             expected providerVersion.
      */
+    public ThreadedHistoryTreeBackend(@NonNull String ssid,
+            File existingStateFile,
+            int providerVersion,
+            int queueSize)
+                    throws IOException {
+        super(ssid, existingStateFile, providerVersion, true);
+
+        getSHT().startNodeWriter(NODE_WRITER_QUEUE_SIZE);
+        intervalQueue = new BufferedBlockingQueue<>(queueSize / CHUNK_SIZE, CHUNK_SIZE);
+        shtThread = new Thread(this, "History Tree Thread"); //$NON-NLS-1$
+        shtThread.start();
+    }
 
     @Override
     public void insertPastState(long stateStartTime, long stateEndTime,
@@ -134,6 +224,10 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
          */
         HTInterval interval = new HTInterval(stateStartTime, stateEndTime,
                 quark, (TmfStateValue) value);
+        /* Only the thread building the history writes this field */
+        if (stateEndTime > fQueueEnd) {
+            fQueueEnd = stateEndTime;
+        }
         intervalQueue.put(interval);
     }
 
@@ -216,10 +310,30 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
     // Query methods
     // ------------------------------------------------------------------------
 
+    /**
+     * The end time of the history includes the intervals which are still in
+     * the queue, so that they can be queried before they reach the tree.
+     */
+    @Override
+    public long getEndTime() {
+        return Math.max(super.getEndTime(), fQueueEnd);
+    }
+
+    /**
+     * Check if a time is only covered by the intervals of the queue, after the
+     * end of the tree. The end of the tree only moves forward, so a time in
+     * the tree remains there.
+     */
+    private boolean isAfterTree(long t) {
+        return t > getSHT().getTreeEnd() && t <= fQueueEnd;
+    }
+
     @Override
     public void doQuery(List<ITmfStateInterval> currentStateInfo, long t)
             throws TimeRangeException, StateSystemDisposedException {
-        super.doQuery(currentStateInfo, t);
+        if (!isAfterTree(t)) {
+            super.doQuery(currentStateInfo, t);
+        }
 
         if (isFinishedBuilding()) {
             /*
@@ -231,22 +345,29 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
 
         /*
          * It is possible we may have missed some intervals due to them being in
-         * the queue while the query was ongoing. Go over the results to see if
-         * we missed any.
+         * the queue while the query was ongoing. Fill the missing ones from the
+         * queue, in a single pass.
          */
-        for (int i = 0; i < currentStateInfo.size(); i++) {
-            if (currentStateInfo.get(i) == null) {
-                /* Query the missing interval via "unicast" */
-                ITmfStateInterval interval = doSingularQuery(t, i);
-                currentStateInfo.set(i, interval);
+        for (ITmfStateInterval interval : intervalQueue) {
+            int quark = interval.getAttribute();
+            if (quark >= 0 && quark < currentStateInfo.size()
+                    && currentStateInfo.get(quark) == null && interval.intersects(t)) {
+                currentStateInfo.set(quark, interval);
             }
         }
+        /*
+         * Intervals inserted in the tree while we were iterating on the queue
+         * are found by another pass in the tree.
+         */
+        if (currentStateInfo.contains(null) && !isAfterTree(t)) {
+            super.doQuery(currentStateInfo, t);
+        }
     }
 
     @Override
     public ITmfStateInterval doSingularQuery(long t, int attributeQuark)
             throws TimeRangeException, StateSystemDisposedException {
-        ITmfStateInterval ret = super.doSingularQuery(t, attributeQuark);
+        ITmfStateInterval ret = isAfterTree(t) ? null : super.doSingularQuery(t, attributeQuark);
         if (ret != null) {
             return ret;
         }
@@ -272,7 +393,57 @@ public final class ThreadedHistoryTreeBackend extends HistoryTreeBackend
          * if needed, instead of systematically checking in the queue first
          * (which is slow).
          */
-        return super.doSingularQuery(t, attributeQuark);
+        return isAfterTree(t) ? null : super.doSingularQuery(t, attributeQuark);
+    }
+
+    @Override
+    public Iterable<@NonNull ITmfStateInterval> query2D(Collection<@NonNull Integer> quarks,
+            long start, long end, long resolution)
+            throws TimeRangeException, StateSystemDisposedException {
+        if (isFinishedBuilding()) {
+            return super.query2D(quarks, start, end, resolution);
+        }
+        if (end < start || start < getStartTime() || end > getEndTime()) {
+            throw new TimeRangeException(getSSID() + " Start:" + start + ", End:" + end); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        /*
+         * Intervals that are still in the queue are not in the tree yet. The
+         * queue is read first: an interval is only removed from the queue once
+         * it is in the tree, so the intervals which leave the queue meanwhile
+         * are found in the tree, up to its end time read afterwards.
+         */
+        TimeRangeCondition times = new TimeRangeCondition(start, end, resolution);
+        Set<Integer> quarkSet = new HashSet<>(quarks);
+        List<@NonNull ITmfStateInterval> intervals = new ArrayList<>();
+        for (ITmfStateInterval interval : intervalQueue) {
+            if (quarkSet.contains(interval.getAttribute())
+                    && times.intersects(interval.getStartTime(), interval.getEndTime())) {
+                intervals.add(interval);
+            }
+        }
+
+        /* Query the tree up to its end, at the same sampling times */
+        long treeEnd = times.previous(getSHT().getTreeEnd());
+        if (treeEnd < start) {
+            return intervals;
+        }
+
+        /*
+         * An interval can be both in the queue and in the tree, make sure it
+         * is not returned twice. Intervals of one attribute never overlap, so
+         * the attribute and start time identify them.
+         */
+        Map<Integer, Set<Long>> seen = new HashMap<>();
+        for (ITmfStateInterval interval : intervals) {
+            seen.computeIfAbsent(interval.getAttribute(), q -> new HashSet<>()).add(interval.getStartTime());
+        }
+        for (ITmfStateInterval interval : super.query2D(quarks, start, treeEnd, resolution)) {
+            if (seen.computeIfAbsent(interval.getAttribute(), q -> new HashSet<>()).add(interval.getStartTime())) {
+                intervals.add(interval);
+            }
+        }
+        return intervals;
     }
 
 }
@@ -12,6 +12,7 @@
 
 package org.eclipse.tracecompass.statesystem.core;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -408,4 +409,62 @@ public interface ITmfStateSystem {
      */
     @NonNull ITmfStateInterval querySingleState(long t, int attributeQuark)
             throws AttributeNotFoundException, StateSystemDisposedException;
+
+    /**
+     * Range ("2D") query method. Return all the intervals of the given
+     * attributes which intersect the time range [start, end].
+     *
+     * This is much faster than calling {@link #querySingleState} or
+     * {@link #queryFullState} repeatedly over the range, since the history is
+     * only traversed once. The intervals are returned in no particular order.
+     * The range is clamped to the time range of the state system.
+     *
+     * @param quarks
+     *            The attributes for which to return intervals
+     * @param start
+     *            Start of the time range
+     * @param end
+     *            End of the time range, inclusive
+     * @return The intervals intersecting the range, for every given attribute
+     * @throws TimeRangeException
+     *             If end is smaller than start
+     * @throws IndexOutOfBoundsException
+     *             If one of the quarks is out of range
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been
+     *             disposed. If it gets disposed while the results are being
+     *             iterated, an {@link IllegalStateException} is thrown instead.
+     * @since 2.0
+     */
+    @NonNull Iterable<@NonNull ITmfStateInterval> query2D(@NonNull Collection<@NonNull Integer> quarks,
+            long start, long end) throws StateSystemDisposedException;
+
+    /**
+     * Range ("2D") query method, with sampling. Similar to
+     * {@link #query2D(Collection, long, long)}, but only the intervals
+     * containing one of the times start, start + resolution, start + 2 *
+     * resolution, ..., or end are returned. This is useful for populating
+     * views, where it is useless to have more than one state per pixel.
+     *
+     * @param quarks
+     *            The attributes for which to return intervals
+     * @param start
+     *            Start of the time range
+     * @param end
+     *            End of the time range, inclusive
+     * @param resolution
+     *            The sampling resolution, 1 or less to get every interval
+     * @return The sampled intervals, for every given attribute
+     * @throws TimeRangeException
+     *             If end is smaller than start
+     * @throws IndexOutOfBoundsException
+     *             If one of the quarks is out of range
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been
+     *             disposed. If it gets disposed while the results are being
+     *             iterated, an {@link IllegalStateException} is thrown instead.
+     * @since 2.0
+     */
+    @NonNull Iterable<@NonNull ITmfStateInterval> query2D(@NonNull Collection<@NonNull Integer> quarks,
+            long start, long end, long resolution) throws StateSystemDisposedException;
 }
\ No newline at end of file
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2012, 2014 Ericsson
+ * Copyright (c) 2012, 2016 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -130,6 +130,75 @@ public interface ITmfStateSystemBuilder extends ITmfStateSystem {
     void modifyAttribute(long t, ITmfStateValue value, int attributeQuark)
             throws AttributeNotFoundException, StateValueTypeException;
 
+    /**
+     * Attribute modification method for integer values. It does the same as
+     * {@link #modifyAttribute(long, ITmfStateValue, int)}, but no state value
+     * object is created when the attribute already has this value.
+     *
+     * @param t
+     *            Timestamp of the state change
+     * @param value
+     *            The integer value we want to assign to the attribute
+     * @param attributeQuark
+     *            Integer value of the quark corresponding to the attribute we
+     *            want to modify
+     * @throws TimeRangeException
+     *             If the requested time is outside of the trace's range
+     * @throws AttributeNotFoundException
+     *             If the requested attribute quark is invalid
+     * @throws StateValueTypeException
+     *             If the attribute already has values of another type
+     * @since 2.0
+     */
+    void modifyAttribute(long t, int value, int attributeQuark)
+            throws AttributeNotFoundException, StateValueTypeException;
+
+    /**
+     * Attribute modification method for long values. It does the same as
+     * {@link #modifyAttribute(long, ITmfStateValue, int)}, but no state value
+     * object is created when the attribute already has this value.
+     *
+     * @param t
+     *            Timestamp of the state change
+     * @param value
+     *            The long value we want to assign to the attribute
+     * @param attributeQuark
+     *            Integer value of the quark corresponding to the attribute we
+     *            want to modify
+     * @throws TimeRangeException
+     *             If the requested time is outside of the trace's range
+     * @throws AttributeNotFoundException
+     *             If the requested attribute quark is invalid
+     * @throws StateValueTypeException
+     *             If the attribute already has values of another type
+     * @since 2.0
+     */
+    void modifyAttribute(long t, long value, int attributeQuark)
+            throws AttributeNotFoundException, StateValueTypeException;
+
+    /**
+     * Attribute modification method for double values. It does the same as
+     * {@link #modifyAttribute(long, ITmfStateValue, int)}, but no state value
+     * object is created when the attribute already has this value.
+     *
+     * @param t
+     *            Timestamp of the state change
+     * @param value
+     *            The double value we want to assign to the attribute
+     * @param attributeQuark
+     *            Integer value of the quark corresponding to the attribute we
+     *            want to modify
+     * @throws TimeRangeException
+     *             If the requested time is outside of the trace's range
+     * @throws AttributeNotFoundException
+     *             If the requested attribute quark is invalid
+     * @throws StateValueTypeException
+     *             If the attribute already has values of another type
+     * @since 2.0
+     */
+    void modifyAttribute(long t, double value, int attributeQuark)
+            throws AttributeNotFoundException, StateValueTypeException;
+
     /**
      * Increment attribute method. Reads the current value of a given integer
      * attribute (this value is right now in the Transient State), and increment
@@ -17,6 +17,7 @@ import java.io.IOException;
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.tracecompass.internal.statesystem.core.StateSystem;
 import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
 
 /**
  * Factory to create state systems.
@@ -64,4 +65,27 @@ public final class StateSystemFactory {
         return new StateSystem(backend, newFile);
     }
 
+    /**
+     * Resume factory method. Continue building an existing history, for
+     * example when its trace has grown since the history was built, instead
+     * of building it again from scratch. The state changes must then be
+     * inserted from the end time of the existing history. The back-end must
+     * be opened to resume the construction, for example with
+     * {@link StateHistoryBackendFactory#createHistoryTreeBackendResumeFile}.
+     *
+     * The intervals that were ongoing at the end of the existing history are
+     * split at that time.
+     *
+     * @param backend
+     *            The "state history storage" back-end to use.
+     * @return The state system, whose construction must be closed with
+     *         {@link ITmfStateSystemBuilder#closeHistory}
+     * @throws IOException
+     *             If there was a problem reading the existing history
+     * @since 2.0
+     */
+    public static ITmfStateSystemBuilder resumeStateSystem(IStateHistoryBackend backend) throws IOException {
+        return new StateSystem(backend, false, true);
+    }
+
 }
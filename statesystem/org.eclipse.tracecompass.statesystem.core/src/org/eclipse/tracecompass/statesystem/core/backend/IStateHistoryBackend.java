@@ -15,10 +15,13 @@ package org.eclipse.tracecompass.statesystem.core.backend;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.TimeRangeCondition;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
 import org.eclipse.tracecompass.statesystem.core.exceptions.TimeRangeException;
@@ -185,6 +188,59 @@ public interface IStateHistoryBackend {
             throws TimeRangeException, AttributeNotFoundException,
             StateSystemDisposedException;
 
+    /**
+     * Range ("2D") query method. Return all the intervals of the given
+     * attributes which intersect the time range [start, end]. If a resolution
+     * greater than 1 is given, only the intervals which contain one of the
+     * times start, start + resolution, start + 2 * resolution, ..., or end are
+     * returned.
+     *
+     * The intervals are returned in no particular order. Backends should
+     * override the default implementation, which runs one singular query per
+     * returned interval, if they can do better.
+     *
+     * @param quarks
+     *            The attributes for which to return intervals
+     * @param start
+     *            Start of the time range
+     * @param end
+     *            End of the time range, inclusive
+     * @param resolution
+     *            The sampling resolution, 1 or less to get every interval
+     * @return The matching intervals
+     * @throws TimeRangeException
+     *             If the time range is outside of the history
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed while a request is ongoing.
+     * @since 2.0
+     */
+    default @NonNull Iterable<@NonNull ITmfStateInterval> query2D(@NonNull Collection<@NonNull Integer> quarks,
+            long start, long end, long resolution)
+            throws TimeRangeException, StateSystemDisposedException {
+        TimeRangeCondition times = new TimeRangeCondition(start, end, resolution);
+        List<@NonNull ITmfStateInterval> intervals = new ArrayList<>();
+        for (Integer quark : quarks) {
+            long t = times.next(start);
+            while (t <= end) {
+                ITmfStateInterval interval;
+                try {
+                    interval = doSingularQuery(t, quark);
+                } catch (AttributeNotFoundException e) {
+                    interval = null;
+                }
+                if (interval == null) {
+                    break;
+                }
+                intervals.add(interval);
+                if (interval.getEndTime() >= end) {
+                    break;
+                }
+                t = times.next(interval.getEndTime() + 1);
+            }
+        }
+        return intervals;
+    }
+
     /**
      * Debug method to print the contents of the history backend.
      *
@@ -14,12 +14,17 @@ package org.eclipse.tracecompass.statesystem.core.backend;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.InMemoryBackend;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.NullBackend;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.ShardedBackend;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.HistoryTreeBackend;
 import org.eclipse.tracecompass.internal.statesystem.core.backend.historytree.ThreadedHistoryTreeBackend;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
 
 /**
  * Factory for the various types {@link IStateHistoryBackend} supplied by this
@@ -59,6 +64,29 @@ public final class StateHistoryBackendFactory {
         return new InMemoryBackend(ssid, startTime);
     }
 
+    /**
+     * Create a new in-memory backend with a memory budget. Once its intervals
+     * use more memory than the budget, they are moved to a history tree in
+     * the given file, which then stores the new intervals. The file is only
+     * used while the backend is alive, it is deleted when it is disposed.
+     *
+     * @param ssid
+     *            The ID for this state system
+     * @param startTime
+     *            The start time of the state system and backend
+     * @param memoryBudget
+     *            The memory, in bytes, the intervals can use before they are
+     *            moved to disk
+     * @param spillFile
+     *            The file where to move the intervals
+     * @return The state system backend
+     * @since 2.0
+     */
+    public static IStateHistoryBackend createInMemoryBackend(String ssid, long startTime,
+            long memoryBudget, File spillFile) {
+        return new InMemoryBackend(ssid, startTime, memoryBudget, spillFile);
+    }
+
     /**
      * Create a new backend using a History Tree. This backend stores all its
      * intervals on disk.
@@ -115,4 +143,121 @@ public final class StateHistoryBackendFactory {
             int providerVersion) throws IOException {
         return new HistoryTreeBackend(ssid, stateFile, providerVersion);
     }
+
+    /**
+     * Open an existing History Tree file to continue building it, for example
+     * when its trace has grown since the history was built. The new intervals
+     * are added after the ones of the file. Use it with
+     * {@link StateSystemFactory#resumeStateSystem}.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            Filename/location of the history to continue
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param queueSize
+     *            The size of the interval insertion queue between the receiver
+     *            and writer threads. 2000 - 10000 usually works well. If 0 is
+     *            specified, no queue is used and the writes happen in the same
+     *            thread.
+     * @return The state system backend
+     * @throws IOException
+     *             If we can't read the file, if it doesn't exist, is not
+     *             recognized, or if the version of the file does not match the
+     *             expected providerVersion.
+     * @since 2.0
+     */
+    public static IStateHistoryBackend createHistoryTreeBackendResumeFile(String ssid, File stateFile,
+            int providerVersion, int queueSize) throws IOException {
+        if (queueSize > 0) {
+            return new ThreadedHistoryTreeBackend(ssid, stateFile, providerVersion, queueSize);
+        }
+        return new HistoryTreeBackend(ssid, stateFile, providerVersion, true);
+    }
+
+    /**
+     * Create a new backend which splits the attributes between several
+     * History Trees, the shards, each stored in its own file. Queries only
+     * read the shards containing the requested attributes, and, with a queue,
+     * the shards are built in parallel.
+     *
+     * The shard function can, for example, keep each top-level attribute
+     * subtree in its own shard, by looking up the top-level ancestor of the
+     * quark in the state system once it is created.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFiles
+     *            The files of the shards, the first one also stores the
+     *            attribute tree
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param queueSize
+     *            The size of the interval insertion queue of each shard. If 0
+     *            is specified, no queue is used and the writes happen in the
+     *            same thread.
+     * @param shardFunction
+     *            The function giving the index of the shard, in stateFiles,
+     *            of each attribute quark. The same function must be used when
+     *            the history is opened again.
+     * @return The state system backend
+     * @throws IOException
+     *             Thrown if we can't create one of the files
+     * @since 2.0
+     */
+    public static IStateHistoryBackend createShardedHistoryTreeBackendNewFiles(String ssid,
+            List<File> stateFiles, int providerVersion, long startTime, int queueSize,
+            IntUnaryOperator shardFunction) throws IOException {
+        List<IStateHistoryBackend> shards = new ArrayList<>();
+        try {
+            for (File stateFile : stateFiles) {
+                shards.add(createHistoryTreeBackendNewFile(ssid, stateFile, providerVersion, startTime, queueSize));
+            }
+        } catch (IOException e) {
+            /* Unfinished histories delete their file */
+            shards.forEach(IStateHistoryBackend::dispose);
+            throw e;
+        }
+        return new ShardedBackend(ssid, shards, shardFunction);
+    }
+
+    /**
+     * Open an existing sharded History Tree backend. See
+     * {@link #createShardedHistoryTreeBackendNewFiles}.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFiles
+     *            The files of the shards, in the same order as when the
+     *            history was created
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param shardFunction
+     *            The function giving the index of the shard of each attribute
+     *            quark, which must be the one used to create the history
+     * @return The state system backend
+     * @throws IOException
+     *             If we can't read one of the files, if it doesn't exist, is
+     *             not recognized, or if the version of the file does not
+     *             match the expected providerVersion.
+     * @since 2.0
+     */
+    public static IStateHistoryBackend createShardedHistoryTreeBackendExistingFiles(String ssid,
+            List<File> stateFiles, int providerVersion, IntUnaryOperator shardFunction) throws IOException {
+        List<IStateHistoryBackend> shards = new ArrayList<>();
+        try {
+            for (File stateFile : stateFiles) {
+                shards.add(createHistoryTreeBackendExistingFile(ssid, stateFile, providerVersion));
+            }
+        } catch (IOException e) {
+            shards.forEach(IStateHistoryBackend::dispose);
+            throw e;
+        }
+        return new ShardedBackend(ssid, shards, shardFunction);
+    }
 }
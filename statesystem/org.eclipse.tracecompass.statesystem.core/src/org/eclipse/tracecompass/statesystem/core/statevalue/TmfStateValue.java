@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2012, 2014 Ericsson
+ * Copyright (c) 2012, 2016 Ericsson
  * Copyright (c) 2010, 2011 École Polytechnique de Montréal
  * Copyright (c) 2010, 2011 Alexandre Montplaisir <alexandre.montplaisir@gmail.com>
  *
@@ -12,6 +12,8 @@
 
 package org.eclipse.tracecompass.statesystem.core.statevalue;
 
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.internal.statesystem.core.Activator;
 import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
@@ -42,6 +44,23 @@ public abstract class TmfStateValue implements ITmfStateValue {
     private static final LongStateValue longCache[] = new LongStateValue[LONG_CACHE_SIZE];
     private static final DoubleStateValue doubleCache[] = new DoubleStateValue[DOUBLE_CACHE_SIZE];
 
+    /*
+     * Small values (statuses, CPU numbers, counters...) are used by most state
+     * providers, they are created once and never evicted from these caches.
+     */
+    private static final int SMALL_VALUE_MIN = -128;
+    private static final int SMALL_VALUE_MAX = 1023;
+
+    private static final IntegerStateValue smallIntCache[] = new IntegerStateValue[SMALL_VALUE_MAX - SMALL_VALUE_MIN + 1];
+    private static final LongStateValue smallLongCache[] = new LongStateValue[SMALL_VALUE_MAX - SMALL_VALUE_MIN + 1];
+
+    static {
+        for (int i = 0; i < smallIntCache.length; i++) {
+            smallIntCache[i] = new IntegerStateValue(i + SMALL_VALUE_MIN);
+            smallLongCache[i] = new LongStateValue(i + SMALL_VALUE_MIN);
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Factory methods to instantiate new state values
     // ------------------------------------------------------------------------
@@ -69,6 +88,10 @@ public abstract class TmfStateValue implements ITmfStateValue {
      * @return The newly-created TmfStateValue object
      */
     public static TmfStateValue newValueInt(int intValue) {
+        if (intValue >= SMALL_VALUE_MIN && intValue <= SMALL_VALUE_MAX) {
+            return checkNotNull(smallIntCache[intValue - SMALL_VALUE_MIN]);
+        }
+
         /* Lookup in cache for the existence of the same value. */
         int offset = intValue & (INT_CACHE_SIZE - 1);
         IntegerStateValue cached = intCache[offset];
@@ -90,6 +113,10 @@ public abstract class TmfStateValue implements ITmfStateValue {
      * @return The newly-created TmfStateValue object
      */
     public static TmfStateValue newValueLong(long longValue) {
+        if (longValue >= SMALL_VALUE_MIN && longValue <= SMALL_VALUE_MAX) {
+            return checkNotNull(smallLongCache[(int) longValue - SMALL_VALUE_MIN]);
+        }
+
         /* Lookup in cache for the existence of the same value. */
         int offset = (int) longValue & (LONG_CACHE_SIZE - 1);
         LongStateValue cached = longCache[offset];
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.tests.statesystem.backends.partial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.CheckpointWindow;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial.CheckpointWindowCache;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the cache of the reconstructed checkpoint windows of a partial history,
+ * and the queries of these windows.
+ */
+public class CheckpointWindowCacheTest {
+
+    private static final int CAPACITY = 2;
+
+    private CheckpointWindowCache fCache;
+    private int fNbReconstructions;
+
+    /**
+     * Create an empty cache
+     */
+    @Before
+    public void setup() {
+        fCache = new CheckpointWindowCache(CAPACITY);
+        fNbReconstructions = 0;
+    }
+
+    private @NonNull CompletableFuture<CheckpointWindow> get(long checkpointTime, long endTime, int nbAttributes) {
+        return fCache.get(checkpointTime, endTime, nbAttributes, () -> {
+            fNbReconstructions++;
+            return new CompletableFuture<>();
+        });
+    }
+
+    /**
+     * Test that a window is reconstructed once for the same end time and
+     * number of attributes
+     */
+    @Test
+    public void testCachedWindow() {
+        CompletableFuture<CheckpointWindow> window = get(0, 99, 3);
+        assertSame(window, get(0, 99, 3));
+        assertEquals(1, fNbReconstructions);
+    }
+
+    /**
+     * Test that the last window is reconstructed again when the end time of
+     * the history grows
+     */
+    @Test
+    public void testEndTimeGrows() {
+        CompletableFuture<CheckpointWindow> window = get(100, 150, 3);
+        CompletableFuture<CheckpointWindow> grown = get(100, 180, 3);
+        assertNotSame(window, grown);
+        assertSame(grown, get(100, 180, 3));
+        assertEquals(2, fNbReconstructions);
+    }
+
+    /**
+     * Test that a window is reconstructed again when attributes are added
+     */
+    @Test
+    public void testAttributesAdded() {
+        CompletableFuture<CheckpointWindow> window = get(0, 99, 3);
+        CompletableFuture<CheckpointWindow> withNewAttribute = get(0, 99, 4);
+        assertNotSame(window, withNewAttribute);
+        assertSame(withNewAttribute, get(0, 99, 4));
+        assertEquals(2, fNbReconstructions);
+    }
+
+    /**
+     * Test that a failed reconstruction is attempted again
+     */
+    @Test
+    public void testFailedReconstruction() {
+        CompletableFuture<CheckpointWindow> window = get(0, 99, 3);
+        window.completeExceptionally(new IllegalStateException());
+        assertNotSame(window, get(0, 99, 3));
+        assertEquals(2, fNbReconstructions);
+    }
+
+    /**
+     * Test that the least recently used window is evicted
+     */
+    @Test
+    public void testEviction() {
+        CompletableFuture<CheckpointWindow> first = get(0, 99, 3);
+        CompletableFuture<CheckpointWindow> second = get(100, 199, 3);
+        /* Use the first window, so the second one is the eldest */
+        assertSame(first, get(0, 99, 3));
+        get(200, 299, 3);
+        assertEquals(3, fNbReconstructions);
+
+        assertSame(first, get(0, 99, 3));
+        assertEquals(3, fNbReconstructions);
+        assertNotSame(second, get(100, 199, 3));
+        assertEquals(4, fNbReconstructions);
+    }
+
+    /**
+     * Test the queries of a window, with closed and ongoing intervals
+     */
+    @Test
+    public void testWindowQuery() {
+        List<@NonNull ITmfStateInterval> closed = new ArrayList<>();
+        closed.add(new TmfStateInterval(0, 9, 0, TmfStateValue.newValueInt(1)));
+        closed.add(new TmfStateInterval(10, 19, 0, TmfStateValue.newValueInt(2)));
+        List<@NonNull ITmfStateInterval> ongoing = new ArrayList<>();
+        ongoing.add(new TmfStateInterval(20, 99, 0, TmfStateValue.newValueInt(3)));
+        ongoing.add(new TmfStateInterval(0, 99, 1, TmfStateValue.nullValue()));
+        CheckpointWindow window = new CheckpointWindow(closed, ongoing);
+
+        List<@Nullable ITmfStateInterval> stateInfo = new ArrayList<>(Collections.nCopies(2, null));
+        window.query(stateInfo, 9);
+        assertSame(closed.get(0), stateInfo.get(0));
+        assertSame(ongoing.get(1), stateInfo.get(1));
+        window.query(stateInfo, 10);
+        assertSame(closed.get(1), stateInfo.get(0));
+        window.query(stateInfo, 50);
+        assertSame(ongoing.get(0), stateInfo.get(0));
+    }
+
+    /**
+     * Test that a window cannot be queried for attributes added after its
+     * reconstruction, instead of leaving their states empty
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowQueryNewAttribute() {
+        List<@NonNull ITmfStateInterval> ongoing = new ArrayList<>();
+        ongoing.add(new TmfStateInterval(0, 99, 0, TmfStateValue.nullValue()));
+        CheckpointWindow window = new CheckpointWindow(Collections.emptyList(), ongoing);
+        assertEquals(1, window.getNbAttributes());
+
+        List<@Nullable ITmfStateInterval> stateInfo = new ArrayList<>(Collections.nCopies(2, null));
+        window.query(stateInfo, 50);
+    }
+}
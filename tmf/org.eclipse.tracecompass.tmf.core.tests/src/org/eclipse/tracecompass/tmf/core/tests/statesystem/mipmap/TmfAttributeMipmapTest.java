@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.tmf.core.tests.statesystem.mipmap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap.TmfAttributeMipmap;
+import org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap.TmfStateSystemOperations;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystemBuilder;
+import org.eclipse.tracecompass.statesystem.core.StateSystemFactory;
+import org.eclipse.tracecompass.statesystem.core.backend.IStateHistoryBackend;
+import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the mipmap attached to the attributes of a state system after its
+ * build, which must give the same results as the queries of the intervals.
+ */
+public class TmfAttributeMipmapTest {
+
+    private static final @NonNull String SSID = "attribute-mipmap-test";
+    private static final long START_TIME = 1000L;
+    private static final long END_TIME = 10000000L;
+    private static final int NB_QUERIES = 200;
+    private static final double DELTA = 0.0001;
+
+    private ITmfStateSystemBuilder fSs;
+    private int fLongQuark;
+    private int fDoubleQuark;
+    private int fStringQuark;
+    private Path fFile;
+
+    /**
+     * Build a state system with random values, and some null values
+     *
+     * @throws IOException
+     *             If the companion file cannot be created
+     * @throws AttributeNotFoundException
+     *             If the attributes cannot be modified
+     */
+    @Before
+    public void setup() throws IOException, AttributeNotFoundException {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME);
+        ITmfStateSystemBuilder ss = StateSystemFactory.newStateSystem(backend);
+        fLongQuark = ss.getQuarkAbsoluteAndAdd("long");
+        fDoubleQuark = ss.getQuarkAbsoluteAndAdd("double");
+        fStringQuark = ss.getQuarkAbsoluteAndAdd("string");
+        Random random = new Random(42);
+        for (long time = START_TIME; time < END_TIME; time += 1 + random.nextInt(2000)) {
+            boolean isNull = random.nextInt(10) == 0;
+            ss.modifyAttribute(time, isNull ? TmfStateValue.nullValue() : TmfStateValue.newValueLong(random.nextInt(100000) - 1000), fLongQuark);
+            ss.modifyAttribute(time, isNull ? TmfStateValue.nullValue() : TmfStateValue.newValueDouble(random.nextGaussian()), fDoubleQuark);
+            ss.modifyAttribute(time, TmfStateValue.newValueString(String.valueOf(time)), fStringQuark);
+        }
+        ss.closeHistory(END_TIME);
+        fSs = ss;
+        fFile = Files.createTempFile("mipmap", ".ht");
+        Files.delete(fFile);
+    }
+
+    /**
+     * Detach the mipmaps and delete the companion file
+     *
+     * @throws IOException
+     *             If the file cannot be deleted
+     */
+    @After
+    public void teardown() throws IOException {
+        TmfAttributeMipmap.detach(fSs, fLongQuark);
+        TmfAttributeMipmap.detach(fSs, fDoubleQuark);
+        fSs.dispose();
+        Files.deleteIfExists(fFile);
+    }
+
+    /**
+     * Test the queries of a long attribute, with the mipmap computed then read
+     * from its file
+     *
+     * @throws Exception
+     *             If the state system cannot be queried
+     */
+    @Test
+    public void testLong() throws Exception {
+        assertQueries(fLongQuark);
+    }
+
+    /**
+     * Test the queries of a double attribute, with the mipmap computed then
+     * read from its file
+     *
+     * @throws Exception
+     *             If the state system cannot be queried
+     */
+    @Test
+    public void testDouble() throws Exception {
+        assertQueries(fDoubleQuark);
+    }
+
+    /**
+     * Test that an attribute with string values cannot be mipmapped
+     *
+     * @throws Exception
+     *             If the state system cannot be queried
+     */
+    @Test(expected = StateValueTypeException.class)
+    public void testString() throws Exception {
+        TmfAttributeMipmap.attach(fSs, fStringQuark, null);
+    }
+
+    /**
+     * Test that an invalid quark cannot be mipmapped
+     *
+     * @throws Exception
+     *             If the state system cannot be queried
+     */
+    @Test(expected = AttributeNotFoundException.class)
+    public void testInvalidQuark() throws Exception {
+        TmfAttributeMipmap.attach(fSs, fSs.getNbAttributes(), null);
+    }
+
+    /**
+     * Test that a companion file of another attribute is not used
+     *
+     * @throws Exception
+     *             If the state system cannot be queried
+     */
+    @Test
+    public void testOtherFile() throws Exception {
+        TmfAttributeMipmap.attach(fSs, fLongQuark, fFile);
+        TmfAttributeMipmap.detach(fSs, fLongQuark);
+        ITmfStateValue expected = TmfStateSystemOperations.queryRangeMax(fSs, START_TIME, END_TIME, fDoubleQuark);
+        TmfAttributeMipmap.attach(fSs, fDoubleQuark, fFile);
+        assertEquals(expected, TmfStateSystemOperations.queryRangeMax(fSs, START_TIME, END_TIME, fDoubleQuark));
+    }
+
+    private void assertQueries(int quark) throws AttributeNotFoundException, StateValueTypeException, StateSystemDisposedException, IOException {
+        long[][] ranges = new long[NB_QUERIES][];
+        ITmfStateValue[] maxs = new ITmfStateValue[NB_QUERIES];
+        ITmfStateValue[] mins = new ITmfStateValue[NB_QUERIES];
+        double[] avgs = new double[NB_QUERIES];
+        Random random = new Random(7);
+        for (int i = 0; i < NB_QUERIES; i++) {
+            long t1 = START_TIME + random.nextInt((int) (END_TIME - START_TIME));
+            long t2 = Math.min(END_TIME, t1 + (i % 4 == 0 ? random.nextInt(3) : random.nextInt(5000000)));
+            ranges[i] = new long[] { t1, t2 };
+        }
+        ranges[0] = new long[] { START_TIME, END_TIME };
+
+        /* The expected results, from the intervals */
+        assertNull(TmfAttributeMipmap.getAttached(fSs, quark));
+        for (int i = 0; i < NB_QUERIES; i++) {
+            maxs[i] = TmfStateSystemOperations.queryRangeMax(fSs, ranges[i][0], ranges[i][1], quark);
+            mins[i] = TmfStateSystemOperations.queryRangeMin(fSs, ranges[i][0], ranges[i][1], quark);
+            avgs[i] = TmfStateSystemOperations.queryRangeAverage(fSs, ranges[i][0], ranges[i][1], quark);
+        }
+
+        /* Computed mipmap */
+        assertFalse(Files.exists(fFile));
+        TmfAttributeMipmap mipmap = TmfAttributeMipmap.attach(fSs, quark, fFile);
+        assertSame(mipmap, TmfAttributeMipmap.getAttached(fSs, quark));
+        assertTrue(Files.exists(fFile));
+        assertTrue(mipmap.covers(START_TIME, END_TIME));
+        assertFalse(mipmap.covers(START_TIME - 1, END_TIME));
+        assertResults(quark, ranges, maxs, mins, avgs);
+
+        /* Mipmap read from the file */
+        TmfAttributeMipmap.detach(fSs, quark);
+        assertNull(TmfAttributeMipmap.getAttached(fSs, quark));
+        long modified = Files.getLastModifiedTime(fFile).toMillis();
+        TmfAttributeMipmap reread = TmfAttributeMipmap.attach(fSs, quark, fFile);
+        assertNotNull(reread);
+        assertEquals(modified, Files.getLastModifiedTime(fFile).toMillis());
+        assertResults(quark, ranges, maxs, mins, avgs);
+    }
+
+    private void assertResults(int quark, long[][] ranges, ITmfStateValue[] maxs, ITmfStateValue[] mins, double[] avgs)
+            throws AttributeNotFoundException, StateValueTypeException {
+        for (int i = 0; i < NB_QUERIES; i++) {
+            String range = ranges[i][0] + ", " + ranges[i][1];
+            assertEquals(range, maxs[i], TmfStateSystemOperations.queryRangeMax(fSs, ranges[i][0], ranges[i][1], quark));
+            assertEquals(range, mins[i], TmfStateSystemOperations.queryRangeMin(fSs, ranges[i][0], ranges[i][1], quark));
+            assertEquals(range, avgs[i], TmfStateSystemOperations.queryRangeAverage(fSs, ranges[i][0], ranges[i][1], quark), DELTA);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial;
+
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+
+/**
+ * The states of every attribute between a checkpoint of a partial history and
+ * the next one, as reconstructed by replaying the events of that time range.
+ * Any query in the range can then be answered without reading the trace.
+ */
+public class CheckpointWindow {
+
+    /** The intervals of each attribute, by quark, in time order */
+    private final ITmfStateInterval[][] fIntervals;
+
+    /**
+     * Constructor
+     *
+     * @param closedIntervals
+     *            The intervals that ended in the window, in time order for
+     *            each attribute
+     * @param ongoingIntervals
+     *            The intervals of every attribute that were still ongoing at
+     *            the end of the window, by quark
+     */
+    public CheckpointWindow(List<@NonNull ITmfStateInterval> closedIntervals,
+            List<@NonNull ITmfStateInterval> ongoingIntervals) {
+        int nbAttributes = ongoingIntervals.size();
+        int[] counts = new int[nbAttributes];
+        for (ITmfStateInterval interval : closedIntervals) {
+            counts[interval.getAttribute()]++;
+        }
+        fIntervals = new ITmfStateInterval[nbAttributes][];
+        for (int quark = 0; quark < nbAttributes; quark++) {
+            fIntervals[quark] = new ITmfStateInterval[counts[quark] + 1];
+            counts[quark] = 0;
+        }
+        for (ITmfStateInterval interval : closedIntervals) {
+            int quark = interval.getAttribute();
+            fIntervals[quark][counts[quark]++] = interval;
+        }
+        for (int quark = 0; quark < nbAttributes; quark++) {
+            fIntervals[quark][counts[quark]] = ongoingIntervals.get(quark);
+        }
+    }
+
+    /**
+     * Get the number of attributes whose states were reconstructed
+     *
+     * @return The number of attributes
+     */
+    public int getNbAttributes() {
+        return fIntervals.length;
+    }
+
+    /**
+     * Fill the state of every attribute at a time of the window
+     *
+     * @param stateInfo
+     *            The list to fill, by quark. It cannot have more attributes
+     *            than the window.
+     * @param t
+     *            The time of the query
+     */
+    public void query(List<@Nullable ITmfStateInterval> stateInfo, long t) {
+        int nbAttributes = stateInfo.size();
+        if (nbAttributes > fIntervals.length) {
+            throw new IllegalArgumentException("Window of " + fIntervals.length + //$NON-NLS-1$
+                    " attributes queried for " + nbAttributes + " attributes"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        for (int quark = 0; quark < nbAttributes; quark++) {
+            ITmfStateInterval[] intervals = fIntervals[quark];
+            /* Find the first interval ending at or after t */
+            int low = 0;
+            int high = intervals.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (intervals[mid].getEndTime() < t) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            stateInfo.set(quark, intervals[low]);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial;
+
+import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * The most recently used checkpoint windows of a partial history.
+ *
+ * Each window is kept with the end time and the number of attributes it was
+ * reconstructed for. While the history is built, the last window grows with
+ * the end time of the history and new attributes can be added to any window,
+ * so a window asked for another end time or number of attributes is
+ * reconstructed again instead of being returned from the cache.
+ */
+public class CheckpointWindowCache {
+
+    private static class CachedWindow {
+        private final long fEndTime;
+        private final int fNbAttributes;
+        private final @NonNull CompletableFuture<CheckpointWindow> fWindow;
+
+        public CachedWindow(long endTime, int nbAttributes, @NonNull CompletableFuture<CheckpointWindow> window) {
+            fEndTime = endTime;
+            fNbAttributes = nbAttributes;
+            fWindow = window;
+        }
+
+        public boolean isValidFor(long endTime, int nbAttributes) {
+            return fEndTime == endTime && fNbAttributes == nbAttributes &&
+                    !fWindow.isCompletedExceptionally() && !fWindow.isCancelled();
+        }
+    }
+
+    /** Windows by checkpoint time, in LRU order */
+    private final Map<Long, CachedWindow> fWindows;
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            The number of windows to keep
+     */
+    public CheckpointWindowCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid cache capacity " + capacity); //$NON-NLS-1$
+        }
+        fWindows = new LinkedHashMap<Long, CachedWindow>(capacity, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedWindow> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the window of a checkpoint, reconstructing it if it is not in the
+     * cache, if its reconstruction failed, or if it was reconstructed for
+     * another end time or number of attributes.
+     *
+     * @param checkpointTime
+     *            The time of the checkpoint starting the window
+     * @param endTime
+     *            The end time of the window, which is the end time of the
+     *            history for the last window
+     * @param nbAttributes
+     *            The number of attributes of the history
+     * @param reconstruction
+     *            Starts the reconstruction of the window, when needed
+     * @return The window, which may still be reconstructed
+     */
+    public synchronized @NonNull CompletableFuture<CheckpointWindow> get(long checkpointTime,
+            long endTime, int nbAttributes,
+            Supplier<CompletableFuture<CheckpointWindow>> reconstruction) {
+        CachedWindow cached = fWindows.get(checkpointTime);
+        if (cached != null && cached.isValidFor(endTime, nbAttributes)) {
+            return cached.fWindow;
+        }
+        @NonNull CompletableFuture<CheckpointWindow> window = checkNotNull(reconstruction.get());
+        fWindows.put(checkpointTime, new CachedWindow(endTime, nbAttributes, window));
+        return window;
+    }
+}
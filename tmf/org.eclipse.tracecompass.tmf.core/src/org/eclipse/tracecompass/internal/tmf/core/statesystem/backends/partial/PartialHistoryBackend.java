@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2015 Ericsson
+ * Copyright (c) 2013, 2016 Ericsson
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
  * accompanies this distribution, and is available at
@@ -18,10 +18,19 @@ import static org.eclipse.tracecompass.common.core.NonNullUtils.checkNotNullCont
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import org.eclipse.jdt.annotation.NonNull;
@@ -58,10 +67,22 @@ import org.eclipse.tracecompass.tmf.core.trace.ITmfTrace;
  * earlier checkpoint, and will re-feed the state-change-input with events from
  * the trace, to restore the real state at the time that was requested.
  *
+ * All the states until the next checkpoint are kept while the events are
+ * re-fed, so the following queries in the same checkpoint window are answered
+ * from memory. The most recently used windows are cached, and the windows
+ * before and after the one being queried are reconstructed in advance by a
+ * pool of state-change-inputs, for views scrolling through time.
+ *
  * @author Alexandre Montplaisir
  */
 public class PartialHistoryBackend implements IStateHistoryBackend {
 
+    /** Number of reconstructed checkpoint windows kept in memory */
+    private static final int CACHE_SIZE = 8;
+
+    /** Number of windows that can be reconstructed at the same time */
+    private static final int NB_WORKERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     private final @NonNull String fSSID;
 
     /**
@@ -89,6 +110,15 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
     private long fLatestTime;
 
+    /** Reconstructed checkpoint windows */
+    private final CheckpointWindowCache fWindows = new CheckpointWindowCache(CACHE_SIZE);
+
+    /** The state-change-inputs that are not reconstructing a window */
+    private final BlockingQueue<Reconstructor> fIdleReconstructors = new LinkedBlockingQueue<>();
+    private final List<Reconstructor> fReconstructors = new ArrayList<>();
+
+    private final ExecutorService fReconstructionPool;
+
     /**
      * Constructor
      *
@@ -129,6 +159,15 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
         fLatestTime = startTime;
 
+        Reconstructor reconstructor = new Reconstructor(partialInput, pss);
+        fReconstructors.add(reconstructor);
+        fIdleReconstructors.add(reconstructor);
+        fReconstructionPool = Executors.newFixedThreadPool(NB_WORKERS, r -> {
+            Thread thread = new Thread(r, ssid + " Reconstruction"); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        });
+
         registerCheckpoints();
     }
 
@@ -203,8 +242,12 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
 
     @Override
     public void dispose() {
-        fPartialInput.dispose();
-        fPartialSS.dispose();
+        fReconstructionPool.shutdownNow();
+        synchronized (fReconstructors) {
+            for (Reconstructor reconstructor : fReconstructors) {
+                reconstructor.dispose();
+            }
+        }
         fInnerHistory.dispose();
     }
 
@@ -219,58 +262,115 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
             throw new TimeRangeException(fSSID + " Time:" + t + ", Start:" + getStartTime() + ", End:" + getEndTime()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
         }
 
-        /* Reload the previous checkpoint */
-        long checkpointTime = fCheckpoints.floorKey(t);
-        fInnerHistory.doQuery(currentStateInfo, checkpointTime);
-
         /*
-         * Set the initial contents of the partial state system (which is the
-         * contents of the query at the checkpoint).
+         * Get the window of the previous checkpoint, with at least the
+         * attributes of the query
          */
-        List<@NonNull ITmfStateInterval> filledStateInfo =
-                checkNotNullContents(currentStateInfo.stream()).collect(Collectors.toList());
-
-        fPartialSS.takeQueryLock();
-        fPartialSS.replaceOngoingState(filledStateInfo);
+        long checkpointTime = fCheckpoints.floorKey(t);
+        int nbAttributes = currentStateInfo.size();
+        CompletableFuture<CheckpointWindow> window = getWindow(checkpointTime, nbAttributes);
 
-        /* Send an event request to update the state system to the target time. */
-        TmfTimeRange range = new TmfTimeRange(
-                /*
-                 * The state at the checkpoint already includes any state change
-                 * caused by the event(s) happening exactly at 'checkpointTime',
-                 * if any. We must not include those events in the query.
-                 */
-                new TmfTimestamp(checkpointTime + 1, ITmfTimestamp.NANOSECOND_SCALE),
-                new TmfTimestamp(t, ITmfTimestamp.NANOSECOND_SCALE));
-        ITmfEventRequest request = new PartialStateSystemRequest(fPartialInput, range);
-        fPartialInput.getTrace().sendRequest(request);
+        /* Prefetch the neighbouring windows */
+        Long previous = fCheckpoints.lowerKey(checkpointTime);
+        if (previous != null) {
+            getWindow(previous, nbAttributes);
+        }
+        Long next = fCheckpoints.higherKey(checkpointTime);
+        if (next != null && next <= getEndTime()) {
+            getWindow(next, nbAttributes);
+        }
 
         try {
-            request.waitForCompletion();
+            window.get().query(currentStateInfo, t);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            throw new StateSystemDisposedException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StateSystemDisposedException) {
+                throw (StateSystemDisposedException) cause;
+            } else if (cause instanceof TimeRangeException) {
+                throw (TimeRangeException) cause;
+            }
+            throw new IllegalStateException(cause);
         }
+    }
 
+    /**
+     * Get the window of a checkpoint. Its attributes are the ones of the
+     * upstream state system when it is requested, but at least the given
+     * number, so that it can answer the query that requested it even if
+     * attributes were added meanwhile.
+     */
+    private CompletableFuture<CheckpointWindow> getWindow(long checkpointTime, int minNbAttributes) throws StateSystemDisposedException {
         /*
-         * Now the partial state system should have the ongoing time we are
-         * looking for. However, the method expects a List of *state intervals*,
-         * not state values, so we'll create intervals with a dummy end time.
+         * The last window, and the number of attributes, still grow while the
+         * history is built. The cache reconstructs a window built for a
+         * different end time or number of attributes.
          */
+        Long next = fCheckpoints.higherKey(checkpointTime);
+        long endTime = (next == null ? getEndTime() : Math.min(next - 1, getEndTime()));
+        int nbAttributes = Math.max(minNbAttributes, fPartialSS.getUpstreamSS().getNbAttributes());
         try {
-            for (int i = 0; i < currentStateInfo.size(); i++) {
-                long start = 0;
-                start = ((ITmfStateSystem) fPartialSS).getOngoingStartTime(i);
-                ITmfStateValue val = ((ITmfStateSystem) fPartialSS).queryOngoingState(i);
+            return fWindows.get(checkpointTime, endTime, nbAttributes,
+                    () -> CompletableFuture.supplyAsync(() -> reconstruct(checkpointTime, endTime, nbAttributes), fReconstructionPool));
+        } catch (RejectedExecutionException e) {
+            /* The pool is shut down */
+            throw new StateSystemDisposedException(e);
+        }
+    }
 
-                ITmfStateInterval interval = new TmfStateInterval(start, t, i, checkNotNull(val));
-                currentStateInfo.set(i, interval);
+    /**
+     * Reconstruct the states from a checkpoint to the end of its window, by
+     * replaying the events of that range on an idle state-change-input.
+     */
+    private CheckpointWindow reconstruct(long checkpointTime, long endTime, int nbAttributes) {
+        try {
+            /* Reload the checkpoint */
+            List<@Nullable ITmfStateInterval> stateInfo = new ArrayList<>(nbAttributes);
+            for (int i = 0; i < nbAttributes; i++) {
+                stateInfo.add(null);
             }
-        } catch (AttributeNotFoundException e) {
-            /* Should not happen, we iterate over existing values. */
-            e.printStackTrace();
+            fInnerHistory.doQuery(stateInfo, checkpointTime);
+            List<@NonNull ITmfStateInterval> filledStateInfo =
+                    checkNotNullContents(stateInfo.stream()).collect(Collectors.toList());
+
+            Reconstructor reconstructor = takeReconstructor();
+            try {
+                return reconstructor.reconstruct(filledStateInfo, checkpointTime, endTime);
+            } finally {
+                fIdleReconstructors.add(reconstructor);
+            }
+        } catch (InterruptedException e) {
+            /*
+             * The pool is shut down by dispose(). Fail the window, so that it
+             * is not kept as a valid one.
+             */
+            Thread.currentThread().interrupt();
+            throw new CompletionException(new StateSystemDisposedException(e));
+        } catch (StateSystemDisposedException e) {
+            throw new CompletionException(e);
         }
+    }
 
-        fPartialSS.releaseQueryLock();
+    private Reconstructor takeReconstructor() throws InterruptedException {
+        Reconstructor reconstructor = fIdleReconstructors.poll();
+        if (reconstructor != null) {
+            return reconstructor;
+        }
+        synchronized (fReconstructors) {
+            if (fReconstructors.size() < NB_WORKERS) {
+                /* Add a state-change-input, with its own partial state system */
+                ITmfStateProvider input = fPartialInput.getNewInstance();
+                PartialStateSystem pss = new PartialStateSystem();
+                input.assignTargetStateSystem(pss);
+                pss.assignUpstream(fPartialSS.getUpstreamSS());
+                reconstructor = new Reconstructor(input, pss);
+                fReconstructors.add(reconstructor);
+                return reconstructor;
+            }
+        }
+        return fIdleReconstructors.take();
     }
 
     /**
@@ -299,6 +399,83 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
         }
     }
 
+    // ------------------------------------------------------------------------
+    // Reconstruction
+    // ------------------------------------------------------------------------
+
+    /**
+     * A state-change-input and the partial state system it modifies
+     */
+    private class Reconstructor {
+        private final ITmfStateProvider fInput;
+        private final PartialStateSystem fSS;
+
+        public Reconstructor(ITmfStateProvider input, PartialStateSystem ss) {
+            fInput = input;
+            fSS = ss;
+        }
+
+        public CheckpointWindow reconstruct(List<@NonNull ITmfStateInterval> checkpointState,
+                long checkpointTime, long endTime) throws InterruptedException {
+            fSS.takeQueryLock();
+            try {
+                /*
+                 * Set the initial contents of the partial state system (which
+                 * is the contents of the query at the checkpoint).
+                 */
+                fSS.replaceOngoingState(checkpointState);
+                fSS.startRecording();
+
+                /*
+                 * Send an event request to update the state system to the end
+                 * of the window. The state at the checkpoint already includes
+                 * any state change caused by the event(s) happening exactly at
+                 * 'checkpointTime', if any. We must not include those events
+                 * in the query.
+                 */
+                if (endTime > checkpointTime) {
+                    TmfTimeRange range = new TmfTimeRange(
+                            new TmfTimestamp(checkpointTime + 1, ITmfTimestamp.NANOSECOND_SCALE),
+                            new TmfTimestamp(endTime, ITmfTimestamp.NANOSECOND_SCALE));
+                    ITmfEventRequest request = new PartialStateSystemRequest(fInput, range);
+                    fInput.getTrace().sendRequest(request);
+                    try {
+                        request.waitForCompletion();
+                    } catch (InterruptedException e) {
+                        /* The events after the interruption are missing */
+                        request.cancel();
+                        throw e;
+                    }
+                }
+
+                /*
+                 * Keep the intervals closed by the events, and the ones still
+                 * ongoing at the end of the window.
+                 */
+                List<@NonNull ITmfStateInterval> closedIntervals = fSS.stopRecording();
+                List<@NonNull ITmfStateInterval> ongoingIntervals = new ArrayList<>(checkpointState.size());
+                try {
+                    for (int i = 0; i < checkpointState.size(); i++) {
+                        long start = ((ITmfStateSystem) fSS).getOngoingStartTime(i);
+                        ITmfStateValue val = ((ITmfStateSystem) fSS).queryOngoingState(i);
+                        ongoingIntervals.add(new TmfStateInterval(start, endTime, i, checkNotNull(val)));
+                    }
+                } catch (AttributeNotFoundException e) {
+                    /* Should not happen, we iterate over existing values. */
+                    throw new IllegalStateException(e);
+                }
+                return new CheckpointWindow(closedIntervals, ongoingIntervals);
+            } finally {
+                fSS.releaseQueryLock();
+            }
+        }
+
+        public void dispose() {
+            fInput.dispose();
+            fSS.dispose();
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Event requests types
     // ------------------------------------------------------------------------
@@ -375,8 +552,8 @@ public class PartialHistoryBackend implements IStateHistoryBackend {
              * all events have been handled by the state system before doing
              * queries on it.
              */
-            if (fPartialInput instanceof AbstractTmfStateProvider) {
-                ((AbstractTmfStateProvider) fPartialInput).waitForEmptyQueue();
+            if (sci instanceof AbstractTmfStateProvider) {
+                ((AbstractTmfStateProvider) sci).waitForEmptyQueue();
             }
             super.handleCompleted();
         }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2014 Ericsson
+ * Copyright (c) 2013, 2016 Ericsson
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
  * accompanies this distribution, and is available at
@@ -11,25 +11,29 @@
 
 package org.eclipse.tracecompass.internal.tmf.core.statesystem.backends.partial;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.tracecompass.internal.statesystem.core.AttributeTree;
 import org.eclipse.tracecompass.internal.statesystem.core.StateSystem;
-import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
-import org.eclipse.tracecompass.statesystem.core.backend.StateHistoryBackendFactory;
+import org.eclipse.tracecompass.internal.statesystem.core.backend.NullBackend;
 import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
 import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.interval.TmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
 
 /**
  * State system interface-like extension to use with partial state histories.
  *
  * It mainly exposes the {@link #replaceOngoingState} method, which allows
  * seeking the state system to a different point by updating its "ongoing" state
- * values.
+ * values. The intervals closed while events are replayed can also be recorded,
+ * to keep all the states of a time range.
  *
  * @author Alexandre Montplaisir
  */
@@ -40,6 +44,7 @@ public class PartialStateSystem extends StateSystem {
 
     private final CountDownLatch ssAssignedLatch = new CountDownLatch(1);
     private final Lock queryLock = new ReentrantLock();
+    private final RecordingBackend recorder;
 
     /**
      * Reference to the real upstream state system. This is used so we can read
@@ -53,9 +58,15 @@ public class PartialStateSystem extends StateSystem {
     public PartialStateSystem() {
         /*
          * We use a Null back end here : we only use this state system for its
-         * "ongoing" values, so no need to save the changes that are inserted.
+         * "ongoing" values, so no need to save the changes that are inserted,
+         * unless they are being recorded.
          */
-        super(StateHistoryBackendFactory.createNullBackend("partial")); //$NON-NLS-1$
+        this(new RecordingBackend());
+    }
+
+    private PartialStateSystem(RecordingBackend backend) {
+        super(backend);
+        recorder = backend;
     }
 
     /**
@@ -69,7 +80,7 @@ public class PartialStateSystem extends StateSystem {
         ssAssignedLatch.countDown();
     }
 
-    ITmfStateSystem getUpstreamSS() {
+    StateSystem getUpstreamSS() {
         return realStateSystem;
     }
 
@@ -87,6 +98,24 @@ public class PartialStateSystem extends StateSystem {
         super.dispose();
     }
 
+    /**
+     * Start recording the intervals closed by the state changes. This should
+     * be done while holding the query lock.
+     */
+    public void startRecording() {
+        recorder.start();
+    }
+
+    /**
+     * Stop recording the intervals closed by the state changes
+     *
+     * @return The intervals closed since {@link #startRecording}, in the
+     *         order they were closed
+     */
+    public List<@NonNull ITmfStateInterval> stopRecording() {
+        return recorder.stop();
+    }
+
     // ------------------------------------------------------------------------
     // Methods regarding the query lock
     // ------------------------------------------------------------------------
@@ -160,4 +189,34 @@ public class PartialStateSystem extends StateSystem {
         }
     }
 
+    /**
+     * Null back-end that can keep the intervals it receives
+     */
+    private static class RecordingBackend extends NullBackend {
+
+        private @Nullable List<@NonNull ITmfStateInterval> recorded = null;
+
+        public RecordingBackend() {
+            super("partial"); //$NON-NLS-1$
+        }
+
+        public synchronized void start() {
+            recorded = new ArrayList<>();
+        }
+
+        public synchronized List<@NonNull ITmfStateInterval> stop() {
+            List<@NonNull ITmfStateInterval> intervals = recorded;
+            recorded = null;
+            return (intervals == null ? new ArrayList<>() : intervals);
+        }
+
+        @Override
+        public synchronized void insertPastState(long stateStartTime, long stateEndTime,
+                int quark, ITmfStateValue value) {
+            List<@NonNull ITmfStateInterval> intervals = recorded;
+            if (intervals != null) {
+                intervals.add(new TmfStateInterval(stateStartTime, stateEndTime, quark, value));
+            }
+        }
+    }
 }
@@ -0,0 +1,484 @@
+/*******************************************************************************
+ * Copyright (c) 2016 Ericsson
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************/
+
+package org.eclipse.tracecompass.internal.tmf.core.statesystem.mipmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.tracecompass.internal.tmf.core.Activator;
+import org.eclipse.tracecompass.statesystem.core.ITmfStateSystem;
+import org.eclipse.tracecompass.statesystem.core.exceptions.AttributeNotFoundException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateSystemDisposedException;
+import org.eclipse.tracecompass.statesystem.core.exceptions.StateValueTypeException;
+import org.eclipse.tracecompass.statesystem.core.interval.ITmfStateInterval;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue;
+import org.eclipse.tracecompass.statesystem.core.statevalue.ITmfStateValue.Type;
+import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
+
+/**
+ * Min, max and average mipmap of a numeric attribute of a state system that
+ * is already built. Unlike the {@link TmfMipmapFeature}, it does not need the
+ * state provider to add mipmap attributes, so it can be attached to any
+ * integer, long or double attribute of any analysis.
+ * <p>
+ * The non-null intervals of the attribute are read once, and every level of
+ * the mipmap summarizes pairs of entries of the level below. A range query
+ * then reads at most two entries per level, and the average uses the prefix
+ * sums of the weighted values, so all the queries are in O(log n). The
+ * mipmap can be saved in a companion file of the state system, so it is
+ * only computed once per trace.
+ * <p>
+ * Once attached, the mipmap is used by the {@link TmfStateSystemOperations}
+ * for the queries it covers.
+ */
+public final class TmfAttributeMipmap {
+
+    private static final int MAGIC = 0x4D69704D;
+    private static final int VERSION = 1;
+    /* magic, version, quark, type, start time, end time, count */
+    private static final int HEADER_SIZE = 5 * Integer.BYTES + 2 * Long.BYTES;
+
+    /** Attached mipmaps, per state system and quark */
+    private static final Map<ITmfStateSystem, Map<Integer, TmfAttributeMipmap>> ATTACHED = new WeakHashMap<>();
+
+    private final int fQuark;
+    private final long fStartTime;
+    private final long fEndTime;
+    /* INTEGER, LONG or DOUBLE, doubles are stored with toSortableLong() */
+    private final Type fType;
+
+    /* The non-null intervals of the attribute, in order */
+    private final int fCount;
+    private final long[] fStarts;
+    private final long[] fEnds;
+    private final long[] fValues;
+
+    /*
+     * Mipmap levels, stored as implicit trees: the entries of level 0 are at
+     * [fCount, 2 * fCount[ and the parent of entry i is entry i / 2
+     */
+    private final long[] fMins;
+    private final long[] fMaxs;
+    /* fWeightedSums[i] is the sum of value * duration of the first i intervals */
+    private final double[] fWeightedSums;
+
+    private TmfAttributeMipmap(int quark, long startTime, long endTime, Type type, long[] starts, long[] ends, long[] values) {
+        fQuark = quark;
+        fStartTime = startTime;
+        fEndTime = endTime;
+        fType = type;
+        fCount = starts.length;
+        fStarts = starts;
+        fEnds = ends;
+        fValues = values;
+        fMins = new long[2 * fCount];
+        fMaxs = new long[2 * fCount];
+        fWeightedSums = new double[fCount + 1];
+        System.arraycopy(values, 0, fMins, fCount, fCount);
+        System.arraycopy(values, 0, fMaxs, fCount, fCount);
+        for (int i = fCount - 1; i > 0; i--) {
+            fMins[i] = Math.min(fMins[2 * i], fMins[2 * i + 1]);
+            fMaxs[i] = Math.max(fMaxs[2 * i], fMaxs[2 * i + 1]);
+        }
+        for (int i = 0; i < fCount; i++) {
+            fWeightedSums[i + 1] = fWeightedSums[i] + getValue(i) * (fEnds[i] + 1 - fStarts[i]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Attaching
+    // ------------------------------------------------------------------------
+
+    /**
+     * Attach a mipmap to an attribute of a state system. This waits for the
+     * state system to be built. If the companion file exists and matches the
+     * state system, the mipmap is read from it, otherwise it is computed from
+     * the intervals of the attribute and saved to the file.
+     *
+     * @param ss
+     *            The state system
+     * @param quark
+     *            The quark of the numeric attribute
+     * @param file
+     *            The companion file of the mipmap, or null to keep it in
+     *            memory only
+     * @return The attached mipmap
+     * @throws AttributeNotFoundException
+     *             If the quark is invalid
+     * @throws StateValueTypeException
+     *             If the attribute has non-numeric values
+     * @throws StateSystemDisposedException
+     *             If the state system is disposed
+     */
+    public static TmfAttributeMipmap attach(ITmfStateSystem ss, int quark, @Nullable Path file)
+            throws AttributeNotFoundException, StateValueTypeException, StateSystemDisposedException {
+        TmfAttributeMipmap mipmap = getAttached(ss, quark);
+        if (mipmap != null) {
+            return mipmap;
+        }
+        if (quark < 0 || quark >= ss.getNbAttributes()) {
+            throw new AttributeNotFoundException(ss.getSSID() + " Quark:" + quark); //$NON-NLS-1$
+        }
+        ss.waitUntilBuilt();
+        if (file != null) {
+            mipmap = read(ss, quark, file);
+        }
+        if (mipmap == null) {
+            mipmap = build(ss, quark);
+            if (file != null) {
+                mipmap.write(file);
+            }
+        }
+        synchronized (ATTACHED) {
+            Map<Integer, TmfAttributeMipmap> mipmaps = ATTACHED.get(ss);
+            if (mipmaps == null) {
+                mipmaps = new HashMap<>();
+                ATTACHED.put(ss, mipmaps);
+            }
+            mipmaps.put(quark, mipmap);
+        }
+        return mipmap;
+    }
+
+    /**
+     * Get the mipmap attached to an attribute
+     *
+     * @param ss
+     *            The state system
+     * @param quark
+     *            The quark of the attribute
+     * @return The mipmap, or null if none is attached
+     */
+    public static @Nullable TmfAttributeMipmap getAttached(ITmfStateSystem ss, int quark) {
+        synchronized (ATTACHED) {
+            Map<Integer, TmfAttributeMipmap> mipmaps = ATTACHED.get(ss);
+            return (mipmaps == null ? null : mipmaps.get(quark));
+        }
+    }
+
+    /**
+     * Detach the mipmap of an attribute. Its companion file is kept.
+     *
+     * @param ss
+     *            The state system
+     * @param quark
+     *            The quark of the attribute
+     */
+    public static void detach(ITmfStateSystem ss, int quark) {
+        synchronized (ATTACHED) {
+            Map<Integer, TmfAttributeMipmap> mipmaps = ATTACHED.get(ss);
+            if (mipmaps != null) {
+                mipmaps.remove(quark);
+                if (mipmaps.isEmpty()) {
+                    ATTACHED.remove(ss);
+                }
+            }
+        }
+    }
+
+    private static TmfAttributeMipmap build(ITmfStateSystem ss, int quark)
+            throws StateValueTypeException, StateSystemDisposedException {
+        long startTime = ss.getStartTime();
+        long endTime = ss.getCurrentEndTime();
+        List<ITmfStateInterval> intervals = new ArrayList<>();
+        Type type = Type.INTEGER;
+        for (ITmfStateInterval interval : ss.query2D(Collections.singleton(quark), startTime, endTime)) {
+            ITmfStateValue value = interval.getStateValue();
+            switch (value.getType()) {
+            case NULL:
+                continue;
+            case INTEGER:
+                break;
+            case LONG:
+                if (type == Type.INTEGER) {
+                    type = Type.LONG;
+                }
+                break;
+            case DOUBLE:
+                type = Type.DOUBLE;
+                break;
+            case STRING:
+            default:
+                throw new StateValueTypeException(ss.getSSID() + " Quark:" + quark + ", Type:" + value.getType()); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            intervals.add(interval);
+        }
+        Collections.sort(intervals, (a, b) -> Long.compare(a.getStartTime(), b.getStartTime()));
+
+        int count = intervals.size();
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            ITmfStateInterval interval = intervals.get(i);
+            ITmfStateValue value = interval.getStateValue();
+            starts[i] = interval.getStartTime();
+            ends[i] = interval.getEndTime();
+            if (type == Type.DOUBLE) {
+                values[i] = toSortableLong(value.getType() == Type.DOUBLE ? value.unboxDouble() : (double) value.unboxLong());
+            } else {
+                values[i] = value.unboxLong();
+            }
+        }
+        return new TmfAttributeMipmap(quark, startTime, endTime, type, starts, ends, values);
+    }
+
+    // ------------------------------------------------------------------------
+    // Companion file
+    // ------------------------------------------------------------------------
+
+    private static @Nullable TmfAttributeMipmap read(ITmfStateSystem ss, int quark, Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                /* Read the whole file */
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                    buffer.getInt() != quark) {
+                return null;
+            }
+            int typeOrdinal = buffer.getInt();
+            long startTime = buffer.getLong();
+            long endTime = buffer.getLong();
+            int count = buffer.getInt();
+            if (typeOrdinal < 0 || typeOrdinal >= Type.values().length || startTime != ss.getStartTime() ||
+                    endTime != ss.getCurrentEndTime() || count < 0 || buffer.remaining() != 3L * count * Long.BYTES) {
+                /* Another format, or the mipmap of an older state system */
+                return null;
+            }
+            long[] starts = new long[count];
+            long[] ends = new long[count];
+            long[] values = new long[count];
+            buffer.asLongBuffer().get(starts).get(ends).get(values);
+            return new TmfAttributeMipmap(quark, startTime, endTime, Type.values()[typeOrdinal], starts, ends, values);
+        } catch (IOException e) {
+            Activator.logWarning("Error reading mipmap file " + file, e); //$NON-NLS-1$
+            return null;
+        }
+    }
+
+    private void write(Path file) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 3 * fCount * Long.BYTES);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(fQuark);
+        buffer.putInt(fType.ordinal());
+        buffer.putLong(fStartTime);
+        buffer.putLong(fEndTime);
+        buffer.putInt(fCount);
+        buffer.asLongBuffer().put(fStarts).put(fEnds).put(fValues);
+        buffer.rewind();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            /* The mipmap still works, it will be computed again next time */
+            Activator.logWarning("Error writing mipmap file " + file, e); //$NON-NLS-1$
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Queries
+    // ------------------------------------------------------------------------
+
+    /**
+     * Get the quark of the attribute
+     *
+     * @return The quark
+     */
+    public int getQuark() {
+        return fQuark;
+    }
+
+    /**
+     * Check if a time range can be queried with this mipmap
+     *
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @return true if the range is in the time range of the state system that
+     *         was mipmapped
+     */
+    public boolean covers(long t1, long t2) {
+        return fStartTime <= t1 && t1 <= t2 && t2 <= fEndTime;
+    }
+
+    /**
+     * Return the maximum value of the attribute over a time range
+     *
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @return The maximum value, or a null value if the attribute is null
+     *         over the whole range
+     * @see TmfStateSystemOperations#queryRangeMax
+     */
+    public ITmfStateValue queryRangeMax(long t1, long t2) {
+        int first = getFirstIndex(t1);
+        int last = getLastIndex(t2);
+        if (first > last) {
+            return TmfStateValue.nullValue();
+        }
+        long max = Long.MIN_VALUE;
+        for (int i = first + fCount, j = last + fCount + 1; i < j; i >>= 1, j >>= 1) {
+            if ((i & 1) != 0) {
+                max = Math.max(max, fMaxs[i++]);
+            }
+            if ((j & 1) != 0) {
+                max = Math.max(max, fMaxs[--j]);
+            }
+        }
+        return toStateValue(max);
+    }
+
+    /**
+     * Return the minimum value of the attribute over a time range
+     *
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @return The minimum value, or a null value if the attribute is null
+     *         over the whole range
+     * @see TmfStateSystemOperations#queryRangeMin
+     */
+    public ITmfStateValue queryRangeMin(long t1, long t2) {
+        int first = getFirstIndex(t1);
+        int last = getLastIndex(t2);
+        if (first > last) {
+            return TmfStateValue.nullValue();
+        }
+        long min = Long.MAX_VALUE;
+        for (int i = first + fCount, j = last + fCount + 1; i < j; i >>= 1, j >>= 1) {
+            if ((i & 1) != 0) {
+                min = Math.min(min, fMins[i++]);
+            }
+            if ((j & 1) != 0) {
+                min = Math.min(min, fMins[--j]);
+            }
+        }
+        return toStateValue(min);
+    }
+
+    /**
+     * Return the weighted average value of the attribute over a time range.
+     * Null values count as zero.
+     *
+     * @param t1
+     *            The start time of the range
+     * @param t2
+     *            The end time of the range
+     * @return The weighted average value
+     * @see TmfStateSystemOperations#queryRangeAverage
+     */
+    public double queryRangeAverage(long t1, long t2) {
+        int first = getFirstIndex(t1);
+        int last = getLastIndex(t2);
+        if (first > last) {
+            return 0;
+        } else if (t1 == t2) {
+            return getValue(first);
+        }
+        double sum = fWeightedSums[last + 1] - fWeightedSums[first];
+        /* Remove the parts of the first and last intervals outside the range */
+        if (fStarts[first] < t1) {
+            sum -= getValue(first) * (t1 - fStarts[first]);
+        }
+        if (fEnds[last] + 1 > t2) {
+            sum -= getValue(last) * (fEnds[last] + 1 - t2);
+        }
+        return sum / (t2 - t1);
+    }
+
+    /* Index of the first interval ending at or after t */
+    private int getFirstIndex(long t) {
+        int low = 0;
+        int high = fCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fEnds[mid] < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /* Index of the last interval starting at or before t */
+    private int getLastIndex(long t) {
+        int low = 0;
+        int high = fCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fStarts[mid] <= t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private double getValue(int index) {
+        long value = fValues[index];
+        return (fType == Type.DOUBLE ? fromSortableLong(value) : value);
+    }
+
+    private ITmfStateValue toStateValue(long value) {
+        switch (fType) {
+        case DOUBLE:
+            return TmfStateValue.newValueDouble(fromSortableLong(value));
+        case INTEGER:
+            return TmfStateValue.newValueInt((int) value);
+        case LONG:
+        case NULL:
+        case STRING:
+        default:
+            return TmfStateValue.newValueLong(value);
+        }
+    }
+
+    /*
+     * Map the bits of a double to a long with the same order, so that the
+     * levels of the mipmap only compare longs
+     */
+    private static long toSortableLong(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    private static double fromSortableLong(long value) {
+        return Double.longBitsToDouble(value ^ ((value >> 63) & Long.MAX_VALUE));
+    }
+}
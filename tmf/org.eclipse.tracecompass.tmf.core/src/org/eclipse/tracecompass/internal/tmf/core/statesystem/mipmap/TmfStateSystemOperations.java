@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2013, 2015 Ericsson
+ * Copyright (c) 2013, 2016 Ericsson
  *
  * All rights reserved. This program and the accompanying materials are
  * made available under the terms of the Eclipse Public License v1.0 which
@@ -30,7 +30,9 @@ import org.eclipse.tracecompass.statesystem.core.statevalue.TmfStateValue;
 
 /**
  * This class implements additional statistical operations that can be
- * performed on attributes of the state system.
+ * performed on attributes of the state system. The queries use the
+ * {@link TmfAttributeMipmap} attached to the attribute, if any, then the
+ * mipmap attributes added by an {@link AbstractTmfMipmapStateProvider}.
  *
  * @author Patrick Tassé
  */
@@ -60,6 +62,10 @@ public final class TmfStateSystemOperations {
      */
     public static ITmfStateValue queryRangeMax(ITmfStateSystem ss, long t1, long t2, int quark)
             throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        TmfAttributeMipmap mipmap = TmfAttributeMipmap.getAttached(ss, quark);
+        if (mipmap != null && mipmap.covers(t1, t2)) {
+            return mipmap.queryRangeMax(t1, t2);
+        }
         ITmfStateValue max = TmfStateValue.nullValue();
 
         List<ITmfStateInterval> intervals = queryAttributeRange(ss, t1, t2, quark, AbstractTmfMipmapStateProvider.MAX_STRING);
@@ -115,6 +121,10 @@ public final class TmfStateSystemOperations {
     public static ITmfStateValue queryRangeMin(ITmfStateSystem ss,
             long t1, long t2, int quark)
             throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        TmfAttributeMipmap mipmap = TmfAttributeMipmap.getAttached(ss, quark);
+        if (mipmap != null && mipmap.covers(t1, t2)) {
+            return mipmap.queryRangeMin(t1, t2);
+        }
         ITmfStateValue min = TmfStateValue.nullValue();
 
         List<ITmfStateInterval> intervals = queryAttributeRange(ss, t1, t2, quark, AbstractTmfMipmapStateProvider.MIN_STRING);
@@ -169,6 +179,10 @@ public final class TmfStateSystemOperations {
      */
     public static double queryRangeAverage(ITmfStateSystem ss, long t1, long t2, int quark)
             throws AttributeNotFoundException, TimeRangeException, StateValueTypeException {
+        TmfAttributeMipmap mipmap = TmfAttributeMipmap.getAttached(ss, quark);
+        if (mipmap != null && mipmap.covers(t1, t2)) {
+            return mipmap.queryRangeAverage(t1, t2);
+        }
         double avg = 0.0;
         List<ITmfStateInterval> intervals = queryAttributeRange(ss, t1, t2, quark, AbstractTmfMipmapStateProvider.AVG_STRING);
         if (intervals.size() == 0) {